@@ -16,36 +16,330 @@
 
 package org.killbill.billing.plugin.moneris;
 
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServlet;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalTime;
 import org.killbill.billing.osgi.api.OSGIPluginProperties;
 import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
+import org.killbill.billing.plugin.moneris.dao.MonerisAuditRecord;
 import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.killbill.billing.plugin.moneris.dao.MonerisJournal;
+import org.killbill.billing.plugin.moneris.dao.MonerisJournalApplier;
+import org.killbill.billing.plugin.moneris.dao.MonerisSlowQueryDetector;
+import org.killbill.billing.plugin.moneris.dao.MonerisStatementBuilder;
 import org.killbill.killbill.osgi.libs.killbill.KillbillActivatorBase;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIKillbillEventHandler;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.ManagedService;
+import org.osgi.service.log.LogService;
 
 public class MonerisActivator extends KillbillActivatorBase {
 
     public static final String PLUGIN_NAME = "killbill-moneris";
 
+    private static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.moneris.";
+
+    private MonerisJournal monerisJournal;
+    private MonerisJournalApplier monerisJournalApplier;
+    private MonerisIdempotencyCache monerisIdempotencyCache;
+    private MonerisDailyTotalsFlusher monerisDailyTotalsFlusher;
+    private MonerisReconciler monerisReconciler;
+    private MonerisPreAuthSweeper monerisPreAuthSweeper;
+    private MonerisOfflineQueue monerisOfflineQueue;
+    private MonerisBatchCloser monerisBatchCloser;
+    private MonerisBulkOperations monerisBulkOperations;
+    private MonerisAuditLog monerisAuditLog;
+    private ExecutorService hostProbeExecutor;
+
     @Override
     public void start(final BundleContext context) throws Exception {
         super.start(context);
 
-        // Configuration system properties
-        final String host = configProperties.getString("org.killbill.billing.plugin.moneris.host");
-        final String storeId = configProperties.getString("org.killbill.billing.plugin.moneris.storeId");
-        final String apiToken = configProperties.getString("org.killbill.billing.plugin.moneris.apiToken");
+        // Optional events for gateway exchanges and DAO calls, served under /events
+        final MonerisFlightRecorder monerisFlightRecorder = new MonerisFlightRecorder(getIntProperty("flightRecorder.capacity", 1024));
+        monerisFlightRecorder.configure(MonerisFlightRecorder.EventType.GATEWAY_EXCHANGE,
+                                        Boolean.valueOf(configProperties.getString(PROPERTY_PREFIX + "flightRecorder.gateway.enabled")),
+                                        getIntProperty("flightRecorder.gateway.thresholdMillis", 0),
+                                        TimeUnit.MILLISECONDS);
+        monerisFlightRecorder.configure(MonerisFlightRecorder.EventType.DAO_CALL,
+                                        Boolean.valueOf(configProperties.getString(PROPERTY_PREFIX + "flightRecorder.dao.enabled")),
+                                        getIntProperty("flightRecorder.dao.thresholdMillis", 0),
+                                        TimeUnit.MILLISECONDS);
+
+        // Slow query logging and query timeouts, with optional per operation (MonerisDao method) overrides, e.g. getTransactionsBulk:2000
+        // for dao.slowQueryThresholdsMillis or getTransactionsBulk:5 for dao.queryTimeoutsSeconds. The default timeout doesn't apply
+        // to exports and maintenance, see MonerisStatementBuilder
+        final MonerisSlowQueryDetector slowQueryDetector = new MonerisSlowQueryDetector(logService,
+                                                                                        getIntProperty("dao.slowQueryThresholdMillis", 500),
+                                                                                        getIntMapProperty("dao.slowQueryThresholdsMillis"),
+                                                                                        Double.valueOf(getStringProperty("dao.explainSampleRate", "0")),
+                                                                                        getIntProperty("dao.minExplainIntervalSeconds", 60));
+        final MonerisStatementBuilder statementBuilder = new MonerisStatementBuilder(getIntProperty("dao.queryTimeoutSeconds", 30),
+                                                                                     getIntMapProperty("dao.queryTimeoutsSeconds"));
+        final MonerisDao monerisDao = new MonerisDao(dataSource.getDataSource(), monerisFlightRecorder, slowQueryDetector, statementBuilder);
+        // Stable across restarts, so that the flush sequence of the node can resume
+        monerisDailyTotalsFlusher = new MonerisDailyTotalsFlusher(monerisDao, getStringProperty("dailyTotals.nodeId", MonerisBatchCloser.getHostName()), logService);
+        monerisDailyTotalsFlusher.start(getIntProperty("dailyTotals.flushIntervalSeconds", 60));
+
+        // Optional write-ahead journal for receipts
+        final String journalPath = configProperties.getString(PROPERTY_PREFIX + "journal.path");
+        if (journalPath != null) {
+            monerisJournal = new MonerisJournal(new File(journalPath), getIntProperty("journal.capacity", 64 * 1024 * 1024));
+            monerisJournalApplier = new MonerisJournalApplier(monerisJournal, monerisDao, logService, getIntProperty("journal.batchSize", 100));
+
+            // Crash recovery: replay what was journaled but not applied before we went down
+            if (monerisJournal.getNbPendingEntries() > 0) {
+                logService.log(LogService.LOG_INFO, "Replaying " + monerisJournal.getNbPendingEntries() + " entries from the Moneris journal " + journalPath);
+                monerisJournalApplier.run();
+            }
+            monerisJournalApplier.start(getIntProperty("journal.applyIntervalMillis", 1000));
+        }
+
+        monerisIdempotencyCache = new MonerisIdempotencyCache(getIntProperty("idempotency.cacheSize", 10000), monerisDao, monerisJournal);
+        // Moneris Vault data keys of the payment methods (cards are added to the Vault when vault.enabled is set)
+        final MonerisVaultCache monerisVaultCache = new MonerisVaultCache(getIntProperty("vault.cacheSize", 10000), monerisDao);
+
+        // Optional audit log of the raw (masked) gateway exchanges, to gzipped files, to moneris_audit, or to a recording for MonerisReplayDriver
+        final String auditSink = configProperties.getString(PROPERTY_PREFIX + "audit.sink");
+        if (auditSink != null) {
+            final MonerisAuditSink sink;
+            if ("file".equals(auditSink)) {
+                sink = new MonerisAuditFileSink(new File(configProperties.getString(PROPERTY_PREFIX + "audit.directory")),
+                                                getIntProperty("audit.maxFileSizeMB", 100) * 1024L * 1024L);
+            } else if ("recording".equals(auditSink)) {
+                sink = new MonerisRecordingSink(new File(configProperties.getString(PROPERTY_PREFIX + "audit.directory"),
+                                                         "moneris-recording-" + System.currentTimeMillis() + ".bin.gz"));
+            } else if ("db".equals(auditSink)) {
+                sink = new MonerisAuditSink() {
+                    @Override
+                    public void write(final List<MonerisAuditRecord> records) {
+                        monerisDao.createAuditRecords(records);
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            } else {
+                throw new IllegalArgumentException("Invalid " + PROPERTY_PREFIX + "audit.sink " + auditSink + ", expected file, recording or db");
+            }
+            monerisAuditLog = new MonerisAuditLog(sink,
+                                                  logService,
+                                                  getIntProperty("audit.bufferSize", 4096),
+                                                  MonerisAuditLog.OverflowPolicy.valueOf(getStringProperty("audit.overflowPolicy", "DROP")),
+                                                  getIntProperty("audit.maxBlockMillis", 100),
+                                                  getIntProperty("audit.batchSize", 100));
+            monerisAuditLog.start(getIntProperty("audit.flushIntervalMillis", 1000));
+        }
 
-        final MonerisDao monerisDao = new MonerisDao(dataSource.getDataSource());
-        final PaymentPluginApi paymentPluginApi = new MonerisPaymentPluginApi(host, storeId, apiToken, monerisDao, logService);
+        // Optional fair sharing of the gateway capacity between tenants, with per tenant weights (kbTenantId:weight)
+        final int schedulerCapacity = getIntProperty("scheduler.maxConcurrentRequests", 0);
+        final MonerisFairScheduler monerisFairScheduler;
+        if (schedulerCapacity > 0) {
+            final Map<UUID, Integer> tenantWeights = new HashMap<UUID, Integer>();
+            for (final Map.Entry<String, Integer> tenantWeight : getIntMapProperty("scheduler.tenantWeights").entrySet()) {
+                tenantWeights.put(UUID.fromString(tenantWeight.getKey()), tenantWeight.getValue());
+            }
+            monerisFairScheduler = new MonerisFairScheduler(schedulerCapacity, tenantWeights, getIntProperty("scheduler.maxWaitMillis", 5000), TimeUnit.MILLISECONDS);
+        } else {
+            monerisFairScheduler = null;
+        }
+
+        // Local validation, optionally with a BIN index (see MonerisBinIndex#build) restricting the accepted brands and card types
+        final MonerisValidator monerisValidator;
+        final String binIndexPath = configProperties.getString(PROPERTY_PREFIX + "validation.binIndexPath");
+        if (binIndexPath != null) {
+            final MonerisBinIndex binIndex = new MonerisBinIndex(new File(binIndexPath));
+            logService.log(LogService.LOG_INFO, "Loaded " + binIndex.getNbRanges() + " BIN ranges from " + binIndexPath);
+            monerisValidator = new MonerisValidator(binIndex,
+                                                    getEnumSetProperty("validation.acceptedBrands", MonerisBinIndex.Brand.class),
+                                                    getEnumSetProperty("validation.acceptedCardTypes", MonerisBinIndex.CardType.class));
+        } else {
+            monerisValidator = new MonerisValidator();
+        }
+
+        final MonerisMetrics monerisMetrics = new MonerisMetrics();
+        registerGauges(monerisMetrics, monerisIdempotencyCache, monerisFairScheduler);
+
+        // Stores and routes, which can be updated at runtime through ConfigAdmin
+        hostProbeExecutor = Executors.newSingleThreadExecutor(new MonerisThreadFactory("moneris-host-probe"));
+        final MonerisConfigurationHandler configurationHandler = new MonerisConfigurationHandler(configProperties.getProperties(), monerisMetrics, monerisFlightRecorder, monerisAuditLog, hostProbeExecutor, logService);
+        registerConfigurationHandler(context, configurationHandler);
+        final MonerisGatewayRouter monerisGatewayRouter = configurationHandler.getGatewayRouter();
+        final MonerisRateLimits monerisRateLimits = configurationHandler.getRateLimits();
+
+        // Optional store-and-forward of small non-interactive Vault charges while Moneris is unreachable
+        if (Boolean.valueOf(configProperties.getString(PROPERTY_PREFIX + "offline.enabled"))) {
+            monerisOfflineQueue = new MonerisOfflineQueue(monerisGatewayRouter,
+                                                          monerisFairScheduler,
+                                                          monerisDao,
+                                                          monerisVaultCache,
+                                                          monerisIdempotencyCache,
+                                                          monerisMetrics,
+                                                          logService,
+                                                          new BigDecimal(getStringProperty("offline.maxAmount", "50")),
+                                                          getIntProperty("offline.drainThreads", 4),
+                                                          getIntProperty("offline.batchSize", 100),
+                                                          getIntProperty("offline.sendingTimeoutSeconds", 300),
+                                                          (monerisFairScheduler == null ? 0 : getIntProperty("scheduler.maxWaitMillis", 5000)) + getIntProperty("rateLimit.maxWaitMillis", 500));
+            monerisOfflineQueue.start(getIntProperty("offline.drainIntervalSeconds", 30));
+        }
+
+        final MonerisPaymentPluginApi paymentPluginApi = new MonerisPaymentPluginApi(monerisGatewayRouter, monerisRateLimits, monerisFairScheduler, monerisValidator, monerisDao, monerisJournal, monerisIdempotencyCache,
+                                                                                     new MonerisPaymentInfoCache(getIntProperty("paymentInfoCache.size", 10000), getIntProperty("paymentInfoCache.ttlSeconds", 10), TimeUnit.SECONDS),
+                                                                                     monerisVaultCache,
+                                                                                     Boolean.valueOf(configProperties.getString(PROPERTY_PREFIX + "vault.enabled")),
+                                                                                     Boolean.valueOf(configProperties.getString(PROPERTY_PREFIX + "autoCapture.enabled")), monerisOfflineQueue, monerisMetrics, logService);
         registerPaymentPluginApi(context, paymentPluginApi);
+
+        monerisBulkOperations = new MonerisBulkOperations(killbillAPI, paymentPluginApi, monerisMetrics, logService, getIntProperty("bulk.window", 8));
+        registerServlet(context, new MonerisServlet(monerisMetrics,
+                                                    monerisFlightRecorder,
+                                                    monerisDao,
+                                                    paymentPluginApi,
+                                                    new MonerisTransactionExporter(monerisDao, getIntProperty("export.fetchSize", 1000)),
+                                                    new MonerisSettlementReconciler(monerisDao, getIntProperty("settlement.threads", 4), getIntProperty("settlement.sliceSize", 1000)),
+                                                    monerisBulkOperations));
+
+        // Optional background resolution of UNDEFINED transactions
+        if (Boolean.valueOf(configProperties.getString(PROPERTY_PREFIX + "reconciliation.enabled"))) {
+            monerisReconciler = new MonerisReconciler(monerisGatewayRouter,
+                                                      monerisDao,
+                                                      monerisIdempotencyCache,
+                                                      monerisMetrics,
+                                                      logService,
+                                                      getIntProperty("reconciliation.threads", 4),
+                                                      getIntProperty("reconciliation.maxRequestsPerSecond", 5),
+                                                      getIntProperty("reconciliation.batchSize", 500),
+                                                      getIntProperty("reconciliation.minAgeSeconds", 300),
+                                                      getIntProperty("reconciliation.maxAttempts", 10),
+                                                      getIntProperty("reconciliation.retryDelaySeconds", 300),
+                                                      getStringProperty("reconciliation.crypt", "7"));
+            monerisReconciler.start(getIntProperty("reconciliation.intervalSeconds", 300));
+        }
+
+        // Optional void (or re-authorization) of authorizations never captured, e.g. V:7,M:7 for preauthSweep.windowDays
+        if (Boolean.valueOf(configProperties.getString(PROPERTY_PREFIX + "preauthSweep.enabled"))) {
+            monerisPreAuthSweeper = new MonerisPreAuthSweeper(killbillAPI,
+                                                              monerisDao,
+                                                              monerisMetrics,
+                                                              logService,
+                                                              MonerisPreAuthSweeper.Action.valueOf(getStringProperty("preauthSweep.action", "VOID")),
+                                                              getIntMapProperty("preauthSweep.windowDays"),
+                                                              getIntProperty("preauthSweep.defaultWindowDays", 7),
+                                                              getIntProperty("preauthSweep.threads", 4),
+                                                              getIntProperty("preauthSweep.maxRequestsPerSecond", 5),
+                                                              getIntProperty("preauthSweep.batchSize", 100),
+                                                              getIntProperty("preauthSweep.maxAttempts", 5),
+                                                              getIntProperty("preauthSweep.retryDelaySeconds", 3600),
+                                                              Boolean.valueOf(configProperties.getString(PROPERTY_PREFIX + "preauthSweep.dryRun")),
+                                                              getStringProperty("preauthSweep.crypt", "7"));
+            monerisPreAuthSweeper.start(getIntProperty("preauthSweep.intervalSeconds", 3600));
+        }
+
+        // Optional daily batch close (if automatic close isn't enabled on the Moneris side), terminals can be listed per store
+        final Map<String, List<String>> ecrNumbersByStore = new HashMap<String, List<String>>();
+        final String stores = configProperties.getString(PROPERTY_PREFIX + "stores");
+        if (stores != null && !stores.trim().isEmpty()) {
+            for (final String store : stores.trim().split("\\s*,\\s*")) {
+                final String storeEcrNumbers = configProperties.getString(PROPERTY_PREFIX + "batchClose.store." + store + ".ecrNumbers");
+                if (storeEcrNumbers != null) {
+                    ecrNumbersByStore.put(store, Arrays.asList(storeEcrNumbers.trim().split("\\s*,\\s*")));
+                }
+            }
+        }
+        final String ecrNumbers = configProperties.getString(PROPERTY_PREFIX + "batchClose.ecrNumbers");
+        if (ecrNumbers != null || !ecrNumbersByStore.isEmpty()) {
+            monerisBatchCloser = new MonerisBatchCloser(monerisGatewayRouter,
+                                                        monerisDao,
+                                                        monerisMetrics,
+                                                        logService,
+                                                        ecrNumbers == null ? Collections.<String>emptyList() : Arrays.asList(ecrNumbers.trim().split("\\s*,\\s*")),
+                                                        ecrNumbersByStore,
+                                                        LocalTime.parse(getStringProperty("batchClose.time", "23:00")),
+                                                        DateTimeZone.forID(getStringProperty("batchClose.timeZone", "America/Toronto")),
+                                                        getIntProperty("batchClose.maxDelayMinutes", 60),
+                                                        getIntProperty("batchClose.leaseSeconds", 300),
+                                                        getIntProperty("batchClose.threads", 4));
+            monerisBatchCloser.start(getIntProperty("batchClose.checkIntervalSeconds", 60));
+        }
     }
 
     @Override
     public void stop(final BundleContext context) throws Exception {
+        // No new calls from Kill Bill nor through the servlet
+        if (registrar != null) {
+            registrar.unregisterAll();
+        }
+        if (monerisBulkOperations != null) {
+            monerisBulkOperations.close();
+            monerisBulkOperations = null;
+        }
+        if (monerisBatchCloser != null) {
+            monerisBatchCloser.stop();
+            monerisBatchCloser = null;
+        }
+        if (monerisPreAuthSweeper != null) {
+            monerisPreAuthSweeper.stop();
+            monerisPreAuthSweeper = null;
+        }
+        if (monerisReconciler != null) {
+            monerisReconciler.stop();
+            monerisReconciler = null;
+        }
+        if (monerisOfflineQueue != null) {
+            monerisOfflineQueue.stop();
+            monerisOfflineQueue = null;
+        }
+        if (hostProbeExecutor != null) {
+            hostProbeExecutor.shutdownNow();
+            hostProbeExecutor = null;
+        }
+        if (monerisAuditLog != null) {
+            monerisAuditLog.stop();
+            monerisAuditLog = null;
+        }
+        // Let the calls under way record their outcome, before the journal goes away
+        if (monerisIdempotencyCache != null) {
+            final int drainTimeoutSeconds = getIntProperty("shutdown.drainTimeoutSeconds", 30);
+            if (!monerisIdempotencyCache.awaitInFlight(drainTimeoutSeconds, TimeUnit.SECONDS)) {
+                logService.log(LogService.LOG_WARNING, monerisIdempotencyCache.getNbInFlight() + " Moneris transactions still under way after " + drainTimeoutSeconds + "s, stopping anyway");
+            }
+            monerisIdempotencyCache = null;
+        }
+        if (monerisJournalApplier != null) {
+            monerisJournalApplier.stop();
+            monerisJournalApplier = null;
+        }
+        if (monerisJournal != null) {
+            monerisJournal.close();
+            monerisJournal = null;
+        }
+        // Last, once nothing writes transactions anymore
+        if (monerisDailyTotalsFlusher != null) {
+            monerisDailyTotalsFlusher.stop();
+            monerisDailyTotalsFlusher = null;
+        }
         super.stop(context);
     }
 
@@ -59,4 +353,127 @@ public class MonerisActivator extends KillbillActivatorBase {
         props.put(OSGIPluginProperties.PLUGIN_NAME_PROP, PLUGIN_NAME);
         registrar.registerService(context, PaymentPluginApi.class, api, props);
     }
+
+    private void registerConfigurationHandler(final BundleContext context, final MonerisConfigurationHandler configurationHandler) {
+        final Dictionary props = new Hashtable();
+        props.put(Constants.SERVICE_PID, MonerisConfigurationHandler.PID);
+        registrar.registerService(context, ManagedService.class, configurationHandler, props);
+    }
+
+    private void registerServlet(final BundleContext context, final HttpServlet servlet) {
+        final Dictionary props = new Hashtable();
+        props.put(OSGIPluginProperties.PLUGIN_NAME_PROP, PLUGIN_NAME);
+        registrar.registerService(context, Servlet.class, servlet, props);
+    }
+
+    private void registerGauges(final MonerisMetrics metrics, final MonerisIdempotencyCache idempotencyCache, @Nullable final MonerisFairScheduler fairScheduler) {
+        metrics.registerGauge("moneris_idempotency_cache_size", new MonerisMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return idempotencyCache.getSize();
+            }
+        });
+        metrics.registerGauge("moneris_idempotency_cache_in_flight", new MonerisMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return idempotencyCache.getNbInFlight();
+            }
+        });
+        metrics.registerGauge("moneris_idempotency_cache_hit_ratio", new MonerisMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return idempotencyCache.getHitRatio();
+            }
+        });
+        if (monerisJournal != null) {
+            final MonerisJournal journal = monerisJournal;
+            metrics.registerGauge("moneris_journal_pending_entries", new MonerisMetrics.Gauge() {
+                @Override
+                public double getValue() {
+                    return journal.getNbPendingEntries();
+                }
+            });
+        }
+        if (fairScheduler != null) {
+            metrics.registerGauge("moneris_scheduler_in_use", new MonerisMetrics.Gauge() {
+                @Override
+                public double getValue() {
+                    return fairScheduler.getNbInUse();
+                }
+            });
+            metrics.registerGauge("moneris_scheduler_waiting_interactive", new MonerisMetrics.Gauge() {
+                @Override
+                public double getValue() {
+                    return fairScheduler.getNbWaiting(true);
+                }
+            });
+            metrics.registerGauge("moneris_scheduler_waiting_batch", new MonerisMetrics.Gauge() {
+                @Override
+                public double getValue() {
+                    return fairScheduler.getNbWaiting(false);
+                }
+            });
+        }
+        if (monerisAuditLog != null) {
+            final MonerisAuditLog auditLog = monerisAuditLog;
+            metrics.registerGauge("moneris_audit_pending_records", new MonerisMetrics.Gauge() {
+                @Override
+                public double getValue() {
+                    return auditLog.getNbPending();
+                }
+            });
+            metrics.registerGauge("moneris_audit_dropped_records", new MonerisMetrics.Gauge() {
+                @Override
+                public double getValue() {
+                    return auditLog.getNbDropped();
+                }
+            });
+            metrics.registerGauge("moneris_audit_failed_records", new MonerisMetrics.Gauge() {
+                @Override
+                public double getValue() {
+                    return auditLog.getNbFailed();
+                }
+            });
+        }
+    }
+
+    private String getStringProperty(final String key, final String defaultValue) {
+        final String value = configProperties.getString(PROPERTY_PREFIX + key);
+        return value == null ? defaultValue : value;
+    }
+
+    private int getIntProperty(final String key, final int defaultValue) {
+        final String value = configProperties.getString(PROPERTY_PREFIX + key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    // Format: VALUE1,VALUE2 (all values if not set)
+    private <E extends Enum<E>> Set<E> getEnumSetProperty(final String key, final Class<E> enumClass) {
+        final String value = configProperties.getString(PROPERTY_PREFIX + key);
+        if (value == null || value.trim().isEmpty()) {
+            return EnumSet.allOf(enumClass);
+        }
+        final Set<E> values = EnumSet.noneOf(enumClass);
+        for (final String entry : value.trim().split("\\s*,\\s*")) {
+            values.add(Enum.valueOf(enumClass, entry));
+        }
+        return values;
+    }
+
+    // Format: name1:value1,name2:value2
+    private Map<String, Integer> getIntMapProperty(final String key) {
+        final Map<String, Integer> values = new HashMap<String, Integer>();
+        final String value = configProperties.getString(PROPERTY_PREFIX + key);
+        if (value == null || value.trim().isEmpty()) {
+            return values;
+        }
+        for (final String entry : value.trim().split("\\s*,\\s*")) {
+            final String[] nameAndValue = entry.split("\\s*:\\s*");
+            if (nameAndValue.length != 2) {
+                throw new IllegalArgumentException("Invalid entry " + entry + " for " + PROPERTY_PREFIX + key);
+            }
+            values.put(nameAndValue[0], Integer.parseInt(nameAndValue[1]));
+        }
+        return values;
+    }
 }
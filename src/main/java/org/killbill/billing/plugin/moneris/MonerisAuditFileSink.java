@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.killbill.billing.plugin.moneris.dao.MonerisAuditRecord;
+
+/**
+ * Writes audit records to gzipped files, one record per line:
+ * <pre>
+ * timestamp (ISO) | store id | operation | duration (micros) | request XML | response XML
+ * </pre>
+ * (tab separated, with tabs, line feeds and backslashes escaped). A new file is started every day (UTC) and whenever
+ * the current one reaches maxFileSizeBytes (uncompressed). Each batch is flushed, so that a crash loses at most the batch in progress.
+ */
+public class MonerisAuditFileSink implements MonerisAuditSink {
+
+    private static final DateTimeFormatter FILE_NAME_FORMATTER = DateTimeFormat.forPattern("yyyyMMdd-HHmmss").withZoneUTC();
+
+    private final File directory;
+    private final long maxFileSizeBytes;
+
+    private Writer writer;
+    private String currentDay;
+    private long currentFileSizeBytes;
+
+    public MonerisAuditFileSink(final File directory, final long maxFileSizeBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the audit directory " + directory);
+        }
+        this.directory = directory;
+        this.maxFileSizeBytes = maxFileSizeBytes;
+    }
+
+    @Override
+    public synchronized void write(final List<MonerisAuditRecord> records) throws IOException {
+        final StringBuilder line = new StringBuilder(1024);
+        for (final MonerisAuditRecord record : records) {
+            final DateTime timestamp = new DateTime(record.getTimestampMillis(), DateTimeZone.UTC);
+            rollIfNeeded(timestamp);
+
+            line.setLength(0);
+            line.append(timestamp).append('\t');
+            appendEscaped(line, record.getStoreId());
+            line.append('\t');
+            appendEscaped(line, record.getOperation());
+            line.append('\t').append(record.getDurationMicros()).append('\t');
+            appendEscaped(line, record.getRequest());
+            line.append('\t');
+            appendEscaped(line, record.getResponse());
+            line.append('\n');
+
+            writer.append(line);
+            currentFileSizeBytes += line.length();
+        }
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private void rollIfNeeded(final DateTime timestamp) throws IOException {
+        final String day = timestamp.toLocalDate().toString();
+        if (writer != null && day.equals(currentDay) && currentFileSizeBytes < maxFileSizeBytes) {
+            return;
+        }
+
+        close();
+        // Several files can be started within the same second
+        File file = new File(directory, "moneris-audit-" + FILE_NAME_FORMATTER.print(timestamp) + ".log.gz");
+        for (int i = 1; file.exists(); i++) {
+            file = new File(directory, "moneris-audit-" + FILE_NAME_FORMATTER.print(timestamp) + "-" + i + ".log.gz");
+        }
+        // Sync flush, so that flushed batches can be read back even if the file is never closed
+        writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file), 8192, true), "UTF-8"));
+        currentDay = day;
+        currentFileSizeBytes = 0;
+    }
+
+    private static void appendEscaped(final StringBuilder line, final String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\') {
+                line.append("\\\\");
+            } else if (c == '\t') {
+                line.append("\\t");
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else if (c == '\r') {
+                line.append("\\r");
+            } else {
+                line.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.moneris.dao.MonerisAuditRecord;
+import org.osgi.service.log.LogService;
+
+import JavaAPI.Receipt;
+import JavaAPI.Transaction;
+
+/**
+ * Asynchronous audit log of the raw gateway exchanges (request XML, and the receipt rendered as XML), for disputes.
+ * <p/>
+ * Payment threads copy each exchange into a pre-allocated slot of a bounded, lock-free ring buffer, mask the card data
+ * in place (see MonerisAuditMasker) and return. A single writer thread drains the ring, in batches, to a MonerisAuditSink.
+ * <p/>
+ * When the ring is full, exchanges are either dropped (DROP), or the payment thread waits for room (BLOCK), up to maxBlockMillis
+ * (after which the exchange is dropped, so that a stuck sink never stalls payments).
+ */
+public class MonerisAuditLog implements Runnable {
+
+    public enum OverflowPolicy {
+        DROP,
+        BLOCK
+    }
+
+    private static final int INITIAL_SLOT_SIZE = 2048;
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final MonerisAuditSink sink;
+    private final LogService logService;
+    private final OverflowPolicy overflowPolicy;
+    private final long maxBlockNanos;
+    private final int batchSize;
+
+    // Bounded MPSC ring: sequences[i] is the position slot i can be claimed at (free), or that position + 1 (published)
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // Only written by the writer
+    private volatile long head = 0;
+
+    private final AtomicLong nbDropped = new AtomicLong();
+    private final AtomicLong nbFailed = new AtomicLong();
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param capacity number of slots (rounded up to a power of two)
+     */
+    public MonerisAuditLog(final MonerisAuditSink sink, final LogService logService, final int capacity, final OverflowPolicy overflowPolicy,
+                           final long maxBlockMillis, final int batchSize) {
+        this.sink = sink;
+        this.logService = logService;
+        this.overflowPolicy = overflowPolicy;
+        this.maxBlockNanos = TimeUnit.MILLISECONDS.toNanos(maxBlockMillis);
+        this.batchSize = batchSize;
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+    }
+
+    public synchronized void start(final long flushIntervalMillis) {
+        executor = Executors.newSingleThreadScheduledExecutor(new MonerisThreadFactory("moneris-audit-writer"));
+        executor.scheduleWithFixedDelay(this, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() throws InterruptedException, IOException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+            executor = null;
+        }
+        // Flush what's left
+        run();
+        sink.close();
+    }
+
+    /**
+     * Called on the payment thread, once the exchange is over.
+     *
+     * @param receipt null if the request failed
+     */
+    public void record(final String storeId, final String operation, final Transaction transaction, @Nullable final Receipt receipt, final long durationNanos) {
+        // Before claiming a slot, since this can throw
+        final String request = transaction.toXML();
+
+        long position = claim();
+        if (position < 0 && overflowPolicy == OverflowPolicy.BLOCK) {
+            final long deadline = System.nanoTime() + maxBlockNanos;
+            while (position < 0 && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                position = claim();
+            }
+        }
+        if (position < 0) {
+            nbDropped.incrementAndGet();
+            return;
+        }
+
+        final int index = (int) (position & mask);
+        final Slot slot = slots[index];
+        slot.timestampMillis = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(durationNanos);
+        slot.storeId = storeId;
+        slot.operation = operation;
+        slot.durationNanos = durationNanos;
+        slot.request.setLength(0);
+        if (request != null) {
+            slot.request.append(request);
+        }
+        MonerisAuditMasker.mask(slot.request.chars, slot.request.length);
+        slot.response.setLength(0);
+        if (receipt != null) {
+            appendReceipt(slot.response, receipt);
+        }
+        // Publish
+        sequences.lazySet(index, position + 1);
+    }
+
+    public long getNbPending() {
+        return tail.get() - head;
+    }
+
+    public long getNbDropped() {
+        return nbDropped.get();
+    }
+
+    /**
+     * @return the number of records lost because the sink failed
+     */
+    public long getNbFailed() {
+        return nbFailed.get();
+    }
+
+    // Writer: drain everything published so far
+    @Override
+    public void run() {
+        final List<MonerisAuditRecord> batch = new ArrayList<MonerisAuditRecord>(batchSize);
+        while (true) {
+            batch.clear();
+            while (batch.size() < batchSize) {
+                final int index = (int) (head & mask);
+                if (sequences.get(index) != head + 1) {
+                    // Empty, or the next slot is still being written
+                    break;
+                }
+
+                final Slot slot = slots[index];
+                batch.add(new MonerisAuditRecord(slot.timestampMillis,
+                                                 slot.storeId,
+                                                 slot.operation,
+                                                 TimeUnit.NANOSECONDS.toMicros(slot.durationNanos),
+                                                 slot.request.toString(),
+                                                 slot.response.toString()));
+                // Release
+                sequences.lazySet(index, head + slots.length);
+                head = head + 1;
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            try {
+                sink.write(batch);
+            } catch (final IOException e) {
+                nbFailed.addAndGet(batch.size());
+                logService.log(LogService.LOG_WARNING, "Unable to write " + batch.size() + " Moneris audit records", e);
+            } catch (final RuntimeException e) {
+                nbFailed.addAndGet(batch.size());
+                logService.log(LogService.LOG_WARNING, "Unable to write " + batch.size() + " Moneris audit records", e);
+            }
+        }
+    }
+
+    private long claim() {
+        while (true) {
+            final long position = tail.get();
+            final long sequence = sequences.get((int) (position & mask));
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (sequence < position) {
+                // Full: the slot hasn't been released by the writer yet
+                return -1;
+            }
+            // Otherwise, another producer got that position: retry
+        }
+    }
+
+    private static void appendReceipt(final SlotBuffer response, final Receipt receipt) {
+        response.append("<receipt>");
+        appendElement(response, "ReceiptId", receipt.getReceiptId());
+        appendElement(response, "ReferenceNum", receipt.getReferenceNum());
+        appendElement(response, "ResponseCode", receipt.getResponseCode());
+        appendElement(response, "ISO", receipt.getISO());
+        appendElement(response, "AuthCode", receipt.getAuthCode());
+        appendElement(response, "TransTime", receipt.getTransTime());
+        appendElement(response, "TransDate", receipt.getTransDate());
+        appendElement(response, "TransType", receipt.getTransType());
+        appendElement(response, "Complete", receipt.getComplete());
+        appendElement(response, "Message", receipt.getMessage());
+        appendElement(response, "TransAmount", receipt.getTransAmount());
+        appendElement(response, "CardType", receipt.getCardType());
+        appendElement(response, "TransID", receipt.getTxnNumber());
+        appendElement(response, "TimedOut", receipt.getTimedOut());
+        appendElement(response, "Ticket", receipt.getTicket());
+        appendElement(response, "AvsResultCode", receipt.getAvsResultCode());
+        appendElement(response, "CvdResultCode", receipt.getCvdResultCode());
+        appendElement(response, "CavvResultCode", receipt.getCavvResultCode());
+        appendElement(response, "IsVisaDebit", receipt.getIsVisaDebit());
+        appendElement(response, "StatusCode", receipt.getStatusCode());
+        appendElement(response, "StatusMessage", receipt.getStatusMessage());
+        response.append("</receipt>");
+    }
+
+    private static void appendElement(final SlotBuffer response, final String name, @Nullable final String value) {
+        if (value == null) {
+            return;
+        }
+        response.append('<').append(name).append('>');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '<') {
+                response.append("&lt;");
+            } else if (c == '>') {
+                response.append("&gt;");
+            } else if (c == '&') {
+                response.append("&amp;");
+            } else {
+                response.append(c);
+            }
+        }
+        response.append("</").append(name).append('>');
+    }
+
+    // Reusable, growable char buffer (unlike StringBuilder, its array can be masked in place)
+    static final class SlotBuffer {
+
+        private char[] chars = new char[INITIAL_SLOT_SIZE];
+        private int length = 0;
+
+        void setLength(final int newLength) {
+            length = newLength;
+        }
+
+        SlotBuffer append(final char c) {
+            ensureCapacity(length + 1);
+            chars[length++] = c;
+            return this;
+        }
+
+        SlotBuffer append(final String value) {
+            ensureCapacity(length + value.length());
+            value.getChars(0, value.length(), chars, length);
+            length += value.length();
+            return this;
+        }
+
+        private void ensureCapacity(final int capacity) {
+            if (capacity > chars.length) {
+                final char[] newChars = new char[Math.max(capacity, 2 * chars.length)];
+                System.arraycopy(chars, 0, newChars, 0, length);
+                chars = newChars;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+    }
+
+    private static final class Slot {
+
+        private final SlotBuffer request = new SlotBuffer();
+        private final SlotBuffer response = new SlotBuffer();
+        private long timestampMillis;
+        private String storeId;
+        private String operation;
+        private long durationNanos;
+    }
+}
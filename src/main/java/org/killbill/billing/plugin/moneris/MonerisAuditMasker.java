@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+/**
+ * Masks card data in Moneris XML, in place: the card number (except its last 4 digits), the expiry date and the CVD.
+ * <p/>
+ * This is a single pass over the buffer, which doesn't allocate, so that it can run on the payment thread.
+ */
+class MonerisAuditMasker {
+
+    private static final char MASK = '*';
+    private static final int PAN_CLEAR_DIGITS = 4;
+
+    // XML elements for Transaction#pan, expDate and CvdInfo#cvdValue
+    private static final String PAN_TAG = "pan";
+    private static final String EXPDATE_TAG = "expdate";
+    private static final String CVD_VALUE_TAG = "cvd_value";
+
+    private MonerisAuditMasker() {}
+
+    static void mask(final char[] xml, final int length) {
+        int i = 0;
+        while (i < length) {
+            if (xml[i] != '<') {
+                i++;
+                continue;
+            }
+
+            // Element name, up to '>' (Moneris requests don't use attributes)
+            final int nameStart = i + 1;
+            int nameEnd = nameStart;
+            while (nameEnd < length && xml[nameEnd] != '>') {
+                nameEnd++;
+            }
+            if (nameEnd >= length) {
+                return;
+            }
+
+            // Content, up to the next element
+            final int contentStart = nameEnd + 1;
+            int contentEnd = contentStart;
+            while (contentEnd < length && xml[contentEnd] != '<') {
+                contentEnd++;
+            }
+
+            if (isElement(xml, nameStart, nameEnd, PAN_TAG)) {
+                maskContent(xml, contentStart, contentEnd, PAN_CLEAR_DIGITS);
+            } else if (isElement(xml, nameStart, nameEnd, EXPDATE_TAG) || isElement(xml, nameStart, nameEnd, CVD_VALUE_TAG)) {
+                maskContent(xml, contentStart, contentEnd, 0);
+            }
+            i = contentEnd;
+        }
+    }
+
+    private static boolean isElement(final char[] xml, final int nameStart, final int nameEnd, final String tag) {
+        if (nameEnd - nameStart != tag.length()) {
+            return false;
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            if (xml[nameStart + i] != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void maskContent(final char[] xml, final int contentStart, final int contentEnd, final int nbClearChars) {
+        // Only leave characters in the clear if there are enough to hide
+        final int maskEnd = contentEnd - contentStart > 2 * nbClearChars ? contentEnd - nbClearChars : contentEnd;
+        for (int i = contentStart; i < maskEnd; i++) {
+            if (!Character.isWhitespace(xml[i])) {
+                xml[i] = MASK;
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.killbill.billing.plugin.moneris.dao.MonerisAuditRecord;
+
+/**
+ * Where the MonerisAuditLog writer puts the records (e.g. MonerisAuditFileSink, or the moneris_audit table).
+ */
+public interface MonerisAuditSink {
+
+    public void write(List<MonerisAuditRecord> records) throws IOException;
+
+    public void close() throws IOException;
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalTime;
+import org.killbill.billing.plugin.moneris.dao.MonerisBatchCloseStatus;
+import org.killbill.billing.plugin.moneris.dao.MonerisBatchCloseTotal;
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.osgi.service.log.LogService;
+
+import JavaAPI.BatchClose;
+import JavaAPI.Receipt;
+
+/**
+ * Closes the open batch of each configured ECR (terminal) once a day, for merchants who don't rely on Moneris auto-close.
+ * With several stores (see MonerisGatewayRouter), the terminals of each store are closed, as listed for that store
+ * (default ECR numbers otherwise).
+ * <p/>
+ * Every node checks periodically whether a close is due, and terminals are closed in parallel. A lease in
+ * moneris_batch_closes makes sure only one node closes a given batch: if that node dies or the close fails, another node
+ * takes over once the lease expires. To avoid closing the following day's transactions, a close which couldn't be
+ * done within maxDelayMinutes of its scheduled time is given up on (Moneris will then include them in the next close).
+ */
+public class MonerisBatchCloser implements Runnable {
+
+    // For metrics
+    private static final String OPERATION = "BATCH_CLOSE";
+
+    private final MonerisGatewayRouter monerisGatewayRouter;
+    private final MonerisDao monerisDao;
+    private final MonerisMetrics monerisMetrics;
+    private final LogService logService;
+    private final List<String> ecrNumbers;
+    private final Map<String, List<String>> ecrNumbersByStore;
+    private final LocalTime closeTime;
+    private final DateTimeZone timeZone;
+    private final int maxDelayMinutes;
+    private final int leaseSeconds;
+    private final int nbThreads;
+    private final String nodeId;
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService workers;
+
+    /**
+     * @param ecrNumbers        terminals of the stores not in ecrNumbersByStore (and of the single store, if there is only one)
+     * @param ecrNumbersByStore terminals of each store, by store name
+     */
+    public MonerisBatchCloser(final MonerisGatewayRouter monerisGatewayRouter, final MonerisDao monerisDao, final MonerisMetrics monerisMetrics, final LogService logService, final List<String> ecrNumbers,
+                              final Map<String, List<String>> ecrNumbersByStore, final LocalTime closeTime, final DateTimeZone timeZone, final int maxDelayMinutes, final int leaseSeconds, final int nbThreads) {
+        this.monerisGatewayRouter = monerisGatewayRouter;
+        this.monerisDao = monerisDao;
+        this.monerisMetrics = monerisMetrics;
+        this.logService = logService;
+        this.ecrNumbers = ecrNumbers;
+        this.ecrNumbersByStore = new HashMap<String, List<String>>(ecrNumbersByStore);
+        this.closeTime = closeTime;
+        this.timeZone = timeZone;
+        this.maxDelayMinutes = maxDelayMinutes;
+        this.leaseSeconds = leaseSeconds;
+        this.nbThreads = nbThreads;
+        this.nodeId = getHostName() + "-" + UUID.randomUUID();
+    }
+
+    public synchronized void start(final int checkIntervalSeconds) {
+        workers = Executors.newFixedThreadPool(nbThreads, new MonerisThreadFactory("moneris-batch-close-worker"));
+        monerisMetrics.registerExecutor("moneris_batch_close_workers", workers);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new MonerisThreadFactory("moneris-batch-close"));
+        scheduler.scheduleWithFixedDelay(this, 0, checkIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            scheduler = null;
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+            workers = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            closeDueBatches(new DateTime(timeZone));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final RuntimeException e) {
+            logService.log(LogService.LOG_WARNING, "Unable to close Moneris batches", e);
+        }
+    }
+
+    /**
+     * @return the number of batches closed by this node
+     */
+    public int closeDueBatches(final DateTime now) throws InterruptedException {
+        final LocalDate today = now.toLocalDate();
+        final LocalDate closeDate = now.toLocalTime().isBefore(closeTime) ? today.minusDays(1) : today;
+        final DateTime scheduledCloseTime = closeDate.toDateTime(closeTime, timeZone);
+        if (now.isAfter(scheduledCloseTime.plusMinutes(maxDelayMinutes))) {
+            // Not due (or too late)
+            return 0;
+        }
+
+        final List<Future<Boolean>> closes = new LinkedList<Future<Boolean>>();
+        // The stores as currently configured
+        final Collection<MonerisGateway> monerisGateways = monerisGatewayRouter.getGateways().isEmpty() ?
+                                                           Collections.singletonList(monerisGatewayRouter.getDefaultGateway()) :
+                                                           monerisGatewayRouter.getGateways();
+        for (final MonerisGateway monerisGateway : monerisGateways) {
+            final List<String> storeEcrNumbers = monerisGateway.getName() == null || ecrNumbersByStore.get(monerisGateway.getName()) == null ?
+                                                 ecrNumbers :
+                                                 ecrNumbersByStore.get(monerisGateway.getName());
+            for (final String ecrNumber : storeEcrNumbers) {
+                closes.add(workers.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return closeBatch(monerisGateway, ecrNumber, closeDate.toString());
+                    }
+                }));
+            }
+        }
+
+        int nbClosed = 0;
+        for (final Future<Boolean> close : closes) {
+            try {
+                if (close.get()) {
+                    nbClosed++;
+                }
+            } catch (final ExecutionException e) {
+                logService.log(LogService.LOG_WARNING, "Moneris batch close failed", e.getCause());
+            }
+        }
+        return nbClosed;
+    }
+
+    private boolean closeBatch(final MonerisGateway monerisGateway, final String ecrNumber, final String closeDate) {
+        final String storeId = monerisGateway.getStoreId();
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        if (!monerisDao.acquireBatchCloseLease(storeId, ecrNumber, closeDate, nodeId, now, now.plusSeconds(leaseSeconds))) {
+            return false;
+        }
+
+        Receipt receipt = null;
+        try {
+            receipt = monerisGateway.submit(OPERATION, new BatchClose(ecrNumber));
+        } finally {
+            // Release the lease as FAILED on errors, so that another attempt can be made once it expires
+            recordBatchClose(storeId, ecrNumber, closeDate, receipt);
+        }
+
+        return isSuccess(receipt);
+    }
+
+    private void recordBatchClose(final String storeId, final String ecrNumber, final String closeDate, final Receipt receipt) {
+        final boolean success = isSuccess(receipt);
+        final List<MonerisBatchCloseTotal> totals = new LinkedList<MonerisBatchCloseTotal>();
+        if (success && receipt.getCreditCards(ecrNumber) != null) {
+            for (final String cardType : receipt.getCreditCards(ecrNumber)) {
+                totals.add(new MonerisBatchCloseTotal(cardType,
+                                                      receipt.getPurchaseCount(ecrNumber, cardType),
+                                                      receipt.getPurchaseAmount(ecrNumber, cardType),
+                                                      receipt.getRefundCount(ecrNumber, cardType),
+                                                      receipt.getRefundAmount(ecrNumber, cardType),
+                                                      receipt.getCorrectionCount(ecrNumber, cardType),
+                                                      receipt.getCorrectionAmount(ecrNumber, cardType)));
+            }
+        }
+
+        final boolean recorded = monerisDao.completeBatchClose(storeId,
+                                                               ecrNumber,
+                                                               closeDate,
+                                                               nodeId,
+                                                               success ? MonerisBatchCloseStatus.CLOSED : MonerisBatchCloseStatus.FAILED,
+                                                               receipt == null ? null : receipt.getResponseCode(),
+                                                               receipt == null ? null : receipt.getMessage(),
+                                                               receipt == null ? null : receipt.getTimedOut(),
+                                                               receipt == null ? null : receipt.getTransDate(),
+                                                               receipt == null ? null : receipt.getTransTime(),
+                                                               totals,
+                                                               new DateTime(DateTimeZone.UTC));
+        if (!recorded) {
+            logService.log(LogService.LOG_WARNING, "Lost the lease on the batch close of terminal " + ecrNumber + " of store " + storeId + " for " + closeDate + " before completion");
+        } else if (!success) {
+            logService.log(LogService.LOG_WARNING, "Moneris batch close of terminal " + ecrNumber + " of store " + storeId + " for " + closeDate + " failed: " + (receipt == null ? null : receipt.getMessage()));
+        } else {
+            logService.log(LogService.LOG_INFO, "Closed Moneris batch of terminal " + ecrNumber + " of store " + storeId + " for " + closeDate);
+        }
+    }
+
+    private boolean isSuccess(final Receipt receipt) {
+        if (receipt == null || receipt.getResponseCode() == null) {
+            return false;
+        }
+        try {
+            // Response codes < 50 mean success
+            return Integer.parseInt(receipt.getResponseCode()) < 50;
+        } catch (final NumberFormatException e) {
+            return false;
+        }
+    }
+
+    static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (final UnknownHostException e) {
+            return "unknown";
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+import javax.annotation.Nullable;
+
+/**
+ * Index of BIN (card number prefix) ranges, to identify the brand and type of a card before it is sent to Moneris.
+ * <p/>
+ * The index file holds sorted, non-overlapping ranges of 8 digit prefixes, 10 bytes each. It is memory-mapped and binary searched
+ * in place, so a full BIN table costs a few MB of page cache and no heap. Build it from a CSV file with build.
+ */
+public class MonerisBinIndex {
+
+    // Persisted as ordinals: only append
+    public enum Brand {
+        VISA, MASTERCARD, AMEX, DISCOVER, JCB, DINERS, UNIONPAY, INTERAC, OTHER
+    }
+
+    public enum CardType {
+        CREDIT, DEBIT, PREPAID, UNKNOWN
+    }
+
+    private static final int MAGIC = 0x4d42494e; // MBIN
+    private static final int HEADER_SIZE = 8;
+    private static final int RANGE_SIZE = 10;
+    private static final int PREFIX_LENGTH = 8;
+    private static final Brand[] BRANDS = Brand.values();
+    private static final CardType[] CARD_TYPES = CardType.values();
+
+    private final ByteBuffer buffer;
+    private final int nbRanges;
+
+    public MonerisBinIndex(final File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid once the file is closed
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Invalid Moneris BIN index " + file);
+        }
+        nbRanges = buffer.getInt(4);
+        if (buffer.limit() != HEADER_SIZE + (long) nbRanges * RANGE_SIZE) {
+            throw new IOException("Truncated Moneris BIN index " + file + ", expected " + nbRanges + " ranges");
+        }
+    }
+
+    /**
+     * @return the BIN range of the card, null if unknown
+     */
+    @Nullable
+    public Bin lookup(@Nullable final String pan) {
+        final int prefix = toPrefix(pan);
+        if (prefix < 0) {
+            return null;
+        }
+
+        int low = 0;
+        int high = nbRanges - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int offset = HEADER_SIZE + middle * RANGE_SIZE;
+            if (buffer.getInt(offset + 4) < prefix) {
+                low = middle + 1;
+            } else if (buffer.getInt(offset) > prefix) {
+                high = middle - 1;
+            } else {
+                return new Bin(BRANDS[buffer.get(offset + 8)], CARD_TYPES[buffer.get(offset + 9)]);
+            }
+        }
+        return null;
+    }
+
+    public int getNbRanges() {
+        return nbRanges;
+    }
+
+    private static int toPrefix(@Nullable final String pan) {
+        if (pan == null || pan.length() < PREFIX_LENGTH) {
+            return -1;
+        }
+
+        int prefix = 0;
+        for (int i = 0; i < PREFIX_LENGTH; i++) {
+            final char c = pan.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            prefix = prefix * 10 + (c - '0');
+        }
+        return prefix;
+    }
+
+    /**
+     * Build an index from a CSV file, one range per line: lowPrefix,highPrefix,brand,cardType (e.g. 4506,4506,VISA,DEBIT).
+     * Ranges may be nested: the narrowest one wins (e.g. a debit range within a credit range).
+     *
+     * @return the number of ranges written to indexFile
+     */
+    public static int build(final File csvFile, final File indexFile) throws IOException {
+        final List<Range> ranges = new ArrayList<Range>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split("\\s*,\\s*");
+                if (fields.length != 4) {
+                    throw new IllegalArgumentException("Invalid BIN range " + line);
+                }
+                ranges.add(new Range(toRangeBound(fields[0], '0'), toRangeBound(fields[1], '9'), Brand.valueOf(fields[2]), CardType.valueOf(fields[3])));
+            }
+        } finally {
+            reader.close();
+        }
+
+        final List<Range> flattenedRanges = flatten(ranges);
+        write(flattenedRanges, indexFile);
+        return flattenedRanges.size();
+    }
+
+    // Pad the prefix to PREFIX_LENGTH digits, e.g. 4506 -> 45060000 (low) or 45069999 (high)
+    private static int toRangeBound(final String prefix, final char padding) {
+        if (prefix.isEmpty() || prefix.length() > PREFIX_LENGTH) {
+            throw new IllegalArgumentException("Invalid BIN prefix " + prefix);
+        }
+        final StringBuilder bound = new StringBuilder(prefix);
+        while (bound.length() < PREFIX_LENGTH) {
+            bound.append(padding);
+        }
+        final int value = toPrefix(bound.toString());
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid BIN prefix " + prefix);
+        }
+        return value;
+    }
+
+    // Split nested ranges into non-overlapping ones, the narrowest range winning, and merge adjacent ranges of the same card
+    static List<Range> flatten(final List<Range> ranges) {
+        final List<Range> byLow = new ArrayList<Range>(ranges);
+        Collections.sort(byLow, new Comparator<Range>() {
+            @Override
+            public int compare(final Range r1, final Range r2) {
+                return r1.low < r2.low ? -1 : (r1.low == r2.low ? 0 : 1);
+            }
+        });
+        final TreeSet<Integer> boundaries = new TreeSet<Integer>();
+        for (final Range range : byLow) {
+            boundaries.add(range.low);
+            boundaries.add(range.high + 1);
+        }
+
+        final PriorityQueue<Range> active = new PriorityQueue<Range>(16, new Comparator<Range>() {
+            @Override
+            public int compare(final Range r1, final Range r2) {
+                final long width1 = (long) r1.high - r1.low;
+                final long width2 = (long) r2.high - r2.low;
+                return width1 < width2 ? -1 : (width1 == width2 ? 0 : 1);
+            }
+        });
+        final List<Range> flattened = new ArrayList<Range>();
+        Range last = null;
+        int next = 0;
+        Integer start = boundaries.isEmpty() ? null : boundaries.first();
+        while (start != null) {
+            final Integer end = boundaries.higher(start);
+            while (next < byLow.size() && byLow.get(next).low <= start) {
+                active.add(byLow.get(next++));
+            }
+            // Ranges which ended before this segment are only removed once they get to the top
+            while (!active.isEmpty() && active.peek().high < start) {
+                active.poll();
+            }
+
+            final Range narrowest = active.peek();
+            if (narrowest != null && end != null) {
+                if (last != null && last.high == start - 1 && last.brand == narrowest.brand && last.cardType == narrowest.cardType) {
+                    last.high = end - 1;
+                } else {
+                    last = new Range(start, end - 1, narrowest.brand, narrowest.cardType);
+                    flattened.add(last);
+                }
+            }
+            start = end;
+        }
+        return flattened;
+    }
+
+    static void write(final List<Range> ranges, final File file) throws IOException {
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(ranges.size());
+            for (final Range range : ranges) {
+                output.writeInt(range.low);
+                output.writeInt(range.high);
+                output.writeByte(range.brand.ordinal());
+                output.writeByte(range.cardType.ordinal());
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    public static final class Bin {
+
+        private final Brand brand;
+        private final CardType cardType;
+
+        private Bin(final Brand brand, final CardType cardType) {
+            this.brand = brand;
+            this.cardType = cardType;
+        }
+
+        public Brand getBrand() {
+            return brand;
+        }
+
+        public CardType getCardType() {
+            return cardType;
+        }
+
+        @Override
+        public String toString() {
+            return brand + "/" + cardType;
+        }
+    }
+
+    static final class Range {
+
+        private final int low;
+        private int high;
+        private final Brand brand;
+        private final CardType cardType;
+
+        Range(final int low, final int high, final Brand brand, final CardType cardType) {
+            this.low = low;
+            this.high = high;
+            this.brand = brand;
+            this.cardType = cardType;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+
+/**
+ * One item of a bulk capture, refund or void (see MonerisBulkOperations).
+ */
+public class MonerisBulkOperation {
+
+    private final UUID kbAccountId;
+    private final UUID kbPaymentId;
+    private final TransactionType transactionType;
+    private final BigDecimal amount;
+    private final Currency currency;
+    private final String transactionExternalKey;
+    private final Iterable<PluginProperty> properties;
+
+    /**
+     * @param transactionType        CAPTURE, REFUND or VOID
+     * @param amount                 ignored for voids
+     * @param transactionExternalKey key of the Kill Bill transaction (generated by Kill Bill if null)
+     */
+    public MonerisBulkOperation(final UUID kbAccountId, final UUID kbPaymentId, final TransactionType transactionType, @Nullable final BigDecimal amount,
+                                @Nullable final Currency currency, @Nullable final String transactionExternalKey, final Iterable<PluginProperty> properties) {
+        if (!TransactionType.CAPTURE.equals(transactionType) && !TransactionType.REFUND.equals(transactionType) && !TransactionType.VOID.equals(transactionType)) {
+            throw new IllegalArgumentException("Bulk " + transactionType + " operations are not supported, only CAPTURE, REFUND and VOID are");
+        }
+        this.kbAccountId = kbAccountId;
+        this.kbPaymentId = kbPaymentId;
+        this.transactionType = transactionType;
+        this.amount = amount;
+        this.currency = currency;
+        this.transactionExternalKey = transactionExternalKey;
+        this.properties = properties;
+    }
+
+    public UUID getKbAccountId() {
+        return kbAccountId;
+    }
+
+    public UUID getKbPaymentId() {
+        return kbPaymentId;
+    }
+
+    public TransactionType getTransactionType() {
+        return transactionType;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    public String getTransactionExternalKey() {
+        return transactionExternalKey;
+    }
+
+    public Iterable<PluginProperty> getProperties() {
+        return properties;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("MonerisBulkOperation{");
+        sb.append("kbPaymentId=").append(kbPaymentId);
+        sb.append(", transactionType=").append(transactionType);
+        sb.append(", amount=").append(amount);
+        sb.append(", currency=").append(currency);
+        sb.append(", transactionExternalKey='").append(transactionExternalKey).append('\'');
+        sb.append('}');
+        return sb.toString();
+    }
+}
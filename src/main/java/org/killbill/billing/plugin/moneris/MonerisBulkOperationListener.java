@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import org.killbill.billing.payment.api.PaymentTransaction;
+
+/**
+ * Per-item outcomes of a bulk operation, in completion order (not submission order).
+ * <p/>
+ * Callbacks are invoked from the thread which called MonerisBulkOperations#execute.
+ */
+public interface MonerisBulkOperationListener {
+
+    /**
+     * Kill Bill created the transaction. Note that it may have failed (e.g. declined by Moneris): check its status.
+     */
+    public void onResult(MonerisBulkOperation operation, PaymentTransaction transaction);
+
+    /**
+     * The operation was rejected, e.g. unknown account or payment (AccountApiException or PaymentApiException).
+     */
+    public void onFailure(MonerisBulkOperation operation, Exception exception);
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.payment.api.Payment;
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.payment.api.PaymentTransaction;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillAPI;
+import org.osgi.service.log.LogService;
+
+/**
+ * Bulk captures, refunds and voids (e.g. to capture thousands of authorizations at once, or mass-refund after an incident).
+ * <p/>
+ * Each item goes through the Kill Bill payment API, which calls back capturePayment, refundPayment or voidPayment, so that
+ * Kill Bill creates the payment transactions and its state matches Moneris (as for MonerisPreAuthSweeper). Compared to
+ * making these calls one by one:
+ * <ul>
+ * <li>each account is looked up once, and the payment histories are fetched upfront in a few queries (see MonerisPaymentInfoCache)</li>
+ * <li>up to window items are in flight at any time</li>
+ * </ul>
+ * Callers should use an INTERNAL call origin: items then never go ahead of interactive calls for a gateway slot (see MonerisFairScheduler).
+ * <p/>
+ * Exposed through MonerisServlet (POST /bulk).
+ */
+public class MonerisBulkOperations {
+
+    private final OSGIKillbillAPI killbillAPI;
+    private final MonerisPaymentPluginApi monerisPaymentPluginApi;
+    private final LogService logService;
+    private final ExecutorService workers;
+
+    public MonerisBulkOperations(final OSGIKillbillAPI killbillAPI, final MonerisPaymentPluginApi monerisPaymentPluginApi, final MonerisMetrics monerisMetrics,
+                                 final LogService logService, final int window) {
+        this.killbillAPI = killbillAPI;
+        this.monerisPaymentPluginApi = monerisPaymentPluginApi;
+        this.logService = logService;
+        this.workers = Executors.newFixedThreadPool(window, new MonerisThreadFactory("moneris-bulk"));
+        monerisMetrics.registerExecutor("moneris_bulk_workers", workers);
+    }
+
+    /**
+     * Process all operations, streaming outcomes to the listener as they complete. Returns once all outcomes have been reported.
+     */
+    public void execute(final List<MonerisBulkOperation> operations, final CallContext context, final MonerisBulkOperationListener listener) throws InterruptedException {
+        final Map<UUID, Account> accounts = new HashMap<UUID, Account>();
+        final Map<UUID, AccountApiException> accountExceptions = new HashMap<UUID, AccountApiException>();
+        final Set<UUID> kbPaymentIds = new HashSet<UUID>();
+        for (final MonerisBulkOperation operation : operations) {
+            final UUID kbAccountId = operation.getKbAccountId();
+            if (!accounts.containsKey(kbAccountId) && !accountExceptions.containsKey(kbAccountId)) {
+                try {
+                    accounts.put(kbAccountId, getAccount(kbAccountId, context));
+                } catch (final AccountApiException e) {
+                    accountExceptions.put(kbAccountId, e);
+                }
+            }
+            kbPaymentIds.add(operation.getKbPaymentId());
+        }
+        prefetchPaymentInfo(kbPaymentIds, context);
+
+        final CompletionService<Outcome> completionService = new ExecutorCompletionService<Outcome>(workers);
+        int nbSubmitted = 0;
+        for (final MonerisBulkOperation operation : operations) {
+            final Account account = accounts.get(operation.getKbAccountId());
+            if (account == null) {
+                listener.onFailure(operation, accountExceptions.get(operation.getKbAccountId()));
+                continue;
+            }
+
+            completionService.submit(new Callable<Outcome>() {
+                @Override
+                public Outcome call() throws Exception {
+                    return process(operation, account, context);
+                }
+            });
+            nbSubmitted++;
+        }
+
+        for (int i = 0; i < nbSubmitted; i++) {
+            final Outcome outcome;
+            try {
+                outcome = completionService.take().get();
+            } catch (final ExecutionException e) {
+                // Shouldn't happen, process never throws
+                logService.log(LogService.LOG_WARNING, "Unexpected error in Moneris bulk operation", e.getCause());
+                continue;
+            }
+
+            if (outcome.exception != null) {
+                listener.onFailure(outcome.operation, outcome.exception);
+            } else {
+                listener.onResult(outcome.operation, outcome.transaction);
+            }
+        }
+    }
+
+    public void close() throws InterruptedException {
+        workers.shutdown();
+        workers.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    private Outcome process(final MonerisBulkOperation operation, final Account account, final CallContext context) {
+        try {
+            final Payment payment = apply(operation, account, context);
+            final PaymentTransaction transaction = findTransaction(payment, operation);
+            if (transaction == null) {
+                return new Outcome(operation, null, new IllegalStateException("No " + operation.getTransactionType() + " transaction in payment " + payment.getId()));
+            }
+            return new Outcome(operation, transaction, null);
+        } catch (final Exception e) {
+            return new Outcome(operation, null, e);
+        }
+    }
+
+    // Account lookup through Kill Bill (overridden in tests)
+    Account getAccount(final UUID kbAccountId, final CallContext context) throws AccountApiException {
+        return killbillAPI.getAccountUserApi().getAccountById(kbAccountId, context);
+    }
+
+    // The histories are then served from MonerisPaymentInfoCache when the plugin is called back (overridden in tests)
+    void prefetchPaymentInfo(final Set<UUID> kbPaymentIds, final CallContext context) {
+        monerisPaymentPluginApi.getPaymentInfo(kbPaymentIds, context);
+    }
+
+    // Capture, refund or void through Kill Bill (overridden in tests)
+    Payment apply(final MonerisBulkOperation operation, final Account account, final CallContext context) throws PaymentApiException {
+        if (TransactionType.CAPTURE.equals(operation.getTransactionType())) {
+            return killbillAPI.getPaymentApi().createCapture(account, operation.getKbPaymentId(), operation.getAmount(), operation.getCurrency(),
+                                                             operation.getTransactionExternalKey(), operation.getProperties(), context);
+        } else if (TransactionType.REFUND.equals(operation.getTransactionType())) {
+            return killbillAPI.getPaymentApi().createRefund(account, operation.getKbPaymentId(), operation.getAmount(), operation.getCurrency(),
+                                                            operation.getTransactionExternalKey(), operation.getProperties(), context);
+        } else {
+            return killbillAPI.getPaymentApi().createVoid(account, operation.getKbPaymentId(), operation.getTransactionExternalKey(), operation.getProperties(), context);
+        }
+    }
+
+    // The transaction Kill Bill just created: the last one of its type (with its external key, if given)
+    static PaymentTransaction findTransaction(final Payment payment, final MonerisBulkOperation operation) {
+        PaymentTransaction transaction = null;
+        for (final PaymentTransaction paymentTransaction : payment.getTransactions()) {
+            if (operation.getTransactionType().equals(paymentTransaction.getTransactionType()) &&
+                (operation.getTransactionExternalKey() == null || operation.getTransactionExternalKey().equals(paymentTransaction.getExternalKey()))) {
+                transaction = paymentTransaction;
+            }
+        }
+        return transaction;
+    }
+
+    private static final class Outcome {
+
+        private final MonerisBulkOperation operation;
+        private final PaymentTransaction transaction;
+        private final Exception exception;
+
+        private Outcome(final MonerisBulkOperation operation, final PaymentTransaction transaction, final Exception exception) {
+            this.operation = operation;
+            this.transaction = transaction;
+            this.exception = exception;
+        }
+    }
+}
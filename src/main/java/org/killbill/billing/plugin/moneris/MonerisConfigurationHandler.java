@@ -0,0 +1,320 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.osgi.service.cm.ConfigurationException;
+import org.osgi.service.cm.ManagedService;
+import org.osgi.service.log.LogService;
+
+/**
+ * Builds the Moneris stores and routes (see MonerisGatewayRouter) from the configuration, and rebuilds them whenever the
+ * configuration is updated through ConfigAdmin (PID org.killbill.billing.plugin.moneris), e.g. to rotate an API token, resize
+ * a bulkhead or route a tenant to its own store, without restarting the bundle.
+ * <p/>
+ * ConfigAdmin properties override the system properties. Configuration keys:
+ * <ul>
+ * <li>single store: host, storeId, apiToken and maxConcurrentRequests (bulkhead size, 0 for no limit). host can list several
+ * endpoints, see MonerisHostSelector and hostFailover.maxErrorRate, hostFailover.ejectionSeconds and hostFailover.probeTimeoutMillis</li>
+ * <li>multiple stores: stores=name1,name2 with store.name.host, store.name.storeId, store.name.apiToken and
+ * store.name.maxConcurrentRequests, then defaultStore, routing.tenants (kbTenantId:name,...) and routing.currencies (currency:name,...)</li>
+ * </ul>
+ * Rate limits: maxRequestsPerSecond and burstSize (or store.name.maxRequestsPerSecond and store.name.burstSize), tenantRateLimit.maxRequestsPerSecond,
+ * tenantRateLimit.burstSize and tenantRateLimit.overrides (kbTenantId:maxRequestsPerSecond,...), and rateLimit.maxWaitMillis.
+ * <p/>
+ * An invalid update is rejected as a whole, leaving the current stores and routes in place. Stores whose settings didn't change
+ * are carried over as they are, with their in-flight requests, rate limit tokens and host health.
+ */
+public class MonerisConfigurationHandler implements ManagedService {
+
+    public static final String PID = "org.killbill.billing.plugin.moneris";
+
+    private static final String PROPERTY_PREFIX = PID + ".";
+
+    private final Properties defaultProperties;
+    private final MonerisMetrics monerisMetrics;
+    private final MonerisFlightRecorder monerisFlightRecorder;
+    private final MonerisAuditLog monerisAuditLog;
+    private final Executor hostProbeExecutor;
+    private final LogService logService;
+    private final MonerisGatewayRouter monerisGatewayRouter;
+    private final MonerisRateLimits monerisRateLimits;
+    // Last accepted configuration
+    private Stores currentStores;
+
+    /**
+     * @param defaultProperties system properties, the initial configuration
+     */
+    public MonerisConfigurationHandler(final Properties defaultProperties, final MonerisMetrics monerisMetrics, final MonerisFlightRecorder monerisFlightRecorder,
+                                       @Nullable final MonerisAuditLog monerisAuditLog, final Executor hostProbeExecutor, final LogService logService) {
+        this.defaultProperties = defaultProperties;
+        this.monerisMetrics = monerisMetrics;
+        this.monerisFlightRecorder = monerisFlightRecorder;
+        this.monerisAuditLog = monerisAuditLog;
+        this.hostProbeExecutor = hostProbeExecutor;
+        this.logService = logService;
+        this.monerisRateLimits = new MonerisRateLimits(monerisMetrics);
+
+        final Stores stores = new Stores(defaultProperties, null);
+        this.monerisGatewayRouter = new MonerisGatewayRouter(stores.defaultGateway, stores.gatewaysByName, stores.tenantRoutes, stores.currencyRoutes);
+        stores.registerGauges(null);
+        stores.configureRateLimits();
+        currentStores = stores;
+    }
+
+    public MonerisGatewayRouter getGatewayRouter() {
+        return monerisGatewayRouter;
+    }
+
+    public MonerisRateLimits getRateLimits() {
+        return monerisRateLimits;
+    }
+
+    /**
+     * @param properties null if there is no ConfigAdmin configuration (anymore), in which case the system properties apply
+     */
+    @Override
+    public synchronized void updated(@Nullable final Dictionary<String, ?> properties) throws ConfigurationException {
+        final Properties mergedProperties = new Properties();
+        mergedProperties.putAll(defaultProperties);
+        if (properties != null) {
+            final Enumeration<String> keys = properties.keys();
+            while (keys.hasMoreElements()) {
+                final String key = keys.nextElement();
+                mergedProperties.setProperty(key, String.valueOf(properties.get(key)));
+            }
+        }
+
+        try {
+            final Stores stores = new Stores(mergedProperties, currentStores);
+            monerisGatewayRouter.reconfigure(stores.defaultGateway, stores.gatewaysByName, stores.tenantRoutes, stores.currencyRoutes);
+            stores.registerGauges(currentStores);
+            stores.configureRateLimits();
+            currentStores = stores;
+        } catch (final RuntimeException e) {
+            logService.log(LogService.LOG_ERROR, "Invalid Moneris configuration, keeping the current one", e);
+            throw new ConfigurationException(null, e.getMessage(), e);
+        }
+        logService.log(LogService.LOG_INFO, "Moneris configuration updated");
+    }
+
+    private void unregisterGatewayGauges(final String prefix) {
+        monerisMetrics.unregisterGauge(prefix + "_available_permits");
+        monerisMetrics.unregisterGauge(prefix + "_rate_limit_tokens");
+    }
+
+    private void registerGatewayGauges(final String prefix, final MonerisGateway gateway) {
+        if (gateway.getAvailablePermits() >= 0) {
+            monerisMetrics.registerGauge(prefix + "_available_permits", new MonerisMetrics.Gauge() {
+                @Override
+                public double getValue() {
+                    return gateway.getAvailablePermits();
+                }
+            });
+        }
+        if (gateway.getNbRateLimitTokens() >= 0) {
+            monerisMetrics.registerGauge(prefix + "_rate_limit_tokens", new MonerisMetrics.Gauge() {
+                @Override
+                public double getValue() {
+                    return gateway.getNbRateLimitTokens();
+                }
+            });
+        }
+    }
+
+    private final class Stores {
+
+        private final Properties properties;
+        private final MonerisGateway defaultGateway;
+        private final Map<String, MonerisGateway> gatewaysByName = new HashMap<String, MonerisGateway>();
+        // Keyed by gauge prefix
+        private final Map<String, MonerisGateway> gateways = new HashMap<String, MonerisGateway>();
+        private final Map<String, String> gatewaySettings = new HashMap<String, String>();
+        private final Map<UUID, String> tenantRoutes = new HashMap<UUID, String>();
+        private final Map<Currency, String> currencyRoutes = new HashMap<Currency, String>();
+        private final Map<UUID, Double> tenantPermitsPerSecond = new HashMap<UUID, Double>();
+        private final double defaultTenantPermitsPerSecond;
+        private final int tenantBurst;
+        private final int maxRateLimitWaitMillis;
+
+        /**
+         * @param previousStores the current configuration, to carry over unchanged stores from
+         */
+        private Stores(final Properties properties, @Nullable final Stores previousStores) {
+            this.properties = properties;
+
+            defaultTenantPermitsPerSecond = getDouble("tenantRateLimit.maxRequestsPerSecond", 0);
+            tenantBurst = getInt("tenantRateLimit.burstSize", 1);
+            for (final Map.Entry<String, String> limit : getMap("tenantRateLimit.overrides").entrySet()) {
+                tenantPermitsPerSecond.put(UUID.fromString(limit.getKey()), Double.valueOf(limit.getValue()));
+            }
+            maxRateLimitWaitMillis = getInt("rateLimit.maxWaitMillis", 500);
+
+            final String stores = getString("stores", null);
+            if (stores == null || stores.trim().isEmpty()) {
+                defaultGateway = getOrCreateGateway(previousStores,
+                                                    null,
+                                                    getString("host", null),
+                                                    getString("storeId", null),
+                                                    getString("apiToken", null),
+                                                    getInt("maxConcurrentRequests", 0),
+                                                    getDouble("maxRequestsPerSecond", 0),
+                                                    getInt("burstSize", 1));
+                return;
+            }
+
+            final String[] names = stores.trim().split("\\s*,\\s*");
+            for (final String name : names) {
+                if (name.length() > MonerisDao.MAX_NODE_ID_AND_STORE_LENGTH) {
+                    throw new IllegalArgumentException("Invalid store name " + name + ", at most " + MonerisDao.MAX_NODE_ID_AND_STORE_LENGTH + " characters are allowed");
+                }
+                final MonerisGateway gateway = getOrCreateGateway(previousStores,
+                                                                  name,
+                                                                  getString("store." + name + ".host", getString("host", null)),
+                                                                  getString("store." + name + ".storeId", null),
+                                                                  getString("store." + name + ".apiToken", null),
+                                                                  getInt("store." + name + ".maxConcurrentRequests", getInt("maxConcurrentRequests", 0)),
+                                                                  getDouble("store." + name + ".maxRequestsPerSecond", getDouble("maxRequestsPerSecond", 0)),
+                                                                  getInt("store." + name + ".burstSize", getInt("burstSize", 1)));
+                gatewaysByName.put(name, gateway);
+            }
+
+            final String defaultStore = getString("defaultStore", names[0]);
+            defaultGateway = gatewaysByName.get(defaultStore);
+            if (defaultGateway == null) {
+                throw new IllegalArgumentException("Invalid " + PROPERTY_PREFIX + "defaultStore " + defaultStore + ", expected one of " + stores);
+            }
+
+            for (final Map.Entry<String, String> route : getMap("routing.tenants").entrySet()) {
+                tenantRoutes.put(UUID.fromString(route.getKey()), route.getValue());
+            }
+            for (final Map.Entry<String, String> route : getMap("routing.currencies").entrySet()) {
+                currencyRoutes.put(Currency.valueOf(route.getKey()), route.getValue());
+            }
+        }
+
+        // Per tenant limits, on top of the per store ones
+        private void configureRateLimits() {
+            monerisRateLimits.reconfigure(defaultTenantPermitsPerSecond, tenantBurst, tenantPermitsPerSecond, maxRateLimitWaitMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // Only once the configuration has been accepted
+        private void registerGauges(@Nullable final Stores previousStores) {
+            if (previousStores != null) {
+                for (final String prefix : previousStores.gateways.keySet()) {
+                    if (!gateways.containsKey(prefix)) {
+                        unregisterGatewayGauges(prefix);
+                    }
+                }
+            }
+            for (final Map.Entry<String, MonerisGateway> gateway : gateways.entrySet()) {
+                if (previousStores == null || previousStores.gateways.get(gateway.getKey()) != gateway.getValue()) {
+                    // Also drops the gauges the previous gateway had, but the new one doesn't (e.g. no bulkhead anymore)
+                    unregisterGatewayGauges(gateway.getKey());
+                    registerGatewayGauges(gateway.getKey(), gateway.getValue());
+                }
+            }
+        }
+
+        private MonerisGateway getOrCreateGateway(@Nullable final Stores previousStores, @Nullable final String name, final String hosts, final String storeId, final String apiToken,
+                                                  final int maxConcurrentRequests, final double permitsPerSecond, final int burst) {
+            final String prefix = name == null ? "moneris_gateway" : "moneris_gateway_" + name;
+            final String settings = Arrays.asList(hosts, storeId, apiToken, maxConcurrentRequests, permitsPerSecond, burst, maxRateLimitWaitMillis,
+                                                  getInt("hostFailover.probeTimeoutMillis", 2000), getString("hostFailover.maxErrorRate", "0.5"),
+                                                  getInt("hostFailover.ejectionSeconds", 30)).toString();
+
+            MonerisGateway gateway = previousStores == null || !settings.equals(previousStores.gatewaySettings.get(prefix)) ? null : previousStores.gateways.get(prefix);
+            if (gateway == null) {
+                gateway = new MonerisGateway(name,
+                                             createHostSelector(hosts),
+                                             storeId,
+                                             apiToken,
+                                             maxConcurrentRequests,
+                                             createRateLimit(permitsPerSecond, burst),
+                                             maxRateLimitWaitMillis,
+                                             monerisMetrics,
+                                             monerisFlightRecorder,
+                                             monerisAuditLog);
+            }
+            gateways.put(prefix, gateway);
+            gatewaySettings.put(prefix, settings);
+            return gateway;
+        }
+
+        private MonerisTokenBucket createRateLimit(final double permitsPerSecond, final int burst) {
+            return permitsPerSecond > 0 ? new MonerisTokenBucket(permitsPerSecond, burst) : null;
+        }
+
+        // Endpoints, in order of preference: host1,host2
+        private MonerisHostSelector createHostSelector(final String hosts) {
+            if (hosts == null || hosts.trim().isEmpty()) {
+                throw new IllegalArgumentException("Missing Moneris host");
+            }
+            return new MonerisHostSelector(Arrays.asList(hosts.trim().split("\\s*,\\s*")),
+                                           new MonerisHostSelector.HandshakeProbe(getInt("hostFailover.probeTimeoutMillis", 2000)),
+                                           hostProbeExecutor,
+                                           Double.valueOf(getString("hostFailover.maxErrorRate", "0.5")),
+                                           getInt("hostFailover.ejectionSeconds", 30),
+                                           TimeUnit.SECONDS);
+        }
+
+        private String getString(final String key, @Nullable final String defaultValue) {
+            final String value = properties.getProperty(PROPERTY_PREFIX + key);
+            return value == null ? defaultValue : value;
+        }
+
+        private double getDouble(final String key, final double defaultValue) {
+            final String value = properties.getProperty(PROPERTY_PREFIX + key);
+            return value == null ? defaultValue : Double.valueOf(value);
+        }
+
+        private int getInt(final String key, final int defaultValue) {
+            final String value = properties.getProperty(PROPERTY_PREFIX + key);
+            return value == null ? defaultValue : Integer.parseInt(value);
+        }
+
+        // Format: name1:value1,name2:value2
+        private Map<String, String> getMap(final String key) {
+            final Map<String, String> values = new HashMap<String, String>();
+            final String value = properties.getProperty(PROPERTY_PREFIX + key);
+            if (value == null || value.trim().isEmpty()) {
+                return values;
+            }
+            for (final String entry : value.trim().split("\\s*,\\s*")) {
+                final String[] nameAndValue = entry.split("\\s*:\\s*");
+                if (nameAndValue.length != 2) {
+                    throw new IllegalArgumentException("Invalid entry " + entry + " for " + PROPERTY_PREFIX + key);
+                }
+                values.put(nameAndValue[0], nameAndValue[1]);
+            }
+            return values;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.moneris.dao.MonerisDailyTotal;
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.osgi.service.log.LogService;
+
+/**
+ * Flushes the daily totals maintained in memory by MonerisDao to moneris_daily_totals, so that dashboards
+ * read a few pre-aggregated rows instead of grouping moneris_transactions.
+ * <p/>
+ * Each node adds to its own rows (the node id must be unique in the cluster, and stay the same across restarts), tagged with
+ * the sequence of the flush: a flush which failed is retried as is, and applied at most once. After a restart, the sequence
+ * resumes from the last one applied.
+ * <p/>
+ * Changes not flushed when a node dies are lost: the totals of past days can be rebuilt from moneris_transactions
+ * (see MonerisDao#rebuildDailyTotals, exposed by MonerisServlet as POST /dailyTotals/rebuild).
+ */
+public class MonerisDailyTotalsFlusher implements Runnable {
+
+    private final MonerisDao monerisDao;
+    private final LogService logService;
+    private final String nodeId;
+
+    // Guarded by this (0 until read from the database)
+    private long nextFlushSequence = 0;
+    private List<MonerisDailyTotal> failedDeltas = null;
+    private long failedFlushSequence;
+
+    private ScheduledExecutorService executor;
+
+    public MonerisDailyTotalsFlusher(final MonerisDao monerisDao, final String nodeId, final LogService logService) {
+        if (nodeId.length() > MonerisDao.MAX_NODE_ID_AND_STORE_LENGTH) {
+            throw new IllegalArgumentException("Invalid node id " + nodeId + ", at most " + MonerisDao.MAX_NODE_ID_AND_STORE_LENGTH + " characters are allowed (see dailyTotals.nodeId)");
+        }
+        this.monerisDao = monerisDao;
+        this.nodeId = nodeId;
+        this.logService = logService;
+    }
+
+    public synchronized void start(final int flushIntervalSeconds) {
+        executor = Executors.newSingleThreadScheduledExecutor(new MonerisThreadFactory("moneris-daily-totals"));
+        executor.scheduleWithFixedDelay(this, flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+            executor = null;
+        }
+        // Last chance to flush - anything left is lost (until the day is rebuilt)
+        run();
+    }
+
+    @Override
+    public void run() {
+        try {
+            flush();
+        } catch (final RuntimeException e) {
+            // Most likely the database is down: retry on the next tick
+            logService.log(LogService.LOG_WARNING, "Unable to flush the Moneris daily totals", e);
+        }
+    }
+
+    /**
+     * @return the number of rows changed
+     */
+    public synchronized int flush() {
+        if (nextFlushSequence == 0) {
+            nextFlushSequence = monerisDao.getLastDailyTotalsFlushSequence(nodeId) + 1;
+        }
+
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        int nbFlushed = 0;
+        if (failedDeltas != null) {
+            monerisDao.upsertDailyTotals(nodeId, failedFlushSequence, failedDeltas, now);
+            nbFlushed += failedDeltas.size();
+            failedDeltas = null;
+        }
+
+        final List<MonerisDailyTotal> deltas = monerisDao.getPendingDailyTotals().drain();
+        if (deltas.isEmpty()) {
+            return nbFlushed;
+        }
+        final long flushSequence = nextFlushSequence++;
+        try {
+            monerisDao.upsertDailyTotals(nodeId, flushSequence, deltas, now);
+        } catch (final RuntimeException e) {
+            // It may have been committed nonetheless: retry with the same sequence
+            failedDeltas = deltas;
+            failedFlushSequence = flushSequence;
+            throw e;
+        }
+        return nbFlushed + deltas.size();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+/**
+ * Shares the gateway capacity (a number of concurrent requests) between tenants, so that one tenant's recurring run can't take
+ * every slot while other tenants' checkouts time out.
+ * <p/>
+ * Requests wait in one of two lanes:
+ * <ul>
+ * <li>interactive (EXTERNAL call origin): served first, in order</li>
+ * <li>batch (everything else): weighted fair queuing between tenants (start-time fair queuing), i.e. when tenants compete,
+ * each gets slots in proportion to its weight (1 by default)</li>
+ * </ul>
+ * The scheduler is work-conserving: a slot is never left idle while a request waits, so a tenant alone can use the whole capacity.
+ * Requests which can't get a slot within maxWait are rejected (MonerisThrottledException).
+ */
+public class MonerisFairScheduler {
+
+    private static final int DEFAULT_WEIGHT = 1;
+
+    private final int capacity;
+    private final Map<UUID, Integer> weights;
+    private final long maxWaitNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // All guarded by lock
+    private final Queue<Waiter> interactiveLane = new LinkedList<Waiter>();
+    private final PriorityQueue<Waiter> batchLane = new PriorityQueue<Waiter>(16, new Comparator<Waiter>() {
+        @Override
+        public int compare(final Waiter w1, final Waiter w2) {
+            final int byTag = Double.compare(w1.finishTag, w2.finishTag);
+            return byTag != 0 ? byTag : (w1.sequence < w2.sequence ? -1 : (w1.sequence == w2.sequence ? 0 : 1));
+        }
+    });
+    // Last finish tag handed out per tenant, to be removed once the virtual time has caught up
+    private final Map<UUID, Double> finishTags = new HashMap<UUID, Double>();
+    private double virtualTime = 0;
+    private long nbRequests = 0;
+    private int nbInUse = 0;
+
+    /**
+     * @param capacity number of concurrent gateway requests
+     * @param weights  per tenant weights (tenants not listed get 1)
+     */
+    public MonerisFairScheduler(final int capacity, final Map<UUID, Integer> weights, final long maxWait, final TimeUnit unit) {
+        this.capacity = capacity;
+        this.weights = new HashMap<UUID, Integer>(weights);
+        this.maxWaitNanos = unit.toNanos(maxWait);
+    }
+
+    /**
+     * Wait for a slot. Must be followed by release.
+     *
+     * @param interactive whether a user is waiting (e.g. a checkout), as opposed to batch work
+     * @throws MonerisThrottledException if no slot was available within maxWait
+     */
+    public void acquire(@Nullable final UUID kbTenantId, final boolean interactive) {
+        final Waiter waiter;
+        lock.lock();
+        try {
+            if (nbInUse < capacity && interactiveLane.isEmpty() && batchLane.isEmpty()) {
+                nbInUse++;
+                return;
+            }
+
+            waiter = new Waiter(lock.newCondition(), nbRequests++);
+            if (interactive) {
+                interactiveLane.add(waiter);
+            } else {
+                waiter.finishTag = nextFinishTag(kbTenantId);
+                batchLane.add(waiter);
+            }
+
+            long remainingNanos = maxWaitNanos;
+            try {
+                while (!waiter.granted && remainingNanos > 0) {
+                    remainingNanos = waiter.condition.awaitNanos(remainingNanos);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abandon(waiter);
+                throw new MonerisThrottledException("Interrupted while waiting for a Moneris gateway slot", e);
+            }
+            if (!waiter.granted) {
+                abandon(waiter);
+                throw new MonerisThrottledException("No Moneris gateway slot available within " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) + "ms");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            nbInUse--;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getNbInUse() {
+        lock.lock();
+        try {
+            return nbInUse;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getNbWaiting(final boolean interactive) {
+        lock.lock();
+        try {
+            return interactive ? interactiveLane.size() : batchLane.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch() {
+        while (nbInUse < capacity) {
+            Waiter waiter = interactiveLane.poll();
+            if (waiter == null) {
+                waiter = batchLane.poll();
+                if (waiter == null) {
+                    return;
+                }
+                virtualTime = Math.max(virtualTime, waiter.finishTag);
+            }
+            waiter.granted = true;
+            nbInUse++;
+            waiter.condition.signal();
+        }
+    }
+
+    private void abandon(final Waiter waiter) {
+        if (waiter.granted) {
+            // Granted just as it gave up: hand the slot over
+            nbInUse--;
+            dispatch();
+        } else if (!interactiveLane.remove(waiter)) {
+            batchLane.remove(waiter);
+        }
+    }
+
+    private double nextFinishTag(@Nullable final UUID kbTenantId) {
+        final Integer weight = kbTenantId == null ? null : weights.get(kbTenantId);
+        final Double lastFinishTag = finishTags.get(kbTenantId);
+        final double startTag = lastFinishTag == null ? virtualTime : Math.max(virtualTime, lastFinishTag);
+        final double finishTag = startTag + 1.0 / (weight == null ? DEFAULT_WEIGHT : weight);
+
+        // Forget idle tenants, so that the map doesn't grow with every tenant ever seen
+        if (finishTags.size() > 2 * batchLane.size() + 16) {
+            final Iterator<Double> iterator = finishTags.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() <= virtualTime) {
+                    iterator.remove();
+                }
+            }
+        }
+        finishTags.put(kbTenantId, finishTag);
+        return finishTag;
+    }
+
+    private static final class Waiter {
+
+        private final Condition condition;
+        private final long sequence;
+        private double finishTag;
+        private boolean granted = false;
+
+        private Waiter(final Condition condition, final long sequence) {
+            this.condition = condition;
+            this.sequence = sequence;
+        }
+    }
+}
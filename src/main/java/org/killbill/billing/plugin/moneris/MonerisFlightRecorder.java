@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Timestamped events for gateway exchanges and DAO calls, to be lined up (by start time and thread) with a JDK Flight Recorder
+ * recording of GC pauses and socket or file I/O (see moneris.jfc).
+ * <p/>
+ * Like JFR events, each event type has an enabled flag and a duration threshold: events shorter than the threshold are dropped,
+ * and a disabled event type costs a single volatile read. The last events are kept in a ring buffer, served under /events.
+ */
+public class MonerisFlightRecorder {
+
+    public enum EventType {
+        // Request to Moneris (see MonerisGateway)
+        GATEWAY_EXCHANGE,
+        // MonerisDao call
+        DAO_CALL
+    }
+
+    private static final long DISABLED = Long.MAX_VALUE;
+
+    private final Event[] events;
+    // Per event type, DISABLED if the type is disabled. Copy-on-write, so that checks are a single volatile read
+    private volatile long[] thresholdNanos;
+    private long nbEvents = 0;
+
+    /**
+     * @param capacity number of events to keep (all event types are disabled initially)
+     */
+    public MonerisFlightRecorder(final int capacity) {
+        this.events = new Event[capacity];
+        this.thresholdNanos = new long[EventType.values().length];
+        for (int i = 0; i < thresholdNanos.length; i++) {
+            thresholdNanos[i] = DISABLED;
+        }
+    }
+
+    /**
+     * Enable (or disable) an event type. Events shorter than threshold are dropped.
+     */
+    public synchronized void configure(final EventType eventType, final boolean isEnabled, final long threshold, final TimeUnit unit) {
+        final long[] newThresholdNanos = thresholdNanos.clone();
+        newThresholdNanos[eventType.ordinal()] = isEnabled ? unit.toNanos(threshold) : DISABLED;
+        thresholdNanos = newThresholdNanos;
+    }
+
+    public boolean isEnabled(final EventType eventType) {
+        return thresholdNanos[eventType.ordinal()] != DISABLED;
+    }
+
+    public void recordGatewayExchange(final String operation, final String storeId, final long durationNanos, @Nullable final String responseCode, final boolean timedOut) {
+        if (shouldCommit(EventType.GATEWAY_EXCHANGE, durationNanos)) {
+            commit(new Event(EventType.GATEWAY_EXCHANGE, durationNanos, operation, storeId, responseCode, timedOut, 0));
+        }
+    }
+
+    /**
+     * @param rows number of rows returned or affected
+     */
+    public void recordDaoCall(final String operation, final int rows, final long durationNanos) {
+        if (shouldCommit(EventType.DAO_CALL, durationNanos)) {
+            commit(new Event(EventType.DAO_CALL, durationNanos, operation, null, null, false, rows));
+        }
+    }
+
+    /**
+     * @return the events which started at or after sinceMillis, oldest first
+     */
+    public List<Event> getEvents(final long sinceMillis) {
+        final List<Event> recentEvents = new LinkedList<Event>();
+        synchronized (events) {
+            for (long i = Math.max(0, nbEvents - events.length); i < nbEvents; i++) {
+                final Event event = events[(int) (i % events.length)];
+                if (event.getStartMillis() >= sinceMillis) {
+                    recentEvents.add(event);
+                }
+            }
+        }
+        return recentEvents;
+    }
+
+    private boolean shouldCommit(final EventType eventType, final long durationNanos) {
+        final long threshold = thresholdNanos[eventType.ordinal()];
+        return threshold != DISABLED && durationNanos >= threshold;
+    }
+
+    private void commit(final Event event) {
+        if (events.length == 0) {
+            return;
+        }
+        synchronized (events) {
+            events[(int) (nbEvents % events.length)] = event;
+            nbEvents++;
+        }
+    }
+
+    public static final class Event {
+
+        private final EventType eventType;
+        private final long startMillis;
+        private final long durationNanos;
+        private final String threadName;
+        private final String operation;
+        private final String storeId;
+        private final String responseCode;
+        private final boolean timedOut;
+        private final int rows;
+
+        private Event(final EventType eventType, final long durationNanos, final String operation, @Nullable final String storeId,
+                      @Nullable final String responseCode, final boolean timedOut, final int rows) {
+            this.eventType = eventType;
+            // Events are committed when they end
+            this.startMillis = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(durationNanos);
+            this.durationNanos = durationNanos;
+            this.threadName = Thread.currentThread().getName();
+            this.operation = operation;
+            this.storeId = storeId;
+            this.responseCode = responseCode;
+            this.timedOut = timedOut;
+            this.rows = rows;
+        }
+
+        public EventType getEventType() {
+            return eventType;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getStoreId() {
+            return storeId;
+        }
+
+        public String getResponseCode() {
+            return responseCode;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+    }
+}
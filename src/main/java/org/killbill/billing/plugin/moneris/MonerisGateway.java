@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import JavaAPI.HttpsPostRequest;
+import JavaAPI.Receipt;
+import JavaAPI.Transaction;
+
+/**
+ * Single entry point for all requests to a Moneris store (see MonerisGatewayRouter when there are several).
+ * <p/>
+ * Each store can have its own bulkhead, a cap on its concurrent requests: once reached, requests are rejected right away
+ * (MonerisThrottledException), so that a slow store can't tie up all the payment threads. It can also have a rate limit, to stay
+ * below the Moneris throttling threshold: requests wait for a token up to maxRateLimitWait, and are rejected beyond that.
+ * The bulkhead is checked first, so that rejected requests don't use up tokens.
+ */
+public class MonerisGateway {
+
+    // How long the Moneris Java API (HttpsPostRequest) waits for an answer
+    public static final int CLIENT_TIMEOUT_SECONDS = 35;
+
+    /**
+     * How requests reach Moneris: HTTPS, or a stand-in (e.g. MonerisReplayTransport).
+     */
+    public interface Transport {
+
+        /**
+         * @param statusCheck whether this is a status check (see checkStatus)
+         */
+        public Receipt post(String storeId, Transaction transaction, boolean statusCheck);
+    }
+
+    private final String name;
+    private final String storeId;
+    private final Transport transport;
+    // Null if the number of concurrent requests isn't capped
+    private final Semaphore bulkhead;
+    // Null if the request rate isn't capped
+    private final MonerisTokenBucket rateLimit;
+    private final long maxRateLimitWaitNanos;
+    private final MonerisMetrics monerisMetrics;
+    private final MonerisFlightRecorder monerisFlightRecorder;
+    private final MonerisAuditLog monerisAuditLog;
+
+    /**
+     * @param name                  store name, to tell stores apart in metrics (null for a single store setup)
+     * @param hostSelector          picks the Moneris endpoint for each request
+     * @param maxConcurrentRequests bulkhead size (0 for no limit)
+     * @param rateLimit             null for no limit
+     */
+    public MonerisGateway(@Nullable final String name, final MonerisHostSelector hostSelector, final String storeId, final String apiToken, final int maxConcurrentRequests,
+                          @Nullable final MonerisTokenBucket rateLimit, final long maxRateLimitWaitMillis, final MonerisMetrics monerisMetrics,
+                          final MonerisFlightRecorder monerisFlightRecorder, @Nullable final MonerisAuditLog monerisAuditLog) {
+        this(name, storeId, new HttpsTransport(hostSelector, apiToken), maxConcurrentRequests, rateLimit, maxRateLimitWaitMillis, monerisMetrics, monerisFlightRecorder, monerisAuditLog);
+    }
+
+    public MonerisGateway(final String storeId, final Transport transport, final MonerisMetrics monerisMetrics,
+                          final MonerisFlightRecorder monerisFlightRecorder, @Nullable final MonerisAuditLog monerisAuditLog) {
+        this(null, storeId, transport, 0, null, 0, monerisMetrics, monerisFlightRecorder, monerisAuditLog);
+    }
+
+    public MonerisGateway(@Nullable final String name, final String storeId, final Transport transport, final int maxConcurrentRequests,
+                          @Nullable final MonerisTokenBucket rateLimit, final long maxRateLimitWaitMillis, final MonerisMetrics monerisMetrics,
+                          final MonerisFlightRecorder monerisFlightRecorder, @Nullable final MonerisAuditLog monerisAuditLog) {
+        this.name = name;
+        this.storeId = storeId;
+        this.transport = transport;
+        this.bulkhead = maxConcurrentRequests > 0 ? new Semaphore(maxConcurrentRequests) : null;
+        this.rateLimit = rateLimit;
+        this.maxRateLimitWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxRateLimitWaitMillis);
+        this.monerisMetrics = monerisMetrics;
+        this.monerisFlightRecorder = monerisFlightRecorder;
+        this.monerisAuditLog = monerisAuditLog;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getStoreId() {
+        return storeId;
+    }
+
+    /**
+     * @return the number of requests which can still be sent concurrently, or -1 if there is no limit
+     */
+    public int getAvailablePermits() {
+        return bulkhead == null ? -1 : bulkhead.availablePermits();
+    }
+
+    /**
+     * @return the number of requests which can be sent right away, or -1 if there is no rate limit
+     */
+    public double getNbRateLimitTokens() {
+        return rateLimit == null ? -1 : rateLimit.getNbTokens();
+    }
+
+    /**
+     * @return false if Moneris is known to be unreachable (all its endpoints are ejected), i.e. a request would fail without being processed
+     */
+    public boolean isAvailable() {
+        // Stand-ins (e.g. MonerisReplayTransport) are always there
+        return !(transport instanceof HttpsTransport) || ((HttpsTransport) transport).hostSelector.isAvailable();
+    }
+
+    /**
+     * @param operation what the request is for (e.g. the TransactionType), for metrics
+     */
+    public Receipt submit(final String operation, final Transaction transaction) {
+        return send(operation, transaction, false);
+    }
+
+    /**
+     * Re-send a previous transaction, with the exact same parameters, to find out whether it went through.
+     * The Receipt StatusCode is < 50 if the transaction was found, >= 50 otherwise.
+     */
+    public Receipt checkStatus(final String operation, final Transaction transaction) {
+        return send(operation, transaction, true);
+    }
+
+    private Receipt send(final String operation, final Transaction transaction, final boolean statusCheck) {
+        // Per store metrics
+        final String metricsOperation = name == null ? operation : name + ":" + operation;
+        if (bulkhead != null && !bulkhead.tryAcquire()) {
+            monerisMetrics.recordError(metricsOperation);
+            throw new MonerisThrottledException("Too many concurrent requests to Moneris store " + (name == null ? storeId : name));
+        }
+        try {
+            if (rateLimit != null) {
+                try {
+                    rateLimit.acquire(maxRateLimitWaitNanos, "Moneris store " + (name == null ? storeId : name));
+                } catch (final MonerisThrottledException e) {
+                    monerisMetrics.recordError(metricsOperation);
+                    throw e;
+                }
+            }
+            return doSend(operation, metricsOperation, transaction, statusCheck);
+        } finally {
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+        }
+    }
+
+    private Receipt doSend(final String operation, final String metricsOperation, final Transaction transaction, final boolean statusCheck) {
+        monerisMetrics.incrementInFlight(metricsOperation, MonerisMetrics.Phase.GATEWAY);
+        final long startNanos = System.nanoTime();
+        Receipt receipt = null;
+        try {
+            receipt = transport.post(storeId, transaction, statusCheck);
+            monerisMetrics.recordReceipt(metricsOperation, receipt);
+            return receipt;
+        } catch (final RuntimeException e) {
+            monerisMetrics.recordError(metricsOperation);
+            throw e;
+        } finally {
+            final long durationNanos = System.nanoTime() - startNanos;
+            monerisMetrics.recordLatency(metricsOperation, MonerisMetrics.Phase.GATEWAY, durationNanos);
+            // No response code if the request threw
+            monerisFlightRecorder.recordGatewayExchange(operation,
+                                                        storeId,
+                                                        durationNanos,
+                                                        receipt == null ? null : receipt.getResponseCode(),
+                                                        receipt != null && "true".equalsIgnoreCase(receipt.getTimedOut()));
+            if (monerisAuditLog != null) {
+                monerisAuditLog.record(storeId, operation, transaction, receipt, durationNanos);
+            }
+            monerisMetrics.decrementInFlight(metricsOperation, MonerisMetrics.Phase.GATEWAY);
+        }
+    }
+
+    /**
+     * Goes to the host picked by the MonerisHostSelector, and reports back the outcome. Payment requests are never re-sent
+     * to another host (Moneris may have processed them), but status checks are read-only and are retried once elsewhere.
+     */
+    private static final class HttpsTransport implements Transport {
+
+        private final MonerisHostSelector hostSelector;
+        private final String apiToken;
+
+        private HttpsTransport(final MonerisHostSelector hostSelector, final String apiToken) {
+            this.hostSelector = hostSelector;
+            this.apiToken = apiToken;
+        }
+
+        @Override
+        public Receipt post(final String storeId, final Transaction transaction, final boolean statusCheck) {
+            final String host = hostSelector.select(null);
+            if (!statusCheck) {
+                return post(host, storeId, transaction, false);
+            }
+
+            Receipt receipt = null;
+            RuntimeException exception = null;
+            try {
+                receipt = post(host, storeId, transaction, true);
+            } catch (final RuntimeException e) {
+                exception = e;
+            }
+            if (exception == null && isAnswered(receipt)) {
+                return receipt;
+            }
+
+            final String otherHost = hostSelector.select(host);
+            if (otherHost.equals(host)) {
+                // Nowhere else to go
+                if (exception != null) {
+                    throw exception;
+                }
+                return receipt;
+            }
+            return post(otherHost, storeId, transaction, true);
+        }
+
+        private Receipt post(final String host, final String storeId, final Transaction transaction, final boolean statusCheck) {
+            final long startNanos = System.nanoTime();
+            boolean answered = false;
+            try {
+                final HttpsPostRequest request = statusCheck ? new HttpsPostRequest(host, storeId, apiToken, true, transaction) : new HttpsPostRequest(host, storeId, apiToken, transaction);
+                final Receipt receipt = request.getReceipt();
+                answered = isAnswered(receipt);
+                return receipt;
+            } finally {
+                hostSelector.record(host, System.nanoTime() - startNanos, answered);
+            }
+        }
+
+        // Whether the host did its job, whatever the outcome of the transaction (no response nor status code on connection errors)
+        private static boolean isAnswered(@Nullable final Receipt receipt) {
+            return receipt != null &&
+                   !"true".equalsIgnoreCase(receipt.getTimedOut()) &&
+                   (receipt.getResponseCode() != null || receipt.getStatusCode() != null);
+        }
+    }
+}
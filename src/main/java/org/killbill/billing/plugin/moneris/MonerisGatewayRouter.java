@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.catalog.api.Currency;
+
+/**
+ * Picks the Moneris store (i.e. the MonerisGateway) for a request, in order:
+ * <ul>
+ * <li>the store plugin property (see MonerisProperties#getStore)</li>
+ * <li>the tenant route</li>
+ * <li>the currency route</li>
+ * <li>the default store</li>
+ * </ul>
+ * Routes are resolved to gateways upfront, in an immutable snapshot, so that routing a request is a volatile read and a few map lookups,
+ * without locking. A new configuration (see MonerisConfigurationHandler) swaps in a new snapshot: in-flight requests complete
+ * on the gateway they started with.
+ * <p/>
+ * Note: captures, voids and refunds must reach the store of the original transaction, whatever the routes are by then. The store
+ * each transaction was sent to is recorded in moneris_transactions, and callers pass it back to routeToRecordedStore for follow-on
+ * transactions (and for MonerisReconciler lookups). Stores removed from the configuration stay reachable that way (until the
+ * bundle restarts), but no longer take new requests.
+ */
+public class MonerisGatewayRouter {
+
+    static final String UNKNOWN_STORE = "unknown_store";
+
+    private volatile Routes routes;
+
+    /**
+     * @param gatewaysByName store name to gateway
+     * @param tenantRoutes   tenant id to store name
+     * @param currencyRoutes currency to store name
+     */
+    public MonerisGatewayRouter(final MonerisGateway defaultGateway, final Map<String, MonerisGateway> gatewaysByName,
+                                final Map<UUID, String> tenantRoutes, final Map<Currency, String> currencyRoutes) {
+        this.routes = new Routes(defaultGateway, gatewaysByName, tenantRoutes, currencyRoutes, Collections.<String, MonerisGateway>emptyMap());
+    }
+
+    /**
+     * Single store setup.
+     */
+    public MonerisGatewayRouter(final MonerisGateway defaultGateway) {
+        this(defaultGateway, Collections.<String, MonerisGateway>emptyMap(), Collections.<UUID, String>emptyMap(), Collections.<Currency, String>emptyMap());
+    }
+
+    /**
+     * Atomically replace all stores and routes. Invalid routes are rejected, leaving the current ones in place.
+     */
+    public synchronized void reconfigure(final MonerisGateway defaultGateway, final Map<String, MonerisGateway> gatewaysByName,
+                                         final Map<UUID, String> tenantRoutes, final Map<Currency, String> currencyRoutes) {
+        // Removed stores are kept for the follow-on transactions of the transactions sent to them
+        final Map<String, MonerisGateway> retiredGatewaysByName = new HashMap<String, MonerisGateway>(routes.retiredGatewaysByName);
+        retiredGatewaysByName.putAll(routes.gatewaysByName);
+        retiredGatewaysByName.keySet().removeAll(gatewaysByName.keySet());
+        routes = new Routes(defaultGateway, gatewaysByName, tenantRoutes, currencyRoutes, retiredGatewaysByName);
+    }
+
+    /**
+     * @param storeName  store plugin property, if any
+     * @param kbTenantId tenant of the request, if any
+     * @param currency   currency of the request, if any
+     * @throws MonerisValidationException if storeName isn't one of the configured stores
+     */
+    public MonerisGateway route(@Nullable final String storeName, @Nullable final UUID kbTenantId, @Nullable final Currency currency) {
+        final Routes currentRoutes = routes;
+
+        if (storeName != null) {
+            final MonerisGateway gateway = currentRoutes.gatewaysByName.get(storeName);
+            if (gateway == null) {
+                throw new MonerisValidationException(UNKNOWN_STORE, "Unknown Moneris store " + storeName);
+            }
+            return gateway;
+        }
+
+        final MonerisGateway tenantGateway = kbTenantId == null ? null : currentRoutes.gatewaysByTenant.get(kbTenantId);
+        if (tenantGateway != null) {
+            return tenantGateway;
+        }
+
+        final MonerisGateway currencyGateway = currency == null ? null : currentRoutes.gatewaysByCurrency.get(currency);
+        return currencyGateway == null ? currentRoutes.defaultGateway : currencyGateway;
+    }
+
+    /**
+     * Same as route, for a store recorded earlier: the one of the original transaction for follow-on transactions, of a
+     * transaction being looked up, or of a vaulted card. It is found even if it has been removed from the configuration since.
+     *
+     * @param recordedStoreName store recorded earlier, if any (otherwise, routes on the tenant and currency)
+     * @param currency          currency of the original transaction, if any
+     * @throws MonerisValidationException if the store is unknown (e.g. removed before the bundle restarted)
+     */
+    public MonerisGateway routeToRecordedStore(@Nullable final String recordedStoreName, @Nullable final UUID kbTenantId, @Nullable final Currency currency) {
+        final Routes currentRoutes = routes;
+
+        if (recordedStoreName != null && !currentRoutes.gatewaysByName.containsKey(recordedStoreName)) {
+            final MonerisGateway retiredGateway = currentRoutes.retiredGatewaysByName.get(recordedStoreName);
+            if (retiredGateway != null) {
+                return retiredGateway;
+            }
+        }
+        return route(recordedStoreName, kbTenantId, currency);
+    }
+
+    public MonerisGateway getDefaultGateway() {
+        return routes.defaultGateway;
+    }
+
+    /**
+     * @return the named stores (the default store may be one of them)
+     */
+    public Collection<MonerisGateway> getGateways() {
+        return routes.gatewaysByName.values();
+    }
+
+    private static final class Routes {
+
+        private final MonerisGateway defaultGateway;
+        private final Map<String, MonerisGateway> gatewaysByName;
+        private final Map<UUID, MonerisGateway> gatewaysByTenant;
+        private final Map<Currency, MonerisGateway> gatewaysByCurrency;
+        // Removed from the configuration, for recorded stores only
+        private final Map<String, MonerisGateway> retiredGatewaysByName;
+
+        private Routes(final MonerisGateway defaultGateway, final Map<String, MonerisGateway> gatewaysByName,
+                       final Map<UUID, String> tenantRoutes, final Map<Currency, String> currencyRoutes, final Map<String, MonerisGateway> retiredGatewaysByName) {
+            this.defaultGateway = defaultGateway;
+            this.gatewaysByName = Collections.unmodifiableMap(new HashMap<String, MonerisGateway>(gatewaysByName));
+            this.retiredGatewaysByName = Collections.unmodifiableMap(new HashMap<String, MonerisGateway>(retiredGatewaysByName));
+            this.gatewaysByTenant = Collections.unmodifiableMap(resolve(tenantRoutes));
+            this.gatewaysByCurrency = Collections.unmodifiableMap(resolve(currencyRoutes));
+        }
+
+        private <K> Map<K, MonerisGateway> resolve(final Map<K, String> routes) {
+            final Map<K, MonerisGateway> gateways = new HashMap<K, MonerisGateway>();
+            for (final Map.Entry<K, String> route : routes.entrySet()) {
+                final MonerisGateway gateway = gatewaysByName.get(route.getValue());
+                if (gateway == null) {
+                    throw new IllegalArgumentException("Unknown Moneris store " + route.getValue() + " for route " + route.getKey());
+                }
+                gateways.put(route.getKey(), gateway);
+            }
+            return gateways;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Picks the Moneris endpoint for each new request, among the endpoints of a store: the one with the lowest expected latency,
+ * i.e. its EWMA latency weighted by its EWMA error rate.
+ * <p/>
+ * A host whose error rate goes above maxErrorRate is ejected. Once its ejection period is over, it is probed (TLS handshake,
+ * off the payment path) and re-admitted if the probe succeeds, ejected again otherwise. If all hosts are ejected,
+ * the one due back first is used.
+ * <p/>
+ * Note: this only steers new requests. A request is never re-sent to another host by the selector, as Moneris may have
+ * processed it (see MonerisGateway for the idempotent exception, status checks).
+ */
+public class MonerisHostSelector {
+
+    public interface Probe {
+
+        public boolean isHealthy(String host);
+    }
+
+    // Weight of the latest sample in the moving averages
+    private static final double ALPHA = 0.2;
+    // Don't eject a host on its first few errors
+    private static final int MIN_SAMPLES = 10;
+
+    private final Host[] hosts;
+    private final Probe probe;
+    private final Executor probeExecutor;
+    private final double maxErrorRate;
+    private final long ejectionNanos;
+
+    /**
+     * @param hosts         in order of preference, used for ties (e.g. before any traffic)
+     * @param probeExecutor runs the probes of ejected hosts
+     */
+    public MonerisHostSelector(final List<String> hosts, final Probe probe, final Executor probeExecutor, final double maxErrorRate, final long ejection, final TimeUnit unit) {
+        if (hosts.isEmpty()) {
+            throw new IllegalArgumentException("At least one Moneris host is required");
+        }
+        this.hosts = new Host[hosts.size()];
+        for (int i = 0; i < this.hosts.length; i++) {
+            this.hosts[i] = new Host(hosts.get(i));
+        }
+        this.probe = probe;
+        this.probeExecutor = probeExecutor;
+        this.maxErrorRate = maxErrorRate;
+        this.ejectionNanos = unit.toNanos(ejection);
+    }
+
+    /**
+     * @param excludedHost host to avoid if possible, e.g. the one which just failed
+     */
+    public String select(@Nullable final String excludedHost) {
+        final long now = System.nanoTime();
+
+        Host best = null;
+        double bestScore = Double.MAX_VALUE;
+        Host dueFirst = null;
+        for (final Host host : hosts) {
+            final long ejectedUntilNanos = host.ejectedUntilNanos;
+            if (ejectedUntilNanos != 0) {
+                if (now - ejectedUntilNanos >= 0) {
+                    scheduleProbe(host);
+                }
+                if (dueFirst == null || ejectedUntilNanos - dueFirst.ejectedUntilNanos < 0) {
+                    dueFirst = host;
+                }
+                continue;
+            }
+            if (host.name.equals(excludedHost) && hosts.length > 1) {
+                continue;
+            }
+
+            final double score = host.getScore(now, ejectionNanos);
+            if (score < bestScore) {
+                best = host;
+                bestScore = score;
+            }
+        }
+
+        if (best != null) {
+            return best.name;
+        }
+        return dueFirst == null ? hosts[0].name : dueFirst.name;
+    }
+
+    /**
+     * @param success false if the request threw, timed out or got no response code
+     */
+    public void record(final String hostName, final long latencyNanos, final boolean success) {
+        final Host host = find(hostName);
+        if (host == null) {
+            return;
+        }
+
+        final boolean eject;
+        synchronized (host) {
+            host.nbSamples++;
+            host.lastSampleNanos = System.nanoTime();
+            host.ewmaLatencyNanos = host.nbSamples == 1 ? latencyNanos : host.ewmaLatencyNanos + ALPHA * (latencyNanos - host.ewmaLatencyNanos);
+            host.ewmaErrorRate += ALPHA * ((success ? 0.0 : 1.0) - host.ewmaErrorRate);
+            eject = host.ejectedUntilNanos == 0 && host.nbSamples >= MIN_SAMPLES && host.ewmaErrorRate > maxErrorRate;
+        }
+        if (eject) {
+            eject(host);
+        }
+    }
+
+    /**
+     * @return false if all hosts are ejected (probing those whose ejection period is over, as select would)
+     */
+    public boolean isAvailable() {
+        final long now = System.nanoTime();
+
+        boolean available = false;
+        for (final Host host : hosts) {
+            final long ejectedUntilNanos = host.ejectedUntilNanos;
+            if (ejectedUntilNanos == 0) {
+                available = true;
+            } else if (now - ejectedUntilNanos >= 0) {
+                scheduleProbe(host);
+            }
+        }
+        return available;
+    }
+
+    public boolean isEjected(final String hostName) {
+        final Host host = find(hostName);
+        return host != null && host.ejectedUntilNanos != 0;
+    }
+
+    private void scheduleProbe(final Host host) {
+        if (!host.probing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            probeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (probe.isHealthy(host.name)) {
+                            readmit(host);
+                        } else {
+                            eject(host);
+                        }
+                    } finally {
+                        host.probing.set(false);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            // Shutting down: never fail the request over a probe
+            host.probing.set(false);
+        }
+    }
+
+    private void eject(final Host host) {
+        // Never 0, which means admitted
+        host.ejectedUntilNanos = (System.nanoTime() + ejectionNanos) | 1;
+    }
+
+    private void readmit(final Host host) {
+        synchronized (host) {
+            // Start afresh, the old statistics are what got it ejected
+            host.nbSamples = 0;
+            host.ewmaLatencyNanos = 0;
+            host.ewmaErrorRate = 0;
+        }
+        host.ejectedUntilNanos = 0;
+    }
+
+    private Host find(final String hostName) {
+        for (final Host host : hosts) {
+            if (host.name.equals(hostName)) {
+                return host;
+            }
+        }
+        return null;
+    }
+
+    private static final class Host {
+
+        private final String name;
+        private final AtomicBoolean probing = new AtomicBoolean(false);
+
+        // 0 if admitted
+        private volatile long ejectedUntilNanos = 0;
+        // Written under the Host lock, read without
+        private volatile int nbSamples = 0;
+        private volatile long lastSampleNanos = 0;
+        private volatile double ewmaLatencyNanos = 0;
+        private volatile double ewmaErrorRate = 0;
+
+        private Host(final String name) {
+            this.name = name;
+        }
+
+        private double getScore(final long now, final long staleNanos) {
+            if (nbSamples == 0 || now - lastSampleNanos > staleNanos) {
+                // Unknown (or forgotten): worth a try, so that a host which was slow once gets another chance
+                return 0;
+            }
+            return ewmaLatencyNanos / Math.max(0.01, 1 - ewmaErrorRate);
+        }
+    }
+
+    /**
+     * Healthy if a TLS handshake on port 443 succeeds within the timeout.
+     */
+    public static final class HandshakeProbe implements Probe {
+
+        private static final int HTTPS_PORT = 443;
+
+        private final int timeoutMillis;
+
+        public HandshakeProbe(final int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public boolean isHealthy(final String host) {
+            SSLSocket socket = null;
+            try {
+                socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket();
+                socket.connect(new InetSocketAddress(host, HTTPS_PORT), timeoutMillis);
+                socket.setSoTimeout(timeoutMillis);
+                socket.startHandshake();
+                return true;
+            } catch (final IOException e) {
+                return false;
+            } finally {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (final IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+}
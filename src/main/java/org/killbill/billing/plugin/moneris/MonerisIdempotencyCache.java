@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.killbill.billing.plugin.moneris.dao.MonerisJournal;
+
+/**
+ * Suppresses duplicate gateway calls for the same kbTransactionId (e.g. when Kill Bill retries after a timeout):
+ * <ul>
+ * <li>a completed duplicate gets the stored transaction back (from memory, the journal or moneris_transactions)</li>
+ * <li>a concurrent duplicate waits on the in-flight call and gets its result</li>
+ * </ul>
+ * Sending the same order_id twice would fail at Moneris anyway.
+ */
+public class MonerisIdempotencyCache {
+
+    private final ConcurrentMap<UUID, FutureTask<PaymentTransactionInfoPlugin>> inFlightTransactions = new ConcurrentHashMap<UUID, FutureTask<PaymentTransactionInfoPlugin>>();
+    private final Map<UUID, CompletedTransaction> completedTransactions;
+    private final MonerisDao monerisDao;
+    private final MonerisJournal monerisJournal;
+
+    // Statistics
+    private final AtomicLong nbMemoryHits = new AtomicLong();
+    private final AtomicLong nbStoredHits = new AtomicLong();
+    private final AtomicLong nbConcurrentDuplicates = new AtomicLong();
+    private final AtomicLong nbMisses = new AtomicLong();
+
+    public MonerisIdempotencyCache(final int maxSize, final MonerisDao monerisDao, @Nullable final MonerisJournal monerisJournal) {
+        this.completedTransactions = new LinkedHashMap<UUID, CompletedTransaction>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<UUID, CompletedTransaction> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.monerisDao = monerisDao;
+        this.monerisJournal = monerisJournal;
+    }
+
+    public PaymentTransactionInfoPlugin execute(final UUID kbTransactionId, final UUID kbTenantId, final Callable<PaymentTransactionInfoPlugin> gatewayCall) throws PaymentPluginApiException {
+        final PaymentTransactionInfoPlugin cachedTransaction = getCompletedTransaction(kbTransactionId, kbTenantId);
+        if (cachedTransaction != null) {
+            nbMemoryHits.incrementAndGet();
+            return cachedTransaction;
+        }
+
+        final FutureTask<PaymentTransactionInfoPlugin> task = new FutureTask<PaymentTransactionInfoPlugin>(new Callable<PaymentTransactionInfoPlugin>() {
+            @Override
+            public PaymentTransactionInfoPlugin call() throws Exception {
+                final PaymentTransactionInfoPlugin storedTransaction = findStoredTransaction(kbTransactionId, kbTenantId);
+                if (storedTransaction != null) {
+                    nbStoredHits.incrementAndGet();
+                    return storedTransaction;
+                }
+                nbMisses.incrementAndGet();
+                return gatewayCall.call();
+            }
+        });
+
+        final FutureTask<PaymentTransactionInfoPlugin> inFlightTask = inFlightTransactions.putIfAbsent(kbTransactionId, task);
+        if (inFlightTask != null) {
+            // Concurrent duplicate
+            nbConcurrentDuplicates.incrementAndGet();
+            return waitFor(kbTransactionId, inFlightTask);
+        }
+
+        try {
+            task.run();
+            final PaymentTransactionInfoPlugin transaction = waitFor(kbTransactionId, task);
+            // Cache it before removing the in-flight marker, so that there is no window where duplicates could slip through
+            putCompletedTransaction(kbTransactionId, kbTenantId, transaction);
+            return transaction;
+        } finally {
+            inFlightTransactions.remove(kbTransactionId, task);
+        }
+    }
+
+    /**
+     * Forget a completed transaction, e.g. once its stored outcome has been updated.
+     */
+    public void invalidate(final UUID kbTransactionId) {
+        synchronized (completedTransactions) {
+            completedTransactions.remove(kbTransactionId);
+        }
+    }
+
+    /**
+     * Wait for the calls under way to complete, e.g. on shutdown once no new ones can come in.
+     *
+     * @return false if some were still under way after the timeout
+     */
+    public boolean awaitInFlight(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        for (final FutureTask<PaymentTransactionInfoPlugin> task : inFlightTransactions.values()) {
+            try {
+                task.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (final ExecutionException e) {
+                // Reported to its caller
+            } catch (final TimeoutException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getSize() {
+        synchronized (completedTransactions) {
+            return completedTransactions.size();
+        }
+    }
+
+    public int getNbInFlight() {
+        return inFlightTransactions.size();
+    }
+
+    /**
+     * @return the fraction of calls which didn't go to the gateway
+     */
+    public double getHitRatio() {
+        final long nbHits = nbMemoryHits.get() + nbStoredHits.get() + nbConcurrentDuplicates.get();
+        final long nbCalls = nbHits + nbMisses.get();
+        return nbCalls == 0 ? 0.0 : nbHits / (double) nbCalls;
+    }
+
+    private PaymentTransactionInfoPlugin findStoredTransaction(final UUID kbTransactionId, final UUID kbTenantId) {
+        if (monerisJournal != null) {
+            final PaymentTransactionInfoPlugin pendingTransaction = monerisJournal.getPendingTransaction(kbTransactionId, kbTenantId);
+            if (pendingTransaction != null) {
+                return pendingTransaction;
+            }
+        }
+        return monerisDao.getTransaction(kbTransactionId, kbTenantId);
+    }
+
+    private PaymentTransactionInfoPlugin waitFor(final UUID kbTransactionId, final FutureTask<PaymentTransactionInfoPlugin> task) throws PaymentPluginApiException {
+        try {
+            return task.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PaymentPluginApiException("Interrupted while waiting for in-flight transaction " + kbTransactionId, e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof PaymentPluginApiException) {
+                throw (PaymentPluginApiException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new PaymentPluginApiException("Error while processing transaction " + kbTransactionId, e.getCause());
+            }
+        }
+    }
+
+    private PaymentTransactionInfoPlugin getCompletedTransaction(final UUID kbTransactionId, final UUID kbTenantId) {
+        final CompletedTransaction completedTransaction;
+        synchronized (completedTransactions) {
+            completedTransaction = completedTransactions.get(kbTransactionId);
+        }
+
+        if (completedTransaction == null || kbTenantId == null || !kbTenantId.equals(completedTransaction.kbTenantId)) {
+            return null;
+        } else {
+            return completedTransaction.transaction;
+        }
+    }
+
+    private void putCompletedTransaction(final UUID kbTransactionId, final UUID kbTenantId, final PaymentTransactionInfoPlugin transaction) {
+        synchronized (completedTransactions) {
+            completedTransactions.put(kbTransactionId, new CompletedTransaction(kbTenantId, transaction));
+        }
+    }
+
+    private static final class CompletedTransaction {
+
+        private final UUID kbTenantId;
+        private final PaymentTransactionInfoPlugin transaction;
+
+        private CompletedTransaction(final UUID kbTenantId, final PaymentTransactionInfoPlugin transaction) {
+            this.kbTenantId = kbTenantId;
+            this.transaction = transaction;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram, with log-linear buckets (like HdrHistogram): each power of 2 is split into 32 linear
+ * sub-buckets, which bounds the relative error to ~3% while covering 1 microsecond to ~19 hours in ~1000 counters.
+ */
+public class MonerisLatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_SHIFT = 31;
+    private static final long MAX_VALUE = ((2L * SUB_BUCKET_COUNT) << MAX_SHIFT) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT + 2) * SUB_BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(final long durationNanos) {
+        final long micros = Math.min(Math.max(TimeUnit.NANOSECONDS.toMicros(durationNanos), 0), MAX_VALUE);
+
+        counts.incrementAndGet(index(micros));
+        totalCount.incrementAndGet();
+        totalMicros.addAndGet(micros);
+
+        long currentMax = maxMicros.get();
+        while (micros > currentMax && !maxMicros.compareAndSet(currentMax, micros)) {
+            currentMax = maxMicros.get();
+        }
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getSumMicros() {
+        return totalMicros.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the (upper bound of the bucket of the) value at that percentile, in microseconds
+     */
+    public long getValueAtPercentileMicros(final double percentile) {
+        final long[] values = new long[1];
+        getValuesAtPercentilesMicros(new double[]{percentile}, values);
+        return values[0];
+    }
+
+    /**
+     * Single pass version of getValueAtPercentileMicros.
+     *
+     * @param percentiles sorted, between 0 and 100
+     * @param values      filled with the value at each percentile, in microseconds
+     */
+    public void getValuesAtPercentilesMicros(final double[] percentiles, final long[] values) {
+        final long count = totalCount.get();
+        final long max = maxMicros.get();
+
+        int p = 0;
+        long seen = 0;
+        for (int i = 0; i < counts.length() && p < percentiles.length && count > 0; i++) {
+            seen += counts.get(i);
+            while (p < percentiles.length && seen >= Math.max(1, (long) Math.ceil(percentiles[p] / 100.0 * count))) {
+                values[p++] = Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        // Empty histogram, or values recorded concurrently
+        for (; p < percentiles.length; p++) {
+            values[p] = count == 0 ? 0 : max;
+        }
+    }
+
+    /**
+     * @return the number of recorded values less than or equal to micros (within the histogram precision)
+     */
+    public long getCountAtOrBelowMicros(final long micros) {
+        final long[] cumulativeCounts = new long[1];
+        getCumulativeCountsMicros(new long[]{micros}, cumulativeCounts);
+        return cumulativeCounts[0];
+    }
+
+    /**
+     * Single pass version of getCountAtOrBelowMicros (e.g. for Prometheus buckets).
+     *
+     * @param boundsMicros     sorted upper bounds, in microseconds
+     * @param cumulativeCounts filled with the number of recorded values less than or equal to each bound
+     */
+    public void getCumulativeCountsMicros(final long[] boundsMicros, final long[] cumulativeCounts) {
+        int b = 0;
+        long seen = 0;
+        for (int i = 0; i < counts.length() && b < boundsMicros.length; i++) {
+            while (b < boundsMicros.length && i > index(Math.min(Math.max(boundsMicros[b], 0), MAX_VALUE))) {
+                cumulativeCounts[b++] = seen;
+            }
+            seen += counts.get(i);
+        }
+        for (; b < boundsMicros.length; b++) {
+            cumulativeCounts[b] = seen;
+        }
+    }
+
+    private static int index(final long micros) {
+        final int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS);
+        return (shift * SUB_BUCKET_COUNT) + (int) (micros >>> shift);
+    }
+
+    private static long highestEquivalentValue(final int index) {
+        final int shift = index < 2 * SUB_BUCKET_COUNT ? 0 : (index / SUB_BUCKET_COUNT) - 1;
+        final long mantissa = index - (shift * SUB_BUCKET_COUNT);
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import JavaAPI.Receipt;
+
+/**
+ * Latencies, receipt counters and in-flight gauges, per operation (the TransactionType for payment transactions,
+ * e.g. BATCH_CLOSE otherwise).
+ * <p/>
+ * Served by MonerisServlet, as JSON (/stats) and in the Prometheus text format (/metrics).
+ */
+public class MonerisMetrics {
+
+    public enum Phase {
+        // Time spent looking up the payment history (journal and database)
+        LOOKUP,
+        // Round trip to Moneris
+        GATEWAY,
+        // Time spent recording the result (journal or database)
+        PERSIST,
+        // End-to-end plugin call
+        TOTAL
+    }
+
+    public enum ResponseCodeBucket {
+        // Response code < 50
+        APPROVED,
+        // Response code >= 50
+        DECLINED,
+        // No (or invalid) response code, e.g. timeouts
+        INCOMPLETE,
+        // The request threw an exception
+        ERROR
+    }
+
+    public interface Gauge {
+
+        public double getValue();
+    }
+
+    private static final String NO_ISO_CODE = "none";
+    private static final int NB_RECENT_ERRORS = 256;
+
+    private final ConcurrentMap<String, ConcurrentMap<Phase, MonerisLatencyHistogram>> latencies = new ConcurrentHashMap<String, ConcurrentMap<Phase, MonerisLatencyHistogram>>();
+    private final ConcurrentMap<String, ConcurrentMap<Phase, AtomicInteger>> inFlight = new ConcurrentHashMap<String, ConcurrentMap<Phase, AtomicInteger>>();
+    private final ConcurrentMap<String, ConcurrentMap<ResponseCodeBucket, AtomicLong>> responseCodes = new ConcurrentHashMap<String, ConcurrentMap<ResponseCodeBucket, AtomicLong>>();
+    private final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> isoCodes = new ConcurrentHashMap<String, ConcurrentMap<String, AtomicLong>>();
+    private final ConcurrentMap<String, AtomicLong> timeouts = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, MonerisRateMeter> gatewayRates = new ConcurrentHashMap<String, MonerisRateMeter>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    // Ring buffer of the last gateway errors (declines, timeouts and exceptions)
+    private final long[] recentErrorTimes = new long[NB_RECENT_ERRORS];
+    private final String[] recentErrorOperations = new String[NB_RECENT_ERRORS];
+    private final String[] recentErrorCodes = new String[NB_RECENT_ERRORS];
+    private long nbRecentErrors = 0;
+
+    public void recordLatency(final String operation, final Phase phase, final long durationNanos) {
+        getOrCreateLatencies(operation).get(phase).record(durationNanos);
+    }
+
+    public void incrementInFlight(final String operation, final Phase phase) {
+        getOrCreateInFlight(operation).get(phase).incrementAndGet();
+    }
+
+    public void decrementInFlight(final String operation, final Phase phase) {
+        getOrCreateInFlight(operation).get(phase).decrementAndGet();
+    }
+
+    public void recordReceipt(final String operation, final Receipt receipt) {
+        getOrCreateRate(operation).mark();
+
+        final ResponseCodeBucket responseCodeBucket = toResponseCodeBucket(receipt.getResponseCode());
+        increment(responseCodes, operation, responseCodeBucket);
+        increment(isoCodes, operation, receipt.getISO() == null ? NO_ISO_CODE : receipt.getISO());
+        final boolean timedOut = "true".equalsIgnoreCase(receipt.getTimedOut());
+        if (timedOut) {
+            getOrCreateCounter(timeouts, operation).incrementAndGet();
+        }
+
+        if (responseCodeBucket != ResponseCodeBucket.APPROVED) {
+            recordRecentError(operation, timedOut ? "timeout" : (receipt.getResponseCode() == null ? "none" : receipt.getResponseCode()));
+        }
+    }
+
+    public void recordError(final String operation) {
+        getOrCreateRate(operation).mark();
+        increment(responseCodes, operation, ResponseCodeBucket.ERROR);
+        recordRecentError(operation, "error");
+    }
+
+    /**
+     * Register (or replace) a gauge, e.g. a pool or cache size. Names should be valid Prometheus metric names.
+     */
+    public void registerGauge(final String name, final Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public void unregisterGauge(final String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Register utilization gauges for a thread pool.
+     */
+    public void registerExecutor(final String name, final ExecutorService executor) {
+        if (!(executor instanceof ThreadPoolExecutor)) {
+            return;
+        }
+
+        final ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) executor;
+        registerGauge(name + "_active_threads", new Gauge() {
+            @Override
+            public double getValue() {
+                return threadPoolExecutor.getActiveCount();
+            }
+        });
+        registerGauge(name + "_queued_tasks", new Gauge() {
+            @Override
+            public double getValue() {
+                return threadPoolExecutor.getQueue().size();
+            }
+        });
+        registerGauge(name + "_utilization", new Gauge() {
+            @Override
+            public double getValue() {
+                return threadPoolExecutor.getActiveCount() / (double) threadPoolExecutor.getMaximumPoolSize();
+            }
+        });
+    }
+
+    public Map<String, ConcurrentMap<Phase, MonerisLatencyHistogram>> getLatencies() {
+        return Collections.<String, ConcurrentMap<Phase, MonerisLatencyHistogram>>unmodifiableMap(latencies);
+    }
+
+    public Map<String, ConcurrentMap<Phase, AtomicInteger>> getInFlight() {
+        return Collections.<String, ConcurrentMap<Phase, AtomicInteger>>unmodifiableMap(inFlight);
+    }
+
+    public Map<String, ConcurrentMap<ResponseCodeBucket, AtomicLong>> getResponseCodes() {
+        return Collections.<String, ConcurrentMap<ResponseCodeBucket, AtomicLong>>unmodifiableMap(responseCodes);
+    }
+
+    public Map<String, ConcurrentMap<String, AtomicLong>> getIsoCodes() {
+        return Collections.<String, ConcurrentMap<String, AtomicLong>>unmodifiableMap(isoCodes);
+    }
+
+    public Map<String, AtomicLong> getTimeouts() {
+        return Collections.<String, AtomicLong>unmodifiableMap(timeouts);
+    }
+
+    public Map<String, MonerisRateMeter> getGatewayRates() {
+        return Collections.<String, MonerisRateMeter>unmodifiableMap(gatewayRates);
+    }
+
+    public Map<String, Gauge> getGauges() {
+        return Collections.<String, Gauge>unmodifiableMap(gauges);
+    }
+
+    /**
+     * @return the number of gateway errors per operation and error code (response code, timeout, none or error) since sinceMillis,
+     * within the last 256 errors
+     */
+    public Map<String, Map<String, Integer>> getRecentErrors(final long sinceMillis) {
+        final Map<String, Map<String, Integer>> recentErrors = new TreeMap<String, Map<String, Integer>>();
+        synchronized (recentErrorTimes) {
+            for (long i = Math.max(0, nbRecentErrors - NB_RECENT_ERRORS); i < nbRecentErrors; i++) {
+                final int slot = (int) (i % NB_RECENT_ERRORS);
+                if (recentErrorTimes[slot] < sinceMillis) {
+                    continue;
+                }
+
+                Map<String, Integer> operationErrors = recentErrors.get(recentErrorOperations[slot]);
+                if (operationErrors == null) {
+                    operationErrors = new TreeMap<String, Integer>();
+                    recentErrors.put(recentErrorOperations[slot], operationErrors);
+                }
+                final Integer count = operationErrors.get(recentErrorCodes[slot]);
+                operationErrors.put(recentErrorCodes[slot], count == null ? 1 : count + 1);
+            }
+        }
+        return recentErrors;
+    }
+
+    static ResponseCodeBucket toResponseCodeBucket(final String responseCode) {
+        if (responseCode == null) {
+            return ResponseCodeBucket.INCOMPLETE;
+        }
+        try {
+            return Integer.parseInt(responseCode) < 50 ? ResponseCodeBucket.APPROVED : ResponseCodeBucket.DECLINED;
+        } catch (final NumberFormatException e) {
+            return ResponseCodeBucket.INCOMPLETE;
+        }
+    }
+
+    private void recordRecentError(final String operation, final String errorCode) {
+        synchronized (recentErrorTimes) {
+            final int slot = (int) (nbRecentErrors % NB_RECENT_ERRORS);
+            recentErrorTimes[slot] = System.currentTimeMillis();
+            recentErrorOperations[slot] = operation;
+            recentErrorCodes[slot] = errorCode;
+            nbRecentErrors++;
+        }
+    }
+
+    private MonerisRateMeter getOrCreateRate(final String operation) {
+        MonerisRateMeter rate = gatewayRates.get(operation);
+        if (rate == null) {
+            gatewayRates.putIfAbsent(operation, new MonerisRateMeter());
+            rate = gatewayRates.get(operation);
+        }
+        return rate;
+    }
+
+    private static <K> void increment(final ConcurrentMap<String, ConcurrentMap<K, AtomicLong>> counters, final String operation, final K key) {
+        ConcurrentMap<K, AtomicLong> operationCounters = counters.get(operation);
+        if (operationCounters == null) {
+            counters.putIfAbsent(operation, new ConcurrentHashMap<K, AtomicLong>());
+            operationCounters = counters.get(operation);
+        }
+        getOrCreateCounter(operationCounters, key).incrementAndGet();
+    }
+
+    private static <K> AtomicLong getOrCreateCounter(final ConcurrentMap<K, AtomicLong> counters, final K key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            counters.putIfAbsent(key, new AtomicLong());
+            counter = counters.get(key);
+        }
+        return counter;
+    }
+
+    // Per-phase metrics are all created upfront, so that readers never see a partially populated operation
+
+    private ConcurrentMap<Phase, MonerisLatencyHistogram> getOrCreateLatencies(final String operation) {
+        ConcurrentMap<Phase, MonerisLatencyHistogram> operationLatencies = latencies.get(operation);
+        if (operationLatencies == null) {
+            final ConcurrentMap<Phase, MonerisLatencyHistogram> newOperationLatencies = new ConcurrentHashMap<Phase, MonerisLatencyHistogram>();
+            for (final Phase phase : Phase.values()) {
+                newOperationLatencies.put(phase, new MonerisLatencyHistogram());
+            }
+            latencies.putIfAbsent(operation, newOperationLatencies);
+            operationLatencies = latencies.get(operation);
+        }
+        return operationLatencies;
+    }
+
+    private ConcurrentMap<Phase, AtomicInteger> getOrCreateInFlight(final String operation) {
+        ConcurrentMap<Phase, AtomicInteger> operationInFlight = inFlight.get(operation);
+        if (operationInFlight == null) {
+            final ConcurrentMap<Phase, AtomicInteger> newOperationInFlight = new ConcurrentHashMap<Phase, AtomicInteger>();
+            for (final Phase phase : Phase.values()) {
+                newOperationInFlight.put(phase, new AtomicInteger());
+            }
+            inFlight.putIfAbsent(operation, newOperationInFlight);
+            operationInFlight = inFlight.get(operation);
+        }
+        return operationInFlight;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.math.BigDecimal;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.killbill.billing.plugin.moneris.dao.MonerisQueuedTransaction;
+import org.killbill.billing.plugin.moneris.dao.MonerisVaultedCard;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.CallOrigin;
+import org.osgi.service.log.LogService;
+
+import JavaAPI.Receipt;
+import JavaAPI.ResPreauthCC;
+import JavaAPI.ResPurchaseCC;
+import JavaAPI.Transaction;
+
+/**
+ * Store-and-forward for low-risk charges: when Moneris is unreachable (all its endpoints are ejected, see MonerisHostSelector),
+ * small non-interactive (e.g. recurring) charges against cards in the Moneris Vault are queued in the database and
+ * reported as PENDING, instead of failing. Once Moneris is back, the queue is drained in order, a few requests at a time,
+ * and the receipts are recorded against the transactions created when queuing.
+ * <p/>
+ * Only Vault charges without AVS nor CVD details are queued: no card data is stored, only the data key of the payment method.
+ * <p/>
+ * A transaction which may have reached Moneris (e.g. its sender died, or Moneris didn't answer) is status checked
+ * before being sent again, so it's never charged twice.
+ */
+public class MonerisOfflineQueue implements Runnable {
+
+    private static final String UPDATED_BY = "MonerisOfflineQueue";
+    private static final String QUEUED_REASON = "Queued while Moneris was unreachable";
+
+    private final MonerisGatewayRouter monerisGatewayRouter;
+    // Optional fair sharing of the gateway capacity between tenants (null means unbounded)
+    private final MonerisFairScheduler monerisFairScheduler;
+    private final MonerisDao monerisDao;
+    private final MonerisVaultCache monerisVaultCache;
+    private final MonerisIdempotencyCache monerisIdempotencyCache;
+    private final MonerisMetrics monerisMetrics;
+    private final LogService logService;
+    private final BigDecimal maxAmount;
+    private final int nbThreads;
+    private final int batchSize;
+    private final int sendingTimeoutSeconds;
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService workers;
+
+    /**
+     * @param maxAmount             largest amount which can be queued (whatever the currency)
+     * @param nbThreads             number of queued transactions sent in parallel
+     * @param sendingTimeoutSeconds after which a transaction being sent by another node is deemed abandoned (see getMaxSendingMillis)
+     * @param maxWaitMillis         longest a request can wait before going out (fair scheduler and store rate limit)
+     */
+    public MonerisOfflineQueue(final MonerisGatewayRouter monerisGatewayRouter, @Nullable final MonerisFairScheduler monerisFairScheduler, final MonerisDao monerisDao,
+                               final MonerisVaultCache monerisVaultCache, final MonerisIdempotencyCache monerisIdempotencyCache, final MonerisMetrics monerisMetrics, final LogService logService,
+                               final BigDecimal maxAmount, final int nbThreads, final int batchSize, final int sendingTimeoutSeconds, final long maxWaitMillis) {
+        // Otherwise, a transaction still being sent could be claimed, and sent, again
+        final long maxSendingMillis = getMaxSendingMillis(maxWaitMillis);
+        if (TimeUnit.SECONDS.toMillis(sendingTimeoutSeconds) <= maxSendingMillis) {
+            throw new IllegalArgumentException("Invalid offline.sendingTimeoutSeconds " + sendingTimeoutSeconds + ", sending a queued transaction can take up to " + maxSendingMillis + "ms");
+        }
+        this.monerisGatewayRouter = monerisGatewayRouter;
+        this.monerisFairScheduler = monerisFairScheduler;
+        this.monerisDao = monerisDao;
+        this.monerisVaultCache = monerisVaultCache;
+        this.monerisIdempotencyCache = monerisIdempotencyCache;
+        this.monerisMetrics = monerisMetrics;
+        this.logService = logService;
+        this.maxAmount = maxAmount;
+        this.nbThreads = nbThreads;
+        this.batchSize = batchSize;
+        this.sendingTimeoutSeconds = sendingTimeoutSeconds;
+    }
+
+    /**
+     * @return how long sending a claimed transaction can take at most: a status check (which goes to a second host
+     * if the first one doesn't answer) and the request itself, each of them waiting up to maxWaitMillis first
+     */
+    static long getMaxSendingMillis(final long maxWaitMillis) {
+        return 2 * maxWaitMillis + 3 * TimeUnit.SECONDS.toMillis(MonerisGateway.CLIENT_TIMEOUT_SECONDS);
+    }
+
+    public synchronized void start(final int intervalSeconds) {
+        workers = Executors.newFixedThreadPool(nbThreads, new MonerisThreadFactory("moneris-offline-queue-worker"));
+        monerisMetrics.registerExecutor("moneris_offline_queue_workers", workers);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new MonerisThreadFactory("moneris-offline-queue"));
+        scheduler.scheduleWithFixedDelay(this, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            scheduler = null;
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+            workers = null;
+        }
+    }
+
+    /**
+     * @return true if this Vault charge should be queued rather than sent through monerisGateway
+     */
+    public boolean accepts(final MonerisGateway monerisGateway, final BigDecimal amount, final MonerisProperties monerisProperties, final CallContext context) {
+        return context.getCallOrigin() != CallOrigin.EXTERNAL &&
+               amount != null &&
+               amount.compareTo(maxAmount) <= 0 &&
+               !monerisProperties.hasVerificationDetails() &&
+               !monerisGateway.isAvailable();
+    }
+
+    /**
+     * @param monerisGateway where it will be sent, once available
+     * @return the PENDING transaction, once durably queued
+     */
+    public MonerisUnsentTransactionInfoPlugin queue(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency,
+                                                    final TransactionType transactionType, final MonerisGateway monerisGateway, final MonerisProperties monerisProperties,
+                                                    final String dynamicDescriptor, final CallContext context) {
+        monerisDao.createQueuedTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, monerisGateway.getName(), transactionType,
+                                           monerisProperties.getCrypt(), dynamicDescriptor, QUEUED_REASON, context);
+        return new MonerisUnsentTransactionInfoPlugin(kbPaymentId, kbTransactionId, transactionType, amount, currency, PaymentPluginStatus.PENDING, null, QUEUED_REASON, context.getCreatedDate());
+    }
+
+    @Override
+    public void run() {
+        try {
+            drain();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final RuntimeException e) {
+            logService.log(LogService.LOG_WARNING, "Unable to drain the Moneris offline queue", e);
+        }
+    }
+
+    /**
+     * @return the number of queued transactions sent
+     */
+    public int drain() throws InterruptedException {
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        final DateTime staleBefore = now.minusSeconds(sendingTimeoutSeconds);
+
+        // Dispatched in queue order: the workers pick them up in that order. Transactions left in the queue (store still down,
+        // claimed by another node) don't count towards the batch: the queue is paged past them, so other stores aren't held up
+        final List<Future<Boolean>> sends = new LinkedList<Future<Boolean>>();
+        int nbQueued = 0;
+        long lastRecordId = 0;
+        List<MonerisQueuedTransaction> queuedTransactions;
+        do {
+            queuedTransactions = monerisDao.getQueuedTransactions(staleBefore, lastRecordId, batchSize);
+            nbQueued += queuedTransactions.size();
+            for (final MonerisQueuedTransaction queuedTransaction : queuedTransactions) {
+                if (sends.size() >= batchSize) {
+                    break;
+                }
+                lastRecordId = queuedTransaction.getRecordId();
+                dispatch(queuedTransaction, staleBefore, now, sends);
+            }
+        } while (sends.size() < batchSize && queuedTransactions.size() == batchSize);
+        if (nbQueued == 0) {
+            return 0;
+        }
+
+        int nbSent = 0;
+        for (final Future<Boolean> send : sends) {
+            try {
+                if (send.get()) {
+                    nbSent++;
+                }
+            } catch (final ExecutionException e) {
+                logService.log(LogService.LOG_WARNING, "Unable to send a queued Moneris transaction", e.getCause());
+            }
+        }
+
+        logService.log(LogService.LOG_INFO, "Sent " + nbSent + " out of " + nbQueued + " queued Moneris transactions");
+        return nbSent;
+    }
+
+    // Hand over a queued transaction to the workers, unless its store is still down or another node is on it
+    private void dispatch(final MonerisQueuedTransaction queuedTransaction, final DateTime staleBefore, final DateTime now, final List<Future<Boolean>> sends) {
+        final MonerisVaultedCard vaultedCard = monerisVaultCache.get(queuedTransaction.getKbPaymentMethodId(), queuedTransaction.getKbTenantId());
+        if (vaultedCard == null) {
+            // Never sent, nothing to find at Moneris
+            monerisDao.abandonQueuedTransaction(queuedTransaction.getKbTransactionId(), PaymentPluginStatus.CANCELED, "Payment method deleted while queued", UPDATED_BY, now);
+            monerisIdempotencyCache.invalidate(queuedTransaction.getKbTransactionId());
+            return;
+        }
+
+        // Same store as picked when queuing, whatever the current routes
+        final MonerisGateway monerisGateway;
+        try {
+            monerisGateway = monerisGatewayRouter.routeToRecordedStore(queuedTransaction.getStore() == null ? vaultedCard.getStore() : queuedTransaction.getStore(),
+                                                                       queuedTransaction.getKbTenantId(),
+                                                                       queuedTransaction.getCurrency());
+        } catch (final MonerisValidationException e) {
+            // Store removed (and the bundle restarted since): never sent, and never will be
+            monerisDao.abandonQueuedTransaction(queuedTransaction.getKbTransactionId(), PaymentPluginStatus.ERROR, e.getMessage(), UPDATED_BY, now);
+            monerisIdempotencyCache.invalidate(queuedTransaction.getKbTransactionId());
+            return;
+        }
+        if (!monerisGateway.isAvailable()) {
+            return;
+        }
+        final String claimToken = monerisDao.claimQueuedTransaction(queuedTransaction.getKbTransactionId(), staleBefore, now);
+        if (claimToken == null) {
+            return;
+        }
+
+        sends.add(workers.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return send(queuedTransaction, claimToken, vaultedCard, monerisGateway);
+            }
+        }));
+    }
+
+    private boolean send(final MonerisQueuedTransaction queuedTransaction, final String claimToken, final MonerisVaultedCard vaultedCard, final MonerisGateway monerisGateway) {
+        final Transaction request = buildRequest(queuedTransaction, vaultedCard);
+
+        MonerisPaymentTransactionInfoPlugin transactionInfoPlugin = null;
+        try {
+            if (queuedTransaction.getNbAttempts() > 0) {
+                // May have gone through already
+                transactionInfoPlugin = toTransactionInfoPlugin(queuedTransaction, monerisGateway, submit(monerisGateway, queuedTransaction, request, true));
+                if (transactionInfoPlugin.getStatus() == PaymentPluginStatus.CANCELED) {
+                    // Not found: send it
+                    transactionInfoPlugin = null;
+                }
+            }
+            if (transactionInfoPlugin == null) {
+                transactionInfoPlugin = toTransactionInfoPlugin(queuedTransaction, monerisGateway, submit(monerisGateway, queuedTransaction, request, false));
+            }
+        } catch (final MonerisThrottledException e) {
+            // Not sent
+            release(queuedTransaction, claimToken);
+            return false;
+        } catch (final RuntimeException e) {
+            // It may have been sent: it will be status checked next time
+            logService.log(LogService.LOG_WARNING, "Unable to send queued Moneris transaction " + queuedTransaction, e);
+            release(queuedTransaction, claimToken);
+            return false;
+        }
+
+        if (transactionInfoPlugin.getStatus() == PaymentPluginStatus.UNDEFINED) {
+            // No answer (e.g. timed out): same as above
+            release(queuedTransaction, claimToken);
+            return false;
+        }
+
+        if (!monerisDao.completeQueuedTransaction(transactionInfoPlugin, claimToken, UPDATED_BY, new DateTime(DateTimeZone.UTC))) {
+            // Its new sender will find it at Moneris (status check), and record it
+            logService.log(LogService.LOG_WARNING, "Queued Moneris transaction " + queuedTransaction + " was claimed again while being sent, leaving it to its new sender");
+            return false;
+        }
+        monerisIdempotencyCache.invalidate(queuedTransaction.getKbTransactionId());
+        return true;
+    }
+
+    private void release(final MonerisQueuedTransaction queuedTransaction, final String claimToken) {
+        if (!monerisDao.releaseQueuedTransaction(queuedTransaction.getKbTransactionId(), claimToken, new DateTime(DateTimeZone.UTC))) {
+            logService.log(LogService.LOG_WARNING, "Queued Moneris transaction " + queuedTransaction + " was claimed again while being sent, leaving it to its new sender");
+        }
+    }
+
+    // Batch work, as far as the fair scheduler is concerned
+    private Receipt submit(final MonerisGateway monerisGateway, final MonerisQueuedTransaction queuedTransaction, final Transaction request, final boolean statusCheck) {
+        if (monerisFairScheduler != null) {
+            monerisFairScheduler.acquire(queuedTransaction.getKbTenantId(), false);
+        }
+        try {
+            final String operation = queuedTransaction.getTransactionType().toString();
+            return statusCheck ? monerisGateway.checkStatus(operation, request) : monerisGateway.submit(operation, request);
+        } finally {
+            if (monerisFairScheduler != null) {
+                monerisFairScheduler.release();
+            }
+        }
+    }
+
+    // Same request as MonerisPaymentPluginApi would have sent (minus AVS and CVD details, see accepts)
+    private static Transaction buildRequest(final MonerisQueuedTransaction queuedTransaction, final MonerisVaultedCard vaultedCard) {
+        final String orderId = MonerisPaymentPluginApi.monerisSafeUUID(queuedTransaction.getKbTransactionId());
+        final String custId = MonerisPaymentPluginApi.monerisSafeUUID(queuedTransaction.getKbAccountId());
+        final String monerisAmount = MonerisPaymentPluginApi.toMonerisAmount(queuedTransaction.getAmount());
+
+        if (TransactionType.AUTHORIZE.equals(queuedTransaction.getTransactionType())) {
+            final ResPreauthCC resPreauthCC = new ResPreauthCC(vaultedCard.getDataKey(), orderId, custId, monerisAmount, queuedTransaction.getCrypt());
+            resPreauthCC.setDynamicDescriptor(queuedTransaction.getDynamicDescriptor());
+            return resPreauthCC;
+        } else {
+            final ResPurchaseCC resPurchaseCC = new ResPurchaseCC(vaultedCard.getDataKey(), orderId, custId, monerisAmount, queuedTransaction.getCrypt());
+            resPurchaseCC.setDynamicDescriptor(queuedTransaction.getDynamicDescriptor());
+            return resPurchaseCC;
+        }
+    }
+
+    private static MonerisPaymentTransactionInfoPlugin toTransactionInfoPlugin(final MonerisQueuedTransaction queuedTransaction, final MonerisGateway monerisGateway, final Receipt receipt) {
+        return new MonerisPaymentTransactionInfoPlugin(queuedTransaction.getKbPaymentId(),
+                                                       queuedTransaction.getKbTransactionId(),
+                                                       queuedTransaction.getTransactionType(),
+                                                       queuedTransaction.getCurrency(),
+                                                       monerisGateway.getName(),
+                                                       receipt);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+
+/**
+ * Payment histories prefetched in bulk (see MonerisPaymentPluginApi#getPaymentInfo(Collection, TenantContext)), so that the
+ * getPaymentInfo calls which follow (e.g. from the Kill Bill janitor) are served from memory, as well as the lookup of the
+ * original transaction by captures, refunds and voids (e.g. from MonerisBulkOperations).
+ * <p/>
+ * Each entry serves a single call and expires after a few seconds. Only settled histories are kept (no PENDING nor UNDEFINED
+ * transaction), as the offline queue and the reconciler update these in the background; new transactions for a payment
+ * evict its entry. Entries are scoped to their tenant.
+ */
+public class MonerisPaymentInfoCache {
+
+    private final Map<UUID, CachedHistory> histories;
+    private final long ttlNanos;
+
+    public MonerisPaymentInfoCache(final int maxSize, final long ttl, final TimeUnit unit) {
+        this.histories = new LinkedHashMap<UUID, CachedHistory>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<UUID, CachedHistory> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    public void putAll(final Map<UUID, List<PaymentTransactionInfoPlugin>> transactionsByPaymentId, final UUID kbTenantId) {
+        final long expiresNanos = System.nanoTime() + ttlNanos;
+        synchronized (histories) {
+            for (final Map.Entry<UUID, List<PaymentTransactionInfoPlugin>> entry : transactionsByPaymentId.entrySet()) {
+                if (isSettled(entry.getValue())) {
+                    // Callers own the returned lists
+                    histories.put(entry.getKey(), new CachedHistory(kbTenantId, new ArrayList<PaymentTransactionInfoPlugin>(entry.getValue()), expiresNanos));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the prefetched history of the payment (removing it), null if there is none
+     */
+    public List<PaymentTransactionInfoPlugin> take(final UUID kbPaymentId, final UUID kbTenantId) {
+        final CachedHistory cachedHistory;
+        synchronized (histories) {
+            cachedHistory = histories.remove(kbPaymentId);
+        }
+
+        if (cachedHistory == null || kbTenantId == null || !kbTenantId.equals(cachedHistory.kbTenantId) || System.nanoTime() - cachedHistory.expiresNanos >= 0) {
+            return null;
+        } else {
+            return cachedHistory.transactions;
+        }
+    }
+
+    public void invalidate(final UUID kbPaymentId) {
+        synchronized (histories) {
+            histories.remove(kbPaymentId);
+        }
+    }
+
+    public int getSize() {
+        synchronized (histories) {
+            return histories.size();
+        }
+    }
+
+    private static boolean isSettled(final List<PaymentTransactionInfoPlugin> transactions) {
+        for (final PaymentTransactionInfoPlugin transaction : transactions) {
+            if (transaction.getStatus() == PaymentPluginStatus.PENDING || transaction.getStatus() == PaymentPluginStatus.UNDEFINED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class CachedHistory {
+
+        private final UUID kbTenantId;
+        private final List<PaymentTransactionInfoPlugin> transactions;
+        private final long expiresNanos;
+
+        private CachedHistory(final UUID kbTenantId, final List<PaymentTransactionInfoPlugin> transactions, final long expiresNanos) {
+            this.kbTenantId = kbTenantId;
+            this.transactions = transactions;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+}
@@ -16,10 +16,19 @@
 
 package org.killbill.billing.plugin.moneris;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import javax.annotation.Nullable;
 
@@ -32,9 +41,14 @@ import org.killbill.billing.payment.plugin.api.HostedPaymentPageFormDescriptor;
 import org.killbill.billing.payment.plugin.api.PaymentMethodInfoPlugin;
 import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
 import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
 import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
 import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.killbill.billing.plugin.moneris.dao.MonerisJournal;
+import org.killbill.billing.plugin.moneris.dao.MonerisJournalEntry;
+import org.killbill.billing.plugin.moneris.dao.MonerisVaultedCard;
 import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.CallOrigin;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.killbill.billing.util.entity.Pagination;
 import org.osgi.service.log.LogService;
@@ -42,7 +56,6 @@ import org.osgi.service.log.LogService;
 import JavaAPI.AvsInfo;
 import JavaAPI.Completion;
 import JavaAPI.CvdInfo;
-import JavaAPI.HttpsPostRequest;
 import JavaAPI.IndependentRefund;
 import JavaAPI.PreAuth;
 import JavaAPI.Purchase;
@@ -50,33 +63,75 @@ import JavaAPI.PurchaseCorrection;
 import JavaAPI.ReAuth;
 import JavaAPI.Receipt;
 import JavaAPI.Refund;
+import JavaAPI.ResAddCC;
+import JavaAPI.ResPreauthCC;
+import JavaAPI.ResPurchaseCC;
 import JavaAPI.Transaction;
 
 /**
- * Note: this assumes automatic close is enabled. Otherwise, you will need to close the
- * batch manually every day.
- * TODO: make this a configuration option and use the notification queue to schedule closes
+ * Note: unless org.killbill.billing.plugin.moneris.batchClose.ecrNumbers is configured (see MonerisBatchCloser),
+ * this assumes automatic close is enabled. Otherwise, you will need to close the batch manually every day.
  * <p/>
  * TODO CustInfo fields are currently not used. Should we populate some of these?
  */
 public class MonerisPaymentPluginApi implements PaymentPluginApi {
 
-    private final String host;
-    private final String storeId;
-    private final String apiToken;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String RES_ADD_CC_OPERATION = "RES_ADD_CC";
+    // Moneris trans_type of Purchase (and ResPurchaseCC) receipts
+    private static final String PURCHASE_TRANS_TYPE = "00";
+
+    private final MonerisGatewayRouter monerisGatewayRouter;
+    private final MonerisRateLimits monerisRateLimits;
+    // Optional fair sharing of the gateway capacity between tenants (null means unbounded)
+    private final MonerisFairScheduler monerisFairScheduler;
+    private final MonerisValidator monerisValidator;
     private final MonerisDao monerisDao;
+    // Optional write-ahead journal for receipts (null means write-through to the database)
+    private final MonerisJournal monerisJournal;
+    private final MonerisIdempotencyCache monerisIdempotencyCache;
+    private final MonerisPaymentInfoCache monerisPaymentInfoCache;
+    private final MonerisVaultCache monerisVaultCache;
+    // Whether new cards are added to the Moneris Vault
+    private final boolean vaultEnabled;
+    // Whether authorizations are sent as purchases by default (see MonerisProperties#getAutoCapture)
+    private final boolean autoCapture;
+    // Optional store-and-forward of Vault charges while Moneris is unreachable (null means disabled)
+    private final MonerisOfflineQueue monerisOfflineQueue;
+    private final MonerisMetrics monerisMetrics;
     private final LogService logService;
 
-    public MonerisPaymentPluginApi(final String host, final String storeId, final String apiToken, final MonerisDao monerisDao, final LogService logService) {
-        this.host = host;
-        this.storeId = storeId;
-        this.apiToken = apiToken;
+    public MonerisPaymentPluginApi(final MonerisGatewayRouter monerisGatewayRouter, final MonerisRateLimits monerisRateLimits, @Nullable final MonerisFairScheduler monerisFairScheduler,
+                                   final MonerisValidator monerisValidator, final MonerisDao monerisDao, @Nullable final MonerisJournal monerisJournal,
+                                   final MonerisIdempotencyCache monerisIdempotencyCache, final MonerisPaymentInfoCache monerisPaymentInfoCache, final MonerisVaultCache monerisVaultCache, final boolean vaultEnabled,
+                                   final boolean autoCapture, @Nullable final MonerisOfflineQueue monerisOfflineQueue, final MonerisMetrics monerisMetrics, final LogService logService) {
+        this.monerisGatewayRouter = monerisGatewayRouter;
+        this.monerisRateLimits = monerisRateLimits;
+        this.monerisFairScheduler = monerisFairScheduler;
+        this.monerisValidator = monerisValidator;
         this.monerisDao = monerisDao;
+        this.monerisJournal = monerisJournal;
+        this.monerisIdempotencyCache = monerisIdempotencyCache;
+        this.monerisPaymentInfoCache = monerisPaymentInfoCache;
+        this.monerisVaultCache = monerisVaultCache;
+        this.vaultEnabled = vaultEnabled;
+        this.autoCapture = autoCapture;
+        this.monerisOfflineQueue = monerisOfflineQueue;
+        this.monerisMetrics = monerisMetrics;
         this.logService = logService;
     }
 
     @Override
     public PaymentTransactionInfoPlugin authorizePayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+        return execute(TransactionType.AUTHORIZE, kbPaymentId, kbTransactionId, amount, currency, context, new Callable<PaymentTransactionInfoPlugin>() {
+            @Override
+            public PaymentTransactionInfoPlugin call() throws Exception {
+                return doAuthorizePayment(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, properties, context);
+            }
+        });
+    }
+
+    private PaymentTransactionInfoPlugin doAuthorizePayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
         final MonerisProperties monerisProperties = new MonerisProperties(properties);
         // Merchant defined unique transaction identifier - must be unique for every Purchase, PreAuth and Independent Refund attempt
         final String orderId = monerisSafeUUID(kbTransactionId);
@@ -91,11 +146,40 @@ public class MonerisPaymentPluginApi implements PaymentPluginApi {
         final CvdInfo cvdInfo = monerisProperties.getCvdInfo();
 
         // Is it pre-auth or re-auth?
-        final PaymentTransactionInfoPlugin origTransaction = findOrigTransaction(kbPaymentId, TransactionType.AUTHORIZE, context);
+        final PaymentTransactionInfoPlugin origTransaction = findOrigTransaction(TransactionType.AUTHORIZE, kbPaymentId, TransactionType.AUTHORIZE, context);
 
+        final MonerisVaultedCard vaultedCard = origTransaction == null ? findVaultedCard(kbPaymentMethodId, monerisProperties, context) : null;
+        // Auth and capture in one round trip: a purchase, the capture will only be recorded (see doCapturePayment)
+        final boolean isAutoCapture = origTransaction == null && (monerisProperties.getAutoCapture() == null ? autoCapture : monerisProperties.getAutoCapture());
         final Transaction transaction;
-        if (origTransaction == null) {
+        if (isAutoCapture && vaultedCard != null) {
+            monerisValidator.validateVaultedCard(amount, monerisProperties);
+            final ResPurchaseCC resPurchaseCC = new ResPurchaseCC(vaultedCard.getDataKey(), orderId, custId, monerisAmount, monerisProperties.getCrypt());
+            resPurchaseCC.setDynamicDescriptor(dynamicDescriptor);
+            resPurchaseCC.setAvsInfo(avsInfo);
+            resPurchaseCC.setCvdInfo(cvdInfo);
+
+            transaction = resPurchaseCC;
+        } else if (isAutoCapture) {
+            monerisValidator.validateCard(amount, monerisProperties);
+            final Purchase purchase = new Purchase(orderId, custId, monerisAmount, monerisProperties.getPan(), monerisProperties.getExpDate(), monerisProperties.getCrypt());
+            purchase.setDynamicDescriptor(dynamicDescriptor);
+            purchase.setAvsInfo(avsInfo);
+            purchase.setCvdInfo(cvdInfo);
+
+            transaction = purchase;
+        } else if (origTransaction == null && vaultedCard != null) {
+            // Pre-auth against the card in the Vault
+            monerisValidator.validateVaultedCard(amount, monerisProperties);
+            final ResPreauthCC resPreauthCC = new ResPreauthCC(vaultedCard.getDataKey(), orderId, custId, monerisAmount, monerisProperties.getCrypt());
+            resPreauthCC.setDynamicDescriptor(dynamicDescriptor);
+            resPreauthCC.setAvsInfo(avsInfo);
+            resPreauthCC.setCvdInfo(cvdInfo);
+
+            transaction = resPreauthCC;
+        } else if (origTransaction == null) {
             // Pre-auth
+            monerisValidator.validateCard(amount, monerisProperties);
             final PreAuth preAuth = new PreAuth(orderId, custId, monerisAmount, monerisProperties.getPan(), monerisProperties.getExpDate(), monerisProperties.getCrypt());
             preAuth.setDynamicDescriptor(dynamicDescriptor);
             preAuth.setAvsInfo(avsInfo);
@@ -104,6 +188,7 @@ public class MonerisPaymentPluginApi implements PaymentPluginApi {
             transaction = preAuth;
         } else {
             // Re-auth
+            monerisValidator.validateFollowOn(amount, monerisProperties);
             final String origOrderId = findOrigOrderId(origTransaction);
             final String txnNumber = findOrigTxnNumber(origTransaction);
             final ReAuth reAuth = new ReAuth(orderId, custId, monerisAmount, origOrderId, txnNumber, monerisProperties.getCrypt());
@@ -114,42 +199,96 @@ public class MonerisPaymentPluginApi implements PaymentPluginApi {
             transaction = reAuth;
         }
 
-        final HttpsPostRequest request = new HttpsPostRequest(host, storeId, apiToken, transaction);
-        final Receipt receipt = request.getReceipt();
+        // A re-auth goes to the store of the original authorization (e.g. the Vault store of the card)
+        final MonerisGateway monerisGateway = route(monerisProperties.getStore(), vaultedCard, origTransaction, currency, context);
+        if (vaultedCard != null && !isAutoCapture && monerisOfflineQueue != null && monerisOfflineQueue.accepts(monerisGateway, amount, monerisProperties, context)) {
+            monerisPaymentInfoCache.invalidate(kbPaymentId);
+            return monerisOfflineQueue.queue(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, TransactionType.AUTHORIZE, monerisGateway, monerisProperties, dynamicDescriptor, context);
+        }
+        final Receipt receipt = submit(monerisGateway, context, (isAutoCapture ? TransactionType.PURCHASE : TransactionType.AUTHORIZE).toString(), transaction);
 
-        final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, currency, receipt);
-        monerisDao.createTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, TransactionType.AUTHORIZE, monerisPaymentTransactionInfoPlugin, context);
+        final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, TransactionType.AUTHORIZE, currency, monerisGateway.getName(), receipt);
+        recordTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, TransactionType.AUTHORIZE, monerisPaymentTransactionInfoPlugin, context);
 
         return monerisPaymentTransactionInfoPlugin;
     }
 
     @Override
     public PaymentTransactionInfoPlugin capturePayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+        return execute(TransactionType.CAPTURE, kbPaymentId, kbTransactionId, amount, currency, context, new Callable<PaymentTransactionInfoPlugin>() {
+            @Override
+            public PaymentTransactionInfoPlugin call() throws Exception {
+                return doCapturePayment(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, properties, context);
+            }
+        });
+    }
+
+    private PaymentTransactionInfoPlugin doCapturePayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
         final MonerisProperties monerisProperties = new MonerisProperties(properties);
-        // For Refunds, Completions and Voids the order_id must reference the original transaction
-        final PaymentTransactionInfoPlugin origTransaction = findOrigTransaction(kbPaymentId, TransactionType.AUTHORIZE, context);
-        final String orderId = findOrigOrderId(origTransaction);
-        final String txnNumber = findOrigTxnNumber(origTransaction);
-        final String monerisAmount = toMonerisAmount(amount);
-        // Merchant defined description sent on a per-transaction basis that will appear on the credit card statement.
-        final String dynamicDescriptor = monerisProperties.getDynamicDescriptor(monerisSafeUUID(kbPaymentId));
+        monerisValidator.validateFollowOn(amount, monerisProperties);
+        final PaymentTransactionInfoPlugin origTransaction = findOrigTransaction(TransactionType.CAPTURE, kbPaymentId, TransactionType.AUTHORIZE, context);
+        if (isAutoCaptured(origTransaction)) {
+            return recordAutoCapture(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, (MonerisPaymentTransactionInfoPlugin) origTransaction, monerisProperties, context);
+        }
+        final Completion completion = buildCompletion(kbPaymentId, origTransaction, amount, monerisProperties);
 
-        // Build the completion object
-        final Completion completion = new Completion(orderId, monerisAmount, txnNumber, monerisProperties.getCrypt());
-        completion.setDynamicDescriptor(dynamicDescriptor);
+        final MonerisGateway monerisGateway = route(monerisProperties.getStore(), null, origTransaction, currency, context);
+        final Receipt receipt = submit(monerisGateway, context, TransactionType.CAPTURE.toString(), completion);
 
-        final HttpsPostRequest request = new HttpsPostRequest(host, storeId, apiToken, completion);
-        final Receipt receipt = request.getReceipt();
+        final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, TransactionType.CAPTURE, currency, monerisGateway.getName(), receipt);
+        recordTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, TransactionType.CAPTURE, monerisPaymentTransactionInfoPlugin, context);
 
-        final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, currency, receipt);
-        monerisDao.createTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, TransactionType.CAPTURE, monerisPaymentTransactionInfoPlugin, context);
+        return monerisPaymentTransactionInfoPlugin;
+    }
+
+    /**
+     * The authorization went through as a purchase: the capture shares its receipt. Nothing to send for a full capture,
+     * but the full amount has been charged: for a partial one, the difference is refunded first (see getAutoCaptureRefundId).
+     */
+    private PaymentTransactionInfoPlugin recordAutoCapture(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency,
+                                                           final MonerisPaymentTransactionInfoPlugin authorization, final MonerisProperties monerisProperties, final CallContext context) {
+        final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin = buildAutoCapture(authorization, kbTransactionId, amount);
+        final BigDecimal refundAmount = getAutoCaptureRefundAmount(authorization, amount);
+        if (refundAmount.signum() > 0) {
+            final UUID kbRefundId = getAutoCaptureRefundId(kbTransactionId);
+            // Retry of the same capture (e.g. by the Janitor): the difference was refunded already, or is being resolved
+            PaymentTransactionInfoPlugin refund = getTransaction(kbRefundId, context.getTenantId());
+            if (refund == null) {
+                final MonerisGateway monerisGateway = route(monerisProperties.getStore(), null, authorization, currency, context);
+                final Receipt receipt = submit(monerisGateway, context, TransactionType.REFUND.toString(), buildRefund(kbPaymentId, authorization, refundAmount, monerisProperties));
+                final MonerisPaymentTransactionInfoPlugin monerisRefund = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbRefundId, TransactionType.REFUND, currency, monerisGateway.getName(), receipt);
+                recordTransaction(kbAccountId, kbPaymentId, kbRefundId, kbPaymentMethodId, refundAmount, currency, TransactionType.REFUND, monerisRefund, context);
+                refund = monerisRefund;
+            }
+            if (refund.getStatus() != PaymentPluginStatus.PROCESSED) {
+                // The capture isn't recorded: the purchase still stands in full
+                logService.log(LogService.LOG_WARNING, "Unable to refund " + refundAmount + " of auto-captured payment " + kbPaymentId + " for partial capture " + kbTransactionId + ": " + refund.getGatewayError());
+                return refund instanceof MonerisPaymentTransactionInfoPlugin ? ((MonerisPaymentTransactionInfoPlugin) refund).copyFor(kbTransactionId, TransactionType.CAPTURE) : refund;
+            }
+        }
+        recordTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, TransactionType.CAPTURE, monerisPaymentTransactionInfoPlugin, context);
 
         return monerisPaymentTransactionInfoPlugin;
     }
 
     @Override
     public PaymentTransactionInfoPlugin purchasePayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+        return execute(TransactionType.PURCHASE, kbPaymentId, kbTransactionId, amount, currency, context, new Callable<PaymentTransactionInfoPlugin>() {
+            @Override
+            public PaymentTransactionInfoPlugin call() throws Exception {
+                return doPurchasePayment(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, properties, context);
+            }
+        });
+    }
+
+    private PaymentTransactionInfoPlugin doPurchasePayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
         final MonerisProperties monerisProperties = new MonerisProperties(properties);
+        final MonerisVaultedCard vaultedCard = findVaultedCard(kbPaymentMethodId, monerisProperties, context);
+        if (vaultedCard == null) {
+            monerisValidator.validateCard(amount, monerisProperties);
+        } else {
+            monerisValidator.validateVaultedCard(amount, monerisProperties);
+        }
         // Merchant defined unique transaction identifier - must be unique for every Purchase, PreAuth and Independent Refund attempt
         final String orderId = monerisSafeUUID(kbTransactionId);
         final String monerisAmount = toMonerisAmount(amount);
@@ -163,46 +302,74 @@ public class MonerisPaymentPluginApi implements PaymentPluginApi {
         final CvdInfo cvdInfo = monerisProperties.getCvdInfo();
 
         // Build the purchase object
-        final Purchase preAuth = new Purchase(orderId, custId, monerisAmount, monerisProperties.getPan(), monerisProperties.getExpDate(), monerisProperties.getCrypt());
-        preAuth.setDynamicDescriptor(dynamicDescriptor);
-        preAuth.setAvsInfo(avsInfo);
-        preAuth.setCvdInfo(cvdInfo);
+        final Transaction transaction;
+        if (vaultedCard == null) {
+            final Purchase preAuth = new Purchase(orderId, custId, monerisAmount, monerisProperties.getPan(), monerisProperties.getExpDate(), monerisProperties.getCrypt());
+            preAuth.setDynamicDescriptor(dynamicDescriptor);
+            preAuth.setAvsInfo(avsInfo);
+            preAuth.setCvdInfo(cvdInfo);
 
-        final HttpsPostRequest request = new HttpsPostRequest(host, storeId, apiToken, preAuth);
-        final Receipt receipt = request.getReceipt();
+            transaction = preAuth;
+        } else {
+            // Against the card in the Vault
+            final ResPurchaseCC resPurchaseCC = new ResPurchaseCC(vaultedCard.getDataKey(), orderId, custId, monerisAmount, monerisProperties.getCrypt());
+            resPurchaseCC.setDynamicDescriptor(dynamicDescriptor);
+            resPurchaseCC.setAvsInfo(avsInfo);
+            resPurchaseCC.setCvdInfo(cvdInfo);
+
+            transaction = resPurchaseCC;
+        }
+        final MonerisGateway monerisGateway = route(monerisProperties.getStore(), vaultedCard, null, currency, context);
+        if (vaultedCard != null && monerisOfflineQueue != null && monerisOfflineQueue.accepts(monerisGateway, amount, monerisProperties, context)) {
+            monerisPaymentInfoCache.invalidate(kbPaymentId);
+            return monerisOfflineQueue.queue(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, TransactionType.PURCHASE, monerisGateway, monerisProperties, dynamicDescriptor, context);
+        }
+        final Receipt receipt = submit(monerisGateway, context, TransactionType.PURCHASE.toString(), transaction);
 
-        final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, currency, receipt);
-        monerisDao.createTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, TransactionType.PURCHASE, monerisPaymentTransactionInfoPlugin, context);
+        final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, TransactionType.PURCHASE, currency, monerisGateway.getName(), receipt);
+        recordTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, TransactionType.PURCHASE, monerisPaymentTransactionInfoPlugin, context);
 
         return monerisPaymentTransactionInfoPlugin;
     }
 
     @Override
     public PaymentTransactionInfoPlugin voidPayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-        final MonerisProperties monerisProperties = new MonerisProperties(properties);
-        // For Refunds, Completions and Voids the order_id must reference the original transaction
-        final PaymentTransactionInfoPlugin origTransaction = findOrigTransaction(kbPaymentId, TransactionType.AUTHORIZE, context);
-        final String orderId = findOrigOrderId(origTransaction);
-        final String txnNumber = findOrigTxnNumber(origTransaction);
-        // Merchant defined description sent on a per-transaction basis that will appear on the credit card statement.
-        final String dynamicDescriptor = monerisProperties.getDynamicDescriptor(monerisSafeUUID(kbPaymentId));
+        return execute(TransactionType.VOID, kbPaymentId, kbTransactionId, null, null, context, new Callable<PaymentTransactionInfoPlugin>() {
+            @Override
+            public PaymentTransactionInfoPlugin call() throws Exception {
+                return doVoidPayment(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, properties, context);
+            }
+        });
+    }
 
-        // Build the void object
-        final PurchaseCorrection purchaseCorrection = new PurchaseCorrection(orderId, txnNumber, monerisProperties.getCrypt());
-        purchaseCorrection.setDynamicDescriptor(dynamicDescriptor);
+    private PaymentTransactionInfoPlugin doVoidPayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+        final MonerisProperties monerisProperties = new MonerisProperties(properties);
+        monerisValidator.validateVoid(monerisProperties);
+        final PaymentTransactionInfoPlugin origTransaction = findOrigTransaction(TransactionType.VOID, kbPaymentId, TransactionType.AUTHORIZE, context);
+        final PurchaseCorrection purchaseCorrection = buildPurchaseCorrection(kbPaymentId, origTransaction, monerisProperties);
 
-        final HttpsPostRequest request = new HttpsPostRequest(host, storeId, apiToken, purchaseCorrection);
-        final Receipt receipt = request.getReceipt();
+        final MonerisGateway monerisGateway = route(monerisProperties.getStore(), null, origTransaction, null, context);
+        final Receipt receipt = submit(monerisGateway, context, TransactionType.VOID.toString(), purchaseCorrection);
 
-        final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, null, receipt);
-        monerisDao.createTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, null, null, TransactionType.VOID, monerisPaymentTransactionInfoPlugin, context);
+        final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, TransactionType.VOID, null, monerisGateway.getName(), receipt);
+        recordTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, null, null, TransactionType.VOID, monerisPaymentTransactionInfoPlugin, context);
 
         return monerisPaymentTransactionInfoPlugin;
     }
 
     @Override
     public PaymentTransactionInfoPlugin creditPayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+        return execute(TransactionType.CREDIT, kbPaymentId, kbTransactionId, amount, currency, context, new Callable<PaymentTransactionInfoPlugin>() {
+            @Override
+            public PaymentTransactionInfoPlugin call() throws Exception {
+                return doCreditPayment(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, properties, context);
+            }
+        });
+    }
+
+    private PaymentTransactionInfoPlugin doCreditPayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
         final MonerisProperties monerisProperties = new MonerisProperties(properties);
+        monerisValidator.validateCard(amount, monerisProperties);
         // Merchant defined unique transaction identifier - must be unique for every Purchase, PreAuth and Independent Refund attempt
         final String orderId = monerisSafeUUID(kbTransactionId);
         final String monerisAmount = toMonerisAmount(amount);
@@ -217,46 +384,56 @@ public class MonerisPaymentPluginApi implements PaymentPluginApi {
         final IndependentRefund independentRefund = new IndependentRefund(orderId, custId, monerisAmount, monerisProperties.getPan(), monerisProperties.getExpDate(), monerisProperties.getCrypt());
         independentRefund.setDynamicDescriptor(dynamicDescriptor);
 
-        final HttpsPostRequest request = new HttpsPostRequest(host, storeId, apiToken, independentRefund);
-        final Receipt receipt = request.getReceipt();
+        final MonerisGateway monerisGateway = route(monerisProperties.getStore(), null, null, currency, context);
+        final Receipt receipt = submit(monerisGateway, context, TransactionType.CREDIT.toString(), independentRefund);
 
-        final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, currency, receipt);
-        monerisDao.createTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, TransactionType.CREDIT, monerisPaymentTransactionInfoPlugin, context);
+        final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, TransactionType.CREDIT, currency, monerisGateway.getName(), receipt);
+        recordTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, TransactionType.CREDIT, monerisPaymentTransactionInfoPlugin, context);
 
         return monerisPaymentTransactionInfoPlugin;
     }
 
     @Override
     public PaymentTransactionInfoPlugin refundPayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-        final MonerisProperties monerisProperties = new MonerisProperties(properties);
-        // For Refunds, Completions and Voids the order_id must reference the original transaction
-        PaymentTransactionInfoPlugin origTransaction = findOrigTransaction(kbPaymentId, TransactionType.PURCHASE, context);
-        if (origTransaction == null) {
-            // Maybe we are refunding a capture?
-            origTransaction = findOrigTransaction(kbPaymentId, TransactionType.CAPTURE, context);
-        }
-        final String orderId = findOrigOrderId(origTransaction);
-        final String txnNumber = findOrigTxnNumber(origTransaction);
-        final String monerisAmount = toMonerisAmount(amount);
-        // Merchant defined description sent on a per-transaction basis that will appear on the credit card statement.
-        final String dynamicDescriptor = monerisProperties.getDynamicDescriptor(monerisSafeUUID(kbPaymentId));
+        return execute(TransactionType.REFUND, kbPaymentId, kbTransactionId, amount, currency, context, new Callable<PaymentTransactionInfoPlugin>() {
+            @Override
+            public PaymentTransactionInfoPlugin call() throws Exception {
+                return doRefundPayment(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, properties, context);
+            }
+        });
+    }
 
-        // Build the refund object
-        final Refund refund = new Refund(orderId, monerisAmount, txnNumber, monerisProperties.getCrypt());
-        refund.setDynamicDescriptor(dynamicDescriptor);
+    private PaymentTransactionInfoPlugin doRefundPayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+        final MonerisProperties monerisProperties = new MonerisProperties(properties);
+        monerisValidator.validateFollowOn(amount, monerisProperties);
+        final PaymentTransactionInfoPlugin origTransaction = findOrigRefundedTransaction(getTransactions(TransactionType.REFUND, kbPaymentId, context.getTenantId()));
+        final Refund refund = buildRefund(kbPaymentId, origTransaction, amount, monerisProperties);
 
-        final HttpsPostRequest request = new HttpsPostRequest(host, storeId, apiToken, refund);
-        final Receipt receipt = request.getReceipt();
+        final MonerisGateway monerisGateway = route(monerisProperties.getStore(), null, origTransaction, currency, context);
+        final Receipt receipt = submit(monerisGateway, context, TransactionType.REFUND.toString(), refund);
 
-        final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, currency, receipt);
-        monerisDao.createTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, TransactionType.REFUND, monerisPaymentTransactionInfoPlugin, context);
+        final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, TransactionType.REFUND, currency, monerisGateway.getName(), receipt);
+        recordTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, TransactionType.REFUND, monerisPaymentTransactionInfoPlugin, context);
 
         return monerisPaymentTransactionInfoPlugin;
     }
 
     @Override
     public List<PaymentTransactionInfoPlugin> getPaymentInfo(final UUID kbAccountId, final UUID kbPaymentId, final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
-        return monerisDao.getTransactions(kbPaymentId, context.getTenantId());
+        final List<PaymentTransactionInfoPlugin> prefetchedTransactions = monerisPaymentInfoCache.take(kbPaymentId, context.getTenantId());
+        return prefetchedTransactions != null ? prefetchedTransactions : getTransactions(kbPaymentId, context.getTenantId());
+    }
+
+    /**
+     * Bulk version of getPaymentInfo, for callers about to look at many payments (e.g. reports): the histories are fetched in
+     * a few queries, and the settled ones are kept around for the getPaymentInfo calls which follow (see MonerisPaymentInfoCache).
+     *
+     * @return the transactions of each payment (empty if unknown)
+     */
+    public Map<UUID, List<PaymentTransactionInfoPlugin>> getPaymentInfo(final Collection<UUID> kbPaymentIds, final TenantContext context) {
+        final Map<UUID, List<PaymentTransactionInfoPlugin>> transactionsByPaymentId = getTransactions(kbPaymentIds, context.getTenantId());
+        monerisPaymentInfoCache.putAll(transactionsByPaymentId, context.getTenantId());
+        return transactionsByPaymentId;
     }
 
     @Override
@@ -266,12 +443,55 @@ public class MonerisPaymentPluginApi implements PaymentPluginApi {
 
     @Override
     public void addPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final PaymentMethodPlugin paymentMethodProps, final boolean setDefault, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-        monerisDao.createPaymentMethod(kbAccountId, kbPaymentMethodId, paymentMethodProps, context);
+        // Card details are either on the payment method or passed as plugin properties
+        final List<PluginProperty> allProperties = new LinkedList<PluginProperty>();
+        if (paymentMethodProps.getProperties() != null) {
+            allProperties.addAll(paymentMethodProps.getProperties());
+        }
+        for (final PluginProperty property : properties) {
+            allProperties.add(property);
+        }
+        final MonerisProperties monerisProperties = new MonerisProperties(allProperties);
+
+        final MonerisVaultedCard vaultedCard = vaultEnabled && monerisProperties.getPan() != null ? addToVault(kbAccountId, monerisProperties, context) : null;
+        // The data key identifies the card at Moneris
+        final String externalPaymentMethodId = paymentMethodProps.getExternalPaymentMethodId() == null && vaultedCard != null ? vaultedCard.getDataKey() : paymentMethodProps.getExternalPaymentMethodId();
+        monerisDao.createPaymentMethod(kbAccountId, kbPaymentMethodId, externalPaymentMethodId, vaultedCard, context);
+        if (vaultedCard != null) {
+            monerisVaultCache.put(kbPaymentMethodId, context.getTenantId(), vaultedCard);
+        }
+    }
+
+    private MonerisVaultedCard addToVault(final UUID kbAccountId, final MonerisProperties monerisProperties, final CallContext context) throws PaymentPluginApiException {
+        try {
+            monerisValidator.validateCardDetails(monerisProperties);
+        } catch (final MonerisValidationException e) {
+            throw new PaymentPluginApiException("Invalid card", e);
+        }
+
+        final ResAddCC resAddCC = new ResAddCC(monerisSafeUUID(kbAccountId), monerisProperties.getPan(), monerisProperties.getExpDate(), monerisProperties.getCrypt());
+        resAddCC.setAvsInfo(monerisProperties.getAvsInfo());
+
+        final MonerisGateway monerisGateway;
+        final Receipt receipt;
+        try {
+            monerisGateway = route(monerisProperties.getStore(), null, null, null, context);
+            receipt = submit(monerisGateway, context, RES_ADD_CC_OPERATION, resAddCC);
+        } catch (final MonerisThrottledException e) {
+            throw new PaymentPluginApiException("Unable to add the card to the Moneris Vault", e);
+        } catch (final MonerisValidationException e) {
+            throw new PaymentPluginApiException("Unable to add the card to the Moneris Vault", e);
+        }
+        if (!"true".equalsIgnoreCase(receipt.getResSuccess()) || receipt.getDataKey() == null) {
+            throw new PaymentPluginApiException("Unable to add the card to the Moneris Vault", receipt.getMessage());
+        }
+        return new MonerisVaultedCard(receipt.getDataKey(), monerisGateway.getName());
     }
 
     @Override
     public void deletePaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
         monerisDao.deletePaymentMethod(kbPaymentMethodId, context);
+        monerisVaultCache.invalidate(kbPaymentMethodId);
     }
 
     @Override
@@ -309,7 +529,152 @@ public class MonerisPaymentPluginApi implements PaymentPluginApi {
         throw new UnsupportedOperationException("Moneris notifications are not (yet) supported");
     }
 
-    private String monerisSafeUUID(final UUID uuid) {
+    private PaymentTransactionInfoPlugin execute(final TransactionType transactionType, final UUID kbPaymentId, final UUID kbTransactionId, @Nullable final BigDecimal amount,
+                                                 @Nullable final Currency currency, final CallContext context, final Callable<PaymentTransactionInfoPlugin> call) throws PaymentPluginApiException {
+        monerisMetrics.incrementInFlight(transactionType.toString(), MonerisMetrics.Phase.TOTAL);
+        final long startNanos = System.nanoTime();
+        try {
+            return monerisIdempotencyCache.execute(kbTransactionId, context.getTenantId(), call);
+        } catch (final MonerisThrottledException e) {
+            // Not sent (nor cached): Kill Bill can retry it
+            monerisMetrics.recordError(transactionType.toString());
+            return new MonerisUnsentTransactionInfoPlugin(kbPaymentId, kbTransactionId, transactionType, amount, currency, PaymentPluginStatus.CANCELED, null, e.getMessage());
+        } catch (final MonerisValidationException e) {
+            // Not sent (nor cached) either, but Moneris would have rejected it
+            return new MonerisUnsentTransactionInfoPlugin(kbPaymentId, kbTransactionId, transactionType, amount, currency, PaymentPluginStatus.ERROR, e.getCode(), e.getMessage());
+        } finally {
+            monerisMetrics.recordLatency(transactionType.toString(), MonerisMetrics.Phase.TOTAL, System.nanoTime() - startNanos);
+            monerisMetrics.decrementInFlight(transactionType.toString(), MonerisMetrics.Phase.TOTAL);
+        }
+    }
+
+    /**
+     * @param store           name of the Moneris store to use (see MonerisGatewayRouter), null to route on the tenant and currency
+     * @param vaultedCard     for charges of a card in the Vault, the card: they go to its store
+     * @param origTransaction for follow-on transactions, the original transaction: they go to its store, whatever the current routes
+     * @throws MonerisThrottledException  if the tenant is over its rate limit
+     * @throws MonerisValidationException if the store is unknown
+     */
+    private MonerisGateway route(@Nullable final String store, @Nullable final MonerisVaultedCard vaultedCard, @Nullable final PaymentTransactionInfoPlugin origTransaction,
+                                 @Nullable final Currency currency, final TenantContext context) {
+        final String recordedStore = findOrigStore(origTransaction, vaultedCard == null ? null : vaultedCard.getStore());
+        final Currency origCurrency = origTransaction == null || origTransaction.getCurrency() == null ? currency : origTransaction.getCurrency();
+        final MonerisGateway monerisGateway = recordedStore == null ?
+                                              monerisGatewayRouter.route(store, context.getTenantId(), origCurrency) :
+                                              monerisGatewayRouter.routeToRecordedStore(recordedStore, context.getTenantId(), origCurrency);
+        monerisRateLimits.acquire(context.getTenantId());
+        return monerisGateway;
+    }
+
+    /**
+     * Interactive calls (EXTERNAL call origin, e.g. a checkout) go ahead of batch work (e.g. the recurring run) for a gateway slot.
+     *
+     * @throws MonerisThrottledException if no gateway slot was available in time
+     */
+    private Receipt submit(final MonerisGateway monerisGateway, final CallContext context, final String operation, final Transaction transaction) {
+        if (monerisFairScheduler == null) {
+            return monerisGateway.submit(operation, transaction);
+        }
+
+        monerisFairScheduler.acquire(context.getTenantId(), context.getCallOrigin() == CallOrigin.EXTERNAL);
+        try {
+            return monerisGateway.submit(operation, transaction);
+        } finally {
+            monerisFairScheduler.release();
+        }
+    }
+
+    /**
+     * @return the card of the payment method in the Moneris Vault, unless card details were passed
+     */
+    private MonerisVaultedCard findVaultedCard(final UUID kbPaymentMethodId, final MonerisProperties monerisProperties, final TenantContext context) {
+        return monerisProperties.getPan() != null ? null : monerisVaultCache.get(kbPaymentMethodId, context.getTenantId());
+    }
+
+    private void recordTransaction(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, @Nullable final BigDecimal amount, @Nullable final Currency currency, final TransactionType transactionType, final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin, final CallContext context) {
+        monerisPaymentInfoCache.invalidate(kbPaymentId);
+        final long startNanos = System.nanoTime();
+        try {
+            doRecordTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, transactionType, monerisPaymentTransactionInfoPlugin, context);
+        } finally {
+            monerisMetrics.recordLatency(transactionType.toString(), MonerisMetrics.Phase.PERSIST, System.nanoTime() - startNanos);
+        }
+    }
+
+    private void doRecordTransaction(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, @Nullable final BigDecimal amount, @Nullable final Currency currency, final TransactionType transactionType, final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin, final CallContext context) {
+        if (monerisJournal != null) {
+            final MonerisJournalEntry entry = new MonerisJournalEntry(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, transactionType, monerisPaymentTransactionInfoPlugin, context);
+            try {
+                if (monerisJournal.append(entry)) {
+                    // The journal applier will take care of the database
+                    return;
+                }
+                logService.log(LogService.LOG_WARNING, "Moneris journal is full, writing " + entry + " directly to the database");
+            } catch (final IOException e) {
+                logService.log(LogService.LOG_WARNING, "Unable to journal " + entry + ", writing it directly to the database", e);
+            }
+        }
+
+        monerisDao.createTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, transactionType, monerisPaymentTransactionInfoPlugin, context);
+    }
+
+    private PaymentTransactionInfoPlugin getTransaction(final UUID kbTransactionId, final UUID kbTenantId) {
+        if (monerisJournal != null) {
+            // Recorded but not applied yet
+            final PaymentTransactionInfoPlugin pendingTransaction = monerisJournal.getPendingTransaction(kbTransactionId, kbTenantId);
+            if (pendingTransaction != null) {
+                return pendingTransaction;
+            }
+        }
+        return monerisDao.getTransaction(kbTransactionId, kbTenantId);
+    }
+
+    private List<PaymentTransactionInfoPlugin> getTransactions(final UUID kbPaymentId, final UUID kbTenantId) {
+        if (monerisJournal == null) {
+            return monerisDao.getTransactions(kbPaymentId, kbTenantId);
+        }
+
+        // Look at the journal first: an entry applied in between will then show up in the database results
+        final List<PaymentTransactionInfoPlugin> pendingTransactions = monerisJournal.getPendingTransactions(kbPaymentId, kbTenantId);
+        final List<PaymentTransactionInfoPlugin> transactions = monerisDao.getTransactions(kbPaymentId, kbTenantId);
+        mergePendingTransactions(transactions, pendingTransactions);
+        return transactions;
+    }
+
+    private void mergePendingTransactions(final List<PaymentTransactionInfoPlugin> transactions, final List<PaymentTransactionInfoPlugin> pendingTransactions) {
+        final Set<UUID> kbTransactionIds = new HashSet<UUID>();
+        for (final PaymentTransactionInfoPlugin transaction : transactions) {
+            kbTransactionIds.add(transaction.getKbTransactionPaymentId());
+        }
+        for (final PaymentTransactionInfoPlugin pendingTransaction : pendingTransactions) {
+            if (!kbTransactionIds.contains(pendingTransaction.getKbTransactionPaymentId())) {
+                transactions.add(pendingTransaction);
+            }
+        }
+    }
+
+    /**
+     * Batch version of getTransactions.
+     */
+    Map<UUID, List<PaymentTransactionInfoPlugin>> getTransactions(final Collection<UUID> kbPaymentIds, final UUID kbTenantId) {
+        if (monerisJournal == null) {
+            return monerisDao.getTransactions(kbPaymentIds, kbTenantId);
+        }
+
+        // Look at the journal first: an entry applied in between will then show up in the database results
+        final Map<UUID, List<PaymentTransactionInfoPlugin>> pendingTransactionsByPaymentId = new HashMap<UUID, List<PaymentTransactionInfoPlugin>>();
+        for (final UUID kbPaymentId : kbPaymentIds) {
+            pendingTransactionsByPaymentId.put(kbPaymentId, monerisJournal.getPendingTransactions(kbPaymentId, kbTenantId));
+        }
+        final Map<UUID, List<PaymentTransactionInfoPlugin>> transactionsByPaymentId = monerisDao.getTransactions(kbPaymentIds, kbTenantId);
+
+        for (final UUID kbPaymentId : transactionsByPaymentId.keySet()) {
+            mergePendingTransactions(transactionsByPaymentId.get(kbPaymentId), pendingTransactionsByPaymentId.get(kbPaymentId));
+        }
+        return transactionsByPaymentId;
+    }
+
+    static String monerisSafeUUID(final UUID uuid) {
         // TODO Conflicting API documentation.
         // Are - allowed? an definition is supposed to be a-z A-Z 0-9 _ - : . @ spaces but the description of order_id is:
         // The last 10 characters of the order_id will be displayed in the “Invoice Number” field on the Merchant Direct Reports.
@@ -320,7 +685,7 @@ public class MonerisPaymentPluginApi implements PaymentPluginApi {
         return uuid.toString().replace("-", "");
     }
 
-    private String toMonerisAmount(@Nullable final BigDecimal realValueInLocalCurrency) {
+    static String toMonerisAmount(@Nullable final BigDecimal realValueInLocalCurrency) {
         if (realValueInLocalCurrency == null) {
             return null;
         } else {
@@ -330,10 +695,24 @@ public class MonerisPaymentPluginApi implements PaymentPluginApi {
         }
     }
 
-    private PaymentTransactionInfoPlugin findOrigTransaction(final UUID kbPaymentId, final TransactionType transactionType, final CallContext context) {
+    private PaymentTransactionInfoPlugin findOrigTransaction(final TransactionType operation, final UUID kbPaymentId, final TransactionType transactionType, final CallContext context) {
+        return findOrigTransaction(getTransactions(operation, kbPaymentId, context.getTenantId()), transactionType);
+    }
+
+    private List<PaymentTransactionInfoPlugin> getTransactions(final TransactionType operation, final UUID kbPaymentId, final UUID kbTenantId) {
+        final long startNanos = System.nanoTime();
+        try {
+            // Prefetched for follow-on transactions too, e.g. by MonerisBulkOperations before calling Kill Bill
+            final List<PaymentTransactionInfoPlugin> prefetchedTransactions = monerisPaymentInfoCache.take(kbPaymentId, kbTenantId);
+            return prefetchedTransactions != null ? prefetchedTransactions : getTransactions(kbPaymentId, kbTenantId);
+        } finally {
+            monerisMetrics.recordLatency(operation.toString(), MonerisMetrics.Phase.LOOKUP, System.nanoTime() - startNanos);
+        }
+    }
+
+    static PaymentTransactionInfoPlugin findOrigTransaction(final List<PaymentTransactionInfoPlugin> previousTransactionsForPayment, final TransactionType transactionType) {
         PaymentTransactionInfoPlugin origTransaction = null;
 
-        final List<PaymentTransactionInfoPlugin> previousTransactionsForPayment = monerisDao.getTransactions(kbPaymentId, context.getTenantId());
         for (final PaymentTransactionInfoPlugin paymentTransactionInfoPlugin : previousTransactionsForPayment) {
             if (transactionType.equals(paymentTransactionInfoPlugin.getTransactionType())) {
                 origTransaction = paymentTransactionInfoPlugin;
@@ -344,20 +723,131 @@ public class MonerisPaymentPluginApi implements PaymentPluginApi {
         return origTransaction;
     }
 
-    private String findOrigOrderId(final UUID kbPaymentId, final TransactionType transactionType, final CallContext context) {
-        final PaymentTransactionInfoPlugin origTransaction = findOrigTransaction(kbPaymentId, transactionType, context);
-        return findOrigOrderId(origTransaction);
+    /**
+     * @return the currency of the payment (for store routing), i.e. of its first transaction, or defaultCurrency if unknown
+     */
+    static Currency findPaymentCurrency(final List<PaymentTransactionInfoPlugin> previousTransactionsForPayment, @Nullable final Currency defaultCurrency) {
+        for (final PaymentTransactionInfoPlugin paymentTransactionInfoPlugin : previousTransactionsForPayment) {
+            if (paymentTransactionInfoPlugin.getCurrency() != null) {
+                return paymentTransactionInfoPlugin.getCurrency();
+            }
+        }
+        return defaultCurrency;
+    }
+
+    static PaymentTransactionInfoPlugin findOrigRefundedTransaction(final List<PaymentTransactionInfoPlugin> previousTransactionsForPayment) {
+        final PaymentTransactionInfoPlugin origTransaction = findOrigTransaction(previousTransactionsForPayment, TransactionType.PURCHASE);
+        if (origTransaction == null) {
+            // Maybe we are refunding a capture?
+            return findOrigTransaction(previousTransactionsForPayment, TransactionType.CAPTURE);
+        } else {
+            return origTransaction;
+        }
+    }
+
+    // For Refunds, Completions and Voids the order_id must reference the original transaction
+
+    static Completion buildCompletion(final UUID kbPaymentId, final PaymentTransactionInfoPlugin origTransaction, final BigDecimal amount, final MonerisProperties monerisProperties) {
+        final String orderId = findOrigOrderId(origTransaction);
+        final String txnNumber = findOrigTxnNumber(origTransaction);
+        final String monerisAmount = toMonerisAmount(amount);
+        // Merchant defined description sent on a per-transaction basis that will appear on the credit card statement.
+        final String dynamicDescriptor = monerisProperties.getDynamicDescriptor(monerisSafeUUID(kbPaymentId));
+
+        // Build the completion object
+        final Completion completion = new Completion(orderId, monerisAmount, txnNumber, monerisProperties.getCrypt());
+        completion.setDynamicDescriptor(dynamicDescriptor);
+        return completion;
+    }
+
+    static PurchaseCorrection buildPurchaseCorrection(final UUID kbPaymentId, final PaymentTransactionInfoPlugin origTransaction, final MonerisProperties monerisProperties) {
+        final String orderId = findOrigOrderId(origTransaction);
+        final String txnNumber = findOrigTxnNumber(origTransaction);
+        // Merchant defined description sent on a per-transaction basis that will appear on the credit card statement.
+        final String dynamicDescriptor = monerisProperties.getDynamicDescriptor(monerisSafeUUID(kbPaymentId));
+
+        // Build the void object
+        final PurchaseCorrection purchaseCorrection = new PurchaseCorrection(orderId, txnNumber, monerisProperties.getCrypt());
+        purchaseCorrection.setDynamicDescriptor(dynamicDescriptor);
+        return purchaseCorrection;
+    }
+
+    static Refund buildRefund(final UUID kbPaymentId, final PaymentTransactionInfoPlugin origTransaction, final BigDecimal amount, final MonerisProperties monerisProperties) {
+        final String orderId = findOrigOrderId(origTransaction);
+        final String txnNumber = findOrigTxnNumber(origTransaction);
+        final String monerisAmount = toMonerisAmount(amount);
+        // Merchant defined description sent on a per-transaction basis that will appear on the credit card statement.
+        final String dynamicDescriptor = monerisProperties.getDynamicDescriptor(monerisSafeUUID(kbPaymentId));
+
+        // Build the refund object
+        final Refund refund = new Refund(orderId, monerisAmount, txnNumber, monerisProperties.getCrypt());
+        refund.setDynamicDescriptor(dynamicDescriptor);
+        return refund;
     }
 
-    private String findOrigOrderId(final PaymentTransactionInfoPlugin origTransaction) {
+    static String findOrigOrderId(@Nullable final PaymentTransactionInfoPlugin origTransaction) {
         if (origTransaction == null) {
             return null;
+        } else if (isAutoCaptured(origTransaction)) {
+            // The capture of an auto-captured authorization wasn't sent: the order is the authorization's
+            return ((MonerisPaymentTransactionInfoPlugin) origTransaction).getReceiptId();
         } else {
             return monerisSafeUUID(origTransaction.getKbTransactionPaymentId());
         }
     }
 
-    private String findOrigTxnNumber(final PaymentTransactionInfoPlugin origTransaction) {
-        return ((MonerisPaymentTransactionInfoPlugin) origTransaction).getTxnNumber();
+    /**
+     * @param amount null to capture the full amount
+     * @throws MonerisValidationException if more than the amount of the purchase is captured
+     */
+    static MonerisPaymentTransactionInfoPlugin buildAutoCapture(final MonerisPaymentTransactionInfoPlugin authorization, final UUID kbTransactionId, @Nullable final BigDecimal amount) {
+        getAutoCaptureRefundAmount(authorization, amount);
+        return authorization.copyFor(kbTransactionId, TransactionType.CAPTURE);
+    }
+
+    /**
+     * @param amount null to capture the full amount
+     * @return the part of the purchase to refund for this capture, zero for a full capture
+     * @throws MonerisValidationException if more than the amount of the purchase is captured
+     */
+    static BigDecimal getAutoCaptureRefundAmount(final MonerisPaymentTransactionInfoPlugin authorization, @Nullable final BigDecimal amount) {
+        if (authorization.getAmount() == null) {
+            throw new MonerisValidationException("invalid_amount", "Unknown amount for auto-captured authorization " + authorization.getKbTransactionPaymentId());
+        } else if (amount == null) {
+            return BigDecimal.ZERO;
+        } else if (amount.signum() <= 0 || amount.compareTo(authorization.getAmount()) > 0) {
+            throw new MonerisValidationException("invalid_amount", "At most the amount of an auto-captured authorization (" + authorization.getAmount() + ") can be captured");
+        }
+        return authorization.getAmount().subtract(amount);
+    }
+
+    /**
+     * @return the id the refund of the difference is recorded under, for a partial capture of an auto-captured authorization
+     * (only known to the plugin: Kill Bill ignores it)
+     */
+    static UUID getAutoCaptureRefundId(final UUID kbCaptureId) {
+        return UUID.nameUUIDFromBytes(("auto-capture-refund-" + kbCaptureId).getBytes(UTF_8));
+    }
+
+    /**
+     * @return true if this authorization (or its capture) was sent as a Purchase (see MonerisProperties#getAutoCapture)
+     */
+    static boolean isAutoCaptured(@Nullable final PaymentTransactionInfoPlugin transaction) {
+        return transaction instanceof MonerisPaymentTransactionInfoPlugin &&
+               !TransactionType.PURCHASE.equals(transaction.getTransactionType()) &&
+               PURCHASE_TRANS_TYPE.equals(((MonerisPaymentTransactionInfoPlugin) transaction).getTransType());
+    }
+
+    /**
+     * @return the store the original transaction was sent to, or defaultStore if it wasn't recorded (single store setup, or transaction recorded before stores were)
+     */
+    static String findOrigStore(@Nullable final PaymentTransactionInfoPlugin origTransaction, @Nullable final String defaultStore) {
+        final String origStore = origTransaction instanceof MonerisPaymentTransactionInfoPlugin ? ((MonerisPaymentTransactionInfoPlugin) origTransaction).getStore() : null;
+        return origStore == null ? defaultStore : origStore;
+    }
+
+    private static String findOrigTxnNumber(final PaymentTransactionInfoPlugin origTransaction) {
+        // No receipt for unsent transactions (e.g. still queued, see MonerisOfflineQueue)
+        return origTransaction instanceof MonerisPaymentTransactionInfoPlugin ? ((MonerisPaymentTransactionInfoPlugin) origTransaction).getTxnNumber() : null;
     }
 }
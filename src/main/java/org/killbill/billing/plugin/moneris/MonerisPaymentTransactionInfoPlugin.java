@@ -37,7 +37,10 @@ public class MonerisPaymentTransactionInfoPlugin implements PaymentTransactionIn
 
     private final UUID kbPaymentId;
     private final UUID kbTransactionPaymentId;
+    private final TransactionType transactionType;
     private final Currency currency;
+    // Name of the Moneris store the transaction was sent to (see MonerisGatewayRouter), null for a single store setup
+    private final String store;
 
     private final String isVisaDebit;
     private final String statusMessage;
@@ -62,11 +65,13 @@ public class MonerisPaymentTransactionInfoPlugin implements PaymentTransactionIn
     private final String referenceNum;
     private final String receiptId;
 
-    public MonerisPaymentTransactionInfoPlugin(final UUID kbPaymentId, final UUID kbTransactionPaymentId,
-                                               @Nullable final Currency currency, final Receipt receipt) {
+    public MonerisPaymentTransactionInfoPlugin(final UUID kbPaymentId, final UUID kbTransactionPaymentId, final TransactionType transactionType,
+                                               @Nullable final Currency currency, @Nullable final String store, final Receipt receipt) {
         this(kbPaymentId,
              kbTransactionPaymentId,
+             transactionType,
              currency,
+             store,
              receipt.getIsVisaDebit(),
              receipt.getStatusMessage(),
              receipt.getStatusCode(),
@@ -91,7 +96,7 @@ public class MonerisPaymentTransactionInfoPlugin implements PaymentTransactionIn
              receipt.getReceiptId());
     }
 
-    public MonerisPaymentTransactionInfoPlugin(final UUID kbPaymentId, final UUID kbTransactionPaymentId, @Nullable final Currency currency,
+    public MonerisPaymentTransactionInfoPlugin(final UUID kbPaymentId, final UUID kbTransactionPaymentId, final TransactionType transactionType, @Nullable final Currency currency,
                                                final String isVisaDebit, final String statusMessage,
                                                final String statusCode, final String cavvResultCode, final String cvdResultCode,
                                                final String avsResultCode, final String recurSuccess, final String ticket,
@@ -100,9 +105,25 @@ public class MonerisPaymentTransactionInfoPlugin implements PaymentTransactionIn
                                                final String transType, final String transDate, final String transTime,
                                                final String authCode, final String iso, final String responseCode,
                                                final String referenceNum, final String receiptId) {
+        this(kbPaymentId, kbTransactionPaymentId, transactionType, currency, null, isVisaDebit, statusMessage, statusCode, cavvResultCode, cvdResultCode,
+             avsResultCode, recurSuccess, ticket, timedOut, txnNumber, cardType, transAmount, message, complete, transType, transDate, transTime,
+             authCode, iso, responseCode, referenceNum, receiptId);
+    }
+
+    public MonerisPaymentTransactionInfoPlugin(final UUID kbPaymentId, final UUID kbTransactionPaymentId, final TransactionType transactionType, @Nullable final Currency currency,
+                                               @Nullable final String store, final String isVisaDebit, final String statusMessage,
+                                               final String statusCode, final String cavvResultCode, final String cvdResultCode,
+                                               final String avsResultCode, final String recurSuccess, final String ticket,
+                                               final String timedOut, final String txnNumber, final String cardType,
+                                               final String transAmount, final String message, final String complete,
+                                               final String transType, final String transDate, final String transTime,
+                                               final String authCode, final String iso, final String responseCode,
+                                               final String referenceNum, final String receiptId) {
         this.kbPaymentId = kbPaymentId;
         this.kbTransactionPaymentId = kbTransactionPaymentId;
+        this.transactionType = transactionType;
         this.currency = currency;
+        this.store = store;
         this.isVisaDebit = isVisaDebit;
         this.statusMessage = statusMessage;
         this.statusCode = statusCode;
@@ -127,6 +148,28 @@ public class MonerisPaymentTransactionInfoPlugin implements PaymentTransactionIn
         this.receiptId = receiptId;
     }
 
+    /**
+     * @return the same receipt, for another transaction of the payment (e.g. the capture of an auto-captured authorization)
+     */
+    public MonerisPaymentTransactionInfoPlugin copyFor(final UUID kbTransactionPaymentId, final TransactionType transactionType) {
+        return new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionPaymentId, transactionType, currency, store,
+                                                       isVisaDebit, statusMessage, statusCode, cavvResultCode, cvdResultCode,
+                                                       avsResultCode, recurSuccess, ticket, timedOut, txnNumber, cardType,
+                                                       transAmount, message, complete, transType, transDate, transTime,
+                                                       authCode, iso, responseCode, referenceNum, receiptId);
+    }
+
+    /**
+     * @return the same receipt, sent to another store
+     */
+    public MonerisPaymentTransactionInfoPlugin withStore(@Nullable final String store) {
+        return new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionPaymentId, transactionType, currency, store,
+                                                       isVisaDebit, statusMessage, statusCode, cavvResultCode, cvdResultCode,
+                                                       avsResultCode, recurSuccess, ticket, timedOut, txnNumber, cardType,
+                                                       transAmount, message, complete, transType, transDate, transTime,
+                                                       authCode, iso, responseCode, referenceNum, receiptId);
+    }
+
     @Override
     public UUID getKbPaymentId() {
         return kbPaymentId;
@@ -139,12 +182,8 @@ public class MonerisPaymentTransactionInfoPlugin implements PaymentTransactionIn
 
     @Override
     public TransactionType getTransactionType() {
-        if (getTransType() == null) {
-            return null;
-        } else {
-            // TODO Probably wrong, need to check the actual Strings returned
-            return TransactionType.valueOf(getTransType());
-        }
+        // Note: the Moneris trans_type (see getTransType()) is a numeric code, which doesn't map to Kill Bill transaction types
+        return transactionType;
     }
 
     @Override
@@ -175,7 +214,8 @@ public class MonerisPaymentTransactionInfoPlugin implements PaymentTransactionIn
     @Override
     public PaymentPluginStatus getStatus() {
         if (getResponseCode() == null) {
-            return PaymentPluginStatus.UNDEFINED;
+            // For a status check, a StatusCode >= 50 means that the transaction was never processed by Moneris
+            return isNotFoundByStatusCheck() ? PaymentPluginStatus.CANCELED : PaymentPluginStatus.UNDEFINED;
         }
 
         final int responseCode;
@@ -196,6 +236,18 @@ public class MonerisPaymentTransactionInfoPlugin implements PaymentTransactionIn
         }
     }
 
+    private boolean isNotFoundByStatusCheck() {
+        if (getStatusCode() == null) {
+            return false;
+        }
+
+        try {
+            return Integer.parseInt(getStatusCode()) >= 50;
+        } catch (final NumberFormatException e) {
+            return false;
+        }
+    }
+
     @Override
     public String getGatewayError() {
         // The StatusMsg is populated when status_check is set to “true” in the request.
@@ -290,6 +342,13 @@ public class MonerisPaymentTransactionInfoPlugin implements PaymentTransactionIn
         return properties;
     }
 
+    /**
+     * @return the Moneris store name, where captures, voids and refunds of this transaction must go (null for a single store setup, or if unknown)
+     */
+    public String getStore() {
+        return store;
+    }
+
     public String getIsVisaDebit() {
         return isVisaDebit;
     }
@@ -383,7 +442,9 @@ public class MonerisPaymentTransactionInfoPlugin implements PaymentTransactionIn
         final StringBuilder sb = new StringBuilder("MonerisPaymentTransactionInfoPlugin{");
         sb.append("kbPaymentId=").append(kbPaymentId);
         sb.append(", kbTransactionPaymentId=").append(kbTransactionPaymentId);
+        sb.append(", transactionType=").append(transactionType);
         sb.append(", currency=").append(currency);
+        sb.append(", store='").append(store).append('\'');
         sb.append(", isVisaDebit='").append(isVisaDebit).append('\'');
         sb.append(", statusMessage='").append(statusMessage).append('\'');
         sb.append(", statusCode='").append(statusCode).append('\'');
@@ -475,6 +536,9 @@ public class MonerisPaymentTransactionInfoPlugin implements PaymentTransactionIn
         if (statusMessage != null ? !statusMessage.equals(that.statusMessage) : that.statusMessage != null) {
             return false;
         }
+        if (store != null ? !store.equals(that.store) : that.store != null) {
+            return false;
+        }
         if (ticket != null ? !ticket.equals(that.ticket) : that.ticket != null) {
             return false;
         }
@@ -493,6 +557,9 @@ public class MonerisPaymentTransactionInfoPlugin implements PaymentTransactionIn
         if (transType != null ? !transType.equals(that.transType) : that.transType != null) {
             return false;
         }
+        if (transactionType != that.transactionType) {
+            return false;
+        }
         if (txnNumber != null ? !txnNumber.equals(that.txnNumber) : that.txnNumber != null) {
             return false;
         }
@@ -504,7 +571,9 @@ public class MonerisPaymentTransactionInfoPlugin implements PaymentTransactionIn
     public int hashCode() {
         int result = kbPaymentId != null ? kbPaymentId.hashCode() : 0;
         result = 31 * result + (kbTransactionPaymentId != null ? kbTransactionPaymentId.hashCode() : 0);
+        result = 31 * result + (transactionType != null ? transactionType.hashCode() : 0);
         result = 31 * result + (currency != null ? currency.hashCode() : 0);
+        result = 31 * result + (store != null ? store.hashCode() : 0);
         result = 31 * result + (isVisaDebit != null ? isVisaDebit.hashCode() : 0);
         result = 31 * result + (statusMessage != null ? statusMessage.hashCode() : 0);
         result = 31 * result + (statusCode != null ? statusCode.hashCode() : 0);
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.killbill.billing.plugin.moneris.dao.MonerisStaleAuthorization;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.CallOrigin;
+import org.killbill.billing.util.callcontext.UserType;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillAPI;
+import org.osgi.service.log.LogService;
+
+/**
+ * Releases the customer credit held by authorizations which were never captured: once older than the window of their
+ * card type, they are voided (Purchase Correction) or re-authorized (ReAuth).
+ * <p/>
+ * Both go through the Kill Bill payment API, which calls back voidPayment or authorizePayment, so that the payment
+ * state in Kill Bill matches Moneris. In dry-run mode, stale authorizations are only logged and counted.
+ * <p/>
+ * Each attempt is recorded before it is made: an authorization which can't be swept (e.g. the void is declined) is retried
+ * with an exponential backoff, and given up on after maxAttempts, instead of being picked again on every run.
+ */
+public class MonerisPreAuthSweeper implements Runnable {
+
+    public enum Action {
+        VOID, REAUTH
+    }
+
+    private static final String USER_NAME = "MonerisPreAuthSweeper";
+
+    private final OSGIKillbillAPI killbillAPI;
+    private final MonerisDao monerisDao;
+    private final MonerisMetrics monerisMetrics;
+    private final LogService logService;
+    private final Action action;
+    // Card type to window (days)
+    private final Map<String, Integer> windowDays;
+    private final int defaultWindowDays;
+    private final int nbThreads;
+    private final MonerisRateLimiter rateLimiter;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final int retryDelaySeconds;
+    private final boolean dryRun;
+    // Follow-on transactions need a crypt type, the original one isn't stored
+    private final List<PluginProperty> properties;
+
+    private final AtomicLong nbFound = new AtomicLong();
+    private final AtomicLong nbSwept = new AtomicLong();
+    private final AtomicLong nbFailed = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService workers;
+
+    public MonerisPreAuthSweeper(final OSGIKillbillAPI killbillAPI, final MonerisDao monerisDao, final MonerisMetrics monerisMetrics, final LogService logService,
+                                 final Action action, final Map<String, Integer> windowDays, final int defaultWindowDays,
+                                 final int nbThreads, final double maxRequestsPerSecond, final int batchSize, final int maxAttempts, final int retryDelaySeconds,
+                                 final boolean dryRun, final String crypt) {
+        this.killbillAPI = killbillAPI;
+        this.monerisDao = monerisDao;
+        this.monerisMetrics = monerisMetrics;
+        this.logService = logService;
+        this.action = action;
+        this.windowDays = new HashMap<String, Integer>(windowDays);
+        this.defaultWindowDays = defaultWindowDays;
+        this.nbThreads = nbThreads;
+        this.rateLimiter = new MonerisRateLimiter(maxRequestsPerSecond);
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.retryDelaySeconds = retryDelaySeconds;
+        this.dryRun = dryRun;
+        this.properties = Collections.singletonList(new PluginProperty("crypt", crypt, false));
+    }
+
+    public synchronized void start(final int intervalSeconds) {
+        monerisMetrics.registerGauge("moneris_preauth_sweep_found_total", new MonerisMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return nbFound.get();
+            }
+        });
+        monerisMetrics.registerGauge("moneris_preauth_sweep_swept_total", new MonerisMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return nbSwept.get();
+            }
+        });
+        monerisMetrics.registerGauge("moneris_preauth_sweep_failed_total", new MonerisMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return nbFailed.get();
+            }
+        });
+
+        workers = Executors.newFixedThreadPool(nbThreads, new MonerisThreadFactory("moneris-preauth-sweeper-worker"));
+        monerisMetrics.registerExecutor("moneris_preauth_sweeper_workers", workers);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new MonerisThreadFactory("moneris-preauth-sweeper"));
+        scheduler.scheduleWithFixedDelay(this, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            scheduler = null;
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+            workers = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            sweep();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final RuntimeException e) {
+            logService.log(LogService.LOG_WARNING, "Unable to sweep stale Moneris authorizations", e);
+        }
+    }
+
+    /**
+     * @return the number of authorizations voided or re-authorized (found, in dry-run mode)
+     */
+    public int sweep() throws InterruptedException {
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        final List<MonerisStaleAuthorization> staleAuthorizations = new ArrayList<MonerisStaleAuthorization>();
+        for (final Map.Entry<String, Integer> window : windowDays.entrySet()) {
+            if (staleAuthorizations.size() < batchSize) {
+                staleAuthorizations.addAll(monerisDao.getStaleAuthorizations(window.getKey(), windowDays.keySet(), now.minusDays(window.getValue()), now, maxAttempts, batchSize - staleAuthorizations.size()));
+            }
+        }
+        if (staleAuthorizations.size() < batchSize) {
+            staleAuthorizations.addAll(monerisDao.getStaleAuthorizations(null, windowDays.keySet(), now.minusDays(defaultWindowDays), now, maxAttempts, batchSize - staleAuthorizations.size()));
+        }
+        if (staleAuthorizations.isEmpty()) {
+            return 0;
+        }
+
+        nbFound.addAndGet(staleAuthorizations.size());
+        if (dryRun) {
+            for (final MonerisStaleAuthorization staleAuthorization : staleAuthorizations) {
+                logService.log(LogService.LOG_INFO, "Dry run: would " + action + " " + staleAuthorization);
+            }
+            return staleAuthorizations.size();
+        }
+
+        final List<Future<Void>> sweeps = new LinkedList<Future<Void>>();
+        for (final MonerisStaleAuthorization staleAuthorization : staleAuthorizations) {
+            sweeps.add(workers.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    sweep(staleAuthorization);
+                    return null;
+                }
+            }));
+        }
+
+        int nbSweptNow = 0;
+        for (final Future<Void> sweep : sweeps) {
+            try {
+                sweep.get();
+                nbSweptNow++;
+            } catch (final ExecutionException e) {
+                nbFailed.incrementAndGet();
+                logService.log(LogService.LOG_WARNING, "Unable to " + action + " a stale Moneris authorization", e.getCause());
+            }
+        }
+        nbSwept.addAndGet(nbSweptNow);
+
+        logService.log(LogService.LOG_INFO, "Applied " + action + " to " + nbSweptNow + " out of " + staleAuthorizations.size() + " stale Moneris authorizations");
+        return nbSweptNow;
+    }
+
+    private void sweep(final MonerisStaleAuthorization staleAuthorization) throws Exception {
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        final int nbAttempts = monerisDao.recordPreAuthSweepAttempt(staleAuthorization.getKbTransactionId(), staleAuthorization.getKbTenantId(), retryDelaySeconds, now);
+        if (nbAttempts == maxAttempts) {
+            logService.log(LogService.LOG_WARNING, "Last attempt to " + action + " " + staleAuthorization + ", it will then be left alone");
+        }
+
+        rateLimiter.acquire();
+        apply(staleAuthorization, now);
+    }
+
+    // Void or re-authorize through Kill Bill (overridden in tests)
+    void apply(final MonerisStaleAuthorization staleAuthorization, final DateTime now) throws Exception {
+        final CallContext context = new MonerisContext(staleAuthorization.getKbTenantId(), UUID.randomUUID(), USER_NAME, CallOrigin.INTERNAL, UserType.SYSTEM,
+                                                       null, "Stale authorization " + staleAuthorization.getKbTransactionId(), now, now);
+        final Account account = killbillAPI.getAccountUserApi().getAccountById(staleAuthorization.getKbAccountId(), context);
+        if (action == Action.VOID) {
+            killbillAPI.getPaymentApi().createVoid(account, staleAuthorization.getKbPaymentId(), null, properties, context);
+        } else {
+            killbillAPI.getPaymentApi().createAuthorization(account, staleAuthorization.getKbPaymentMethodId(), staleAuthorization.getKbPaymentId(),
+                                                            staleAuthorization.getAmount(), staleAuthorization.getCurrency(), null, null, properties, context);
+        }
+    }
+}
@@ -62,6 +62,18 @@ public class MonerisProperties extends HashMap<String, String> {
         return new CvdInfo(get("cvdIndicator"), get("cvdValue"));
     }
 
+    /**
+     * @return true if AVS or CVD details were passed (these are never stored, see MonerisOfflineQueue)
+     */
+    public boolean hasVerificationDetails() {
+        for (final String key : keySet()) {
+            if (key.startsWith("avs") || key.startsWith("cvd")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public String getPan() {
         // Credit Card Number - no spaces or dashes.
         // Most credit card numbers today are 16 digits in length but some 13 digits are still accepted by some issuers.
@@ -89,6 +101,21 @@ public class MonerisProperties extends HashMap<String, String> {
         return get("crypt");
     }
 
+    @Nullable
+    public Boolean getAutoCapture() {
+        // Whether to send an authorization as a Purchase, when it will be captured in full right away: the capture is then
+        // only recorded, saving a round trip. Overrides org.killbill.billing.plugin.moneris.autoCapture.enabled.
+        // Note: until the batch is closed, the authorization can still be voided (Purchase Correction). A partial capture costs a round
+        // trip after all: the difference is refunded.
+        final String autoCapture = get("autoCapture");
+        return autoCapture == null ? null : Boolean.valueOf(autoCapture);
+    }
+
+    public String getStore() {
+        // Name of the Moneris store to use, overriding the tenant and currency routes (see MonerisGatewayRouter)
+        return get("store");
+    }
+
     public String getDynamicDescriptor(@Nullable final String defaultDynamicDescriptor) {
         // Merchant defined description sent on a per-transaction basis that will appear on the credit card statement.
         // Dependent on the card Issuer, the statement will typically show the dynamic desciptor appended to the merchant's
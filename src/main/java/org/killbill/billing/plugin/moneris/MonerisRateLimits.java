@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Per tenant rate limits on gateway requests (per store limits are enforced by MonerisGateway), so that a tenant's month-end run
+ * doesn't get the whole merchant throttled by Moneris.
+ * <p/>
+ * Buckets are created on a tenant's first request. Callers wait for a token up to maxWait, and are rejected
+ * (MonerisThrottledException) beyond that.
+ */
+public class MonerisRateLimits {
+
+    private final MonerisMetrics monerisMetrics;
+    private final ConcurrentMap<UUID, MonerisTokenBucket> tenantBuckets = new ConcurrentHashMap<UUID, MonerisTokenBucket>();
+
+    private volatile Settings settings;
+
+    public MonerisRateLimits(final MonerisMetrics monerisMetrics) {
+        this.monerisMetrics = monerisMetrics;
+        this.settings = new Settings(0, 1, Collections.<UUID, Double>emptyMap(), 0);
+    }
+
+    /**
+     * Replace all limits (buckets start full again).
+     *
+     * @param defaultPermitsPerSecond limit for tenants without a specific one (0 for no limit)
+     * @param tenantPermitsPerSecond  specific limits (0 for no limit)
+     */
+    public void reconfigure(final double defaultPermitsPerSecond, final int burst, final Map<UUID, Double> tenantPermitsPerSecond,
+                            final long maxWait, final TimeUnit unit) {
+        settings = new Settings(defaultPermitsPerSecond, burst, tenantPermitsPerSecond, unit.toNanos(maxWait));
+        tenantBuckets.clear();
+    }
+
+    /**
+     * @throws MonerisThrottledException if the tenant is over its limit
+     */
+    public void acquire(@Nullable final UUID kbTenantId) {
+        if (kbTenantId == null) {
+            return;
+        }
+
+        final Settings currentSettings = settings;
+        MonerisTokenBucket bucket = tenantBuckets.get(kbTenantId);
+        if (bucket == null) {
+            final double permitsPerSecond = currentSettings.getPermitsPerSecond(kbTenantId);
+            if (permitsPerSecond <= 0) {
+                return;
+            }
+            bucket = createBucket(kbTenantId, permitsPerSecond, currentSettings.burst);
+        }
+        bucket.acquire(currentSettings.maxWaitNanos, "tenant " + kbTenantId);
+    }
+
+    private MonerisTokenBucket createBucket(final UUID kbTenantId, final double permitsPerSecond, final int burst) {
+        final MonerisTokenBucket newBucket = new MonerisTokenBucket(permitsPerSecond, burst);
+        final MonerisTokenBucket bucket = tenantBuckets.putIfAbsent(kbTenantId, newBucket);
+        if (bucket != null) {
+            return bucket;
+        }
+
+        monerisMetrics.registerGauge("moneris_tenant_" + kbTenantId.toString().replace('-', '_') + "_rate_limit_tokens", new MonerisMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return newBucket.getNbTokens();
+            }
+        });
+        return newBucket;
+    }
+
+    private static final class Settings {
+
+        private final double defaultPermitsPerSecond;
+        private final int burst;
+        private final Map<UUID, Double> tenantPermitsPerSecond;
+        private final long maxWaitNanos;
+
+        private Settings(final double defaultPermitsPerSecond, final int burst, final Map<UUID, Double> tenantPermitsPerSecond, final long maxWaitNanos) {
+            this.defaultPermitsPerSecond = defaultPermitsPerSecond;
+            this.burst = burst;
+            this.tenantPermitsPerSecond = Collections.unmodifiableMap(new HashMap<UUID, Double>(tenantPermitsPerSecond));
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        private double getPermitsPerSecond(final UUID kbTenantId) {
+            final Double permitsPerSecond = tenantPermitsPerSecond.get(kbTenantId);
+            return permitsPerSecond == null ? defaultPermitsPerSecond : permitsPerSecond;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One-minute exponentially weighted moving average rate (same algorithm as the Unix load average, or Dropwizard's Meter).
+ */
+public class MonerisRateMeter {
+
+    private static final long TICK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double ALPHA = 1 - Math.exp(-5 / 60.0);
+
+    private final AtomicLong uncounted = new AtomicLong();
+    private final AtomicLong lastTickNanos = new AtomicLong(System.nanoTime());
+
+    private volatile boolean initialized = false;
+    private volatile double ratePerSecond = 0.0;
+
+    public void mark() {
+        tickIfNecessary();
+        uncounted.incrementAndGet();
+    }
+
+    public double getOneMinuteRate() {
+        tickIfNecessary();
+        return ratePerSecond;
+    }
+
+    private void tickIfNecessary() {
+        final long oldTickNanos = lastTickNanos.get();
+        final long nowNanos = System.nanoTime();
+        final long ageNanos = nowNanos - oldTickNanos;
+        if (ageNanos > TICK_INTERVAL_NANOS) {
+            final long newTickNanos = nowNanos - ageNanos % TICK_INTERVAL_NANOS;
+            if (lastTickNanos.compareAndSet(oldTickNanos, newTickNanos)) {
+                // Only the winner ticks
+                final long nbTicks = ageNanos / TICK_INTERVAL_NANOS;
+                for (long i = 0; i < nbTicks; i++) {
+                    tick();
+                }
+            }
+        }
+    }
+
+    private void tick() {
+        final double instantRate = uncounted.getAndSet(0) / (double) TimeUnit.NANOSECONDS.toSeconds(TICK_INTERVAL_NANOS);
+        if (initialized) {
+            ratePerSecond += ALPHA * (instantRate - ratePerSecond);
+        } else {
+            ratePerSecond = instantRate;
+            initialized = true;
+        }
+    }
+}
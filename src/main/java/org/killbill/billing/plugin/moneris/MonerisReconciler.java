@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.killbill.billing.plugin.moneris.dao.MonerisUnresolvedTransaction;
+import org.osgi.service.log.LogService;
+
+import JavaAPI.Receipt;
+import JavaAPI.Transaction;
+
+/**
+ * Resolves transactions whose outcome is unknown (gateway timeouts, missing response codes) by re-sending them
+ * with status_check enabled, instead of leaving them for the Kill Bill janitor to poll one by one.
+ * <p/>
+ * Note: only Completions, Refunds and Purchase Corrections (i.e. captures, refunds and voids) can be checked,
+ * as a status check requires the exact same parameters as the original request and the card data
+ * for PreAuth, Purchase and Independent Refund requests is not stored.
+ * <p/>
+ * Each attempt is recorded before it is made: a transaction which can't be resolved (e.g. Moneris doesn't know about it, or its
+ * original transaction is missing) is retried with an exponential backoff, and given up on after maxAttempts, instead of
+ * blocking newer transactions at the head of every batch. Those are left to the Kill Bill janitor.
+ */
+public class MonerisReconciler implements Runnable {
+
+    private static final String UPDATED_BY = "MonerisReconciler";
+
+    private final MonerisGatewayRouter monerisGatewayRouter;
+    private final MonerisDao monerisDao;
+    private final MonerisIdempotencyCache monerisIdempotencyCache;
+    private final MonerisMetrics monerisMetrics;
+    private final LogService logService;
+    private final MonerisRateLimiter rateLimiter;
+    private final int nbThreads;
+    private final int batchSize;
+    private final int minAgeSeconds;
+    private final int maxAttempts;
+    private final int retryDelaySeconds;
+    // The original plugin properties aren't stored, only the crypt type matters for follow-on transactions
+    private final MonerisProperties monerisProperties;
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService workers;
+
+    public MonerisReconciler(final MonerisGatewayRouter monerisGatewayRouter, final MonerisDao monerisDao, final MonerisIdempotencyCache monerisIdempotencyCache, final MonerisMetrics monerisMetrics, final LogService logService,
+                             final int nbThreads, final double maxRequestsPerSecond, final int batchSize, final int minAgeSeconds, final int maxAttempts, final int retryDelaySeconds,
+                             final String crypt) {
+        this.monerisGatewayRouter = monerisGatewayRouter;
+        this.monerisDao = monerisDao;
+        this.monerisIdempotencyCache = monerisIdempotencyCache;
+        this.monerisMetrics = monerisMetrics;
+        this.logService = logService;
+        this.rateLimiter = new MonerisRateLimiter(maxRequestsPerSecond);
+        this.nbThreads = nbThreads;
+        this.batchSize = batchSize;
+        this.minAgeSeconds = minAgeSeconds;
+        this.maxAttempts = maxAttempts;
+        this.retryDelaySeconds = retryDelaySeconds;
+        this.monerisProperties = new MonerisProperties(Collections.singletonList(new PluginProperty("crypt", crypt, false)));
+    }
+
+    public synchronized void start(final int intervalSeconds) {
+        workers = Executors.newFixedThreadPool(nbThreads, new MonerisThreadFactory("moneris-reconciler-worker"));
+        monerisMetrics.registerExecutor("moneris_reconciler_workers", workers);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new MonerisThreadFactory("moneris-reconciler"));
+        scheduler.scheduleWithFixedDelay(this, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            scheduler = null;
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+            workers = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            reconcile();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final RuntimeException e) {
+            logService.log(LogService.LOG_WARNING, "Unable to reconcile Moneris transactions", e);
+        }
+    }
+
+    /**
+     * @return the number of transactions resolved
+     */
+    public int reconcile() throws InterruptedException {
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        // Give in-flight requests a chance to complete
+        final List<MonerisUnresolvedTransaction> unresolvedTransactions = monerisDao.getUnresolvedTransactions(now.minusSeconds(minAgeSeconds), now, maxAttempts, batchSize);
+        if (unresolvedTransactions.isEmpty()) {
+            return 0;
+        }
+
+        final List<Future<MonerisPaymentTransactionInfoPlugin>> statusChecks = new LinkedList<Future<MonerisPaymentTransactionInfoPlugin>>();
+        for (final MonerisUnresolvedTransaction unresolvedTransaction : unresolvedTransactions) {
+            statusChecks.add(workers.submit(new Callable<MonerisPaymentTransactionInfoPlugin>() {
+                @Override
+                public MonerisPaymentTransactionInfoPlugin call() throws Exception {
+                    return resolve(unresolvedTransaction, now);
+                }
+            }));
+        }
+
+        final List<MonerisPaymentTransactionInfoPlugin> resolvedTransactions = new LinkedList<MonerisPaymentTransactionInfoPlugin>();
+        for (final Future<MonerisPaymentTransactionInfoPlugin> statusCheck : statusChecks) {
+            try {
+                final MonerisPaymentTransactionInfoPlugin resolvedTransaction = statusCheck.get();
+                if (resolvedTransaction != null) {
+                    resolvedTransactions.add(resolvedTransaction);
+                }
+            } catch (final ExecutionException e) {
+                logService.log(LogService.LOG_WARNING, "Moneris status check failed", e.getCause());
+            }
+        }
+
+        monerisDao.updateTransactionReceipts(resolvedTransactions, UPDATED_BY, now);
+        for (final MonerisPaymentTransactionInfoPlugin resolvedTransaction : resolvedTransactions) {
+            monerisIdempotencyCache.invalidate(resolvedTransaction.getKbTransactionPaymentId());
+        }
+
+        logService.log(LogService.LOG_INFO, "Resolved " + resolvedTransactions.size() + " out of " + unresolvedTransactions.size() + " unresolved Moneris transactions");
+        return resolvedTransactions.size();
+    }
+
+    private MonerisPaymentTransactionInfoPlugin resolve(final MonerisUnresolvedTransaction unresolvedTransaction, final DateTime now) throws InterruptedException {
+        final int nbAttempts = monerisDao.recordReconciliationAttempt(unresolvedTransaction.getKbTransactionId(), unresolvedTransaction.getKbTenantId(), retryDelaySeconds, now);
+        if (nbAttempts == maxAttempts) {
+            logService.log(LogService.LOG_WARNING, "Last attempt to resolve " + unresolvedTransaction + ", it will then be left to the Kill Bill janitor");
+        }
+        return checkStatus(unresolvedTransaction);
+    }
+
+    // Status check at Moneris, null if the outcome is still unknown (overridden in tests)
+    MonerisPaymentTransactionInfoPlugin checkStatus(final MonerisUnresolvedTransaction unresolvedTransaction) throws InterruptedException {
+        final List<PaymentTransactionInfoPlugin> transactions = monerisDao.getTransactions(unresolvedTransaction.getKbPaymentId(), unresolvedTransaction.getKbTenantId());
+        final Transaction transaction = buildOriginalRequest(unresolvedTransaction, transactions);
+        if (transaction == null) {
+            return null;
+        }
+        // Same store as the original request (rows recorded before stores were tracked only get the tenant and currency routes)
+        final MonerisGateway monerisGateway = monerisGatewayRouter.routeToRecordedStore(unresolvedTransaction.getStore(),
+                                                                                        unresolvedTransaction.getKbTenantId(),
+                                                                                        MonerisPaymentPluginApi.findPaymentCurrency(transactions, unresolvedTransaction.getCurrency()));
+
+        rateLimiter.acquire();
+        final Receipt receipt = monerisGateway.checkStatus(unresolvedTransaction.getTransactionType().toString(), transaction);
+
+        final MonerisPaymentTransactionInfoPlugin transactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(unresolvedTransaction.getKbPaymentId(),
+                                                                                                                  unresolvedTransaction.getKbTransactionId(),
+                                                                                                                  unresolvedTransaction.getTransactionType(),
+                                                                                                                  unresolvedTransaction.getCurrency(),
+                                                                                                                  monerisGateway.getName(),
+                                                                                                                  receipt);
+        // Still unknown (e.g. timed out again): retry on the next run
+        return transactionInfoPlugin.getStatus() == PaymentPluginStatus.UNDEFINED ? null : transactionInfoPlugin;
+    }
+
+    private Transaction buildOriginalRequest(final MonerisUnresolvedTransaction unresolvedTransaction, final List<PaymentTransactionInfoPlugin> transactions) {
+        if (TransactionType.CAPTURE.equals(unresolvedTransaction.getTransactionType())) {
+            final PaymentTransactionInfoPlugin origTransaction = MonerisPaymentPluginApi.findOrigTransaction(transactions, TransactionType.AUTHORIZE);
+            if (origTransaction != null) {
+                return MonerisPaymentPluginApi.buildCompletion(unresolvedTransaction.getKbPaymentId(), origTransaction, unresolvedTransaction.getAmount(), monerisProperties);
+            }
+        } else if (TransactionType.VOID.equals(unresolvedTransaction.getTransactionType())) {
+            final PaymentTransactionInfoPlugin origTransaction = MonerisPaymentPluginApi.findOrigTransaction(transactions, TransactionType.AUTHORIZE);
+            if (origTransaction != null) {
+                return MonerisPaymentPluginApi.buildPurchaseCorrection(unresolvedTransaction.getKbPaymentId(), origTransaction, monerisProperties);
+            }
+        } else if (TransactionType.REFUND.equals(unresolvedTransaction.getTransactionType())) {
+            final PaymentTransactionInfoPlugin origTransaction = MonerisPaymentPluginApi.findOrigRefundedTransaction(transactions);
+            if (origTransaction != null) {
+                return MonerisPaymentPluginApi.buildRefund(unresolvedTransaction.getKbPaymentId(), origTransaction, unresolvedTransaction.getAmount(), monerisProperties);
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import org.killbill.billing.plugin.moneris.dao.MonerisAuditRecord;
+
+/**
+ * Reads back a recording written by MonerisRecordingSink, in order.
+ */
+public class MonerisRecordingReader implements Closeable {
+
+    private final DataInputStream in;
+
+    public MonerisRecordingReader(final File file) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+        if (in.readInt() != MonerisRecordingSink.MAGIC) {
+            in.close();
+            throw new IOException(file + " is not a Moneris recording");
+        }
+        final int version = in.readInt();
+        if (version != MonerisRecordingSink.VERSION) {
+            in.close();
+            throw new IOException("Unsupported version " + version + " for recording " + file);
+        }
+    }
+
+    /**
+     * @return the next record, or null at the end of the recording (a record truncated by a crash counts as the end)
+     */
+    public MonerisAuditRecord read() throws IOException {
+        final long timestampMillis;
+        try {
+            timestampMillis = in.readLong();
+        } catch (final EOFException e) {
+            return null;
+        }
+
+        try {
+            return new MonerisAuditRecord(timestampMillis,
+                                          readString(in),
+                                          readString(in),
+                                          in.readLong(),
+                                          readString(in),
+                                          readString(in));
+        } catch (final EOFException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
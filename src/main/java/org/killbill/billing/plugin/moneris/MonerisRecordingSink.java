@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.moneris.dao.MonerisAuditRecord;
+
+/**
+ * Records the (masked) gateway exchanges to a compact binary file, to be replayed offline by MonerisReplayDriver.
+ * <p/>
+ * File layout (gzipped):
+ * <pre>
+ * header:  magic (int) | version (int)
+ * records: timestamp (long) | store id | operation | duration in micros (long) | request | response
+ * </pre>
+ * Strings are written as a length (int, -1 for null) followed by their UTF-8 bytes.
+ */
+public class MonerisRecordingSink implements MonerisAuditSink {
+
+    static final int MAGIC = 0x4d4f4e52; // MONR
+    static final int VERSION = 1;
+
+    private final DataOutputStream out;
+
+    public MonerisRecordingSink(final File file) throws IOException {
+        if (file.exists()) {
+            throw new IOException("Recording " + file + " already exists");
+        }
+        // Sync flush, so that the recording can be read back even if it is never closed
+        this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file), 8192, true)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    @Override
+    public synchronized void write(final List<MonerisAuditRecord> records) throws IOException {
+        for (final MonerisAuditRecord record : records) {
+            out.writeLong(record.getTimestampMillis());
+            writeString(out, record.getStoreId());
+            writeString(out, record.getOperation());
+            out.writeLong(record.getDurationMicros());
+            writeString(out, record.getRequest());
+            writeString(out, record.getResponse());
+        }
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    // Unlike writeUTF, not limited to 64KB
+    private static void writeString(final DataOutputStream out, @Nullable final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.plugin.moneris.dao.MonerisAuditRecord;
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.CallOrigin;
+import org.killbill.billing.util.callcontext.UserType;
+
+import JavaAPI.Receipt;
+
+/**
+ * Replays a recording (see MonerisRecordingSink) offline, to benchmark the gateway and DAO paths on real traffic shapes.
+ * <p/>
+ * Exchanges are submitted at their recorded pace (or speed times faster, or as fast as possible if speed is 0) to a gateway
+ * which should be backed by a MonerisReplayTransport. Speeding up only shortens the gaps between requests, not the gateway latencies,
+ * so that concurrency builds up as it would under more load. If a DAO is specified, each payment transaction is then stored, as
+ * the plugin would. Latencies end up in the gateway MonerisMetrics (GATEWAY, and PERSIST for the DAO).
+ */
+public class MonerisReplayDriver {
+
+    private final MonerisGateway monerisGateway;
+    private final MonerisDao monerisDao;
+    private final MonerisMetrics monerisMetrics;
+    private final int nbThreads;
+    private final double speed;
+    private final CallContext context;
+
+    private final AtomicInteger nbErrors = new AtomicInteger();
+
+    public MonerisReplayDriver(final MonerisGateway monerisGateway, @Nullable final MonerisDao monerisDao, final MonerisMetrics monerisMetrics,
+                               final int nbThreads, final double speed) {
+        this.monerisGateway = monerisGateway;
+        this.monerisDao = monerisDao;
+        this.monerisMetrics = monerisMetrics;
+        this.nbThreads = nbThreads;
+        this.speed = speed;
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        this.context = new MonerisContext(UUID.randomUUID(), null, "MonerisReplayDriver", CallOrigin.TEST, UserType.TEST, null, null, now, now);
+    }
+
+    /**
+     * Replay the whole recording, and wait for all exchanges to complete.
+     *
+     * @return the number of exchanges replayed
+     */
+    public int replay(final MonerisRecordingReader reader) throws IOException, InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(nbThreads, new MonerisThreadFactory("moneris-replay"));
+        int nbExchanges = 0;
+        try {
+            final long replayStartNanos = System.nanoTime();
+            long firstTimestampMillis = 0;
+
+            MonerisAuditRecord record;
+            while ((record = reader.read()) != null) {
+                if (nbExchanges == 0) {
+                    firstTimestampMillis = record.getTimestampMillis();
+                }
+                if (speed > 0) {
+                    final long dueNanos = replayStartNanos + (long) (TimeUnit.MILLISECONDS.toNanos(record.getTimestampMillis() - firstTimestampMillis) / speed);
+                    final long waitNanos = dueNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(waitNanos);
+                    }
+                }
+
+                final MonerisAuditRecord exchange = record;
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        replayExchange(exchange);
+                    }
+                });
+                nbExchanges++;
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        return nbExchanges;
+    }
+
+    /**
+     * @return the number of exchanges which failed, either at the gateway (as recorded) or in the DAO
+     */
+    public int getNbErrors() {
+        return nbErrors.get();
+    }
+
+    private void replayExchange(final MonerisAuditRecord record) {
+        final Receipt receipt;
+        try {
+            receipt = monerisGateway.submit(record.getOperation(), new MonerisReplayTransport.RecordedTransaction(record));
+        } catch (final RuntimeException e) {
+            nbErrors.incrementAndGet();
+            return;
+        }
+
+        final TransactionType transactionType = toTransactionType(record.getOperation());
+        if (monerisDao == null || transactionType == null) {
+            return;
+        }
+
+        final UUID kbPaymentId = UUID.randomUUID();
+        final UUID kbTransactionId = UUID.randomUUID();
+        final long startNanos = System.nanoTime();
+        try {
+            monerisDao.createTransaction(UUID.randomUUID(),
+                                         kbPaymentId,
+                                         kbTransactionId,
+                                         UUID.randomUUID(),
+                                         toAmount(receipt.getTransAmount()),
+                                         Currency.CAD,
+                                         transactionType,
+                                         new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, transactionType, Currency.CAD, null, receipt),
+                                         context);
+        } catch (final RuntimeException e) {
+            nbErrors.incrementAndGet();
+        } finally {
+            monerisMetrics.recordLatency(record.getOperation(), MonerisMetrics.Phase.PERSIST, System.nanoTime() - startNanos);
+        }
+    }
+
+    // Other operations (e.g. BATCH_CLOSE) aren't stored in moneris_transactions
+    private static TransactionType toTransactionType(final String operation) {
+        for (final TransactionType transactionType : TransactionType.values()) {
+            if (transactionType.toString().equals(operation)) {
+                return transactionType;
+            }
+        }
+        return null;
+    }
+
+    private static BigDecimal toAmount(@Nullable final String transAmount) {
+        try {
+            return transAmount == null ? BigDecimal.ZERO : new BigDecimal(transAmount);
+        } catch (final NumberFormatException e) {
+            return BigDecimal.ZERO;
+        }
+    }
+}
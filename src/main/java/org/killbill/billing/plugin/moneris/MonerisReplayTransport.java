@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.moneris.dao.MonerisAuditRecord;
+
+import JavaAPI.Receipt;
+import JavaAPI.Transaction;
+
+/**
+ * Local stand-in for Moneris, for MonerisReplayDriver: recorded transactions are answered with their recorded receipt,
+ * after their recorded latency (times latencyFactor).
+ */
+public class MonerisReplayTransport implements MonerisGateway.Transport {
+
+    private final double latencyFactor;
+
+    /**
+     * @param latencyFactor e.g. 1 to reproduce the recorded latencies, 0 to answer immediately
+     */
+    public MonerisReplayTransport(final double latencyFactor) {
+        this.latencyFactor = latencyFactor;
+    }
+
+    @Override
+    public Receipt post(final String storeId, final Transaction transaction, final boolean statusCheck) {
+        if (!(transaction instanceof RecordedTransaction)) {
+            throw new IllegalArgumentException("The replay stand-in can only answer recorded transactions");
+        }
+        final MonerisAuditRecord record = ((RecordedTransaction) transaction).getRecord();
+
+        final long latencyMicros = (long) (record.getDurationMicros() * latencyFactor);
+        if (latencyMicros > 0) {
+            try {
+                TimeUnit.MICROSECONDS.sleep(latencyMicros);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while replaying " + record.getOperation(), e);
+            }
+        }
+
+        if (record.getResponse() == null || record.getResponse().isEmpty()) {
+            // The original request threw
+            throw new IllegalStateException("Recorded " + record.getOperation() + " request failed");
+        }
+        return new Receipt("<?xml version=\"1.0\"?><response>" + record.getResponse() + "</response>");
+    }
+
+    /**
+     * A recorded request (already masked), to be submitted to a MonerisGateway backed by a MonerisReplayTransport.
+     */
+    public static final class RecordedTransaction extends Transaction {
+
+        private final MonerisAuditRecord record;
+
+        public RecordedTransaction(final MonerisAuditRecord record) {
+            this.record = record;
+        }
+
+        public MonerisAuditRecord getRecord() {
+            return record;
+        }
+
+        @Override
+        public String toXML() {
+            return record.getRequest();
+        }
+    }
+}
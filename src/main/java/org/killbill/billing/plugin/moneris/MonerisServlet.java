@@ -0,0 +1,802 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.PaymentTransaction;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.moneris.dao.MonerisDailyTotal;
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.killbill.billing.tenant.api.Tenant;
+import org.killbill.billing.util.callcontext.CallOrigin;
+import org.killbill.billing.util.callcontext.UserType;
+
+/**
+ * Monitoring endpoints, under /plugins/killbill-moneris:
+ * <ul>
+ * <li>/stats: live statistics, as JSON</li>
+ * <li>/metrics: same, in the Prometheus text format</li>
+ * <li>/events: recorded gateway and DAO events (see MonerisFlightRecorder), optionally since a given time (sinceMillis parameter), as JSON</li>
+ * </ul>
+ * Responses are streamed straight from the counters to the writer (no intermediate model or String building),
+ * so that frequent scraping doesn't create garbage or contention on the payment path.
+ * <p/>
+ * Also /dailyTotals: the number and amount of transactions of the tenant per day, store, card type,
+ * transaction type, status and currency, for days between from (inclusive) and to (exclusive), yyyy-MM-dd, as JSON (see MonerisDailyTotalsFlusher).
+ * POST /dailyTotals/rebuild recomputes them from the transactions (same parameters, days before today only), and returns the new ones.
+ * <p/>
+ * And /export: the transactions of the tenant created between from (inclusive) and to (exclusive),
+ * ISO 8601 dates or date-times (UTC unless specified), optionally of a given transactionType, as CSV (see MonerisTransactionExporter).
+ * And POST /reconcile: the settlement report in the body is reconciled against the transactions of the tenant created between
+ * from and to (same parameters), and the outcome returned as CSV (see MonerisSettlementReconciler).
+ * <p/>
+ * And /paymentInfo: the transactions of each payment given (paymentId parameter, repeated), as JSON keyed by payment id, fetched
+ * in a few queries (see MonerisPaymentPluginApi#getPaymentInfo(Collection, TenantContext)): a reporting job can call it
+ * before looking at the payments one by one through Kill Bill.
+ * <p/>
+ * And POST /bulk: captures, refunds and voids in bulk, through Kill Bill (see MonerisBulkOperations), one per line of the body as
+ * kbAccountId,kbPaymentId,transactionType,amount,currency,transactionExternalKey (all but the first three can be empty),
+ * with an optional crypt parameter. The Kill Bill transaction of each is streamed back as CSV as soon as it is created.
+ * <p/>
+ * The tenant of all of these is the one of the X-Killbill-ApiKey and X-Killbill-ApiSecret headers, as authenticated by Kill Bill.
+ * A tenantId parameter, if passed, must match it.
+ */
+public class MonerisServlet extends HttpServlet {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+    // Prometheus histogram buckets (seconds), and their value in microseconds
+    private static final String[] BUCKET_NAMES = {"0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10", "30"};
+    private static final long[] BUCKET_BOUNDS_MICROS = {5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000, 30000000};
+    private static final long RECENT_ERRORS_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    // Set by Kill Bill once the API key and secret headers have been authenticated
+    private static final String TENANT_ATTRIBUTE = "killbill_tenant";
+    private static final int MAX_PAYMENT_IDS = 1000;
+    private static final int MAX_BULK_OPERATIONS = 10000;
+    private static final int REBUILD_FETCH_SIZE = 1000;
+
+    private final MonerisMetrics monerisMetrics;
+    private final MonerisFlightRecorder monerisFlightRecorder;
+    private final MonerisDao monerisDao;
+    private final MonerisPaymentPluginApi monerisPaymentPluginApi;
+    private final MonerisTransactionExporter monerisTransactionExporter;
+    private final MonerisSettlementReconciler monerisSettlementReconciler;
+    private final MonerisBulkOperations monerisBulkOperations;
+    private final long startTimeMillis = System.currentTimeMillis();
+
+    public MonerisServlet(final MonerisMetrics monerisMetrics, final MonerisFlightRecorder monerisFlightRecorder, final MonerisDao monerisDao,
+                          final MonerisPaymentPluginApi monerisPaymentPluginApi, final MonerisTransactionExporter monerisTransactionExporter, final MonerisSettlementReconciler monerisSettlementReconciler,
+                          final MonerisBulkOperations monerisBulkOperations) {
+        this.monerisMetrics = monerisMetrics;
+        this.monerisFlightRecorder = monerisFlightRecorder;
+        this.monerisDao = monerisDao;
+        this.monerisPaymentPluginApi = monerisPaymentPluginApi;
+        this.monerisTransactionExporter = monerisTransactionExporter;
+        this.monerisSettlementReconciler = monerisSettlementReconciler;
+        this.monerisBulkOperations = monerisBulkOperations;
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+        final String pathInfo = req.getPathInfo();
+        if ("/stats".equals(pathInfo)) {
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.setContentType("application/json");
+            resp.setCharacterEncoding("UTF-8");
+            writeJson(resp.getWriter());
+        } else if ("/metrics".equals(pathInfo)) {
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.setContentType("text/plain; version=0.0.4");
+            resp.setCharacterEncoding("UTF-8");
+            writePrometheus(resp.getWriter());
+        } else if ("/events".equals(pathInfo)) {
+            final String sinceMillis = req.getParameter("sinceMillis");
+            final long since;
+            try {
+                since = sinceMillis == null ? 0 : Long.parseLong(sinceMillis);
+            } catch (final NumberFormatException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid sinceMillis " + sinceMillis);
+                return;
+            }
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.setContentType("application/json");
+            resp.setCharacterEncoding("UTF-8");
+            writeJsonEvents(resp.getWriter(), since);
+        } else if ("/dailyTotals".equals(pathInfo)) {
+            final UUID kbTenantId = getAuthenticatedTenantId(req, resp);
+            if (kbTenantId == null) {
+                return;
+            }
+            final LocalDate from;
+            final LocalDate to;
+            try {
+                from = new LocalDate(getRequiredParameter(req, "from"));
+                to = new LocalDate(getRequiredParameter(req, "to"));
+            } catch (final IllegalArgumentException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+            final List<MonerisDailyTotal> dailyTotals = monerisDao.getDailyTotals(kbTenantId, from.toString(), to.toString());
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.setContentType("application/json");
+            resp.setCharacterEncoding("UTF-8");
+            writeJsonDailyTotals(resp.getWriter(), dailyTotals);
+        } else if ("/export".equals(pathInfo)) {
+            final UUID kbTenantId = getAuthenticatedTenantId(req, resp);
+            if (kbTenantId == null) {
+                return;
+            }
+            final DateTime from;
+            final DateTime to;
+            final TransactionType transactionType;
+            try {
+                from = new DateTime(getRequiredParameter(req, "from"), DateTimeZone.UTC);
+                to = new DateTime(getRequiredParameter(req, "to"), DateTimeZone.UTC);
+                transactionType = req.getParameter("transactionType") == null ? null : TransactionType.valueOf(req.getParameter("transactionType"));
+            } catch (final IllegalArgumentException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.setContentType("text/csv");
+            resp.setCharacterEncoding("UTF-8");
+            resp.setHeader("Content-Disposition", "attachment; filename=\"moneris_transactions.csv\"");
+            monerisTransactionExporter.export(kbTenantId, from, to, transactionType, resp.getWriter());
+        } else if ("/paymentInfo".equals(pathInfo)) {
+            final UUID kbTenantId = getAuthenticatedTenantId(req, resp);
+            if (kbTenantId == null) {
+                return;
+            }
+            final Set<UUID> kbPaymentIds = new LinkedHashSet<UUID>();
+            try {
+                final String[] paymentIds = req.getParameterValues("paymentId");
+                if (paymentIds == null) {
+                    throw new IllegalArgumentException("Missing paymentId parameter");
+                } else if (paymentIds.length > MAX_PAYMENT_IDS) {
+                    throw new IllegalArgumentException("Too many paymentId parameters, at most " + MAX_PAYMENT_IDS + " are allowed");
+                }
+                for (final String paymentId : paymentIds) {
+                    kbPaymentIds.add(UUID.fromString(paymentId));
+                }
+            } catch (final IllegalArgumentException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+            final DateTime now = new DateTime(DateTimeZone.UTC);
+            final Map<UUID, List<PaymentTransactionInfoPlugin>> transactionsByPaymentId = monerisPaymentPluginApi.getPaymentInfo(kbPaymentIds,
+                                                                                                                                 new MonerisContext(kbTenantId, null, "MonerisServlet", CallOrigin.EXTERNAL, UserType.ADMIN, null, null, now, now));
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.setContentType("application/json");
+            resp.setCharacterEncoding("UTF-8");
+            writeJsonPaymentInfo(resp.getWriter(), kbPaymentIds, transactionsByPaymentId);
+        } else {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown path " + pathInfo);
+        }
+    }
+
+    @Override
+    protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+        final String pathInfo = req.getPathInfo();
+        if ("/reconcile".equals(pathInfo)) {
+            reconcile(req, resp);
+        } else if ("/bulk".equals(pathInfo)) {
+            bulk(req, resp);
+        } else if ("/dailyTotals/rebuild".equals(pathInfo)) {
+            rebuildDailyTotals(req, resp);
+        } else {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown path " + pathInfo);
+        }
+    }
+
+    private void reconcile(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+        final UUID kbTenantId = getAuthenticatedTenantId(req, resp);
+        if (kbTenantId == null) {
+            return;
+        }
+        final DateTime from;
+        final DateTime to;
+        try {
+            from = new DateTime(getRequiredParameter(req, "from"), DateTimeZone.UTC);
+            to = new DateTime(getRequiredParameter(req, "to"), DateTimeZone.UTC);
+        } catch (final IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        // The report is memory-mapped, so it needs to be on disk first
+        final File report = File.createTempFile("moneris-settlement", ".csv");
+        try {
+            final InputStream in = req.getInputStream();
+            final OutputStream out = new FileOutputStream(report);
+            try {
+                final byte[] buffer = new byte[8192];
+                int length;
+                while ((length = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, length);
+                }
+            } finally {
+                out.close();
+            }
+
+            final MonerisSettlementReconciliation reconciliation;
+            try {
+                reconciliation = monerisSettlementReconciler.reconcile(report, kbTenantId, from, to);
+            } catch (final IOException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.setContentType("text/csv");
+            resp.setCharacterEncoding("UTF-8");
+            resp.setHeader("Content-Disposition", "attachment; filename=\"moneris_reconciliation.csv\"");
+            reconciliation.write(resp.getWriter());
+        } finally {
+            report.delete();
+        }
+    }
+
+    private void rebuildDailyTotals(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+        final UUID kbTenantId = getAuthenticatedTenantId(req, resp);
+        if (kbTenantId == null) {
+            return;
+        }
+        final LocalDate from;
+        final LocalDate to;
+        try {
+            from = new LocalDate(getRequiredParameter(req, "from"));
+            to = new LocalDate(getRequiredParameter(req, "to"));
+            // Changes still pending on the nodes would be counted twice
+            if (to.isAfter(new LocalDate(DateTimeZone.UTC))) {
+                throw new IllegalArgumentException("Only days before today can be rebuilt");
+            }
+        } catch (final IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        monerisDao.rebuildDailyTotals(kbTenantId, from.toString(), to.toString(), REBUILD_FETCH_SIZE, new DateTime(DateTimeZone.UTC));
+        final List<MonerisDailyTotal> dailyTotals = monerisDao.getDailyTotals(kbTenantId, from.toString(), to.toString());
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        writeJsonDailyTotals(resp.getWriter(), dailyTotals);
+    }
+
+    private void bulk(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+        final UUID kbTenantId = getAuthenticatedTenantId(req, resp);
+        if (kbTenantId == null) {
+            return;
+        }
+        final String crypt = req.getParameter("crypt");
+        final List<PluginProperty> properties = crypt == null ? Collections.<PluginProperty>emptyList() : Collections.singletonList(new PluginProperty("crypt", crypt, false));
+
+        final List<MonerisBulkOperation> operations = new LinkedList<MonerisBulkOperation>();
+        final BufferedReader reader = req.getReader();
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            if (operations.size() >= MAX_BULK_OPERATIONS) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Too many operations, at most " + MAX_BULK_OPERATIONS + " are allowed");
+                return;
+            }
+            try {
+                operations.add(parseBulkOperation(line, properties));
+            } catch (final IllegalArgumentException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid line " + lineNumber + ": " + e.getMessage());
+                return;
+            }
+        }
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("text/csv");
+        resp.setCharacterEncoding("UTF-8");
+        final PrintWriter writer = resp.getWriter();
+        writer.append("kb_payment_id,transaction_external_key,kb_transaction_id,status,gateway_error_code,gateway_error\r\n");
+        final StringBuilder csvLine = new StringBuilder(256);
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        try {
+            monerisBulkOperations.execute(operations,
+                                          // Batch work, behind interactive calls (see MonerisFairScheduler)
+                                          new MonerisContext(kbTenantId, UUID.randomUUID(), "MonerisServlet", CallOrigin.INTERNAL, UserType.ADMIN, null, null, now, now),
+                                          new MonerisBulkOperationListener() {
+                                              @Override
+                                              public void onResult(final MonerisBulkOperation operation, final PaymentTransaction transaction) {
+                                                  writeBulkLine(writer, csvLine, operation, transaction.getExternalKey(), transaction.getId(), String.valueOf(transaction.getTransactionStatus()),
+                                                                transaction.getGatewayErrorCode(), transaction.getGatewayErrorMsg());
+                                              }
+
+                                              @Override
+                                              public void onFailure(final MonerisBulkOperation operation, final Exception e) {
+                                                  writeBulkLine(writer, csvLine, operation, operation.getTransactionExternalKey(), null, "EXCEPTION", null, e.getMessage());
+                                              }
+                                          });
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer.flush();
+    }
+
+    // kbAccountId,kbPaymentId,transactionType,amount,currency,transactionExternalKey (amount, currency and transactionExternalKey can be empty)
+    private static MonerisBulkOperation parseBulkOperation(final String line, final List<PluginProperty> properties) {
+        final String[] fields = line.trim().split("\\s*,\\s*", -1);
+        if (fields.length != 6) {
+            throw new IllegalArgumentException("expected 6 fields, got " + fields.length);
+        }
+        return new MonerisBulkOperation(UUID.fromString(fields[0]),
+                                        UUID.fromString(fields[1]),
+                                        TransactionType.valueOf(fields[2]),
+                                        fields[3].isEmpty() ? null : new BigDecimal(fields[3]),
+                                        fields[4].isEmpty() ? null : Currency.valueOf(fields[4]),
+                                        fields[5].isEmpty() ? null : fields[5],
+                                        properties);
+    }
+
+    private static void writeBulkLine(final PrintWriter writer, final StringBuilder line, final MonerisBulkOperation operation, @Nullable final String transactionExternalKey,
+                                      @Nullable final UUID kbTransactionId, final String status, @Nullable final String gatewayErrorCode, @Nullable final String gatewayError) {
+        line.setLength(0);
+        line.append(operation.getKbPaymentId()).append(',');
+        MonerisTransactionExporter.appendCsvValue(line, transactionExternalKey);
+        line.append(',');
+        if (kbTransactionId != null) {
+            line.append(kbTransactionId);
+        }
+        line.append(',').append(status).append(',');
+        MonerisTransactionExporter.appendCsvValue(line, gatewayErrorCode);
+        line.append(',');
+        MonerisTransactionExporter.appendCsvValue(line, gatewayError);
+        writer.append(line).append("\r\n");
+    }
+
+    /**
+     * @return the tenant the request was authenticated for, or null if it wasn't (the error has then been sent)
+     */
+    private static UUID getAuthenticatedTenantId(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+        final Object tenant = req.getAttribute(TENANT_ATTRIBUTE);
+        if (!(tenant instanceof Tenant)) {
+            resp.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Missing or invalid X-Killbill-ApiKey and X-Killbill-ApiSecret headers");
+            return null;
+        }
+
+        final UUID kbTenantId = ((Tenant) tenant).getId();
+        final String tenantId = req.getParameter("tenantId");
+        if (tenantId != null && !tenantId.equals(kbTenantId.toString())) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN, "tenantId " + tenantId + " doesn't match the API key");
+            return null;
+        }
+        return kbTenantId;
+    }
+
+    private static String getRequiredParameter(final HttpServletRequest req, final String name) {
+        final String value = req.getParameter(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + name + " parameter");
+        }
+        return value;
+    }
+
+    private void writeJson(final PrintWriter writer) {
+        final long[] percentileValues = new long[PERCENTILES.length];
+
+        writer.print("{\"uptimeSeconds\":");
+        writer.print(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTimeMillis));
+
+        writer.print(",\"operations\":{");
+        boolean firstOperation = true;
+        for (final String operation : getOperations()) {
+            if (!firstOperation) {
+                writer.print(',');
+            }
+            firstOperation = false;
+            writeJsonString(writer, operation);
+            writer.print(":{");
+
+            final MonerisRateMeter gatewayRate = monerisMetrics.getGatewayRates().get(operation);
+            writer.print("\"gatewayRequestsPerSecond\":");
+            writer.print(gatewayRate == null ? 0.0 : gatewayRate.getOneMinuteRate());
+
+            writer.print(",\"latencies\":{");
+            final ConcurrentMap<MonerisMetrics.Phase, MonerisLatencyHistogram> latencies = monerisMetrics.getLatencies().get(operation);
+            if (latencies != null) {
+                boolean firstPhase = true;
+                for (final MonerisMetrics.Phase phase : MonerisMetrics.Phase.values()) {
+                    final MonerisLatencyHistogram histogram = latencies.get(phase);
+                    if (histogram.getCount() == 0) {
+                        continue;
+                    }
+                    if (!firstPhase) {
+                        writer.print(',');
+                    }
+                    firstPhase = false;
+                    writeJsonString(writer, phase.toString());
+                    writer.print(":{\"count\":");
+                    writer.print(histogram.getCount());
+                    histogram.getValuesAtPercentilesMicros(PERCENTILES, percentileValues);
+                    for (int i = 0; i < PERCENTILES.length; i++) {
+                        writer.print(",\"");
+                        writer.print(PERCENTILE_NAMES[i]);
+                        writer.print("Micros\":");
+                        writer.print(percentileValues[i]);
+                    }
+                    writer.print(",\"maxMicros\":");
+                    writer.print(histogram.getMaxMicros());
+                    writer.print('}');
+                }
+            }
+            writer.print('}');
+
+            writer.print(",\"inFlight\":{");
+            final ConcurrentMap<MonerisMetrics.Phase, AtomicInteger> inFlight = monerisMetrics.getInFlight().get(operation);
+            if (inFlight != null) {
+                boolean firstPhase = true;
+                for (final MonerisMetrics.Phase phase : MonerisMetrics.Phase.values()) {
+                    if (!firstPhase) {
+                        writer.print(',');
+                    }
+                    firstPhase = false;
+                    writeJsonString(writer, phase.toString());
+                    writer.print(':');
+                    writer.print(inFlight.get(phase).get());
+                }
+            }
+            writer.print('}');
+
+            writer.print(",\"responseCodes\":");
+            writeJsonCounters(writer, monerisMetrics.getResponseCodes().get(operation));
+            writer.print(",\"isoCodes\":");
+            writeJsonCounters(writer, monerisMetrics.getIsoCodes().get(operation));
+            writer.print(",\"timeouts\":");
+            final AtomicLong timeouts = monerisMetrics.getTimeouts().get(operation);
+            writer.print(timeouts == null ? 0 : timeouts.get());
+            writer.print('}');
+        }
+        writer.print('}');
+
+        writer.print(",\"gauges\":{");
+        boolean firstGauge = true;
+        for (final Map.Entry<String, MonerisMetrics.Gauge> gauge : monerisMetrics.getGauges().entrySet()) {
+            if (!firstGauge) {
+                writer.print(',');
+            }
+            firstGauge = false;
+            writeJsonString(writer, gauge.getKey());
+            writer.print(':');
+            writer.print(gauge.getValue().getValue());
+        }
+        writer.print('}');
+
+        writer.print(",\"recentErrors\":{\"windowSeconds\":");
+        writer.print(TimeUnit.MILLISECONDS.toSeconds(RECENT_ERRORS_WINDOW_MILLIS));
+        for (final Map.Entry<String, Map<String, Integer>> operationErrors : monerisMetrics.getRecentErrors(System.currentTimeMillis() - RECENT_ERRORS_WINDOW_MILLIS).entrySet()) {
+            writer.print(',');
+            writeJsonString(writer, operationErrors.getKey());
+            writer.print(":{");
+            boolean firstError = true;
+            for (final Map.Entry<String, Integer> error : operationErrors.getValue().entrySet()) {
+                if (!firstError) {
+                    writer.print(',');
+                }
+                firstError = false;
+                writeJsonString(writer, error.getKey());
+                writer.print(':');
+                writer.print(error.getValue().intValue());
+            }
+            writer.print('}');
+        }
+        writer.print("}}");
+        writer.flush();
+    }
+
+    private void writePrometheus(final PrintWriter writer) {
+        final long[] cumulativeCounts = new long[BUCKET_BOUNDS_MICROS.length];
+
+        writer.print("# TYPE moneris_latency_seconds histogram\n");
+        for (final Map.Entry<String, ConcurrentMap<MonerisMetrics.Phase, MonerisLatencyHistogram>> latencies : monerisMetrics.getLatencies().entrySet()) {
+            for (final MonerisMetrics.Phase phase : MonerisMetrics.Phase.values()) {
+                final MonerisLatencyHistogram histogram = latencies.getValue().get(phase);
+                // Read the count first, so that buckets are never greater than _count
+                final long count = histogram.getCount();
+                final long sumMicros = histogram.getSumMicros();
+                histogram.getCumulativeCountsMicros(BUCKET_BOUNDS_MICROS, cumulativeCounts);
+                for (int i = 0; i < BUCKET_BOUNDS_MICROS.length; i++) {
+                    writePrometheusName(writer, "moneris_latency_seconds_bucket", "operation", latencies.getKey(), "phase", phase.toString());
+                    writer.print(",le=\"");
+                    writer.print(BUCKET_NAMES[i]);
+                    writer.print("\"} ");
+                    writer.print(Math.min(cumulativeCounts[i], count));
+                    writer.print('\n');
+                }
+                writePrometheusName(writer, "moneris_latency_seconds_bucket", "operation", latencies.getKey(), "phase", phase.toString());
+                writer.print(",le=\"+Inf\"} ");
+                writer.print(count);
+                writer.print('\n');
+                writePrometheusName(writer, "moneris_latency_seconds_sum", "operation", latencies.getKey(), "phase", phase.toString());
+                writer.print("} ");
+                writer.print(sumMicros / 1000000.0);
+                writer.print('\n');
+                writePrometheusName(writer, "moneris_latency_seconds_count", "operation", latencies.getKey(), "phase", phase.toString());
+                writer.print("} ");
+                writer.print(count);
+                writer.print('\n');
+            }
+        }
+
+        writer.print("# TYPE moneris_in_flight gauge\n");
+        for (final Map.Entry<String, ConcurrentMap<MonerisMetrics.Phase, AtomicInteger>> inFlight : monerisMetrics.getInFlight().entrySet()) {
+            for (final MonerisMetrics.Phase phase : MonerisMetrics.Phase.values()) {
+                writePrometheusName(writer, "moneris_in_flight", "operation", inFlight.getKey(), "phase", phase.toString());
+                writer.print("} ");
+                writer.print(inFlight.getValue().get(phase).get());
+                writer.print('\n');
+            }
+        }
+
+        writer.print("# TYPE moneris_responses_total counter\n");
+        for (final Map.Entry<String, ConcurrentMap<MonerisMetrics.ResponseCodeBucket, AtomicLong>> responseCodes : monerisMetrics.getResponseCodes().entrySet()) {
+            for (final Map.Entry<MonerisMetrics.ResponseCodeBucket, AtomicLong> responseCode : responseCodes.getValue().entrySet()) {
+                writePrometheusName(writer, "moneris_responses_total", "operation", responseCodes.getKey(), "bucket", responseCode.getKey().toString());
+                writer.print("} ");
+                writer.print(responseCode.getValue().get());
+                writer.print('\n');
+            }
+        }
+
+        writer.print("# TYPE moneris_iso_codes_total counter\n");
+        for (final Map.Entry<String, ConcurrentMap<String, AtomicLong>> isoCodes : monerisMetrics.getIsoCodes().entrySet()) {
+            for (final Map.Entry<String, AtomicLong> isoCode : isoCodes.getValue().entrySet()) {
+                writePrometheusName(writer, "moneris_iso_codes_total", "operation", isoCodes.getKey(), "iso", isoCode.getKey());
+                writer.print("} ");
+                writer.print(isoCode.getValue().get());
+                writer.print('\n');
+            }
+        }
+
+        writer.print("# TYPE moneris_timeouts_total counter\n");
+        for (final Map.Entry<String, AtomicLong> timeouts : monerisMetrics.getTimeouts().entrySet()) {
+            writePrometheusName(writer, "moneris_timeouts_total", "operation", timeouts.getKey(), null, null);
+            writer.print("} ");
+            writer.print(timeouts.getValue().get());
+            writer.print('\n');
+        }
+
+        for (final Map.Entry<String, MonerisMetrics.Gauge> gauge : monerisMetrics.getGauges().entrySet()) {
+            writer.print("# TYPE ");
+            writer.print(gauge.getKey());
+            writer.print(" gauge\n");
+            writer.print(gauge.getKey());
+            writer.print(' ');
+            writer.print(gauge.getValue().getValue());
+            writer.print('\n');
+        }
+        writer.flush();
+    }
+
+    private void writeJsonEvents(final PrintWriter writer, final long sinceMillis) {
+        writer.print('[');
+        boolean first = true;
+        for (final MonerisFlightRecorder.Event event : monerisFlightRecorder.getEvents(sinceMillis)) {
+            if (!first) {
+                writer.print(',');
+            }
+            first = false;
+            writer.print("{\"eventType\":");
+            writeJsonString(writer, event.getEventType().toString());
+            writer.print(",\"startMillis\":");
+            writer.print(event.getStartMillis());
+            writer.print(",\"durationMicros\":");
+            writer.print(TimeUnit.NANOSECONDS.toMicros(event.getDurationNanos()));
+            writer.print(",\"thread\":");
+            writeJsonString(writer, event.getThreadName());
+            writer.print(",\"operation\":");
+            writeJsonString(writer, event.getOperation());
+            if (event.getEventType() == MonerisFlightRecorder.EventType.GATEWAY_EXCHANGE) {
+                writer.print(",\"storeId\":");
+                writeJsonString(writer, event.getStoreId());
+                writer.print(",\"responseCode\":");
+                if (event.getResponseCode() == null) {
+                    writer.print("null");
+                } else {
+                    writeJsonString(writer, event.getResponseCode());
+                }
+                writer.print(",\"timedOut\":");
+                writer.print(event.isTimedOut());
+            } else {
+                writer.print(",\"rows\":");
+                writer.print(event.getRows());
+            }
+            writer.print('}');
+        }
+        writer.print(']');
+        writer.flush();
+    }
+
+    private static void writeJsonPaymentInfo(final PrintWriter writer, final Set<UUID> kbPaymentIds, final Map<UUID, List<PaymentTransactionInfoPlugin>> transactionsByPaymentId) {
+        writer.print('{');
+        boolean firstPayment = true;
+        for (final UUID kbPaymentId : kbPaymentIds) {
+            if (!firstPayment) {
+                writer.print(',');
+            }
+            firstPayment = false;
+            writeJsonString(writer, kbPaymentId.toString());
+            writer.print(":[");
+            final List<PaymentTransactionInfoPlugin> transactions = transactionsByPaymentId.get(kbPaymentId);
+            if (transactions != null) {
+                boolean firstTransaction = true;
+                for (final PaymentTransactionInfoPlugin transaction : transactions) {
+                    if (!firstTransaction) {
+                        writer.print(',');
+                    }
+                    firstTransaction = false;
+                    writer.print("{\"transactionId\":");
+                    writeJsonString(writer, transaction.getKbTransactionPaymentId() == null ? null : transaction.getKbTransactionPaymentId().toString());
+                    writer.print(",\"transactionType\":");
+                    writeJsonString(writer, transaction.getTransactionType() == null ? null : transaction.getTransactionType().toString());
+                    writer.print(",\"amount\":");
+                    writer.print(transaction.getAmount() == null ? "null" : transaction.getAmount().toPlainString());
+                    writer.print(",\"currency\":");
+                    writeJsonString(writer, transaction.getCurrency() == null ? null : transaction.getCurrency().toString());
+                    writer.print(",\"status\":");
+                    writeJsonString(writer, transaction.getStatus() == null ? null : transaction.getStatus().toString());
+                    writer.print(",\"gatewayErrorCode\":");
+                    writeJsonString(writer, transaction.getGatewayErrorCode());
+                    writer.print(",\"gatewayError\":");
+                    writeJsonString(writer, transaction.getGatewayError());
+                    writer.print(",\"firstPaymentReferenceId\":");
+                    writeJsonString(writer, transaction.getFirstPaymentReferenceId());
+                    writer.print(",\"secondPaymentReferenceId\":");
+                    writeJsonString(writer, transaction.getSecondPaymentReferenceId());
+                    writer.print(",\"createdDate\":");
+                    writeJsonString(writer, transaction.getCreatedDate() == null ? null : transaction.getCreatedDate().toString());
+                    writer.print('}');
+                }
+            }
+            writer.print(']');
+        }
+        writer.print('}');
+        writer.flush();
+    }
+
+    private static void writeJsonDailyTotals(final PrintWriter writer, final List<MonerisDailyTotal> dailyTotals) {
+        writer.print('[');
+        boolean first = true;
+        for (final MonerisDailyTotal dailyTotal : dailyTotals) {
+            if (!first) {
+                writer.print(',');
+            }
+            first = false;
+            writer.print("{\"day\":");
+            writeJsonString(writer, dailyTotal.getDay());
+            writer.print(",\"store\":");
+            writeJsonString(writer, dailyTotal.getStore());
+            writer.print(",\"cardType\":");
+            writeJsonString(writer, dailyTotal.getCardType());
+            writer.print(",\"transactionType\":");
+            writeJsonString(writer, dailyTotal.getTransactionType());
+            writer.print(",\"status\":");
+            writeJsonString(writer, dailyTotal.getStatus());
+            writer.print(",\"currency\":");
+            writeJsonString(writer, dailyTotal.getCurrency());
+            writer.print(",\"nbTransactions\":");
+            writer.print(dailyTotal.getNbTransactions());
+            writer.print(",\"amount\":");
+            writer.print(dailyTotal.getAmount().toPlainString());
+            writer.print('}');
+        }
+        writer.print(']');
+        writer.flush();
+    }
+
+    private Iterable<String> getOperations() {
+        final TreeSet<String> operations = new TreeSet<String>(monerisMetrics.getLatencies().keySet());
+        operations.addAll(monerisMetrics.getResponseCodes().keySet());
+        return operations;
+    }
+
+    private static <K> void writeJsonCounters(final PrintWriter writer, final Map<K, AtomicLong> counters) {
+        writer.print('{');
+        if (counters != null) {
+            boolean first = true;
+            for (final Map.Entry<K, AtomicLong> counter : counters.entrySet()) {
+                if (!first) {
+                    writer.print(',');
+                }
+                first = false;
+                writeJsonString(writer, counter.getKey().toString());
+                writer.print(':');
+                writer.print(counter.getValue().get());
+            }
+        }
+        writer.print('}');
+    }
+
+    private static void writeJsonString(final PrintWriter writer, @Nullable final String value) {
+        if (value == null) {
+            writer.print("null");
+            return;
+        }
+        writer.print('"');
+        writeEscaped(writer, value);
+        writer.print('"');
+    }
+
+    // Leaves the label set open, so that callers can add more labels
+    private static void writePrometheusName(final PrintWriter writer, final String name, final String label1, final String value1, final String label2, final String value2) {
+        writer.print(name);
+        writer.print('{');
+        writer.print(label1);
+        writer.print("=\"");
+        writeEscaped(writer, value1);
+        writer.print('"');
+        if (label2 != null) {
+            writer.print(',');
+            writer.print(label2);
+            writer.print("=\"");
+            writeEscaped(writer, value2);
+            writer.print('"');
+        }
+    }
+
+    // Same escaping rules for JSON strings and Prometheus label values (for the characters we can encounter)
+    private static void writeEscaped(final PrintWriter writer, final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.print('\\');
+                writer.print(c);
+            } else if (c == '\n') {
+                writer.print("\\n");
+            } else if (c >= 0x20) {
+                writer.print(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.killbill.billing.plugin.moneris.dao.MonerisRowHandler;
+
+/**
+ * Reconciles a Moneris settlement (or batch) report against moneris_transactions.
+ * <p/>
+ * The report is a CSV file with a header line, which must name (in any order, case and punctuation ignored) the receipt id
+ * (receipt_id or order_id), reference number (reference_num), transaction number (txn_number) and amount columns. Lines without
+ * a transaction number (e.g. totals) are skipped. Values may be quoted, but not span several lines.
+ * <p/>
+ * The file is memory-mapped and parsed in parallel chunks (split on line boundaries), then hash-joined on
+ * receipt id, reference number and transaction number against the processed transactions of the tenant,
+ * read in slices ordered by receipt id so that the ledger side never has to fit in memory.
+ */
+public class MonerisSettlementReconciler {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[][] COLUMN_NAMES = {{"receiptid", "orderid"}, {"referencenum", "referencenumber"}, {"txnnumber", "transactionnumber"}, {"amount", "transamount"}};
+    private static final int RECEIPT_ID = 0;
+    private static final int REFERENCE_NUM = 1;
+    private static final int TXN_NUMBER = 2;
+    private static final int AMOUNT = 3;
+    // Below this, a chunk isn't worth a task
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+    private final MonerisDao monerisDao;
+    private final int nbThreads;
+    private final int sliceSize;
+
+    public MonerisSettlementReconciler(final MonerisDao monerisDao, final int nbThreads, final int sliceSize) {
+        this.monerisDao = monerisDao;
+        this.nbThreads = nbThreads;
+        this.sliceSize = sliceSize;
+    }
+
+    /**
+     * @param from inclusive (on created_date): should cover the transactions of the report
+     * @param to   exclusive
+     */
+    public MonerisSettlementReconciliation reconcile(final File report, final UUID kbTenantId, final DateTime from, final DateTime to) throws IOException {
+        final List<MonerisSettlementRow> reportRows;
+        final ExecutorService executor = Executors.newFixedThreadPool(nbThreads, new MonerisThreadFactory("moneris-settlement"));
+        try {
+            reportRows = parse(report, executor, nbThreads);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final Join join = new Join(reportRows);
+        final LedgerSlice slice = new LedgerSlice(join);
+        int nbRows;
+        do {
+            nbRows = monerisDao.getProcessedTransactionsSlice(kbTenantId, from, to, slice.lastReceiptId, slice.lastRecordId, sliceSize, slice);
+        } while (nbRows == sliceSize);
+        return join.finish();
+    }
+
+    /**
+     * Parse a report file, in up to nbChunks chunks in parallel.
+     *
+     * @return the rows, in file order
+     */
+    static List<MonerisSettlementRow> parse(final File report, final ExecutorService executor, final int nbChunks) throws IOException {
+        final ByteBuffer buffer;
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(report, "r");
+        try {
+            if (randomAccessFile.length() > Integer.MAX_VALUE) {
+                throw new IOException("Settlement report " + report + " is too large");
+            }
+            // The mapping stays valid once the file is closed
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        final int size = buffer.limit();
+        final int headerEnd = nextLine(buffer, 0, size);
+        final int[] slots = toSlots(report, buffer, headerEnd);
+
+        // Split the rest on line boundaries
+        final int nbTasks = Math.max(1, Math.min(nbChunks, (size - headerEnd) / MIN_CHUNK_SIZE));
+        final List<Future<List<MonerisSettlementRow>>> chunks = new ArrayList<Future<List<MonerisSettlementRow>>>(nbTasks);
+        int chunkStart = headerEnd;
+        for (int i = 1; i <= nbTasks; i++) {
+            final int start = chunkStart;
+            final int end = i == nbTasks ? size : Math.max(start, nextLine(buffer, headerEnd + (int) ((long) (size - headerEnd) * i / nbTasks) - 1, size));
+            chunks.add(executor.submit(new Callable<List<MonerisSettlementRow>>() {
+                @Override
+                public List<MonerisSettlementRow> call() throws IOException {
+                    return parseChunk(buffer.duplicate(), start, end, slots);
+                }
+            }));
+            chunkStart = end;
+        }
+
+        final List<MonerisSettlementRow> rows = new ArrayList<MonerisSettlementRow>();
+        try {
+            for (final Future<List<MonerisSettlementRow>> chunk : chunks) {
+                rows.addAll(chunk.get());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing settlement report " + report);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to parse settlement report " + report, e.getCause());
+        }
+        return rows;
+    }
+
+    private static int[] toSlots(final File report, final ByteBuffer buffer, final int headerEnd) throws IOException {
+        // Header names have no quotes to unescape, but their number isn't known yet
+        final int nbColumns = countColumns(buffer, 0, headerEnd);
+        final int[] allColumns = new int[nbColumns];
+        for (int i = 0; i < nbColumns; i++) {
+            allColumns[i] = i;
+        }
+        final String[] names = new String[nbColumns];
+        parseLine(buffer, 0, lineContentEnd(buffer, 0, headerEnd), allColumns, names, new byte[headerEnd]);
+
+        final int[] slots = new int[nbColumns];
+        final boolean[] found = new boolean[COLUMN_NAMES.length];
+        for (int i = 0; i < nbColumns; i++) {
+            slots[i] = -1;
+            final String name = names[i] == null ? "" : names[i].toLowerCase().replaceAll("[^a-z0-9]", "");
+            for (int slot = 0; slot < COLUMN_NAMES.length; slot++) {
+                for (final String columnName : COLUMN_NAMES[slot]) {
+                    if (!found[slot] && columnName.equals(name)) {
+                        slots[i] = slot;
+                        found[slot] = true;
+                    }
+                }
+            }
+        }
+        for (int slot = 0; slot < COLUMN_NAMES.length; slot++) {
+            if (!found[slot]) {
+                throw new IOException("Settlement report " + report + " has no " + COLUMN_NAMES[slot][0] + " column");
+            }
+        }
+        return slots;
+    }
+
+    private static List<MonerisSettlementRow> parseChunk(final ByteBuffer buffer, final int start, final int end, final int[] slots) throws IOException {
+        final List<MonerisSettlementRow> rows = new ArrayList<MonerisSettlementRow>();
+        final String[] values = new String[COLUMN_NAMES.length];
+        byte[] scratch = new byte[256];
+        int lineStart = start;
+        while (lineStart < end) {
+            final int lineEnd = nextLine(buffer, lineStart, end);
+            final int contentEnd = lineContentEnd(buffer, lineStart, lineEnd);
+            if (contentEnd - lineStart > scratch.length) {
+                scratch = new byte[contentEnd - lineStart];
+            }
+
+            for (int i = 0; i < values.length; i++) {
+                values[i] = null;
+            }
+            parseLine(buffer, lineStart, contentEnd, slots, values, scratch);
+            if (values[TXN_NUMBER] != null && !values[TXN_NUMBER].isEmpty()) {
+                if (values[RECEIPT_ID] == null || values[AMOUNT] == null) {
+                    throw new IOException("Truncated settlement report line at offset " + lineStart);
+                }
+                final BigDecimal amount;
+                try {
+                    amount = new BigDecimal(values[AMOUNT]);
+                } catch (final NumberFormatException e) {
+                    throw new IOException("Invalid amount " + values[AMOUNT] + " in settlement report line at offset " + lineStart);
+                }
+                rows.add(new MonerisSettlementRow(values[RECEIPT_ID], values[REFERENCE_NUM], values[TXN_NUMBER], amount, null));
+            }
+            lineStart = lineEnd;
+        }
+        return rows;
+    }
+
+    /**
+     * Parse the CSV line [start, end), storing the value of column i (trimmed) in values[slots[i]], if slots[i] >= 0.
+     */
+    private static void parseLine(final ByteBuffer buffer, final int start, final int end, final int[] slots, final String[] values, final byte[] scratch) {
+        int position = start;
+        for (int column = 0; position <= end; column++) {
+            int length = 0;
+            if (position < end && buffer.get(position) == '"') {
+                position++;
+                while (position < end) {
+                    final byte b = buffer.get(position++);
+                    if (b != '"') {
+                        scratch[length++] = b;
+                    } else if (position < end && buffer.get(position) == '"') {
+                        scratch[length++] = b;
+                        position++;
+                    } else {
+                        break;
+                    }
+                }
+                // Ignore anything between the closing quote and the separator
+                while (position < end && buffer.get(position) != ',') {
+                    position++;
+                }
+            } else {
+                while (position < end && buffer.get(position) != ',') {
+                    scratch[length++] = buffer.get(position++);
+                }
+            }
+
+            if (column < slots.length && slots[column] >= 0) {
+                values[slots[column]] = new String(scratch, 0, length, UTF_8).trim();
+            }
+            // Skip the separator (or step past the end)
+            position++;
+        }
+    }
+
+    private static int countColumns(final ByteBuffer buffer, final int start, final int end) {
+        int nbColumns = 1;
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == ',') {
+                nbColumns++;
+            }
+        }
+        return nbColumns;
+    }
+
+    /**
+     * @return the start of the line following position (position itself if it follows a line feed), or end
+     */
+    private static int nextLine(final ByteBuffer buffer, final int position, final int end) {
+        for (int i = Math.max(position, 0); i < end; i++) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    private static int lineContentEnd(final ByteBuffer buffer, final int lineStart, final int lineEnd) {
+        int contentEnd = lineEnd;
+        while (contentEnd > lineStart && (buffer.get(contentEnd - 1) == '\n' || buffer.get(contentEnd - 1) == '\r')) {
+            contentEnd--;
+        }
+        return contentEnd;
+    }
+
+    /**
+     * Hash join: the report rows are the build side, ledger rows are probed against them as they are read.
+     */
+    static final class Join {
+
+        private final Map<String, MonerisSettlementRow> reportRows;
+        private final MonerisSettlementReconciliation reconciliation = new MonerisSettlementReconciliation();
+
+        Join(final List<MonerisSettlementRow> rows) {
+            this.reportRows = new HashMap<String, MonerisSettlementRow>(Math.max(16, rows.size() * 4 / 3 + 1));
+            for (final MonerisSettlementRow row : rows) {
+                if (reportRows.containsKey(row.getKey())) {
+                    // Settled twice: only one can match
+                    reconciliation.addMissingFromLedger(row);
+                } else {
+                    reportRows.put(row.getKey(), row);
+                }
+            }
+        }
+
+        void probe(final MonerisSettlementRow ledgerRow) {
+            final MonerisSettlementRow reportRow = reportRows.remove(ledgerRow.getKey());
+            if (reportRow == null) {
+                reconciliation.addMissingFromReport(ledgerRow);
+            } else if (reportRow.getAmount().compareTo(ledgerRow.getAmount()) == 0) {
+                reconciliation.addMatched(ledgerRow);
+            } else {
+                reconciliation.addAmountMismatch(reportRow, ledgerRow);
+            }
+        }
+
+        MonerisSettlementReconciliation finish() {
+            for (final MonerisSettlementRow reportRow : reportRows.values()) {
+                reconciliation.addMissingFromLedger(reportRow);
+            }
+            reportRows.clear();
+            return reconciliation;
+        }
+    }
+
+    private static final class LedgerSlice implements MonerisRowHandler {
+
+        private final Join join;
+        // Keys of the last row read, to resume from
+        private String lastReceiptId = null;
+        private long lastRecordId = 0;
+
+        private LedgerSlice(final Join join) {
+            this.join = join;
+        }
+
+        @Override
+        public boolean onRow(final ResultSet r) throws SQLException {
+            lastReceiptId = r.getString("receipt_receipt_id");
+            lastRecordId = r.getLong("record_id");
+
+            // Compare with what Moneris processed, if known
+            final String transAmount = r.getString("receipt_trans_amount");
+            join.probe(new MonerisSettlementRow(lastReceiptId,
+                                                r.getString("receipt_reference_num"),
+                                                r.getString("receipt_txn_number"),
+                                                transAmount == null ? r.getBigDecimal("amount") : new BigDecimal(transAmount),
+                                                UUID.fromString(r.getString("kb_transaction_id"))));
+            return true;
+        }
+    }
+}
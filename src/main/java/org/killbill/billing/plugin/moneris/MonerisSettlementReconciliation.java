@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.PrintWriter;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Outcome of the reconciliation of a Moneris settlement report against moneris_transactions.
+ */
+public class MonerisSettlementReconciliation {
+
+    private final List<MonerisSettlementRow> matched = new LinkedList<MonerisSettlementRow>();
+    // Pairs of report row, ledger row
+    private final List<MonerisSettlementRow[]> amountMismatches = new LinkedList<MonerisSettlementRow[]>();
+    private final List<MonerisSettlementRow> missingFromLedger = new LinkedList<MonerisSettlementRow>();
+    private final List<MonerisSettlementRow> missingFromReport = new LinkedList<MonerisSettlementRow>();
+
+    void addMatched(final MonerisSettlementRow ledgerRow) {
+        matched.add(ledgerRow);
+    }
+
+    void addAmountMismatch(final MonerisSettlementRow reportRow, final MonerisSettlementRow ledgerRow) {
+        amountMismatches.add(new MonerisSettlementRow[]{reportRow, ledgerRow});
+    }
+
+    void addMissingFromLedger(final MonerisSettlementRow reportRow) {
+        missingFromLedger.add(reportRow);
+    }
+
+    void addMissingFromReport(final MonerisSettlementRow ledgerRow) {
+        missingFromReport.add(ledgerRow);
+    }
+
+    /**
+     * @return ledger rows settled for the same amount
+     */
+    public List<MonerisSettlementRow> getMatched() {
+        return matched;
+    }
+
+    /**
+     * @return pairs of report row, ledger row settled for different amounts
+     */
+    public List<MonerisSettlementRow[]> getAmountMismatches() {
+        return amountMismatches;
+    }
+
+    /**
+     * @return report rows with no transaction in the ledger (including duplicates in the report)
+     */
+    public List<MonerisSettlementRow> getMissingFromLedger() {
+        return missingFromLedger;
+    }
+
+    /**
+     * @return processed ledger rows which weren't settled
+     */
+    public List<MonerisSettlementRow> getMissingFromReport() {
+        return missingFromReport;
+    }
+
+    /**
+     * Write the outcome as CSV (RFC 4180), one line per transaction.
+     */
+    public void write(final PrintWriter writer) {
+        writer.append("status,receipt_id,reference_num,txn_number,reported_amount,ledger_amount,kb_transaction_id\r\n");
+        final StringBuilder line = new StringBuilder(256);
+        for (final MonerisSettlementRow ledgerRow : matched) {
+            writeLine(writer, line, "MATCHED", ledgerRow, ledgerRow, ledgerRow);
+        }
+        for (final MonerisSettlementRow[] rows : amountMismatches) {
+            writeLine(writer, line, "AMOUNT_MISMATCH", rows[0], rows[0], rows[1]);
+        }
+        for (final MonerisSettlementRow reportRow : missingFromLedger) {
+            writeLine(writer, line, "MISSING_FROM_LEDGER", reportRow, reportRow, null);
+        }
+        for (final MonerisSettlementRow ledgerRow : missingFromReport) {
+            writeLine(writer, line, "MISSING_FROM_REPORT", ledgerRow, null, ledgerRow);
+        }
+        writer.flush();
+    }
+
+    private static void writeLine(final PrintWriter writer, final StringBuilder line, final String status, final MonerisSettlementRow row,
+                                  final MonerisSettlementRow reportRow, final MonerisSettlementRow ledgerRow) {
+        line.setLength(0);
+        line.append(status).append(',');
+        MonerisTransactionExporter.appendCsvValue(line, row.getReceiptId());
+        line.append(',');
+        MonerisTransactionExporter.appendCsvValue(line, row.getReferenceNum());
+        line.append(',');
+        MonerisTransactionExporter.appendCsvValue(line, row.getTxnNumber());
+        line.append(',');
+        if (reportRow != null) {
+            line.append(reportRow.getAmount().toPlainString());
+        }
+        line.append(',');
+        if (ledgerRow != null) {
+            line.append(ledgerRow.getAmount().toPlainString()).append(',').append(ledgerRow.getKbTransactionId());
+        } else {
+            line.append(',');
+        }
+        writer.append(line).append("\r\n");
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("MonerisSettlementReconciliation{");
+        sb.append("matched=").append(matched.size());
+        sb.append(", amountMismatches=").append(amountMismatches.size());
+        sb.append(", missingFromLedger=").append(missingFromLedger.size());
+        sb.append(", missingFromReport=").append(missingFromReport.size());
+        sb.append('}');
+        return sb.toString();
+    }
+}
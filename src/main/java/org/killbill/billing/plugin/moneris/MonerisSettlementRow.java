@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+/**
+ * A transaction, as seen either by a Moneris settlement report or by our ledger (moneris_transactions).
+ */
+public class MonerisSettlementRow {
+
+    private final String receiptId;
+    private final String referenceNum;
+    private final String txnNumber;
+    private final BigDecimal amount;
+    private final UUID kbTransactionId;
+
+    public MonerisSettlementRow(final String receiptId, @Nullable final String referenceNum, final String txnNumber, final BigDecimal amount, @Nullable final UUID kbTransactionId) {
+        this.receiptId = receiptId;
+        this.referenceNum = referenceNum;
+        this.txnNumber = txnNumber;
+        this.amount = amount;
+        this.kbTransactionId = kbTransactionId;
+    }
+
+    /**
+     * @return the join key between report and ledger rows
+     */
+    public String getKey() {
+        return receiptId + '\u0000' + referenceNum + '\u0000' + txnNumber;
+    }
+
+    public String getReceiptId() {
+        return receiptId;
+    }
+
+    public String getReferenceNum() {
+        return referenceNum;
+    }
+
+    public String getTxnNumber() {
+        return txnNumber;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    /**
+     * @return null for report rows
+     */
+    public UUID getKbTransactionId() {
+        return kbTransactionId;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("MonerisSettlementRow{");
+        sb.append("receiptId='").append(receiptId).append('\'');
+        sb.append(", referenceNum='").append(referenceNum).append('\'');
+        sb.append(", txnNumber='").append(txnNumber).append('\'');
+        sb.append(", amount=").append(amount);
+        sb.append(", kbTransactionId=").append(kbTransactionId);
+        sb.append('}');
+        return sb.toString();
+    }
+}
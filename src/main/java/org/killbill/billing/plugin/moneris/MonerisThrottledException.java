@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+/**
+ * A request was not sent to Moneris, to stay within a rate limit (see MonerisTokenBucket) or because no gateway slot was available
+ * (see MonerisFairScheduler, and the MonerisGateway bulkhead): it can safely be retried later.
+ */
+public class MonerisThrottledException extends RuntimeException {
+
+    public MonerisThrottledException(final String message) {
+        super(message);
+    }
+
+    public MonerisThrottledException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket, as its GCRA equivalent (generic cell rate algorithm): the whole state is the theoretical arrival time of the next
+ * request, so that taking a token is a single compare-and-set, without locking.
+ * <p/>
+ * Unlike MonerisRateLimiter, callers which would have to wait too long get rejected instead, without consuming a token.
+ */
+public class MonerisTokenBucket {
+
+    private final long intervalNanos;
+    private final long burst;
+    private final long toleranceNanos;
+    private final AtomicLong theoreticalArrivalNanos;
+
+    /**
+     * @param burst number of requests which can go through at once after an idle period (bucket size)
+     */
+    public MonerisTokenBucket(final double permitsPerSecond, final int burst) {
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.burst = Math.max(1, burst);
+        this.toleranceNanos = (this.burst - 1) * intervalNanos;
+        this.theoreticalArrivalNanos = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Take a token, now or in the future.
+     *
+     * @return how long to wait before using the token (0 if it can be used right away), or -1 if that would be more than maxWaitNanos
+     * (no token is taken then)
+     */
+    public long reserve(final long maxWaitNanos) {
+        while (true) {
+            final long now = System.nanoTime();
+            final long arrivalNanos = theoreticalArrivalNanos.get();
+            final long startNanos = arrivalNanos - now > 0 ? arrivalNanos : now;
+            final long waitNanos = Math.max(0, startNanos - toleranceNanos - now);
+            if (waitNanos > maxWaitNanos) {
+                return -1;
+            }
+            if (theoreticalArrivalNanos.compareAndSet(arrivalNanos, startNanos + intervalNanos)) {
+                return waitNanos;
+            }
+        }
+    }
+
+    /**
+     * Take a token, waiting for it if need be.
+     *
+     * @param description what the bucket is for, for errors
+     * @throws MonerisThrottledException if it would have to wait more than maxWaitNanos
+     */
+    public void acquire(final long maxWaitNanos, final String description) {
+        final long waitNanos = reserve(maxWaitNanos);
+        if (waitNanos < 0) {
+            throw new MonerisThrottledException("Rate limit reached for " + description);
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MonerisThrottledException("Interrupted while waiting on the rate limit for " + description, e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of tokens left (0 if callers are waiting)
+     */
+    public double getNbTokens() {
+        final long now = System.nanoTime();
+        final long arrivalNanos = theoreticalArrivalNanos.get();
+        final long startNanos = arrivalNanos - now > 0 ? arrivalNanos : now;
+        return Math.max(0, Math.min(burst, (now + burst * intervalNanos - startNanos) / (double) intervalNanos));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.PrintWriter;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.killbill.billing.plugin.moneris.dao.MonerisRowHandler;
+
+/**
+ * Exports moneris_transactions as CSV (RFC 4180), e.g. a month at a time for reconciliation. Rows are written to the
+ * output as they are read from the database, so memory use doesn't depend on the size of the export.
+ */
+public class MonerisTransactionExporter {
+
+    static final String[] COLUMNS = {"kb_account_id", "kb_payment_id", "kb_transaction_id", "kb_payment_method_id", "transaction_type", "amount", "currency",
+                                     "transaction_effective_date", "transaction_status", "transaction_gateway_error", "transaction_gateway_error_code",
+                                     "receipt_is_visa_debit", "receipt_status_message", "receipt_status_code", "receipt_cavv_result_code", "receipt_cvd_result_code",
+                                     "receipt_avs_result_code", "receipt_recur_success", "receipt_ticket", "receipt_timed_out", "receipt_txn_number", "receipt_card_type",
+                                     "receipt_trans_amount", "receipt_message", "receipt_complete", "receipt_trans_type", "receipt_trans_date", "receipt_trans_time",
+                                     "receipt_auth_code", "receipt_iso", "receipt_response_code", "receipt_reference_num", "receipt_receipt_id",
+                                     "created_date", "updated_date"};
+
+    // How often to check whether the client is still there
+    private static final int CHECK_ERROR_INTERVAL = 1000;
+
+    private final MonerisDao monerisDao;
+    private final int fetchSize;
+
+    public MonerisTransactionExporter(final MonerisDao monerisDao, final int fetchSize) {
+        this.monerisDao = monerisDao;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * @param from            inclusive (on created_date)
+     * @param to              exclusive
+     * @param transactionType null for all types
+     * @return the number of rows exported, or -1 if writing failed (e.g. the client went away)
+     */
+    public int export(final UUID kbTenantId, final DateTime from, final DateTime to, @Nullable final TransactionType transactionType, final PrintWriter writer) {
+        final StringBuilder line = new StringBuilder(512);
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append(COLUMNS[i]);
+        }
+        writer.append(line).append("\r\n");
+
+        final int[] nbRows = {0};
+        final boolean[] failed = {false};
+        monerisDao.streamTransactions(kbTenantId, from, to, transactionType, fetchSize, new MonerisRowHandler() {
+            @Override
+            public boolean onRow(final ResultSet r) throws SQLException {
+                line.setLength(0);
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    if (i > 0) {
+                        line.append(',');
+                    }
+                    appendCsvValue(line, r.getString(COLUMNS[i]));
+                }
+                writer.append(line).append("\r\n");
+
+                if (++nbRows[0] % CHECK_ERROR_INTERVAL == 0 && writer.checkError()) {
+                    failed[0] = true;
+                    return false;
+                }
+                return true;
+            }
+        });
+
+        writer.flush();
+        return failed[0] || writer.checkError() ? -1 : nbRows[0];
+    }
+
+    static void appendCsvValue(final StringBuilder line, @Nullable final String value) {
+        if (value == null) {
+            return;
+        }
+
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            final char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"') {
+                line.append('"');
+            }
+            line.append(c);
+        }
+        line.append('"');
+    }
+}
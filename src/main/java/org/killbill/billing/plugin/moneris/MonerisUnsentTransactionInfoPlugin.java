@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+
+/**
+ * Outcome of a transaction which was never sent to Moneris: CANCELED if Kill Bill can retry it (e.g. throttled),
+ * ERROR if it was rejected locally (e.g. invalid card data, see MonerisValidator).
+ * It isn't stored, there is nothing to find at Moneris. The exception are transactions queued while Moneris was
+ * unreachable (PENDING, see MonerisOfflineQueue), which are stored until they are sent.
+ */
+public class MonerisUnsentTransactionInfoPlugin implements PaymentTransactionInfoPlugin {
+
+    private final UUID kbPaymentId;
+    private final UUID kbTransactionPaymentId;
+    private final TransactionType transactionType;
+    private final BigDecimal amount;
+    private final Currency currency;
+    private final PaymentPluginStatus status;
+    private final String errorCode;
+    private final String reason;
+    private final DateTime createdDate;
+
+    public MonerisUnsentTransactionInfoPlugin(final UUID kbPaymentId, final UUID kbTransactionPaymentId, final TransactionType transactionType,
+                                              @Nullable final BigDecimal amount, @Nullable final Currency currency, final PaymentPluginStatus status,
+                                              @Nullable final String errorCode, final String reason) {
+        this(kbPaymentId, kbTransactionPaymentId, transactionType, amount, currency, status, errorCode, reason, new DateTime(DateTimeZone.UTC));
+    }
+
+    public MonerisUnsentTransactionInfoPlugin(final UUID kbPaymentId, final UUID kbTransactionPaymentId, final TransactionType transactionType,
+                                              @Nullable final BigDecimal amount, @Nullable final Currency currency, final PaymentPluginStatus status,
+                                              @Nullable final String errorCode, final String reason, final DateTime createdDate) {
+        this.kbPaymentId = kbPaymentId;
+        this.kbTransactionPaymentId = kbTransactionPaymentId;
+        this.transactionType = transactionType;
+        this.amount = amount;
+        this.currency = currency;
+        this.status = status;
+        this.errorCode = errorCode;
+        this.reason = reason;
+        this.createdDate = createdDate;
+    }
+
+    @Override
+    public UUID getKbPaymentId() {
+        return kbPaymentId;
+    }
+
+    @Override
+    public UUID getKbTransactionPaymentId() {
+        return kbTransactionPaymentId;
+    }
+
+    @Override
+    public TransactionType getTransactionType() {
+        return transactionType;
+    }
+
+    @Override
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    @Override
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    @Override
+    public DateTime getCreatedDate() {
+        return createdDate;
+    }
+
+    @Override
+    public DateTime getEffectiveDate() {
+        return createdDate;
+    }
+
+    @Override
+    public PaymentPluginStatus getStatus() {
+        return status;
+    }
+
+    @Override
+    public String getGatewayError() {
+        return reason;
+    }
+
+    @Override
+    public String getGatewayErrorCode() {
+        return errorCode;
+    }
+
+    @Override
+    public String getFirstPaymentReferenceId() {
+        return null;
+    }
+
+    @Override
+    public String getSecondPaymentReferenceId() {
+        return null;
+    }
+
+    @Override
+    public List<PluginProperty> getProperties() {
+        return Collections.<PluginProperty>emptyList();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("MonerisUnsentTransactionInfoPlugin{");
+        sb.append("kbPaymentId=").append(kbPaymentId);
+        sb.append(", kbTransactionPaymentId=").append(kbTransactionPaymentId);
+        sb.append(", transactionType=").append(transactionType);
+        sb.append(", status=").append(status);
+        sb.append(", errorCode='").append(errorCode).append('\'');
+        sb.append(", reason='").append(reason).append('\'');
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.moneris.MonerisBinIndex.Bin;
+import org.killbill.billing.plugin.moneris.MonerisBinIndex.Brand;
+import org.killbill.billing.plugin.moneris.MonerisBinIndex.CardType;
+
+/**
+ * Rejects locally the requests Moneris would reject anyway (e.g. a mistyped card number or an expired card), saving the round trip.
+ * <p/>
+ * With a BIN index, cards of a brand or type which isn't accepted (e.g. prepaid) are rejected too.
+ */
+public class MonerisValidator {
+
+    // See toMonerisAmount
+    private static final BigDecimal MIN_AMOUNT = new BigDecimal("0.01");
+    private static final BigDecimal MAX_AMOUNT = new BigDecimal("9999999.99");
+    private static final int MIN_PAN_LENGTH = 12;
+    private static final int MAX_PAN_LENGTH = 20;
+    // Cards are valid through the end of their expiry month, in the cardholder's time zone
+    private static final int EXPIRY_GRACE_HOURS = 24;
+
+    private final MonerisBinIndex binIndex;
+    private final Set<Brand> acceptedBrands;
+    private final Set<CardType> acceptedCardTypes;
+
+    public MonerisValidator() {
+        this(null, EnumSet.allOf(Brand.class), EnumSet.allOf(CardType.class));
+    }
+
+    /**
+     * @param binIndex optional, without it brands and card types aren't checked
+     */
+    public MonerisValidator(@Nullable final MonerisBinIndex binIndex, final Set<Brand> acceptedBrands, final Set<CardType> acceptedCardTypes) {
+        this.binIndex = binIndex;
+        this.acceptedBrands = EnumSet.copyOf(acceptedBrands);
+        this.acceptedCardTypes = EnumSet.copyOf(acceptedCardTypes);
+    }
+
+    /**
+     * Validate a request against a card (pre-auth, purchase, independent refund)
+     */
+    public void validateCard(@Nullable final BigDecimal amount, final MonerisProperties monerisProperties) {
+        validateAmount(amount);
+        validateCardDetails(monerisProperties);
+    }
+
+    /**
+     * Validate the card details only (e.g. before adding the card to the Moneris Vault)
+     */
+    public void validateCardDetails(final MonerisProperties monerisProperties) {
+        validateCrypt(monerisProperties);
+
+        final String pan = monerisProperties.getPan();
+        if (!isValidPan(pan)) {
+            throw new MonerisValidationException("invalid_pan", "Invalid card number");
+        }
+        validateExpDate(monerisProperties.getExpDate(), new DateTime(DateTimeZone.UTC).minusHours(EXPIRY_GRACE_HOURS));
+
+        final Bin bin = binIndex == null ? null : binIndex.lookup(pan);
+        if (bin != null && (!acceptedBrands.contains(bin.getBrand()) || !acceptedCardTypes.contains(bin.getCardType()))) {
+            throw new MonerisValidationException("card_not_accepted", bin + " cards are not accepted");
+        }
+    }
+
+    /**
+     * Validate a follow-on request (re-auth, completion, refund)
+     */
+    public void validateFollowOn(@Nullable final BigDecimal amount, final MonerisProperties monerisProperties) {
+        validateAmount(amount);
+        validateCrypt(monerisProperties);
+    }
+
+    /**
+     * Validate a request against a card in the Moneris Vault (the card details were validated when it was added)
+     */
+    public void validateVaultedCard(@Nullable final BigDecimal amount, final MonerisProperties monerisProperties) {
+        validateAmount(amount);
+        validateCrypt(monerisProperties);
+    }
+
+    public void validateVoid(final MonerisProperties monerisProperties) {
+        validateCrypt(monerisProperties);
+    }
+
+    private static void validateAmount(@Nullable final BigDecimal amount) {
+        if (amount == null) {
+            throw new MonerisValidationException("invalid_amount", "Missing amount");
+        }
+        // Same rounding as toMonerisAmount
+        final BigDecimal monerisAmount = amount.setScale(2, RoundingMode.CEILING);
+        if (monerisAmount.compareTo(MIN_AMOUNT) < 0 || monerisAmount.compareTo(MAX_AMOUNT) > 0) {
+            throw new MonerisValidationException("invalid_amount", "Amount " + amount + " is outside of " + MIN_AMOUNT + "-" + MAX_AMOUNT);
+        }
+    }
+
+    private static void validateCrypt(final MonerisProperties monerisProperties) {
+        final String crypt = monerisProperties.getCrypt();
+        if (crypt == null || crypt.length() != 1 || crypt.charAt(0) < '1' || crypt.charAt(0) > '9') {
+            throw new MonerisValidationException("invalid_crypt", "Invalid or missing crypt " + crypt + ", expected 1 to 9");
+        }
+    }
+
+    // YYMM
+    static void validateExpDate(@Nullable final String expDate, final DateTime now) {
+        if (expDate == null || expDate.length() != 4 || !isDigits(expDate)) {
+            throw new MonerisValidationException("invalid_exp_date", "Invalid expiry date, expected YYMM");
+        }
+        final int year = Integer.parseInt(expDate.substring(0, 2));
+        final int month = Integer.parseInt(expDate.substring(2));
+        if (month < 1 || month > 12) {
+            throw new MonerisValidationException("invalid_exp_date", "Invalid expiry date, expected YYMM");
+        }
+        if (year * 100 + month < (now.getYear() % 100) * 100 + now.getMonthOfYear()) {
+            throw new MonerisValidationException("expired_card", "Expired card");
+        }
+    }
+
+    // Length and Luhn check digit
+    static boolean isValidPan(@Nullable final String pan) {
+        if (pan == null || pan.length() < MIN_PAN_LENGTH || pan.length() > MAX_PAN_LENGTH) {
+            return false;
+        }
+
+        int sum = 0;
+        boolean doubled = false;
+        for (int i = pan.length() - 1; i >= 0; i--) {
+            final char c = pan.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            int digit = c - '0';
+            if (doubled) {
+                digit *= 2;
+                if (digit > 9) {
+                    digit -= 9;
+                }
+            }
+            sum += digit;
+            doubled = !doubled;
+        }
+        return sum % 10 == 0;
+    }
+
+    private static boolean isDigits(final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.killbill.billing.plugin.moneris.dao.MonerisVaultedCard;
+
+/**
+ * Moneris Vault data keys by kbPaymentMethodId, so that recurring charges resolve the card without a database lookup.
+ * Entries are scoped to their tenant: a payment method id from another tenant is never resolved.
+ */
+public class MonerisVaultCache {
+
+    private final Map<UUID, CachedCard> vaultedCards;
+    private final MonerisDao monerisDao;
+
+    public MonerisVaultCache(final int maxSize, final MonerisDao monerisDao) {
+        this.vaultedCards = new LinkedHashMap<UUID, CachedCard>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<UUID, CachedCard> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.monerisDao = monerisDao;
+    }
+
+    /**
+     * @return the Vault data key of the payment method, null if the card isn't in the Vault
+     */
+    public MonerisVaultedCard get(final UUID kbPaymentMethodId, final UUID kbTenantId) {
+        synchronized (vaultedCards) {
+            final CachedCard cachedCard = vaultedCards.get(kbPaymentMethodId);
+            if (cachedCard != null && kbTenantId != null && kbTenantId.equals(cachedCard.kbTenantId)) {
+                return cachedCard.vaultedCard;
+            }
+        }
+
+        // Payment methods without a data key aren't cached: they are only looked up when no card number was passed
+        final MonerisVaultedCard vaultedCard = monerisDao.getVaultedCard(kbPaymentMethodId, kbTenantId);
+        if (vaultedCard != null) {
+            put(kbPaymentMethodId, kbTenantId, vaultedCard);
+        }
+        return vaultedCard;
+    }
+
+    public void put(final UUID kbPaymentMethodId, final UUID kbTenantId, final MonerisVaultedCard vaultedCard) {
+        synchronized (vaultedCards) {
+            vaultedCards.put(kbPaymentMethodId, new CachedCard(kbTenantId, vaultedCard));
+        }
+    }
+
+    public void invalidate(final UUID kbPaymentMethodId) {
+        synchronized (vaultedCards) {
+            vaultedCards.remove(kbPaymentMethodId);
+        }
+    }
+
+    public int getSize() {
+        synchronized (vaultedCards) {
+            return vaultedCards.size();
+        }
+    }
+
+    private static final class CachedCard {
+
+        private final UUID kbTenantId;
+        private final MonerisVaultedCard vaultedCard;
+
+        private CachedCard(final UUID kbTenantId, final MonerisVaultedCard vaultedCard) {
+            this.kbTenantId = kbTenantId;
+            this.vaultedCard = vaultedCard;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+/**
+ * A gateway exchange, as stored in moneris_audit: card data has already been masked.
+ */
+public class MonerisAuditRecord {
+
+    private final long timestampMillis;
+    private final String storeId;
+    private final String operation;
+    private final long durationMicros;
+    private final String request;
+    private final String response;
+
+    public MonerisAuditRecord(final long timestampMillis, final String storeId, final String operation, final long durationMicros,
+                              final String request, final String response) {
+        this.timestampMillis = timestampMillis;
+        this.storeId = storeId;
+        this.operation = operation;
+        this.durationMicros = durationMicros;
+        this.request = request;
+        this.response = response;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public String getStoreId() {
+        return storeId;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getDurationMicros() {
+        return durationMicros;
+    }
+
+    public String getRequest() {
+        return request;
+    }
+
+    public String getResponse() {
+        return response;
+    }
+}
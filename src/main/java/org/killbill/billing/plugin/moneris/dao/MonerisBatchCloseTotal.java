@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+/**
+ * Totals, per card type, of a closed terminal batch, as reported by Moneris (amounts are in cents).
+ */
+public class MonerisBatchCloseTotal {
+
+    private final String cardType;
+    private final String purchaseCount;
+    private final String purchaseAmount;
+    private final String refundCount;
+    private final String refundAmount;
+    private final String correctionCount;
+    private final String correctionAmount;
+
+    public MonerisBatchCloseTotal(final String cardType, final String purchaseCount, final String purchaseAmount, final String refundCount,
+                                  final String refundAmount, final String correctionCount, final String correctionAmount) {
+        this.cardType = cardType;
+        this.purchaseCount = purchaseCount;
+        this.purchaseAmount = purchaseAmount;
+        this.refundCount = refundCount;
+        this.refundAmount = refundAmount;
+        this.correctionCount = correctionCount;
+        this.correctionAmount = correctionAmount;
+    }
+
+    public String getCardType() {
+        return cardType;
+    }
+
+    public String getPurchaseCount() {
+        return purchaseCount;
+    }
+
+    public String getPurchaseAmount() {
+        return purchaseAmount;
+    }
+
+    public String getRefundCount() {
+        return refundCount;
+    }
+
+    public String getRefundAmount() {
+        return refundAmount;
+    }
+
+    public String getCorrectionCount() {
+        return correctionCount;
+    }
+
+    public String getCorrectionAmount() {
+        return correctionAmount;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Number and amount of the transactions of a tenant for a day (UTC, on created_date), store, card type, transaction type, status and currency.
+ * Also used for the changes to these totals which haven't been flushed yet.
+ */
+public class MonerisDailyTotal {
+
+    private final UUID kbTenantId;
+    private final String day;
+    private final String store;
+    private final String cardType;
+    private final String transactionType;
+    private final String status;
+    private final String currency;
+    private final long nbTransactions;
+    private final BigDecimal amount;
+
+    public MonerisDailyTotal(final UUID kbTenantId, final String day, @Nullable final String store, @Nullable final String cardType, final String transactionType,
+                             final String status, @Nullable final String currency, final long nbTransactions, final BigDecimal amount) {
+        this.kbTenantId = kbTenantId;
+        this.day = day;
+        // Part of the unique key: no nulls
+        this.store = store == null ? "" : store;
+        this.cardType = cardType == null ? "" : cardType;
+        this.transactionType = transactionType;
+        this.status = status;
+        this.currency = currency == null ? "" : currency;
+        this.nbTransactions = nbTransactions;
+        this.amount = amount;
+    }
+
+    static MonerisDailyTotal forTransaction(final UUID kbTenantId, final DateTime createdDate, @Nullable final String store, final String transactionType, final String status,
+                                            @Nullable final String cardType, @Nullable final String currency, final BigDecimal amount) {
+        return new MonerisDailyTotal(kbTenantId, createdDate.toDateTime(DateTimeZone.UTC).toLocalDate().toString(), store, cardType, transactionType, status, currency, 1, amount);
+    }
+
+    String getKey() {
+        return kbTenantId + "|" + day + "|" + store + "|" + cardType + "|" + transactionType + "|" + status + "|" + currency;
+    }
+
+    MonerisDailyTotal plus(final MonerisDailyTotal other) {
+        return new MonerisDailyTotal(kbTenantId, day, store, cardType, transactionType, status, currency, nbTransactions + other.nbTransactions, amount.add(other.amount));
+    }
+
+    MonerisDailyTotal negate() {
+        return new MonerisDailyTotal(kbTenantId, day, store, cardType, transactionType, status, currency, -nbTransactions, amount.negate());
+    }
+
+    MonerisDailyTotal withStatus(final String newStatus, @Nullable final String newCardType) {
+        return new MonerisDailyTotal(kbTenantId, day, store, newCardType, transactionType, newStatus, currency, nbTransactions, amount);
+    }
+
+    public UUID getKbTenantId() {
+        return kbTenantId;
+    }
+
+    /**
+     * @return yyyy-MM-dd
+     */
+    public String getDay() {
+        return day;
+    }
+
+    /**
+     * @return empty for a single store setup, or if unknown
+     */
+    public String getStore() {
+        return store;
+    }
+
+    /**
+     * @return empty if unknown
+     */
+    public String getCardType() {
+        return cardType;
+    }
+
+    public String getTransactionType() {
+        return transactionType;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public long getNbTransactions() {
+        return nbTransactions;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("MonerisDailyTotal{");
+        sb.append("kbTenantId=").append(kbTenantId);
+        sb.append(", day='").append(day).append('\'');
+        sb.append(", store='").append(store).append('\'');
+        sb.append(", cardType='").append(cardType).append('\'');
+        sb.append(", transactionType='").append(transactionType).append('\'');
+        sb.append(", status='").append(status).append('\'');
+        sb.append(", currency='").append(currency).append('\'');
+        sb.append(", nbTransactions=").append(nbTransactions);
+        sb.append(", amount=").append(amount);
+        sb.append('}');
+        return sb.toString();
+    }
+}
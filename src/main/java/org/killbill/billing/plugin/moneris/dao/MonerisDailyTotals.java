@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Running changes to moneris_daily_totals, accumulated in memory as transactions are committed,
+ * until drained by MonerisDailyTotalsFlusher.
+ */
+public class MonerisDailyTotals {
+
+    // Guarded by this
+    private Map<String, MonerisDailyTotal> deltas = new HashMap<String, MonerisDailyTotal>();
+
+    void add(final MonerisDailyTotal delta) {
+        // Transactions without a tenant can't be reported on
+        if (delta.getKbTenantId() == null) {
+            return;
+        }
+
+        synchronized (this) {
+            final MonerisDailyTotal existing = deltas.get(delta.getKey());
+            deltas.put(delta.getKey(), existing == null ? delta : existing.plus(delta));
+        }
+    }
+
+    /**
+     * @return the changes since the last call (changes which cancel out are left out)
+     */
+    public List<MonerisDailyTotal> drain() {
+        final Map<String, MonerisDailyTotal> drained;
+        synchronized (this) {
+            if (deltas.isEmpty()) {
+                return new ArrayList<MonerisDailyTotal>(0);
+            }
+            drained = deltas;
+            deltas = new HashMap<String, MonerisDailyTotal>();
+        }
+
+        final List<MonerisDailyTotal> nonZeroDeltas = new ArrayList<MonerisDailyTotal>(drained.size());
+        for (final MonerisDailyTotal delta : drained.values()) {
+            if (delta.getNbTransactions() != 0 || delta.getAmount().compareTo(BigDecimal.ZERO) != 0) {
+                nonZeroDeltas.add(delta);
+            }
+        }
+        return nonZeroDeltas;
+    }
+
+    public synchronized int getNbPending() {
+        return deltas.size();
+    }
+}
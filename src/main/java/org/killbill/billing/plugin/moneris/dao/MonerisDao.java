@@ -17,130 +17,235 @@
 package org.killbill.billing.plugin.moneris.dao;
 
 import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
+import javax.annotation.Nullable;
 import javax.sql.DataSource;
 
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.payment.api.PaymentMethodPlugin;
 import org.killbill.billing.payment.api.TransactionType;
 import org.killbill.billing.payment.plugin.api.PaymentMethodInfoPlugin;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
 import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.moneris.MonerisFlightRecorder;
 import org.killbill.billing.plugin.moneris.MonerisPaymentTransactionInfoPlugin;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.entity.Pagination;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
 import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.TransactionCallback;
 import org.skife.jdbi.v2.TransactionStatus;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
 
 public class MonerisDao {
 
+    // Statement attribute (see MonerisStatementBuilder and MonerisSlowQueryDetector)
+    static final String OPERATION_ATTRIBUTE = "moneris_operation";
+    // Size of moneris_daily_totals.node_id and store (part of a unique key, which MySQL caps at 3072 bytes)
+    public static final int MAX_NODE_ID_AND_STORE_LENGTH = 64;
+
+    private static final int MAX_IN_CLAUSE_SIZE = 1000;
+    // Node id of the daily totals rebuilt from moneris_transactions (see rebuildDailyTotals)
+    private static final String REBUILD_NODE_ID = "rebuild";
+    // Moneris trans_type of Purchase (and ResPurchaseCC) receipts
+    private static final String PURCHASE_TRANS_TYPE = "00";
+
+    private static final String INSERT_TRANSACTION_SQL = "insert into moneris_transactions (" +
+                                                         "  kb_account_id" +
+                                                         ", kb_payment_id" +
+                                                         ", kb_transaction_id" +
+                                                         ", kb_payment_method_id" +
+                                                         ", transaction_type" +
+                                                         ", amount" +
+                                                         ", currency" +
+                                                         ", store" +
+                                                         ", transaction_amount" +
+                                                         ", transaction_effective_date" +
+                                                         ", transaction_status" +
+                                                         ", transaction_gateway_error" +
+                                                         ", transaction_gateway_error_code" +
+                                                         ", transaction_first_payment_reference_id" +
+                                                         ", transaction_second_payment_reference_id" +
+                                                         ", receipt_is_visa_debit" +
+                                                         ", receipt_status_message" +
+                                                         ", receipt_status_code" +
+                                                         ", receipt_cavv_result_code" +
+                                                         ", receipt_cvd_result_code" +
+                                                         ", receipt_avs_result_code" +
+                                                         ", receipt_recur_success" +
+                                                         ", receipt_ticket" +
+                                                         ", receipt_timed_out" +
+                                                         ", receipt_txn_number" +
+                                                         ", receipt_card_type" +
+                                                         ", receipt_trans_amount" +
+                                                         ", receipt_message" +
+                                                         ", receipt_complete" +
+                                                         ", receipt_trans_type" +
+                                                         ", receipt_trans_date" +
+                                                         ", receipt_trans_time" +
+                                                         ", receipt_auth_code" +
+                                                         ", receipt_iso" +
+                                                         ", receipt_response_code" +
+                                                         ", receipt_reference_num" +
+                                                         ", receipt_receipt_id" +
+                                                         ", created_by" +
+                                                         ", created_date" +
+                                                         ", updated_by" +
+                                                         ", updated_date" +
+                                                         ", kb_tenant_id" +
+                                                         ")" +
+                                                         "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String UPDATE_TRANSACTION_RECEIPT_SQL = "update moneris_transactions set " +
+                                                                 "  transaction_amount = ?" +
+                                                                 ", transaction_effective_date = ?" +
+                                                                 ", transaction_status = ?" +
+                                                                 ", transaction_gateway_error = ?" +
+                                                                 ", transaction_gateway_error_code = ?" +
+                                                                 ", transaction_first_payment_reference_id = ?" +
+                                                                 ", transaction_second_payment_reference_id = ?" +
+                                                                 ", receipt_is_visa_debit = ?" +
+                                                                 ", receipt_status_message = ?" +
+                                                                 ", receipt_status_code = ?" +
+                                                                 ", receipt_cavv_result_code = ?" +
+                                                                 ", receipt_cvd_result_code = ?" +
+                                                                 ", receipt_avs_result_code = ?" +
+                                                                 ", receipt_recur_success = ?" +
+                                                                 ", receipt_ticket = ?" +
+                                                                 ", receipt_timed_out = ?" +
+                                                                 ", receipt_txn_number = ?" +
+                                                                 ", receipt_card_type = ?" +
+                                                                 ", receipt_trans_amount = ?" +
+                                                                 ", receipt_message = ?" +
+                                                                 ", receipt_complete = ?" +
+                                                                 ", receipt_trans_type = ?" +
+                                                                 ", receipt_trans_date = ?" +
+                                                                 ", receipt_trans_time = ?" +
+                                                                 ", receipt_auth_code = ?" +
+                                                                 ", receipt_iso = ?" +
+                                                                 ", receipt_response_code = ?" +
+                                                                 ", receipt_reference_num = ?" +
+                                                                 ", receipt_receipt_id = ?" +
+                                                                 ", updated_by = ?" +
+                                                                 ", updated_date = ? " +
+                                                                 "where kb_transaction_id = ?";
+
     private final DBI dbi;
+    private final MonerisFlightRecorder monerisFlightRecorder;
+    private final MonerisDailyTotals dailyTotals = new MonerisDailyTotals();
 
     public MonerisDao(final DataSource dataSource) {
+        this(dataSource, new MonerisFlightRecorder(0), null, null);
+    }
+
+    public MonerisDao(final DataSource dataSource, final MonerisFlightRecorder monerisFlightRecorder,
+                      @Nullable final MonerisSlowQueryDetector slowQueryDetector, @Nullable final MonerisStatementBuilder statementBuilder) {
         this.dbi = new DBI(dataSource);
+        if (slowQueryDetector != null) {
+            dbi.setTimingCollector(slowQueryDetector);
+        }
+        if (statementBuilder != null) {
+            dbi.setStatementBuilder(statementBuilder);
+        }
+        this.monerisFlightRecorder = monerisFlightRecorder;
     }
 
     public void createTransaction(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final TransactionType transactionType, final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin, final CallContext callContext) {
-        dbi.inTransaction(new TransactionCallback<Object>() {
-            @Override
-            public Object inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
-                conn.execute("insert into moneris_transactions (" +
-                             "  kb_account_id" +
-                             ", kb_payment_id" +
-                             ", kb_transaction_id" +
-                             ", kb_payment_method_id" +
-                             ", transaction_type" +
-                             ", amount" +
-                             ", currency" +
-                             ", transaction_amount" +
-                             ", transaction_effective_date" +
-                             ", transaction_status" +
-                             ", transaction_gateway_error" +
-                             ", transaction_gateway_error_code" +
-                             ", transaction_first_payment_reference_id" +
-                             ", transaction_second_payment_reference_id" +
-                             ", receipt_is_visa_debit" +
-                             ", receipt_status_message" +
-                             ", receipt_status_code" +
-                             ", receipt_cavv_result_code" +
-                             ", receipt_cvd_result_code" +
-                             ", receipt_avs_result_code" +
-                             ", receipt_recur_success" +
-                             ", receipt_ticket" +
-                             ", receipt_timed_out" +
-                             ", receipt_txn_number" +
-                             ", receipt_card_type" +
-                             ", receipt_trans_amount" +
-                             ", receipt_message" +
-                             ", receipt_complete" +
-                             ", receipt_trans_type" +
-                             ", receipt_trans_date" +
-                             ", receipt_trans_time" +
-                             ", receipt_auth_code" +
-                             ", receipt_iso" +
-                             ", receipt_response_code" +
-                             ", receipt_reference_num" +
-                             ", receipt_receipt_id" +
-                             ", created_by" +
-                             ", created_date" +
-                             ", updated_by" +
-                             ", updated_date" +
-                             ", kb_tenant_id" +
-                             ")" +
-                             "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
-                             kbAccountId,
-                             kbPaymentId,
-                             kbTransactionId,
-                             kbPaymentMethodId,
-                             transactionType,
-                             amount,
-                             currency == null ? null : currency.toString(),
-                             monerisPaymentTransactionInfoPlugin.getAmount(),
-                             monerisPaymentTransactionInfoPlugin.getEffectiveDate().toDate(),
-                             monerisPaymentTransactionInfoPlugin.getStatus(),
-                             monerisPaymentTransactionInfoPlugin.getGatewayError(),
-                             monerisPaymentTransactionInfoPlugin.getGatewayErrorCode(),
-                             monerisPaymentTransactionInfoPlugin.getFirstPaymentReferenceId(),
-                             monerisPaymentTransactionInfoPlugin.getSecondPaymentReferenceId(),
-                             monerisPaymentTransactionInfoPlugin.getIsVisaDebit(),
-                             monerisPaymentTransactionInfoPlugin.getStatusMessage(),
-                             monerisPaymentTransactionInfoPlugin.getStatusCode(),
-                             monerisPaymentTransactionInfoPlugin.getCavvResultCode(),
-                             monerisPaymentTransactionInfoPlugin.getCvdResultCode(),
-                             monerisPaymentTransactionInfoPlugin.getAvsResultCode(),
-                             monerisPaymentTransactionInfoPlugin.getRecurSuccess(),
-                             monerisPaymentTransactionInfoPlugin.getTicket(),
-                             monerisPaymentTransactionInfoPlugin.getTimedOut(),
-                             monerisPaymentTransactionInfoPlugin.getTxnNumber(),
-                             monerisPaymentTransactionInfoPlugin.getCardType(),
-                             monerisPaymentTransactionInfoPlugin.getTransAmount(),
-                             monerisPaymentTransactionInfoPlugin.getMessage(),
-                             monerisPaymentTransactionInfoPlugin.getComplete(),
-                             monerisPaymentTransactionInfoPlugin.getTransType(),
-                             monerisPaymentTransactionInfoPlugin.getTransDate(),
-                             monerisPaymentTransactionInfoPlugin.getTransTime(),
-                             monerisPaymentTransactionInfoPlugin.getAuthCode(),
-                             monerisPaymentTransactionInfoPlugin.getIso(),
-                             monerisPaymentTransactionInfoPlugin.getResponseCode(),
-                             monerisPaymentTransactionInfoPlugin.getReferenceNum(),
-                             monerisPaymentTransactionInfoPlugin.getReceiptId(),
-                             callContext.getUserName(),
-                             callContext.getCreatedDate().toDate(),
-                             callContext.getUserName(),
-                             callContext.getCreatedDate().toDate(),
-                             callContext.getTenantId()
-                            );
-                return null;
+        inTransaction("createTransaction", new TransactionCallback<Integer>() {
+            @Override
+            public Integer inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                return conn.update(INSERT_TRANSACTION_SQL,
+                                   toInsertTransactionArguments(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, transactionType, monerisPaymentTransactionInfoPlugin, callContext));
+            }
+        });
+        addToDailyTotals(amount, currency, transactionType, monerisPaymentTransactionInfoPlugin, callContext);
+    }
+
+    /**
+     * Batch version of createTransaction, used to drain the journal.
+     * <p/>
+     * This is idempotent: entries already in the database (e.g. applied right before a crash, but not yet checkpointed
+     * in the journal) are skipped.
+     */
+    public void createTransactions(final List<MonerisJournalEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        final List<MonerisJournalEntry> insertedEntries = new LinkedList<MonerisJournalEntry>();
+        inTransaction("createTransactions", new TransactionCallback<Integer>() {
+            @Override
+            public Integer inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                insertedEntries.clear();
+                final Set<String> existingTransactions = new HashSet<String>();
+                final StringBuilder inClause = new StringBuilder();
+                for (int i = 0; i < entries.size(); i++) {
+                    inClause.append(i == 0 ? ":id" : ", :id").append(i);
+                }
+                final Query<String> query = conn.createQuery("select kb_transaction_id " +
+                                                             "from moneris_transactions " +
+                                                             "where kb_transaction_id in (" + inClause + ")")
+                                                .map(new ResultSetMapper<String>() {
+                                                    @Override
+                                                    public String map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+                                                        return r.getString("kb_transaction_id");
+                                                    }
+                                                });
+                for (int i = 0; i < entries.size(); i++) {
+                    query.bind("id" + i, entries.get(i).getKbTransactionId().toString());
+                }
+                existingTransactions.addAll(query.list());
+
+                final PreparedBatch batch = conn.prepareBatch(INSERT_TRANSACTION_SQL);
+                for (final MonerisJournalEntry entry : entries) {
+                    if (existingTransactions.add(entry.getKbTransactionId().toString())) {
+                        batch.add(toInsertTransactionArguments(entry.getKbAccountId(),
+                                                               entry.getKbPaymentId(),
+                                                               entry.getKbTransactionId(),
+                                                               entry.getKbPaymentMethodId(),
+                                                               entry.getAmount(),
+                                                               entry.getCurrency(),
+                                                               entry.getTransactionType(),
+                                                               entry.getMonerisPaymentTransactionInfoPlugin(),
+                                                               entry.getCallContext()));
+                        insertedEntries.add(entry);
+                    }
+                }
+                final int nbInserted = batch.getSize();
+                if (nbInserted > 0) {
+                    batch.execute();
+                }
+                return nbInserted;
             }
         });
+        for (final MonerisJournalEntry entry : insertedEntries) {
+            addToDailyTotals(entry.getAmount(), entry.getCurrency(), entry.getTransactionType(), entry.getMonerisPaymentTransactionInfoPlugin(), entry.getCallContext());
+        }
     }
 
     public List<PaymentTransactionInfoPlugin> getTransactions(final UUID kbPaymentId, final UUID kbTenantId) {
-        return dbi.inTransaction(new TransactionCallback<List<PaymentTransactionInfoPlugin>>() {
+        return inTransaction("getTransactions", new TransactionCallback<List<PaymentTransactionInfoPlugin>>() {
             @Override
             public List<PaymentTransactionInfoPlugin> inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
                 final Query<PaymentTransactionInfoPlugin> query = conn.createQuery("select * " +
@@ -155,58 +260,926 @@ public class MonerisDao {
         });
     }
 
+    /**
+     * Bulk version of getTransactions: the history of all these payments, fetched in as few queries as possible.
+     */
+    public Map<UUID, List<PaymentTransactionInfoPlugin>> getTransactions(final Collection<UUID> kbPaymentIds, final UUID kbTenantId) {
+        final Map<UUID, List<PaymentTransactionInfoPlugin>> transactionsByPaymentId = new HashMap<UUID, List<PaymentTransactionInfoPlugin>>();
+        for (final UUID kbPaymentId : kbPaymentIds) {
+            transactionsByPaymentId.put(kbPaymentId, new LinkedList<PaymentTransactionInfoPlugin>());
+        }
+        if (kbPaymentIds.isEmpty()) {
+            return transactionsByPaymentId;
+        }
+
+        final List<UUID> allKbPaymentIds = new ArrayList<UUID>(transactionsByPaymentId.keySet());
+        for (int from = 0; from < allKbPaymentIds.size(); from += MAX_IN_CLAUSE_SIZE) {
+            final List<UUID> chunk = allKbPaymentIds.subList(from, Math.min(from + MAX_IN_CLAUSE_SIZE, allKbPaymentIds.size()));
+            final List<PaymentTransactionInfoPlugin> transactions = inTransaction("getTransactionsBulk", new TransactionCallback<List<PaymentTransactionInfoPlugin>>() {
+                @Override
+                public List<PaymentTransactionInfoPlugin> inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                    final StringBuilder inClause = new StringBuilder();
+                    for (int i = 0; i < chunk.size(); i++) {
+                        inClause.append(i == 0 ? ":id" : ", :id").append(i);
+                    }
+                    final Query<PaymentTransactionInfoPlugin> query = conn.createQuery("select * " +
+                                                                                       "from moneris_transactions " +
+                                                                                       "where kb_payment_id in (" + inClause + ") and kb_tenant_id = :kbTenantId " +
+                                                                                       "order by created_date asc, updated_date asc")
+                                                                          .bind("kbTenantId", kbTenantId)
+                                                                          .map(new MonerisPaymentTransactionInfoPluginResultSetMapper());
+                    for (int i = 0; i < chunk.size(); i++) {
+                        query.bind("id" + i, chunk.get(i));
+                    }
+                    return query.list();
+                }
+            });
+
+            // Same ordering as getTransactions
+            for (final PaymentTransactionInfoPlugin transaction : transactions) {
+                transactionsByPaymentId.get(transaction.getKbPaymentId()).add(transaction);
+            }
+        }
+        return transactionsByPaymentId;
+    }
+
+    public PaymentTransactionInfoPlugin getTransaction(final UUID kbTransactionId, final UUID kbTenantId) {
+        return inTransaction("getTransaction", new TransactionCallback<PaymentTransactionInfoPlugin>() {
+            @Override
+            public PaymentTransactionInfoPlugin inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                final Query<PaymentTransactionInfoPlugin> query = conn.createQuery("select * " +
+                                                                                   "from moneris_transactions " +
+                                                                                   "where kb_transaction_id = :kbTransactionId and kb_tenant_id = :kbTenantId")
+                                                                      .bind("kbTransactionId", kbTransactionId)
+                                                                      .bind("kbTenantId", kbTenantId)
+                                                                      .map(new MonerisPaymentTransactionInfoPluginResultSetMapper());
+                return query.first();
+            }
+        });
+    }
+
+    /**
+     * Captures, voids and refunds whose outcome is unknown, oldest first. Receipts which timed out have no response code,
+     * so their status is UNDEFINED too (see MonerisPaymentTransactionInfoPlugin#getStatus).
+     * <p/>
+     * Other transaction types can't be status checked (see MonerisReconciler): they are left out so that they don't fill up every batch.
+     * So are the transactions whose reconciliation is backing off or was given up on (see recordReconciliationAttempt).
+     *
+     * @param maxAttempts reconciliation attempts after which a transaction is given up on
+     */
+    public List<MonerisUnresolvedTransaction> getUnresolvedTransactions(final DateTime createdBefore, final DateTime now, final int maxAttempts, final int maxRows) {
+        return inTransaction("getUnresolvedTransactions", new TransactionCallback<List<MonerisUnresolvedTransaction>>() {
+            @Override
+            public List<MonerisUnresolvedTransaction> inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                final Query<MonerisUnresolvedTransaction> query = conn.createQuery("select t.kb_payment_id, t.kb_transaction_id, t.transaction_type, t.amount, t.currency, t.store, t.kb_tenant_id " +
+                                                                                   "from moneris_transactions t " +
+                                                                                   "where t.transaction_status = :transactionStatus and t.transaction_type in (:capture, :void, :refund) " +
+                                                                                   "and t.created_date < :createdBefore " +
+                                                                                   "and not exists (select 1 from moneris_reconciliations r " +
+                                                                                   "                where r.kb_transaction_id = t.kb_transaction_id and (r.nb_attempts >= :maxAttempts or r.next_attempt_date > :now)) " +
+                                                                                   "order by t.created_date asc")
+                                                                      .bind("transactionStatus", PaymentPluginStatus.UNDEFINED.toString())
+                                                                      .bind("capture", TransactionType.CAPTURE.toString())
+                                                                      .bind("void", TransactionType.VOID.toString())
+                                                                      .bind("refund", TransactionType.REFUND.toString())
+                                                                      .bind("createdBefore", createdBefore.toDate())
+                                                                      .bind("maxAttempts", maxAttempts)
+                                                                      .bind("now", now.toDate())
+                                                                      .setMaxRows(maxRows)
+                                                                      .map(new MonerisUnresolvedTransactionResultSetMapper());
+                return query.list();
+            }
+        });
+    }
+
+    /**
+     * Successful authorizations created before createdBefore, oldest first, which were neither captured, voided nor re-authorized since
+     * (failed attempts don't count). Authorizations sent as purchases (auto-capture) are left alone, and so are the ones
+     * whose sweep is backing off or was given up on (see recordPreAuthSweepAttempt).
+     *
+     * @param cardType       Moneris card type (e.g. V, M, AX), or null for the card types not in otherCardTypes (and unknown ones)
+     * @param otherCardTypes card types with their own window, only used when cardType is null
+     * @param maxAttempts    sweep attempts after which an authorization is given up on
+     */
+    public List<MonerisStaleAuthorization> getStaleAuthorizations(@Nullable final String cardType, final Collection<String> otherCardTypes, final DateTime createdBefore,
+                                                                  final DateTime now, final int maxAttempts, final int maxRows) {
+        return inTransaction("getStaleAuthorizations", new TransactionCallback<List<MonerisStaleAuthorization>>() {
+            @Override
+            public List<MonerisStaleAuthorization> inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                final StringBuilder cardTypeClause = new StringBuilder();
+                if (cardType != null) {
+                    cardTypeClause.append("and a.receipt_card_type = :cardType ");
+                } else if (!otherCardTypes.isEmpty()) {
+                    cardTypeClause.append("and (a.receipt_card_type is null or a.receipt_card_type not in (");
+                    for (int i = 0; i < otherCardTypes.size(); i++) {
+                        cardTypeClause.append(i == 0 ? ":cardType" : ", :cardType").append(i);
+                    }
+                    cardTypeClause.append(")) ");
+                }
+
+                // Served by the (transaction_type, transaction_status, receipt_card_type, created_date) index,
+                // and the (kb_payment_id, kb_tenant_id) one for the follow-on transactions
+                final Query<Map<String, Object>> query = conn.createQuery("select a.kb_account_id, a.kb_payment_id, a.kb_transaction_id, a.kb_payment_method_id, a.amount, a.currency, " +
+                                                                          "a.receipt_card_type, a.created_date, a.kb_tenant_id " +
+                                                                          "from moneris_transactions a " +
+                                                                          "where a.transaction_type = :authorize and a.transaction_status = :processed " +
+                                                                          cardTypeClause +
+                                                                          "and a.created_date < :createdBefore " +
+                                                                          // 00: Purchase
+                                                                          "and (a.receipt_trans_type is null or a.receipt_trans_type <> '00') " +
+                                                                          "and not exists (select 1 from moneris_transactions t " +
+                                                                          "                where t.kb_payment_id = a.kb_payment_id and t.kb_tenant_id = a.kb_tenant_id and t.record_id > a.record_id " +
+                                                                          "                and t.transaction_type in (:authorize, :capture, :void) and t.transaction_status not in (:error, :canceled)) " +
+                                                                          "and not exists (select 1 from moneris_preauth_sweeps s " +
+                                                                          "                where s.kb_transaction_id = a.kb_transaction_id and (s.nb_attempts >= :maxAttempts or s.next_attempt_date > :now)) " +
+                                                                          "order by a.created_date asc")
+                                                             .bind("authorize", TransactionType.AUTHORIZE.toString())
+                                                             .bind("capture", TransactionType.CAPTURE.toString())
+                                                             .bind("void", TransactionType.VOID.toString())
+                                                             .bind("processed", PaymentPluginStatus.PROCESSED.toString())
+                                                             .bind("error", PaymentPluginStatus.ERROR.toString())
+                                                             .bind("canceled", PaymentPluginStatus.CANCELED.toString())
+                                                             .bind("createdBefore", createdBefore.toDate())
+                                                             .bind("maxAttempts", maxAttempts)
+                                                             .bind("now", now.toDate());
+                if (cardType != null) {
+                    query.bind("cardType", cardType);
+                } else {
+                    int i = 0;
+                    for (final String otherCardType : otherCardTypes) {
+                        query.bind("cardType" + i++, otherCardType);
+                    }
+                }
+                return query.setMaxRows(maxRows)
+                            .map(new MonerisStaleAuthorizationResultSetMapper())
+                            .list();
+            }
+        });
+    }
+
+    /**
+     * Record an attempt at sweeping a stale authorization, before it is made: whatever its outcome (declined void, unknown account,
+     * node crash, ...), the authorization is left alone until retryDelaySeconds * 2^(attempts - 1) have passed.
+     *
+     * @return the number of attempts so far, this one included
+     */
+    public int recordPreAuthSweepAttempt(final UUID kbTransactionId, final UUID kbTenantId, final int retryDelaySeconds, final DateTime now) {
+        return recordAttempt("recordPreAuthSweepAttempt", "moneris_preauth_sweeps", kbTransactionId, kbTenantId, retryDelaySeconds, now);
+    }
+
+    /**
+     * Record an attempt at resolving an UNDEFINED transaction, before it is made: a transaction Moneris can't tell about (e.g. its
+     * original transaction is missing) is left alone until retryDelaySeconds * 2^(attempts - 1) have passed, instead of taking
+     * the head of every batch.
+     *
+     * @return the number of attempts so far, this one included
+     */
+    public int recordReconciliationAttempt(final UUID kbTransactionId, final UUID kbTenantId, final int retryDelaySeconds, final DateTime now) {
+        return recordAttempt("recordReconciliationAttempt", "moneris_reconciliations", kbTransactionId, kbTenantId, retryDelaySeconds, now);
+    }
+
+    private int recordAttempt(final String operation, final String table, final UUID kbTransactionId, final UUID kbTenantId, final int retryDelaySeconds, final DateTime now) {
+        return inTransaction(operation, new TransactionCallback<Integer>() {
+            @Override
+            public Integer inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                final List<Integer> previousAttempts = conn.createQuery("select nb_attempts from " + table + " where kb_transaction_id = :kbTransactionId")
+                                                           .bind("kbTransactionId", kbTransactionId.toString())
+                                                           .map(new ResultSetMapper<Integer>() {
+                                                               @Override
+                                                               public Integer map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+                                                                   return r.getInt("nb_attempts");
+                                                               }
+                                                           })
+                                                           .list();
+                final int nbAttempts = previousAttempts.isEmpty() ? 1 : previousAttempts.get(0) + 1;
+                final Date nextAttemptDate = now.plus(1000L * retryDelaySeconds << Math.min(nbAttempts - 1, 16)).toDate();
+                if (previousAttempts.isEmpty()) {
+                    conn.update("insert into " + table + " (kb_transaction_id, nb_attempts, next_attempt_date, created_date, updated_date, kb_tenant_id) values (?, ?, ?, ?, ?, ?)",
+                                kbTransactionId.toString(), nbAttempts, nextAttemptDate, now.toDate(), now.toDate(), kbTenantId.toString());
+                } else {
+                    conn.update("update " + table + " set nb_attempts = ?, next_attempt_date = ?, updated_date = ? where kb_transaction_id = ?",
+                                nbAttempts, nextAttemptDate, now.toDate(), kbTransactionId.toString());
+                }
+                return nbAttempts;
+            }
+        });
+    }
+
+    /**
+     * Feed the transactions of a tenant created in [from, to) to handler, oldest first, through a forward-only cursor:
+     * only fetchSize rows are held in memory at a time.
+     * <p/>
+     * Note: MySQL Connector/J ignores the fetch size unless useCursorFetch=true is set on the JDBC URL
+     * (or the fetch size is Integer.MIN_VALUE, to stream row by row).
+     *
+     * @param transactionType null for all types
+     * @return the number of rows read
+     */
+    public int streamTransactions(final UUID kbTenantId, final DateTime from, final DateTime to, @Nullable final TransactionType transactionType,
+                                  final int fetchSize, final MonerisRowHandler handler) {
+        return inTransaction("streamTransactions", new TransactionCallback<Integer>() {
+            @Override
+            public Integer inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                final Query<Map<String, Object>> query = conn.createQuery("select * " +
+                                                                          "from moneris_transactions " +
+                                                                          "where kb_tenant_id = :kbTenantId and created_date >= :from and created_date < :to" +
+                                                                          (transactionType == null ? " " : " and transaction_type = :transactionType ") +
+                                                                          "order by created_date asc, record_id asc")
+                                                             .bind("kbTenantId", kbTenantId)
+                                                             .bind("from", from.toDate())
+                                                             .bind("to", to.toDate());
+                if (transactionType != null) {
+                    query.bind("transactionType", transactionType.toString());
+                }
+
+                final ResultIterator<Boolean> rows = query.setFetchSize(fetchSize)
+                                                          .map(new ResultSetMapper<Boolean>() {
+                                                              @Override
+                                                              public Boolean map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+                                                                  return handler.onRow(r);
+                                                              }
+                                                          })
+                                                          .iterator();
+                int nbRows = 0;
+                try {
+                    while (rows.hasNext()) {
+                        nbRows++;
+                        if (!rows.next()) {
+                            break;
+                        }
+                    }
+                } finally {
+                    rows.close();
+                }
+                return nbRows;
+            }
+        });
+    }
+
+    /**
+     * Feed one slice of the processed transactions of a tenant created in [from, to) to handler, ordered by receipt id
+     * then record id. Start with a null afterReceiptId, then pass the keys of the last row read, until fewer than maxRows are read.
+     * <p/>
+     * Only transactions which move money are read: authorizations don't settle, unless they were sent as a Purchase
+     * (auto-capture), in which case their capture is a copy of the same receipt and is skipped instead.
+     *
+     * @return the number of rows read
+     */
+    public int getProcessedTransactionsSlice(final UUID kbTenantId, final DateTime from, final DateTime to, @Nullable final String afterReceiptId, final long afterRecordId,
+                                             final int maxRows, final MonerisRowHandler handler) {
+        return inTransaction("getProcessedTransactionsSlice", new TransactionCallback<Integer>() {
+            @Override
+            public Integer inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                final Query<Map<String, Object>> query = conn.createQuery("select record_id, kb_transaction_id, amount, receipt_trans_amount, receipt_receipt_id, receipt_reference_num, receipt_txn_number " +
+                                                                          "from moneris_transactions " +
+                                                                          "where kb_tenant_id = :kbTenantId and created_date >= :from and created_date < :to " +
+                                                                          "and transaction_status = :processed and receipt_receipt_id is not null and receipt_txn_number is not null " +
+                                                                          "and (transaction_type in (:purchase, :refund, :credit, :void) " +
+                                                                          "or (transaction_type = :capture and (receipt_trans_type is null or receipt_trans_type <> :purchaseTransType)) " +
+                                                                          "or (transaction_type = :authorize and receipt_trans_type = :purchaseTransType)) " +
+                                                                          (afterReceiptId == null ? "" : "and (receipt_receipt_id > :afterReceiptId or (receipt_receipt_id = :afterReceiptId and record_id > :afterRecordId)) ") +
+                                                                          "order by receipt_receipt_id asc, record_id asc")
+                                                             .bind("kbTenantId", kbTenantId)
+                                                             .bind("from", from.toDate())
+                                                             .bind("to", to.toDate())
+                                                             .bind("processed", PaymentPluginStatus.PROCESSED.toString())
+                                                             .bind("purchase", TransactionType.PURCHASE.toString())
+                                                             .bind("refund", TransactionType.REFUND.toString())
+                                                             .bind("credit", TransactionType.CREDIT.toString())
+                                                             .bind("void", TransactionType.VOID.toString())
+                                                             .bind("capture", TransactionType.CAPTURE.toString())
+                                                             .bind("authorize", TransactionType.AUTHORIZE.toString())
+                                                             .bind("purchaseTransType", PURCHASE_TRANS_TYPE);
+                if (afterReceiptId != null) {
+                    query.bind("afterReceiptId", afterReceiptId)
+                         .bind("afterRecordId", afterRecordId);
+                }
+
+                final List<Boolean> rows = query.setMaxRows(maxRows)
+                                                .map(new ResultSetMapper<Boolean>() {
+                                                    @Override
+                                                    public Boolean map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+                                                        return handler.onRow(r);
+                                                    }
+                                                })
+                                                .list();
+                return rows.size();
+            }
+        });
+    }
+
+    /**
+     * Overwrite the receipts of existing transactions (e.g. with the outcome of a status check), in a single batch.
+     */
+    public void updateTransactionReceipts(final List<MonerisPaymentTransactionInfoPlugin> monerisPaymentTransactionInfoPlugins, final String updatedBy, final DateTime updatedDate) {
+        if (monerisPaymentTransactionInfoPlugins.isEmpty()) {
+            return;
+        }
+
+        final Map<String, MonerisDailyTotal> previousTotals = new HashMap<String, MonerisDailyTotal>();
+        inTransaction("updateTransactionReceipts", new TransactionCallback<Integer>() {
+            @Override
+            public Integer inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                final List<String> kbTransactionIds = new ArrayList<String>(monerisPaymentTransactionInfoPlugins.size());
+                for (final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin : monerisPaymentTransactionInfoPlugins) {
+                    kbTransactionIds.add(monerisPaymentTransactionInfoPlugin.getKbTransactionPaymentId().toString());
+                }
+                previousTotals.clear();
+                previousTotals.putAll(getPreviousDailyTotals(conn, kbTransactionIds));
+
+                final PreparedBatch batch = conn.prepareBatch(UPDATE_TRANSACTION_RECEIPT_SQL);
+                for (final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin : monerisPaymentTransactionInfoPlugins) {
+                    batch.add(toUpdateTransactionReceiptArguments(monerisPaymentTransactionInfoPlugin, updatedBy, updatedDate));
+                }
+                batch.execute();
+                return monerisPaymentTransactionInfoPlugins.size();
+            }
+        });
+        for (final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin : monerisPaymentTransactionInfoPlugins) {
+            moveInDailyTotals(previousTotals.get(monerisPaymentTransactionInfoPlugin.getKbTransactionPaymentId().toString()),
+                              monerisPaymentTransactionInfoPlugin.getStatus().toString(),
+                              monerisPaymentTransactionInfoPlugin.getCardType());
+        }
+    }
+
+    /**
+     * Record a transaction queued while Moneris was unreachable (PENDING, no receipt) and its queue entry, atomically.
+     * This bypasses the journal: the queue entry must be durable by the time PENDING is returned.
+     */
+    public void createQueuedTransaction(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency,
+                                        @Nullable final String store, final TransactionType transactionType, @Nullable final String crypt, @Nullable final String dynamicDescriptor, final String reason, final CallContext callContext) {
+        inTransaction("createQueuedTransaction", new TransactionCallback<Integer>() {
+            @Override
+            public Integer inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                final Date createdDate = callContext.getCreatedDate().toDate();
+                final int nbRows = conn.update("insert into moneris_transactions (" +
+                                               "  kb_account_id" +
+                                               ", kb_payment_id" +
+                                               ", kb_transaction_id" +
+                                               ", kb_payment_method_id" +
+                                               ", transaction_type" +
+                                               ", amount" +
+                                               ", currency" +
+                                               ", store" +
+                                               ", transaction_effective_date" +
+                                               ", transaction_status" +
+                                               ", transaction_gateway_error" +
+                                               ", created_by" +
+                                               ", created_date" +
+                                               ", updated_by" +
+                                               ", updated_date" +
+                                               ", kb_tenant_id" +
+                                               ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                                               kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, transactionType.toString(), amount, currency == null ? null : currency.toString(), store,
+                                               createdDate, PaymentPluginStatus.PENDING.toString(), reason,
+                                               callContext.getUserName(), createdDate, callContext.getUserName(), createdDate, callContext.getTenantId());
+                conn.update("insert into moneris_queued_transactions (" +
+                            "  kb_transaction_id" +
+                            ", crypt" +
+                            ", dynamic_descriptor" +
+                            ", status" +
+                            ", created_date" +
+                            ", updated_date" +
+                            ", kb_tenant_id" +
+                            ") values (?, ?, ?, ?, ?, ?, ?)",
+                            kbTransactionId, crypt, dynamicDescriptor, MonerisQueuedTransactionStatus.QUEUED.toString(), createdDate, createdDate, callContext.getTenantId());
+                return nbRows;
+            }
+        });
+        dailyTotals.add(MonerisDailyTotal.forTransaction(callContext.getTenantId(), callContext.getCreatedDate(), store, transactionType.toString(), PaymentPluginStatus.PENDING.toString(),
+                                                         null, currency == null ? null : currency.toString(), amount));
+    }
+
+    /**
+     * Queued transactions ready to be sent, in queue order: QUEUED ones, and SENDING ones whose sender went silent.
+     *
+     * @param afterRecordId to page through the queue (see MonerisQueuedTransaction#getRecordId), 0 for the head of the queue
+     */
+    public List<MonerisQueuedTransaction> getQueuedTransactions(final DateTime staleBefore, final long afterRecordId, final int maxRows) {
+        return inTransaction("getQueuedTransactions", new TransactionCallback<List<MonerisQueuedTransaction>>() {
+            @Override
+            public List<MonerisQueuedTransaction> inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                final Query<MonerisQueuedTransaction> query = conn.createQuery("select q.record_id, t.kb_account_id, t.kb_payment_id, t.kb_transaction_id, t.kb_payment_method_id, t.transaction_type, t.amount, t.currency, t.store, " +
+                                                                               "q.crypt, q.dynamic_descriptor, q.nb_attempts, q.kb_tenant_id " +
+                                                                               "from moneris_queued_transactions q " +
+                                                                               "join moneris_transactions t on t.kb_transaction_id = q.kb_transaction_id " +
+                                                                               "where (q.status = :queued or (q.status = :sending and q.updated_date < :staleBefore)) " +
+                                                                               "and q.record_id > :afterRecordId " +
+                                                                               "order by q.record_id asc")
+                                                                  .bind("queued", MonerisQueuedTransactionStatus.QUEUED.toString())
+                                                                  .bind("sending", MonerisQueuedTransactionStatus.SENDING.toString())
+                                                                  .bind("staleBefore", staleBefore.toDate())
+                                                                  .bind("afterRecordId", afterRecordId)
+                                                                  .setMaxRows(maxRows)
+                                                                  .map(new MonerisQueuedTransactionResultSetMapper());
+                return query.list();
+            }
+        });
+    }
+
+    /**
+     * Cluster-safe claim on a queued transaction: only the node which gets it should send it.
+     *
+     * @return the token identifying this claim (see releaseQueuedTransaction and completeQueuedTransaction), null if the transaction wasn't claimed
+     */
+    public String claimQueuedTransaction(final UUID kbTransactionId, final DateTime staleBefore, final DateTime now) {
+        final String claimToken = UUID.randomUUID().toString();
+        final boolean claimed = inTransaction("claimQueuedTransaction", new TransactionCallback<Boolean>() {
+            @Override
+            public Boolean inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                return conn.update("update moneris_queued_transactions " +
+                                   "set status = ?, claim_token = ?, nb_attempts = nb_attempts + 1, updated_date = ? " +
+                                   "where kb_transaction_id = ? and (status = ? or (status = ? and updated_date < ?))",
+                                   MonerisQueuedTransactionStatus.SENDING.toString(), claimToken, now.toDate(),
+                                   kbTransactionId.toString(), MonerisQueuedTransactionStatus.QUEUED.toString(), MonerisQueuedTransactionStatus.SENDING.toString(), staleBefore.toDate()) > 0;
+            }
+        });
+        return claimed ? claimToken : null;
+    }
+
+    /**
+     * Put a claimed transaction back in the queue (e.g. Moneris didn't answer), keeping its place.
+     * Nothing happens if the claim went stale and the transaction was claimed again since.
+     *
+     * @return true if the transaction was put back
+     */
+    public boolean releaseQueuedTransaction(final UUID kbTransactionId, final String claimToken, final DateTime now) {
+        return inTransaction("releaseQueuedTransaction", new TransactionCallback<Boolean>() {
+            @Override
+            public Boolean inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                return conn.update("update moneris_queued_transactions set status = ?, claim_token = null, updated_date = ? where kb_transaction_id = ? and claim_token = ?",
+                                   MonerisQueuedTransactionStatus.QUEUED.toString(), now.toDate(), kbTransactionId.toString(), claimToken) > 0;
+            }
+        });
+    }
+
+    /**
+     * Record the receipt of a queued transaction, and take it off the queue.
+     * Nothing happens if the claim went stale and the transaction was claimed again since: the new sender records it.
+     *
+     * @return true if the receipt was recorded
+     */
+    public boolean completeQueuedTransaction(final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin, final String claimToken, final String updatedBy, final DateTime updatedDate) {
+        final String kbTransactionId = monerisPaymentTransactionInfoPlugin.getKbTransactionPaymentId().toString();
+        final Map<String, MonerisDailyTotal> previousTotals = new HashMap<String, MonerisDailyTotal>();
+        final boolean completed = inTransaction("completeQueuedTransaction", new TransactionCallback<Boolean>() {
+            @Override
+            public Boolean inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                previousTotals.clear();
+                if (conn.update("delete from moneris_queued_transactions where kb_transaction_id = ? and claim_token = ?", kbTransactionId, claimToken) == 0) {
+                    return false;
+                }
+                previousTotals.putAll(getPreviousDailyTotals(conn, Collections.singletonList(kbTransactionId)));
+                conn.update(UPDATE_TRANSACTION_RECEIPT_SQL, toUpdateTransactionReceiptArguments(monerisPaymentTransactionInfoPlugin, updatedBy, updatedDate));
+                return true;
+            }
+        });
+        if (completed) {
+            moveInDailyTotals(previousTotals.get(kbTransactionId), monerisPaymentTransactionInfoPlugin.getStatus().toString(), monerisPaymentTransactionInfoPlugin.getCardType());
+        }
+        return completed;
+    }
+
+    /**
+     * Give up on a queued transaction (e.g. its card was deleted): set its final status, and take it off the queue.
+     */
+    public void abandonQueuedTransaction(final UUID kbTransactionId, final PaymentPluginStatus paymentPluginStatus, final String reason, final String updatedBy, final DateTime updatedDate) {
+        final Map<String, MonerisDailyTotal> previousTotals = new HashMap<String, MonerisDailyTotal>();
+        inTransaction("abandonQueuedTransaction", new TransactionCallback<Integer>() {
+            @Override
+            public Integer inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                previousTotals.clear();
+                previousTotals.putAll(getPreviousDailyTotals(conn, Collections.singletonList(kbTransactionId.toString())));
+                conn.update("update moneris_transactions set transaction_status = ?, transaction_gateway_error = ?, updated_by = ?, updated_date = ? where kb_transaction_id = ?",
+                            paymentPluginStatus.toString(), reason, updatedBy, updatedDate.toDate(), kbTransactionId.toString());
+                return conn.update("delete from moneris_queued_transactions where kb_transaction_id = ?", kbTransactionId.toString());
+            }
+        });
+        final MonerisDailyTotal previousTotal = previousTotals.get(kbTransactionId.toString());
+        moveInDailyTotals(previousTotal, paymentPluginStatus.toString(), previousTotal == null ? null : previousTotal.getCardType());
+    }
+
+    /**
+     * Changes to the daily totals not flushed yet (see MonerisDailyTotalsFlusher).
+     */
+    public MonerisDailyTotals getPendingDailyTotals() {
+        return dailyTotals;
+    }
+
+    /**
+     * Add changes to the daily totals of nodeId (each node only ever writes its own rows).
+     * <p/>
+     * This is idempotent for a given flushSequence, which must increase from one flush to the next: rows already
+     * at that sequence (e.g. committed by an attempt which then timed out) are left alone.
+     */
+    public void upsertDailyTotals(final String nodeId, final long flushSequence, final List<MonerisDailyTotal> deltas, final DateTime now) {
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        inTransaction("upsertDailyTotals", new TransactionCallback<Integer>() {
+            @Override
+            public Integer inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                for (final MonerisDailyTotal delta : deltas) {
+                    final int nbUpdated = conn.update("update moneris_daily_totals " +
+                                                      "set nb_transactions = nb_transactions + ?, amount = amount + ?, flush_sequence = ?, updated_date = ? " +
+                                                      "where kb_tenant_id = ? and day = ? and node_id = ? and store = ? and card_type = ? and transaction_type = ? and status = ? " +
+                                                      "and currency = ? and flush_sequence < ?",
+                                                      delta.getNbTransactions(), delta.getAmount(), flushSequence, now.toDate(),
+                                                      delta.getKbTenantId().toString(), delta.getDay(), nodeId, delta.getStore(), delta.getCardType(), delta.getTransactionType(), delta.getStatus(), delta.getCurrency(),
+                                                      flushSequence);
+                    if (nbUpdated > 0) {
+                        continue;
+                    }
+
+                    // New row, or already applied
+                    final List<Long> existingRows = conn.createQuery("select record_id " +
+                                                                     "from moneris_daily_totals " +
+                                                                     "where kb_tenant_id = :kbTenantId and day = :day and node_id = :nodeId and store = :store and card_type = :cardType " +
+                                                                     "and transaction_type = :transactionType and status = :status and currency = :currency")
+                                                        .bind("kbTenantId", delta.getKbTenantId().toString())
+                                                        .bind("day", delta.getDay())
+                                                        .bind("nodeId", nodeId)
+                                                        .bind("store", delta.getStore())
+                                                        .bind("cardType", delta.getCardType())
+                                                        .bind("transactionType", delta.getTransactionType())
+                                                        .bind("status", delta.getStatus())
+                                                        .bind("currency", delta.getCurrency())
+                                                        .map(new ResultSetMapper<Long>() {
+                                                            @Override
+                                                            public Long map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+                                                                return r.getLong("record_id");
+                                                            }
+                                                        })
+                                                        .list();
+                    if (existingRows.isEmpty()) {
+                        conn.update("insert into moneris_daily_totals (" +
+                                    "  kb_tenant_id" +
+                                    ", day" +
+                                    ", node_id" +
+                                    ", store" +
+                                    ", card_type" +
+                                    ", transaction_type" +
+                                    ", status" +
+                                    ", currency" +
+                                    ", nb_transactions" +
+                                    ", amount" +
+                                    ", flush_sequence" +
+                                    ", created_date" +
+                                    ", updated_date" +
+                                    ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                                    delta.getKbTenantId().toString(), delta.getDay(), nodeId, delta.getStore(), delta.getCardType(), delta.getTransactionType(), delta.getStatus(), delta.getCurrency(),
+                                    delta.getNbTransactions(), delta.getAmount(), flushSequence, now.toDate(), now.toDate());
+                    }
+                }
+                return deltas.size();
+            }
+        });
+    }
+
+    /**
+     * @return the last flush sequence applied by nodeId, 0 if none
+     */
+    public long getLastDailyTotalsFlushSequence(final String nodeId) {
+        return inTransaction("getLastDailyTotalsFlushSequence", new TransactionCallback<Long>() {
+            @Override
+            public Long inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                final Long lastFlushSequence = conn.createQuery("select max(flush_sequence) last_flush_sequence " +
+                                                                "from moneris_daily_totals " +
+                                                                "where node_id = :nodeId")
+                                                   .bind("nodeId", nodeId)
+                                                   .map(new ResultSetMapper<Long>() {
+                                                       @Override
+                                                       public Long map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+                                                           return r.getLong("last_flush_sequence");
+                                                       }
+                                                   })
+                                                   .first();
+                return lastFlushSequence == null ? 0L : lastFlushSequence;
+            }
+        });
+    }
+
+    /**
+     * Replace the daily totals of a tenant, all nodes combined, for days in [fromDay, toDay) with totals recomputed from
+     * moneris_transactions (e.g. after a node died with changes not flushed yet).
+     * <p/>
+     * Changes still pending on any node for these days are added on top when flushed: only rebuild days which are over.
+     *
+     * @param fromDay yyyy-MM-dd
+     * @param toDay   yyyy-MM-dd
+     * @return the number of daily totals written
+     */
+    public int rebuildDailyTotals(final UUID kbTenantId, final String fromDay, final String toDay, final int fetchSize, final DateTime now) {
+        return inTransaction("rebuildDailyTotals", new TransactionCallback<Integer>() {
+            @Override
+            public Integer inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                final MonerisDailyTotals rebuiltTotals = new MonerisDailyTotals();
+                final ResultIterator<Boolean> rows = conn.createQuery("select created_date, store, transaction_type, transaction_status, receipt_card_type, currency, amount " +
+                                                                      "from moneris_transactions " +
+                                                                      "where kb_tenant_id = :kbTenantId and created_date >= :from and created_date < :to")
+                                                         .bind("kbTenantId", kbTenantId.toString())
+                                                         .bind("from", new LocalDate(fromDay).toDateTimeAtStartOfDay(DateTimeZone.UTC).toDate())
+                                                         .bind("to", new LocalDate(toDay).toDateTimeAtStartOfDay(DateTimeZone.UTC).toDate())
+                                                         .setFetchSize(fetchSize)
+                                                         .map(new ResultSetMapper<Boolean>() {
+                                                             @Override
+                                                             public Boolean map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+                                                                 rebuiltTotals.add(MonerisDailyTotal.forTransaction(kbTenantId,
+                                                                                                                    new DateTime(r.getTimestamp("created_date"), DateTimeZone.UTC),
+                                                                                                                    r.getString("store"),
+                                                                                                                    r.getString("transaction_type"),
+                                                                                                                    r.getString("transaction_status"),
+                                                                                                                    r.getString("receipt_card_type"),
+                                                                                                                    r.getString("currency"),
+                                                                                                                    r.getBigDecimal("amount")));
+                                                                 return true;
+                                                             }
+                                                         })
+                                                         .iterator();
+                try {
+                    while (rows.hasNext()) {
+                        rows.next();
+                    }
+                } finally {
+                    rows.close();
+                }
+
+                conn.update("delete from moneris_daily_totals where kb_tenant_id = ? and day >= ? and day < ?", kbTenantId.toString(), fromDay, toDay);
+                final List<MonerisDailyTotal> totals = rebuiltTotals.drain();
+                if (totals.isEmpty()) {
+                    return 0;
+                }
+                final PreparedBatch batch = conn.prepareBatch("insert into moneris_daily_totals (" +
+                                                              "  kb_tenant_id" +
+                                                              ", day" +
+                                                              ", node_id" +
+                                                              ", store" +
+                                                              ", card_type" +
+                                                              ", transaction_type" +
+                                                              ", status" +
+                                                              ", currency" +
+                                                              ", nb_transactions" +
+                                                              ", amount" +
+                                                              ", flush_sequence" +
+                                                              ", created_date" +
+                                                              ", updated_date" +
+                                                              ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                for (final MonerisDailyTotal total : totals) {
+                    batch.add(total.getKbTenantId().toString(), total.getDay(), REBUILD_NODE_ID, total.getStore(), total.getCardType(), total.getTransactionType(), total.getStatus(), total.getCurrency(),
+                              total.getNbTransactions(), total.getAmount(), 0L, now.toDate(), now.toDate());
+                }
+                batch.execute();
+                return totals.size();
+            }
+        });
+    }
+
+    /**
+     * Daily totals of a tenant, all nodes combined, for days in [fromDay, toDay).
+     *
+     * @param fromDay yyyy-MM-dd
+     * @param toDay   yyyy-MM-dd
+     */
+    public List<MonerisDailyTotal> getDailyTotals(final UUID kbTenantId, final String fromDay, final String toDay) {
+        return inTransaction("getDailyTotals", new TransactionCallback<List<MonerisDailyTotal>>() {
+            @Override
+            public List<MonerisDailyTotal> inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                return conn.createQuery("select day, store, card_type, transaction_type, status, currency, sum(nb_transactions) nb_transactions, sum(amount) amount " +
+                                        "from moneris_daily_totals " +
+                                        "where kb_tenant_id = :kbTenantId and day >= :fromDay and day < :toDay " +
+                                        "group by day, store, card_type, transaction_type, status, currency " +
+                                        "order by day, store, card_type, transaction_type, status, currency")
+                           .bind("kbTenantId", kbTenantId.toString())
+                           .bind("fromDay", fromDay)
+                           .bind("toDay", toDay)
+                           .map(new ResultSetMapper<MonerisDailyTotal>() {
+                               @Override
+                               public MonerisDailyTotal map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+                                   return new MonerisDailyTotal(kbTenantId,
+                                                                r.getString("day"),
+                                                                r.getString("store"),
+                                                                r.getString("card_type"),
+                                                                r.getString("transaction_type"),
+                                                                r.getString("status"),
+                                                                r.getString("currency"),
+                                                                r.getLong("nb_transactions"),
+                                                                r.getBigDecimal("amount"));
+                               }
+                           })
+                           .list();
+            }
+        });
+    }
+
+    /**
+     * Cluster-safe lease on the close of a terminal batch: only the node which gets it should send the BatchClose request.
+     * A lease can be taken over once expired (e.g. the owner died or the close failed), unless the batch has been closed.
+     *
+     * @return true if the lease was acquired by owner
+     */
+    public boolean acquireBatchCloseLease(final String storeId, final String ecrNumber, final String closeDate, final String owner, final DateTime now, final DateTime leaseExpiresDate) {
+        try {
+            return inTransaction("acquireBatchCloseLease", new TransactionCallback<Boolean>() {
+                @Override
+                public Boolean inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                    final int nbTakenOver = conn.update("update moneris_batch_closes " +
+                                                        "set status = ?, lease_owner = ?, lease_expires_date = ?, updated_date = ? " +
+                                                        "where store_id = ? and ecr_number = ? and close_date = ? and status <> ? and lease_expires_date < ?",
+                                                        MonerisBatchCloseStatus.PROCESSING.toString(), owner, leaseExpiresDate.toDate(), now.toDate(),
+                                                        storeId, ecrNumber, closeDate, MonerisBatchCloseStatus.CLOSED.toString(), now.toDate());
+                    if (nbTakenOver > 0) {
+                        return true;
+                    }
+
+                    final String currentOwner = conn.createQuery("select lease_owner " +
+                                                                 "from moneris_batch_closes " +
+                                                                 "where store_id = :storeId and ecr_number = :ecrNumber and close_date = :closeDate")
+                                                    .bind("storeId", storeId)
+                                                    .bind("ecrNumber", ecrNumber)
+                                                    .bind("closeDate", closeDate)
+                                                    .map(new ResultSetMapper<String>() {
+                                                        @Override
+                                                        public String map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+                                                            return r.getString("lease_owner");
+                                                        }
+                                                    })
+                                                    .first();
+                    if (currentOwner != null) {
+                        // Closed already, or someone else is on it
+                        return false;
+                    }
+
+                    conn.execute("insert into moneris_batch_closes (" +
+                                 "  store_id" +
+                                 ", ecr_number" +
+                                 ", close_date" +
+                                 ", status" +
+                                 ", lease_owner" +
+                                 ", lease_expires_date" +
+                                 ", created_date" +
+                                 ") values (?, ?, ?, ?, ?, ?, ?)",
+                                 storeId, ecrNumber, closeDate, MonerisBatchCloseStatus.PROCESSING.toString(), owner, leaseExpiresDate.toDate(), now.toDate());
+                    return true;
+                }
+            });
+        } catch (final UnableToExecuteStatementException e) {
+            // Unique constraint violation: another node inserted the lease first
+            return false;
+        }
+    }
+
+    /**
+     * Record the outcome of a batch close, if owner still holds the lease.
+     *
+     * @return false if the lease had been lost
+     */
+    public boolean completeBatchClose(final String storeId, final String ecrNumber, final String closeDate, final String owner, final MonerisBatchCloseStatus batchCloseStatus,
+                                      @Nullable final String responseCode, @Nullable final String message, @Nullable final String timedOut, @Nullable final String transDate, @Nullable final String transTime,
+                                      final List<MonerisBatchCloseTotal> totals, final DateTime updatedDate) {
+        return inTransaction("completeBatchClose", new TransactionCallback<Boolean>() {
+            @Override
+            public Boolean inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                final int nbUpdated = conn.update("update moneris_batch_closes set " +
+                                                  "  status = ?" +
+                                                  ", receipt_response_code = ?" +
+                                                  ", receipt_message = ?" +
+                                                  ", receipt_timed_out = ?" +
+                                                  ", receipt_trans_date = ?" +
+                                                  ", receipt_trans_time = ?" +
+                                                  ", updated_date = ? " +
+                                                  "where store_id = ? and ecr_number = ? and close_date = ? and lease_owner = ?",
+                                                  batchCloseStatus.toString(), responseCode, message, timedOut, transDate, transTime, updatedDate.toDate(),
+                                                  storeId, ecrNumber, closeDate, owner);
+                if (nbUpdated == 0) {
+                    return false;
+                }
+
+                if (!totals.isEmpty()) {
+                    final PreparedBatch batch = conn.prepareBatch("insert into moneris_batch_close_totals (" +
+                                                                  "  store_id" +
+                                                                  ", ecr_number" +
+                                                                  ", close_date" +
+                                                                  ", card_type" +
+                                                                  ", purchase_count" +
+                                                                  ", purchase_amount" +
+                                                                  ", refund_count" +
+                                                                  ", refund_amount" +
+                                                                  ", correction_count" +
+                                                                  ", correction_amount" +
+                                                                  ", created_date" +
+                                                                  ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                    for (final MonerisBatchCloseTotal total : totals) {
+                        batch.add(storeId,
+                                  ecrNumber,
+                                  closeDate,
+                                  total.getCardType(),
+                                  total.getPurchaseCount(),
+                                  total.getPurchaseAmount(),
+                                  total.getRefundCount(),
+                                  total.getRefundAmount(),
+                                  total.getCorrectionCount(),
+                                  total.getCorrectionAmount(),
+                                  updatedDate.toDate());
+                    }
+                    batch.execute();
+                }
+                return true;
+            }
+        });
+    }
+
+    public void createAuditRecords(final List<MonerisAuditRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        inTransaction("createAuditRecords", new TransactionCallback<Integer>() {
+            @Override
+            public Integer inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                final PreparedBatch batch = conn.prepareBatch("insert into moneris_audit (" +
+                                                              "  store_id" +
+                                                              ", operation" +
+                                                              ", duration_micros" +
+                                                              ", request" +
+                                                              ", response" +
+                                                              ", created_date" +
+                                                              ") values (?, ?, ?, ?, ?, ?)");
+                for (final MonerisAuditRecord record : records) {
+                    batch.add(record.getStoreId(),
+                              record.getOperation(),
+                              record.getDurationMicros(),
+                              record.getRequest(),
+                              record.getResponse(),
+                              new Date(record.getTimestampMillis()));
+                }
+                batch.execute();
+                return records.size();
+            }
+        });
+    }
+
     public Pagination<PaymentTransactionInfoPlugin> searchTransactions(final String searchKey, final Long offset, final Long limit, final UUID kbTenantId) {
         // TODO
         return null;
     }
 
     public void createPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final PaymentMethodPlugin paymentMethodProps, final CallContext callContext) {
-        dbi.inTransaction(new TransactionCallback<Object>() {
-            @Override
-            public Object inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
-                conn.execute("insert into moneris_payment_methods (" +
-                             "  kb_account_id" +
-                             ", kb_payment_method_id" +
-                             ", external_payment_method_id" +
-                             // TODO Extract some plugin properties, like billing address, etc?
-                             ", created_by" +
-                             ", created_date" +
-                             ", updated_by" +
-                             ", updated_date" +
-                             ", kb_tenant_id" +
-                             ")" +
-                             "values (?, ?, ?, ?, ?, ?, ?, ?)",
-                             kbAccountId,
-                             kbPaymentMethodId,
-                             paymentMethodProps.getExternalPaymentMethodId(),
-                             callContext.getUserName(),
-                             callContext.getCreatedDate().toDate(),
-                             callContext.getUserName(),
-                             callContext.getCreatedDate().toDate(),
-                             callContext.getTenantId()
-                            );
-                return null;
+        createPaymentMethod(kbAccountId, kbPaymentMethodId, paymentMethodProps.getExternalPaymentMethodId(), null, callContext);
+    }
+
+    /**
+     * @param vaultedCard the Moneris Vault data key of the card, if any
+     */
+    public void createPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final String externalPaymentMethodId, @Nullable final MonerisVaultedCard vaultedCard, final CallContext callContext) {
+        inTransaction("createPaymentMethod", new TransactionCallback<Integer>() {
+            @Override
+            public Integer inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                return conn.update("insert into moneris_payment_methods (" +
+                                   "  kb_account_id" +
+                                   ", kb_payment_method_id" +
+                                   ", external_payment_method_id" +
+                                   ", data_key" +
+                                   ", data_key_store" +
+                                   // TODO Extract some plugin properties, like billing address, etc?
+                                   ", created_by" +
+                                   ", created_date" +
+                                   ", updated_by" +
+                                   ", updated_date" +
+                                   ", kb_tenant_id" +
+                                   ")" +
+                                   "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                                   kbAccountId,
+                                   kbPaymentMethodId,
+                                   externalPaymentMethodId,
+                                   vaultedCard == null ? null : vaultedCard.getDataKey(),
+                                   vaultedCard == null ? null : vaultedCard.getStore(),
+                                   callContext.getUserName(),
+                                   callContext.getCreatedDate().toDate(),
+                                   callContext.getUserName(),
+                                   callContext.getCreatedDate().toDate(),
+                                   callContext.getTenantId()
+                                  );
             }
         });
     }
 
     public void deletePaymentMethod(final UUID kbPaymentMethodId, final CallContext callContext) {
-        dbi.inTransaction(new TransactionCallback<Object>() {
+        inTransaction("deletePaymentMethod", new TransactionCallback<Integer>() {
             @Override
-            public Object inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
-                conn.execute("update moneris_payment_methods " +
-                             "set is_deleted = true, updated_by = ?, updated_date = ? " +
-                             "where kb_payment_method_id = ? and kb_tenant_id = ?",
-                             callContext.getUserName(), callContext.getCreatedDate().toDate(),
-                             kbPaymentMethodId, callContext.getTenantId()
-                            );
-                return null;
+            public Integer inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                return conn.update("update moneris_payment_methods " +
+                                   "set is_deleted = true, updated_by = ?, updated_date = ? " +
+                                   "where kb_payment_method_id = ? and kb_tenant_id = ?",
+                                   callContext.getUserName(), callContext.getCreatedDate().toDate(),
+                                   kbPaymentMethodId, callContext.getTenantId()
+                                  );
             }
         });
     }
 
     public PaymentMethodPlugin getPaymentMethod(final UUID kbPaymentMethodId, final UUID kbTenantId) {
-        return dbi.inTransaction(new TransactionCallback<PaymentMethodPlugin>() {
+        return inTransaction("getPaymentMethod", new TransactionCallback<PaymentMethodPlugin>() {
             @Override
             public PaymentMethodPlugin inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
                 final Query<PaymentMethodPlugin> query = conn.createQuery("select * " +
@@ -221,8 +1194,31 @@ public class MonerisDao {
         });
     }
 
+    /**
+     * @return the Moneris Vault data key of the payment method, null if the card isn't in the Vault
+     */
+    public MonerisVaultedCard getVaultedCard(final UUID kbPaymentMethodId, final UUID kbTenantId) {
+        return inTransaction("getVaultedCard", new TransactionCallback<MonerisVaultedCard>() {
+            @Override
+            public MonerisVaultedCard inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                final Query<MonerisVaultedCard> query = conn.createQuery("select data_key, data_key_store " +
+                                                                         "from moneris_payment_methods " +
+                                                                         "where kb_payment_method_id = :kbPaymentMethodId and kb_tenant_id = :kbTenantId and not is_deleted and data_key is not null")
+                                                            .bind("kbPaymentMethodId", kbPaymentMethodId)
+                                                            .bind("kbTenantId", kbTenantId)
+                                                            .map(new ResultSetMapper<MonerisVaultedCard>() {
+                                                                @Override
+                                                                public MonerisVaultedCard map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+                                                                    return new MonerisVaultedCard(r.getString("data_key"), r.getString("data_key_store"));
+                                                                }
+                                                            });
+                return query.first();
+            }
+        });
+    }
+
     public List<PaymentMethodInfoPlugin> getPaymentMethods(final UUID kbAccountId, final UUID kbTenantId) {
-        return dbi.inTransaction(new TransactionCallback<List<PaymentMethodInfoPlugin>>() {
+        return inTransaction("getPaymentMethods", new TransactionCallback<List<PaymentMethodInfoPlugin>>() {
             @Override
             public List<PaymentMethodInfoPlugin> inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
                 final Query<PaymentMethodInfoPlugin> query = conn.createQuery("select * " +
@@ -241,4 +1237,186 @@ public class MonerisDao {
         // TODO
         return null;
     }
+
+    private void addToDailyTotals(final BigDecimal amount, final Currency currency, final TransactionType transactionType,
+                                  final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin, final CallContext callContext) {
+        dailyTotals.add(MonerisDailyTotal.forTransaction(callContext.getTenantId(),
+                                                         callContext.getCreatedDate(),
+                                                         monerisPaymentTransactionInfoPlugin.getStore(),
+                                                         transactionType.toString(),
+                                                         monerisPaymentTransactionInfoPlugin.getStatus().toString(),
+                                                         monerisPaymentTransactionInfoPlugin.getCardType(),
+                                                         currency == null ? null : currency.toString(),
+                                                         amount));
+    }
+
+    // Move a transaction whose status (and card type, once known) changed to its new daily total
+    private void moveInDailyTotals(@Nullable final MonerisDailyTotal previousTotal, final String newStatus, @Nullable final String newCardType) {
+        if (previousTotal == null) {
+            return;
+        }
+
+        final MonerisDailyTotal newTotal = previousTotal.withStatus(newStatus, newCardType);
+        if (!newTotal.getKey().equals(previousTotal.getKey())) {
+            dailyTotals.add(previousTotal.negate());
+            dailyTotals.add(newTotal);
+        }
+    }
+
+    // Current contribution of each transaction to the daily totals, by kb_transaction_id
+    private static Map<String, MonerisDailyTotal> getPreviousDailyTotals(final Handle conn, final List<String> kbTransactionIds) {
+        final StringBuilder inClause = new StringBuilder();
+        for (int i = 0; i < kbTransactionIds.size(); i++) {
+            inClause.append(i == 0 ? ":id" : ", :id").append(i);
+        }
+        final Map<String, MonerisDailyTotal> previousTotals = new HashMap<String, MonerisDailyTotal>();
+        final Query<String> query = conn.createQuery("select kb_transaction_id, kb_tenant_id, created_date, store, transaction_type, transaction_status, receipt_card_type, currency, amount " +
+                                                     "from moneris_transactions " +
+                                                     "where kb_transaction_id in (" + inClause + ")")
+                                        .map(new ResultSetMapper<String>() {
+                                            @Override
+                                            public String map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+                                                final String kbTenantId = r.getString("kb_tenant_id");
+                                                if (kbTenantId != null) {
+                                                    previousTotals.put(r.getString("kb_transaction_id"),
+                                                                       MonerisDailyTotal.forTransaction(UUID.fromString(kbTenantId),
+                                                                                                        new DateTime(r.getTimestamp("created_date"), DateTimeZone.UTC),
+                                                                                                        r.getString("store"),
+                                                                                                        r.getString("transaction_type"),
+                                                                                                        r.getString("transaction_status"),
+                                                                                                        r.getString("receipt_card_type"),
+                                                                                                        r.getString("currency"),
+                                                                                                        r.getBigDecimal("amount")));
+                                                }
+                                                return r.getString("kb_transaction_id");
+                                            }
+                                        });
+        for (int i = 0; i < kbTransactionIds.size(); i++) {
+            query.bind("id" + i, kbTransactionIds.get(i));
+        }
+        query.list();
+        return previousTotals;
+    }
+
+    private <T> T inTransaction(final String operation, final TransactionCallback<T> callback) {
+        final TransactionCallback<T> operationCallback = new TransactionCallback<T>() {
+            @Override
+            public T inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                // Per operation query timeouts and slow query thresholds
+                conn.define(OPERATION_ATTRIBUTE, operation);
+                return callback.inTransaction(conn, status);
+            }
+        };
+        if (!monerisFlightRecorder.isEnabled(MonerisFlightRecorder.EventType.DAO_CALL)) {
+            return dbi.inTransaction(operationCallback);
+        }
+
+        final long startNanos = System.nanoTime();
+        T result = null;
+        try {
+            result = dbi.inTransaction(operationCallback);
+            return result;
+        } finally {
+            monerisFlightRecorder.recordDaoCall(operation, toNbRows(result), System.nanoTime() - startNanos);
+        }
+    }
+
+    // Callbacks return either what they read, or the number of rows they wrote (lease operations return whether they succeeded)
+    private static int toNbRows(@Nullable final Object result) {
+        if (result == null) {
+            return 0;
+        } else if (result instanceof Collection) {
+            return ((Collection) result).size();
+        } else if (result instanceof Integer) {
+            return (Integer) result;
+        } else if (result instanceof Boolean) {
+            return (Boolean) result ? 1 : 0;
+        } else {
+            return 1;
+        }
+    }
+
+    private static Object[] toInsertTransactionArguments(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final TransactionType transactionType, final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin, final CallContext callContext) {
+        return new Object[]{
+                kbAccountId,
+                kbPaymentId,
+                kbTransactionId,
+                kbPaymentMethodId,
+                transactionType.toString(),
+                amount,
+                currency == null ? null : currency.toString(),
+                monerisPaymentTransactionInfoPlugin.getStore(),
+                monerisPaymentTransactionInfoPlugin.getAmount(),
+                monerisPaymentTransactionInfoPlugin.getEffectiveDate().toDate(),
+                monerisPaymentTransactionInfoPlugin.getStatus().toString(),
+                monerisPaymentTransactionInfoPlugin.getGatewayError(),
+                monerisPaymentTransactionInfoPlugin.getGatewayErrorCode(),
+                monerisPaymentTransactionInfoPlugin.getFirstPaymentReferenceId(),
+                monerisPaymentTransactionInfoPlugin.getSecondPaymentReferenceId(),
+                monerisPaymentTransactionInfoPlugin.getIsVisaDebit(),
+                monerisPaymentTransactionInfoPlugin.getStatusMessage(),
+                monerisPaymentTransactionInfoPlugin.getStatusCode(),
+                monerisPaymentTransactionInfoPlugin.getCavvResultCode(),
+                monerisPaymentTransactionInfoPlugin.getCvdResultCode(),
+                monerisPaymentTransactionInfoPlugin.getAvsResultCode(),
+                monerisPaymentTransactionInfoPlugin.getRecurSuccess(),
+                monerisPaymentTransactionInfoPlugin.getTicket(),
+                monerisPaymentTransactionInfoPlugin.getTimedOut(),
+                monerisPaymentTransactionInfoPlugin.getTxnNumber(),
+                monerisPaymentTransactionInfoPlugin.getCardType(),
+                monerisPaymentTransactionInfoPlugin.getTransAmount(),
+                monerisPaymentTransactionInfoPlugin.getMessage(),
+                monerisPaymentTransactionInfoPlugin.getComplete(),
+                monerisPaymentTransactionInfoPlugin.getTransType(),
+                monerisPaymentTransactionInfoPlugin.getTransDate(),
+                monerisPaymentTransactionInfoPlugin.getTransTime(),
+                monerisPaymentTransactionInfoPlugin.getAuthCode(),
+                monerisPaymentTransactionInfoPlugin.getIso(),
+                monerisPaymentTransactionInfoPlugin.getResponseCode(),
+                monerisPaymentTransactionInfoPlugin.getReferenceNum(),
+                monerisPaymentTransactionInfoPlugin.getReceiptId(),
+                callContext.getUserName(),
+                callContext.getCreatedDate().toDate(),
+                callContext.getUserName(),
+                callContext.getCreatedDate().toDate(),
+                callContext.getTenantId()
+        };
+    }
+
+    private static Object[] toUpdateTransactionReceiptArguments(final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin, final String updatedBy, final DateTime updatedDate) {
+        return new Object[]{
+                monerisPaymentTransactionInfoPlugin.getAmount(),
+                monerisPaymentTransactionInfoPlugin.getTransDate() == null ? null : monerisPaymentTransactionInfoPlugin.getEffectiveDate().toDate(),
+                monerisPaymentTransactionInfoPlugin.getStatus().toString(),
+                monerisPaymentTransactionInfoPlugin.getGatewayError(),
+                monerisPaymentTransactionInfoPlugin.getGatewayErrorCode(),
+                monerisPaymentTransactionInfoPlugin.getFirstPaymentReferenceId(),
+                monerisPaymentTransactionInfoPlugin.getSecondPaymentReferenceId(),
+                monerisPaymentTransactionInfoPlugin.getIsVisaDebit(),
+                monerisPaymentTransactionInfoPlugin.getStatusMessage(),
+                monerisPaymentTransactionInfoPlugin.getStatusCode(),
+                monerisPaymentTransactionInfoPlugin.getCavvResultCode(),
+                monerisPaymentTransactionInfoPlugin.getCvdResultCode(),
+                monerisPaymentTransactionInfoPlugin.getAvsResultCode(),
+                monerisPaymentTransactionInfoPlugin.getRecurSuccess(),
+                monerisPaymentTransactionInfoPlugin.getTicket(),
+                monerisPaymentTransactionInfoPlugin.getTimedOut(),
+                monerisPaymentTransactionInfoPlugin.getTxnNumber(),
+                monerisPaymentTransactionInfoPlugin.getCardType(),
+                monerisPaymentTransactionInfoPlugin.getTransAmount(),
+                monerisPaymentTransactionInfoPlugin.getMessage(),
+                monerisPaymentTransactionInfoPlugin.getComplete(),
+                monerisPaymentTransactionInfoPlugin.getTransType(),
+                monerisPaymentTransactionInfoPlugin.getTransDate(),
+                monerisPaymentTransactionInfoPlugin.getTransTime(),
+                monerisPaymentTransactionInfoPlugin.getAuthCode(),
+                monerisPaymentTransactionInfoPlugin.getIso(),
+                monerisPaymentTransactionInfoPlugin.getResponseCode(),
+                monerisPaymentTransactionInfoPlugin.getReferenceNum(),
+                monerisPaymentTransactionInfoPlugin.getReceiptId(),
+                updatedBy,
+                updatedDate.toDate(),
+                monerisPaymentTransactionInfoPlugin.getKbTransactionPaymentId().toString()
+        };
+    }
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+
+/**
+ * Append-only, memory-mapped write-ahead journal of gateway receipts.
+ * <p/>
+ * Receipts are forced to disk here before the caller gets its result, so that an approved charge is never lost
+ * if the database is slow or down. The MonerisJournalApplier drains the journal into moneris_transactions.
+ * <p/>
+ * File layout:
+ * <pre>
+ * header:  magic (int) | version (int) | epoch (long) | applied offset (long)
+ * records: payload length (int) | epoch (long) | CRC32 of payload (long) | payload
+ * </pre>
+ * A record is valid only if its epoch matches the header and its checksum matches: this lets recovery
+ * stop at a torn write and ignore stale records left over from a previous epoch (the file is rewound,
+ * and the epoch bumped, every time the journal is fully applied).
+ */
+public class MonerisJournal {
+
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_HEADER_SIZE = 4 + 8 + 8;
+
+    private static final int MAGIC = 0x4d4f4e4a; // MONJ
+    private static final int VERSION = 1;
+    private static final int EPOCH_POSITION = 8;
+    private static final int APPLIED_OFFSET_POSITION = 16;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    // Unapplied entries, in journal order
+    private final LinkedList<Record> pending = new LinkedList<Record>();
+
+    private long epoch;
+    private int appliedOffset;
+    private int writeOffset;
+
+    public MonerisJournal(final File journalFile, final int capacity) throws IOException {
+        final boolean exists = journalFile.exists() && journalFile.length() >= HEADER_SIZE;
+
+        this.file = new RandomAccessFile(journalFile, "rw");
+        this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, exists ? Math.max(capacity, file.length()) : capacity);
+
+        if (exists && buffer.getInt(0) == MAGIC) {
+            recover();
+        } else {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            epoch = 1;
+            appliedOffset = HEADER_SIZE;
+            writeOffset = HEADER_SIZE;
+            writeHeader();
+        }
+    }
+
+    /**
+     * Durably append an entry.
+     *
+     * @return false if the journal is full (the caller should then write to the database directly)
+     */
+    public synchronized boolean append(final MonerisJournalEntry entry) throws IOException {
+        final byte[] payload = entry.serialize();
+        final int recordSize = RECORD_HEADER_SIZE + payload.length;
+        if (writeOffset + recordSize > buffer.capacity()) {
+            return false;
+        }
+
+        // Write the payload first and the length last, so that a torn record is never mistaken for a complete one
+        final CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        buffer.putLong(writeOffset + 4, epoch);
+        buffer.putLong(writeOffset + 12, crc32.getValue());
+        for (int i = 0; i < payload.length; i++) {
+            buffer.put(writeOffset + RECORD_HEADER_SIZE + i, payload[i]);
+        }
+        buffer.putInt(writeOffset, payload.length);
+        buffer.force();
+
+        writeOffset += recordSize;
+        pending.add(new Record(entry, writeOffset));
+
+        return true;
+    }
+
+    /**
+     * @return up to maxEntries unapplied entries, oldest first
+     */
+    public synchronized List<MonerisJournalEntry> peek(final int maxEntries) {
+        final List<MonerisJournalEntry> entries = new LinkedList<MonerisJournalEntry>();
+        for (final Record record : pending) {
+            if (entries.size() >= maxEntries) {
+                break;
+            }
+            entries.add(record.entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Checkpoint the first nbEntries pending entries, once they have been committed to the database.
+     */
+    public synchronized void markApplied(final int nbEntries) {
+        for (int i = 0; i < nbEntries && !pending.isEmpty(); i++) {
+            appliedOffset = pending.removeFirst().endOffset;
+        }
+
+        if (pending.isEmpty()) {
+            // Everything has been applied, rewind
+            epoch++;
+            appliedOffset = HEADER_SIZE;
+            writeOffset = HEADER_SIZE;
+        }
+        writeHeader();
+    }
+
+    /**
+     * Entries for that payment not yet in the database: readers need to see them to get read-your-writes semantics.
+     */
+    public synchronized List<PaymentTransactionInfoPlugin> getPendingTransactions(final UUID kbPaymentId, final UUID kbTenantId) {
+        final List<PaymentTransactionInfoPlugin> transactions = new LinkedList<PaymentTransactionInfoPlugin>();
+        for (final Record record : pending) {
+            if (kbPaymentId.equals(record.entry.getKbPaymentId()) && kbTenantId != null && kbTenantId.equals(record.entry.getCallContext().getTenantId())) {
+                transactions.add(record.entry.getMonerisPaymentTransactionInfoPlugin());
+            }
+        }
+        return transactions;
+    }
+
+    public synchronized PaymentTransactionInfoPlugin getPendingTransaction(final UUID kbTransactionId, final UUID kbTenantId) {
+        for (final Record record : pending) {
+            if (kbTransactionId.equals(record.entry.getKbTransactionId()) && kbTenantId != null && kbTenantId.equals(record.entry.getCallContext().getTenantId())) {
+                return record.entry.getMonerisPaymentTransactionInfoPlugin();
+            }
+        }
+        return null;
+    }
+
+    public synchronized int getNbPendingEntries() {
+        return pending.size();
+    }
+
+    public synchronized void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    private void recover() throws IOException {
+        epoch = buffer.getLong(EPOCH_POSITION);
+        appliedOffset = (int) buffer.getLong(APPLIED_OFFSET_POSITION);
+
+        int offset = appliedOffset;
+        while (offset + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            final int length = buffer.getInt(offset);
+            if (length <= 0 || offset + RECORD_HEADER_SIZE + length > buffer.capacity() || buffer.getLong(offset + 4) != epoch) {
+                break;
+            }
+
+            final byte[] payload = new byte[length];
+            for (int i = 0; i < length; i++) {
+                payload[i] = buffer.get(offset + RECORD_HEADER_SIZE + i);
+            }
+            final CRC32 crc32 = new CRC32();
+            crc32.update(payload, 0, length);
+            if (crc32.getValue() != buffer.getLong(offset + 12)) {
+                // Torn write
+                break;
+            }
+
+            offset += RECORD_HEADER_SIZE + length;
+            pending.add(new Record(MonerisJournalEntry.deserialize(payload), offset));
+        }
+        writeOffset = offset;
+    }
+
+    private void writeHeader() {
+        buffer.putLong(EPOCH_POSITION, epoch);
+        buffer.putLong(APPLIED_OFFSET_POSITION, appliedOffset);
+        buffer.force();
+    }
+
+    private static final class Record {
+
+        private final MonerisJournalEntry entry;
+        private final int endOffset;
+
+        private Record(final MonerisJournalEntry entry, final int endOffset) {
+            this.entry = entry;
+            this.endOffset = endOffset;
+        }
+    }
+}
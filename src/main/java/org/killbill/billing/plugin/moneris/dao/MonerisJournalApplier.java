@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * Drains the journal into moneris_transactions, in batches.
+ */
+public class MonerisJournalApplier implements Runnable {
+
+    private final MonerisJournal journal;
+    private final MonerisDao monerisDao;
+    private final LogService logService;
+    private final int batchSize;
+
+    private ScheduledExecutorService executor;
+
+    public MonerisJournalApplier(final MonerisJournal journal, final MonerisDao monerisDao, final LogService logService, final int batchSize) {
+        this.journal = journal;
+        this.monerisDao = monerisDao;
+        this.logService = logService;
+        this.batchSize = batchSize;
+    }
+
+    public synchronized void start(final long applyIntervalMillis) {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "moneris-journal-applier");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(this, applyIntervalMillis, applyIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+            executor = null;
+        }
+        // Last chance to drain what's left - anything we can't apply will be replayed on restart
+        run();
+    }
+
+    @Override
+    public void run() {
+        try {
+            drain();
+        } catch (final RuntimeException e) {
+            // Most likely the database is down: leave the entries in the journal and retry on the next tick
+            logService.log(LogService.LOG_WARNING, "Unable to apply the Moneris journal, " + journal.getNbPendingEntries() + " entries pending", e);
+        }
+    }
+
+    /**
+     * Apply all pending entries, in order.
+     *
+     * @return the number of entries applied
+     */
+    public synchronized int drain() {
+        int nbApplied = 0;
+        while (true) {
+            final List<MonerisJournalEntry> entries = journal.peek(batchSize);
+            if (entries.isEmpty()) {
+                return nbApplied;
+            }
+
+            monerisDao.createTransactions(entries);
+            journal.markApplied(entries.size());
+            nbApplied += entries.size();
+        }
+    }
+}
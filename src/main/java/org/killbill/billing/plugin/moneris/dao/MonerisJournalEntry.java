@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.plugin.moneris.MonerisContext;
+import org.killbill.billing.plugin.moneris.MonerisPaymentTransactionInfoPlugin;
+import org.killbill.billing.util.callcontext.CallContext;
+
+/**
+ * Everything needed to replay a MonerisDao#createTransaction call: this is what the journal persists.
+ */
+public class MonerisJournalEntry {
+
+    private final UUID kbAccountId;
+    private final UUID kbPaymentId;
+    private final UUID kbTransactionId;
+    private final UUID kbPaymentMethodId;
+    private final BigDecimal amount;
+    private final Currency currency;
+    private final TransactionType transactionType;
+    private final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin;
+    private final CallContext callContext;
+
+    public MonerisJournalEntry(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId,
+                               @Nullable final BigDecimal amount, @Nullable final Currency currency, final TransactionType transactionType,
+                               final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin, final CallContext callContext) {
+        this.kbAccountId = kbAccountId;
+        this.kbPaymentId = kbPaymentId;
+        this.kbTransactionId = kbTransactionId;
+        this.kbPaymentMethodId = kbPaymentMethodId;
+        this.amount = amount;
+        this.currency = currency;
+        this.transactionType = transactionType;
+        this.monerisPaymentTransactionInfoPlugin = monerisPaymentTransactionInfoPlugin;
+        this.callContext = callContext;
+    }
+
+    public UUID getKbAccountId() {
+        return kbAccountId;
+    }
+
+    public UUID getKbPaymentId() {
+        return kbPaymentId;
+    }
+
+    public UUID getKbTransactionId() {
+        return kbTransactionId;
+    }
+
+    public UUID getKbPaymentMethodId() {
+        return kbPaymentMethodId;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    public TransactionType getTransactionType() {
+        return transactionType;
+    }
+
+    public MonerisPaymentTransactionInfoPlugin getMonerisPaymentTransactionInfoPlugin() {
+        return monerisPaymentTransactionInfoPlugin;
+    }
+
+    public CallContext getCallContext() {
+        return callContext;
+    }
+
+    public byte[] serialize() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        writeString(out, toString(kbAccountId));
+        writeString(out, toString(kbPaymentId));
+        writeString(out, toString(kbTransactionId));
+        writeString(out, toString(kbPaymentMethodId));
+        writeString(out, amount == null ? null : amount.toString());
+        writeString(out, currency == null ? null : currency.toString());
+        writeString(out, transactionType.toString());
+
+        writeString(out, monerisPaymentTransactionInfoPlugin.getIsVisaDebit());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getStatusMessage());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getStatusCode());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getCavvResultCode());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getCvdResultCode());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getAvsResultCode());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getRecurSuccess());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getTicket());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getTimedOut());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getTxnNumber());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getCardType());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getTransAmount());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getMessage());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getComplete());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getTransType());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getTransDate());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getTransTime());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getAuthCode());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getIso());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getResponseCode());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getReferenceNum());
+        writeString(out, monerisPaymentTransactionInfoPlugin.getReceiptId());
+
+        // Only what the DAO needs from the context
+        writeString(out, toString(callContext.getTenantId()));
+        writeString(out, callContext.getUserName());
+        out.writeLong(callContext.getCreatedDate().getMillis());
+
+        writeString(out, monerisPaymentTransactionInfoPlugin.getStore());
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static MonerisJournalEntry deserialize(final byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        final UUID kbAccountId = toUUID(readString(in));
+        final UUID kbPaymentId = toUUID(readString(in));
+        final UUID kbTransactionId = toUUID(readString(in));
+        final UUID kbPaymentMethodId = toUUID(readString(in));
+        final String amount = readString(in);
+        final String currency = readString(in);
+        final TransactionType transactionType = TransactionType.valueOf(readString(in));
+
+        final MonerisPaymentTransactionInfoPlugin receipt = new MonerisPaymentTransactionInfoPlugin(kbPaymentId,
+                                                                                                    kbTransactionId,
+                                                                                                    transactionType,
+                                                                                                    currency == null ? null : Currency.valueOf(currency),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in),
+                                                                                                    readString(in));
+
+        final UUID kbTenantId = toUUID(readString(in));
+        final String userName = readString(in);
+        final DateTime createdDate = new DateTime(in.readLong(), DateTimeZone.UTC);
+        final CallContext callContext = new MonerisContext(kbTenantId, null, userName, null, null, null, null, createdDate, createdDate);
+
+        // Not there in entries journaled before stores were recorded
+        final String store = in.available() > 0 ? readString(in) : null;
+        final MonerisPaymentTransactionInfoPlugin monerisPaymentTransactionInfoPlugin = store == null ? receipt : receipt.withStore(store);
+
+        return new MonerisJournalEntry(kbAccountId,
+                                       kbPaymentId,
+                                       kbTransactionId,
+                                       kbPaymentMethodId,
+                                       amount == null ? null : new BigDecimal(amount),
+                                       currency == null ? null : Currency.valueOf(currency),
+                                       transactionType,
+                                       monerisPaymentTransactionInfoPlugin,
+                                       callContext);
+    }
+
+    private static void writeString(final DataOutputStream out, @Nullable final String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static String toString(@Nullable final UUID uuid) {
+        return uuid == null ? null : uuid.toString();
+    }
+
+    private static UUID toUUID(@Nullable final String uuid) {
+        return uuid == null ? null : UUID.fromString(uuid);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("MonerisJournalEntry{");
+        sb.append("kbPaymentId=").append(kbPaymentId);
+        sb.append(", kbTransactionId=").append(kbTransactionId);
+        sb.append(", transactionType=").append(transactionType);
+        sb.append(", amount=").append(amount);
+        sb.append(", currency=").append(currency);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -20,19 +20,26 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.UUID;
 
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
 import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
 import org.killbill.billing.plugin.moneris.MonerisPaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.moneris.MonerisUnsentTransactionInfoPlugin;
 import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
 
 class MonerisPaymentTransactionInfoPluginResultSetMapper implements ResultSetMapper<PaymentTransactionInfoPlugin> {
 
     @Override
-    public MonerisPaymentTransactionInfoPlugin map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+    public PaymentTransactionInfoPlugin map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
         final String kbPaymentId = r.getString("kb_payment_id");
         final String kbTransactionId = r.getString("kb_transaction_id");
+        final String transactionType = r.getString("transaction_type");
         final String currency = r.getString("currency");
+        final String store = r.getString("store");
         final String receiptIsVisaDebit = r.getString("receipt_is_visa_debit");
         final String receiptStatusMessage = r.getString("receipt_status_message");
         final String receiptStatusCode = r.getString("receipt_status_code");
@@ -56,9 +63,26 @@ class MonerisPaymentTransactionInfoPluginResultSetMapper implements ResultSetMap
         final String receiptReferenceNum = r.getString("receipt_reference_num");
         final String receiptReceiptId = r.getString("receipt_receipt_id");
 
+        final String transactionStatus = r.getString("transaction_status");
+        if (receiptResponseCode == null && receiptStatusCode == null && receiptTransDate == null &&
+            (PaymentPluginStatus.PENDING.toString().equals(transactionStatus) || PaymentPluginStatus.CANCELED.toString().equals(transactionStatus))) {
+            // Queued while Moneris was unreachable (see MonerisOfflineQueue): no receipt (yet)
+            return new MonerisUnsentTransactionInfoPlugin(kbPaymentId == null ? null : UUID.fromString(kbPaymentId),
+                                                          kbTransactionId == null ? null : UUID.fromString(kbTransactionId),
+                                                          transactionType == null ? null : TransactionType.valueOf(transactionType),
+                                                          r.getBigDecimal("amount"),
+                                                          currency == null ? null : Currency.valueOf(currency),
+                                                          PaymentPluginStatus.valueOf(transactionStatus),
+                                                          null,
+                                                          r.getString("transaction_gateway_error"),
+                                                          new DateTime(r.getTimestamp("created_date"), DateTimeZone.UTC));
+        }
+
         return new MonerisPaymentTransactionInfoPlugin(kbPaymentId == null ? null : UUID.fromString(kbPaymentId),
                                                        kbTransactionId == null ? null : UUID.fromString(kbTransactionId),
+                                                       transactionType == null ? null : TransactionType.valueOf(transactionType),
                                                        currency == null ? null : Currency.valueOf(currency),
+                                                       store,
                                                        receiptIsVisaDebit,
                                                        receiptStatusMessage,
                                                        receiptStatusCode,
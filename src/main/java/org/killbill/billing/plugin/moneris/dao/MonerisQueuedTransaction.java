@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+
+/**
+ * A Vault charge queued while Moneris was unreachable, see MonerisDao#getQueuedTransactions.
+ */
+public class MonerisQueuedTransaction {
+
+    private final long recordId;
+    private final UUID kbAccountId;
+    private final UUID kbPaymentId;
+    private final UUID kbTransactionId;
+    private final UUID kbPaymentMethodId;
+    private final TransactionType transactionType;
+    private final BigDecimal amount;
+    private final Currency currency;
+    private final String store;
+    private final String crypt;
+    private final String dynamicDescriptor;
+    private final int nbAttempts;
+    private final UUID kbTenantId;
+
+    public MonerisQueuedTransaction(final long recordId, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId,
+                                    final TransactionType transactionType, final BigDecimal amount, final Currency currency, @Nullable final String store,
+                                    final String crypt, final String dynamicDescriptor, final int nbAttempts, final UUID kbTenantId) {
+        this.recordId = recordId;
+        this.kbAccountId = kbAccountId;
+        this.kbPaymentId = kbPaymentId;
+        this.kbTransactionId = kbTransactionId;
+        this.kbPaymentMethodId = kbPaymentMethodId;
+        this.transactionType = transactionType;
+        this.amount = amount;
+        this.currency = currency;
+        this.store = store;
+        this.crypt = crypt;
+        this.dynamicDescriptor = dynamicDescriptor;
+        this.nbAttempts = nbAttempts;
+        this.kbTenantId = kbTenantId;
+    }
+
+    /**
+     * @return the position in the queue
+     */
+    public long getRecordId() {
+        return recordId;
+    }
+
+    public UUID getKbAccountId() {
+        return kbAccountId;
+    }
+
+    public UUID getKbPaymentId() {
+        return kbPaymentId;
+    }
+
+    public UUID getKbTransactionId() {
+        return kbTransactionId;
+    }
+
+    public UUID getKbPaymentMethodId() {
+        return kbPaymentMethodId;
+    }
+
+    public TransactionType getTransactionType() {
+        return transactionType;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    /**
+     * @return the Moneris store picked when queuing (null for a single store setup)
+     */
+    public String getStore() {
+        return store;
+    }
+
+    public String getCrypt() {
+        return crypt;
+    }
+
+    public String getDynamicDescriptor() {
+        return dynamicDescriptor;
+    }
+
+    /**
+     * @return the number of times it was claimed before: if not 0, it may have reached Moneris already
+     */
+    public int getNbAttempts() {
+        return nbAttempts;
+    }
+
+    public UUID getKbTenantId() {
+        return kbTenantId;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("MonerisQueuedTransaction{");
+        sb.append("kbPaymentId=").append(kbPaymentId);
+        sb.append(", kbTransactionId=").append(kbTransactionId);
+        sb.append(", transactionType=").append(transactionType);
+        sb.append(", amount=").append(amount);
+        sb.append(", currency=").append(currency);
+        sb.append(", store='").append(store).append('\'');
+        sb.append(", nbAttempts=").append(nbAttempts);
+        sb.append(", kbTenantId=").append(kbTenantId);
+        sb.append('}');
+        return sb.toString();
+    }
+}
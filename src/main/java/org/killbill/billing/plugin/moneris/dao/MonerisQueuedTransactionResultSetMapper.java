@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+class MonerisQueuedTransactionResultSetMapper implements ResultSetMapper<MonerisQueuedTransaction> {
+
+    @Override
+    public MonerisQueuedTransaction map(final int index, final ResultSet r, final StatementContext ctx) throws SQLException {
+        final String kbAccountId = r.getString("kb_account_id");
+        final String kbPaymentId = r.getString("kb_payment_id");
+        final String kbTransactionId = r.getString("kb_transaction_id");
+        final String kbPaymentMethodId = r.getString("kb_payment_method_id");
+        final String transactionType = r.getString("transaction_type");
+        final String currency = r.getString("currency");
+        final String kbTenantId = r.getString("kb_tenant_id");
+
+        return new MonerisQueuedTransaction(r.getLong("record_id"),
+                                            kbAccountId == null ? null : UUID.fromString(kbAccountId),
+                                            kbPaymentId == null ? null : UUID.fromString(kbPaymentId),
+                                            kbTransactionId == null ? null : UUID.fromString(kbTransactionId),
+                                            kbPaymentMethodId == null ? null : UUID.fromString(kbPaymentMethodId),
+                                            transactionType == null ? null : TransactionType.valueOf(transactionType),
+                                            r.getBigDecimal("amount"),
+                                            currency == null ? null : Currency.valueOf(currency),
+                                            r.getString("store"),
+                                            r.getString("crypt"),
+                                            r.getString("dynamic_descriptor"),
+                                            r.getInt("nb_attempts"),
+                                            kbTenantId == null ? null : UUID.fromString(kbTenantId));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.osgi.service.log.LogService;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.TimingCollector;
+import org.skife.jdbi.v2.tweak.Argument;
+
+/**
+ * Logs the statements slower than their threshold (per MonerisDao operation), with their shape and number of binds,
+ * e.g. to catch getTransactions degrading when table statistics go stale.
+ * <p/>
+ * Optionally, the plan of a sample of slow selects is captured too: EXPLAIN runs on the payment thread (on the same connection),
+ * so it is both sampled and limited to one every minExplainInterval.
+ */
+public class MonerisSlowQueryDetector implements TimingCollector {
+
+    // Named (:name) or positional (?) parameters
+    private static final Pattern PARAMETER_PATTERN = Pattern.compile("\\?|:(\\w+)");
+    // IN lists built by the DAO, e.g. :id0, :id1, :id2
+    private static final Pattern IN_LIST_PATTERN = Pattern.compile(":([a-zA-Z_]+)\\d+(?:\\s*,\\s*:\\1\\d+)+");
+    private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+
+    private final LogService logService;
+    private final long defaultThresholdNanos;
+    private final Map<String, Integer> thresholdsMillis;
+    private final double explainSampleRate;
+    private final long minExplainIntervalNanos;
+    private final AtomicLong lastExplainNanos;
+
+    /**
+     * @param thresholdsMillis  per operation thresholds, overriding defaultThresholdMillis
+     * @param explainSampleRate fraction of slow selects to explain (0 to disable)
+     */
+    public MonerisSlowQueryDetector(final LogService logService, final long defaultThresholdMillis, final Map<String, Integer> thresholdsMillis,
+                                    final double explainSampleRate, final long minExplainIntervalSeconds) {
+        this.logService = logService;
+        this.defaultThresholdNanos = TimeUnit.MILLISECONDS.toNanos(defaultThresholdMillis);
+        this.thresholdsMillis = thresholdsMillis;
+        this.explainSampleRate = explainSampleRate;
+        this.minExplainIntervalNanos = TimeUnit.SECONDS.toNanos(minExplainIntervalSeconds);
+        this.lastExplainNanos = new AtomicLong(System.nanoTime() - minExplainIntervalNanos);
+    }
+
+    @Override
+    public void collect(final long elapsedNanos, final StatementContext ctx) {
+        final Object operation = ctx.getAttribute(MonerisDao.OPERATION_ATTRIBUTE);
+        final Integer thresholdMillis = operation == null ? null : thresholdsMillis.get(operation.toString());
+        if (elapsedNanos < (thresholdMillis == null ? defaultThresholdNanos : TimeUnit.MILLISECONDS.toNanos(thresholdMillis))) {
+            return;
+        }
+
+        final String rawSql = ctx.getRawSql();
+        final StringBuilder message = new StringBuilder("Slow Moneris query: operation=").append(operation)
+                                                                                       .append(", durationMillis=").append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos))
+                                                                                       .append(", nbBinds=").append(countParameters(rawSql))
+                                                                                       .append(", sql=").append(toSqlShape(rawSql));
+        if (shouldExplain(rawSql)) {
+            try {
+                message.append(", plan=\n").append(explain(ctx));
+            } catch (final SQLException e) {
+                message.append(", plan unavailable: ").append(e.getMessage());
+            }
+        }
+        logService.log(LogService.LOG_WARNING, message.toString());
+    }
+
+    private boolean shouldExplain(final String rawSql) {
+        if (explainSampleRate <= 0 ||
+            !rawSql.trim().toLowerCase().startsWith("select") ||
+            ThreadLocalRandom.current().nextDouble() >= explainSampleRate) {
+            return false;
+        }
+
+        final long now = System.nanoTime();
+        final long lastExplain = lastExplainNanos.get();
+        return now - lastExplain >= minExplainIntervalNanos && lastExplainNanos.compareAndSet(lastExplain, now);
+    }
+
+    // Re-run the statement, with the same binds, under EXPLAIN
+    private String explain(final StatementContext ctx) throws SQLException {
+        final PreparedStatement statement = ctx.getConnection().prepareStatement("explain " + ctx.getRewrittenSql());
+        try {
+            final Matcher matcher = PARAMETER_PATTERN.matcher(ctx.getRawSql());
+            int position = 0;
+            while (matcher.find()) {
+                final Argument argument = matcher.group(1) == null ? ctx.getBinding().forPosition(position) : ctx.getBinding().forName(matcher.group(1));
+                if (argument == null) {
+                    throw new SQLException("Unable to find the bind for parameter " + matcher.group());
+                }
+                position++;
+                argument.apply(position, statement, ctx);
+            }
+
+            final StringBuilder plan = new StringBuilder();
+            final ResultSet resultSet = statement.executeQuery();
+            try {
+                final int nbColumns = resultSet.getMetaData().getColumnCount();
+                while (resultSet.next()) {
+                    for (int i = 1; i <= nbColumns; i++) {
+                        plan.append(i == 1 ? "" : " | ").append(resultSet.getString(i));
+                    }
+                    plan.append('\n');
+                }
+            } finally {
+                resultSet.close();
+            }
+            return plan.toString();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * @return the statement, on a single line, with IN lists collapsed (e.g. :id*), so that slow queries can be grouped
+     */
+    static String toSqlShape(final String rawSql) {
+        final String singleLine = WHITESPACE_PATTERN.matcher(rawSql.trim()).replaceAll(" ");
+        return IN_LIST_PATTERN.matcher(singleLine).replaceAll(":$1*");
+    }
+
+    static int countParameters(final String rawSql) {
+        final Matcher matcher = PARAMETER_PATTERN.matcher(rawSql);
+        int nbParameters = 0;
+        while (matcher.find()) {
+            nbParameters++;
+        }
+        return nbParameters;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.catalog.api.Currency;
+
+/**
+ * A successful authorization which was never captured, voided or re-authorized.
+ */
+public class MonerisStaleAuthorization {
+
+    private final UUID kbAccountId;
+    private final UUID kbPaymentId;
+    private final UUID kbTransactionId;
+    private final UUID kbPaymentMethodId;
+    private final BigDecimal amount;
+    private final Currency currency;
+    private final String cardType;
+    private final DateTime createdDate;
+    private final UUID kbTenantId;
+
+    public MonerisStaleAuthorization(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount,
+                                     final Currency currency, final String cardType, final DateTime createdDate, final UUID kbTenantId) {
+        this.kbAccountId = kbAccountId;
+        this.kbPaymentId = kbPaymentId;
+        this.kbTransactionId = kbTransactionId;
+        this.kbPaymentMethodId = kbPaymentMethodId;
+        this.amount = amount;
+        this.currency = currency;
+        this.cardType = cardType;
+        this.createdDate = createdDate;
+        this.kbTenantId = kbTenantId;
+    }
+
+    public UUID getKbAccountId() {
+        return kbAccountId;
+    }
+
+    public UUID getKbPaymentId() {
+        return kbPaymentId;
+    }
+
+    public UUID getKbTransactionId() {
+        return kbTransactionId;
+    }
+
+    public UUID getKbPaymentMethodId() {
+        return kbPaymentMethodId;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    public String getCardType() {
+        return cardType;
+    }
+
+    public DateTime getCreatedDate() {
+        return createdDate;
+    }
+
+    public UUID getKbTenantId() {
+        return kbTenantId;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("MonerisStaleAuthorization{");
+        sb.append("kbPaymentId=").append(kbPaymentId);
+        sb.append(", kbTransactionId=").append(kbTransactionId);
+        sb.append(", amount=").append(amount);
+        sb.append(", currency=").append(currency);
+        sb.append(", cardType='").append(cardType).append('\'');
+        sb.append(", createdDate=").append(createdDate);
+        sb.append(", kbTenantId=").append(kbTenantId);
+        sb.append('}');
+        return sb.toString();
+    }
+}
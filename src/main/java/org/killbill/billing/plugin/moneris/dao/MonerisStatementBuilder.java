@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.skife.jdbi.v2.DefaultStatementBuilder;
+import org.skife.jdbi.v2.StatementContext;
+
+/**
+ * Sets a query timeout on every statement, per MonerisDao operation, so that a runaway query can't hold a payment thread.
+ * This covers the Handle#update and batch shortcuts too, which don't expose setQueryTimeout.
+ * <p/>
+ * Exports and maintenance (see LONG_RUNNING_OPERATIONS) run off the payment path, over whole date ranges: they have
+ * no timeout, unless one is set for them explicitly (e.g. streamTransactions:3600).
+ */
+public class MonerisStatementBuilder extends DefaultStatementBuilder {
+
+    private static final List<String> LONG_RUNNING_OPERATIONS = Arrays.asList("streamTransactions", "getProcessedTransactionsSlice", "rebuildDailyTotals");
+
+    private final int defaultQueryTimeoutSeconds;
+    private final Map<String, Integer> queryTimeoutsSeconds;
+
+    /**
+     * @param queryTimeoutsSeconds per operation timeouts, overriding defaultQueryTimeoutSeconds (0 for no timeout)
+     */
+    public MonerisStatementBuilder(final int defaultQueryTimeoutSeconds, final Map<String, Integer> queryTimeoutsSeconds) {
+        this.defaultQueryTimeoutSeconds = defaultQueryTimeoutSeconds;
+        this.queryTimeoutsSeconds = new HashMap<String, Integer>();
+        for (final String operation : LONG_RUNNING_OPERATIONS) {
+            this.queryTimeoutsSeconds.put(operation, 0);
+        }
+        this.queryTimeoutsSeconds.putAll(queryTimeoutsSeconds);
+    }
+
+    @Override
+    public PreparedStatement create(final Connection conn, final String sql, final StatementContext ctx) throws SQLException {
+        final PreparedStatement statement = super.create(conn, sql, ctx);
+
+        final Object operation = ctx.getAttribute(MonerisDao.OPERATION_ATTRIBUTE);
+        final Integer queryTimeoutSeconds = operation == null ? null : queryTimeoutsSeconds.get(operation.toString());
+        final int timeout = queryTimeoutSeconds == null ? defaultQueryTimeoutSeconds : queryTimeoutSeconds;
+        if (timeout > 0) {
+            statement.setQueryTimeout(timeout);
+        }
+        return statement;
+    }
+}
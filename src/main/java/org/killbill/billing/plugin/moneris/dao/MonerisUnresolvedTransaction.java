@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+
+/**
+ * A transaction whose outcome is unknown (e.g. the gateway timed out), see MonerisDao#getUnresolvedTransactions.
+ */
+public class MonerisUnresolvedTransaction {
+
+    private final UUID kbPaymentId;
+    private final UUID kbTransactionId;
+    private final TransactionType transactionType;
+    private final BigDecimal amount;
+    private final Currency currency;
+    private final String store;
+    private final UUID kbTenantId;
+
+    public MonerisUnresolvedTransaction(final UUID kbPaymentId, final UUID kbTransactionId, final TransactionType transactionType,
+                                        final BigDecimal amount, final Currency currency, @Nullable final String store, final UUID kbTenantId) {
+        this.kbPaymentId = kbPaymentId;
+        this.kbTransactionId = kbTransactionId;
+        this.transactionType = transactionType;
+        this.amount = amount;
+        this.currency = currency;
+        this.store = store;
+        this.kbTenantId = kbTenantId;
+    }
+
+    public UUID getKbPaymentId() {
+        return kbPaymentId;
+    }
+
+    public UUID getKbTransactionId() {
+        return kbTransactionId;
+    }
+
+    public TransactionType getTransactionType() {
+        return transactionType;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    /**
+     * @return the Moneris store the transaction was sent to (null for a single store setup, or if unknown)
+     */
+    public String getStore() {
+        return store;
+    }
+
+    public UUID getKbTenantId() {
+        return kbTenantId;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("MonerisUnresolvedTransaction{");
+        sb.append("kbPaymentId=").append(kbPaymentId);
+        sb.append(", kbTransactionId=").append(kbTransactionId);
+        sb.append(", transactionType=").append(transactionType);
+        sb.append(", amount=").append(amount);
+        sb.append(", currency=").append(currency);
+        sb.append(", store='").append(store).append('\'');
+        sb.append(", kbTenantId=").append(kbTenantId);
+        sb.append('}');
+        return sb.toString();
+    }
+}
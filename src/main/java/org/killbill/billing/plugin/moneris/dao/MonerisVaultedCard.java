@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+import javax.annotation.Nullable;
+
+/**
+ * A card stored in the Moneris Vault (ResAddCC), see MonerisDao#getVaultedCard. Data keys are only valid in the store which issued them.
+ */
+public class MonerisVaultedCard {
+
+    private final String dataKey;
+    private final String store;
+
+    /**
+     * @param store name of the Moneris store which issued the data key (null for the default store)
+     */
+    public MonerisVaultedCard(final String dataKey, @Nullable final String store) {
+        this.dataKey = dataKey;
+        this.store = store;
+    }
+
+    public String getDataKey() {
+        return dataKey;
+    }
+
+    public String getStore() {
+        return store;
+    }
+
+    @Override
+    public String toString() {
+        // Don't leak the data key in logs
+        final StringBuilder sb = new StringBuilder("MonerisVaultedCard{");
+        sb.append("store='").append(store).append('\'');
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -10,6 +10,7 @@ CREATE TABLE moneris_transactions (
 , transaction_type varchar(255) NOT NULL
 , amount numeric(10,4) NOT NULL
 , currency char(3) NOT NULL
+, store varchar(255) DEFAULT NULL
 , transaction_amount varchar(255) DEFAULT NULL
 , transaction_effective_date varchar(255) DEFAULT NULL
 , transaction_status varchar(255) DEFAULT NULL
@@ -46,7 +47,75 @@ CREATE TABLE moneris_transactions (
 , kb_tenant_id char(36) DEFAULT NULL
 , PRIMARY KEY(record_id)
 ) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+CREATE UNIQUE INDEX moneris_transactions_kb_transaction_id ON moneris_transactions(kb_transaction_id);
 CREATE INDEX moneris_transactions_kb_payment_id_kb_tenant_id ON moneris_transactions(kb_payment_id, kb_tenant_id);
+CREATE INDEX moneris_transactions_transaction_status_type_created_date ON moneris_transactions(transaction_status, transaction_type, created_date);
+CREATE INDEX moneris_transactions_kb_tenant_id_created_date ON moneris_transactions(kb_tenant_id, created_date);
+CREATE INDEX moneris_transactions_kb_tenant_id_receipt_receipt_id ON moneris_transactions(kb_tenant_id, receipt_receipt_id);
+CREATE INDEX moneris_transactions_type_status_card_type_created_date ON moneris_transactions(transaction_type, transaction_status, receipt_card_type, created_date);
+
+DROP TABLE IF EXISTS moneris_queued_transactions;
+CREATE TABLE moneris_queued_transactions (
+  record_id int(11) unsigned NOT NULL AUTO_INCREMENT
+, kb_transaction_id char(36) NOT NULL
+, crypt varchar(255) DEFAULT NULL
+, dynamic_descriptor varchar(255) DEFAULT NULL
+, status varchar(255) NOT NULL
+, claim_token char(36) DEFAULT NULL
+, nb_attempts int NOT NULL DEFAULT 0
+, created_date datetime NOT NULL
+, updated_date datetime NOT NULL
+, kb_tenant_id char(36) DEFAULT NULL
+, PRIMARY KEY(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+CREATE UNIQUE INDEX moneris_queued_transactions_kb_transaction_id ON moneris_queued_transactions(kb_transaction_id);
+CREATE INDEX moneris_queued_transactions_status_record_id ON moneris_queued_transactions(status, record_id);
+
+DROP TABLE IF EXISTS moneris_preauth_sweeps;
+CREATE TABLE moneris_preauth_sweeps (
+  record_id int(11) unsigned NOT NULL AUTO_INCREMENT
+, kb_transaction_id char(36) NOT NULL
+, nb_attempts int NOT NULL
+, next_attempt_date datetime NOT NULL
+, created_date datetime NOT NULL
+, updated_date datetime NOT NULL
+, kb_tenant_id char(36) DEFAULT NULL
+, PRIMARY KEY(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+CREATE UNIQUE INDEX moneris_preauth_sweeps_kb_transaction_id ON moneris_preauth_sweeps(kb_transaction_id);
+
+DROP TABLE IF EXISTS moneris_reconciliations;
+CREATE TABLE moneris_reconciliations (
+  record_id int(11) unsigned NOT NULL AUTO_INCREMENT
+, kb_transaction_id char(36) NOT NULL
+, nb_attempts int NOT NULL
+, next_attempt_date datetime NOT NULL
+, created_date datetime NOT NULL
+, updated_date datetime NOT NULL
+, kb_tenant_id char(36) DEFAULT NULL
+, PRIMARY KEY(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+CREATE UNIQUE INDEX moneris_reconciliations_kb_transaction_id ON moneris_reconciliations(kb_transaction_id);
+
+DROP TABLE IF EXISTS moneris_daily_totals;
+CREATE TABLE moneris_daily_totals (
+  record_id int(11) unsigned NOT NULL AUTO_INCREMENT
+, kb_tenant_id char(36) NOT NULL
+, day char(10) NOT NULL
+, node_id varchar(64) NOT NULL
+, store varchar(64) NOT NULL
+, card_type varchar(32) NOT NULL
+, transaction_type varchar(32) NOT NULL
+, status varchar(32) NOT NULL
+, currency varchar(3) NOT NULL
+, nb_transactions bigint NOT NULL
+, amount numeric(20,4) NOT NULL
+, flush_sequence bigint NOT NULL
+, created_date datetime NOT NULL
+, updated_date datetime NOT NULL
+, PRIMARY KEY(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+CREATE UNIQUE INDEX moneris_daily_totals_key ON moneris_daily_totals(kb_tenant_id, day, node_id, store, card_type, transaction_type, status, currency);
 
 DROP TABLE IF EXISTS moneris_payment_methods;
 CREATE TABLE moneris_payment_methods (
@@ -54,6 +123,8 @@ CREATE TABLE moneris_payment_methods (
 , kb_account_id char(36) NOT NULL
 , kb_payment_method_id char(36) NOT NULL
 , external_payment_method_id varchar(255) NOT NULL
+, data_key varchar(255) DEFAULT NULL
+, data_key_store varchar(255) DEFAULT NULL
 , is_deleted bool DEFAULT FALSE
 , created_by varchar(50) NOT NULL
 , created_date datetime NOT NULL
@@ -65,3 +136,54 @@ CREATE TABLE moneris_payment_methods (
 CREATE UNIQUE INDEX moneris_payment_methods_kb_payment_method_id ON moneris_payment_methods(kb_payment_method_id);
 CREATE INDEX moneris_payment_methods_kb_payment_method_id_kb_tenant_id ON moneris_payment_methods(kb_payment_method_id, kb_tenant_id);
 CREATE INDEX moneris_payment_methods_kb_account_id_kb_tenant_id ON moneris_payment_methods(kb_account_id, kb_tenant_id);
+
+DROP TABLE IF EXISTS moneris_batch_closes;
+CREATE TABLE moneris_batch_closes (
+  record_id int(11) unsigned NOT NULL AUTO_INCREMENT
+, store_id varchar(255) NOT NULL
+, ecr_number varchar(255) NOT NULL
+, close_date char(10) NOT NULL
+, status varchar(255) NOT NULL
+, lease_owner varchar(255) NOT NULL
+, lease_expires_date datetime NOT NULL
+, receipt_response_code varchar(255) DEFAULT NULL
+, receipt_message varchar(255) DEFAULT NULL
+, receipt_timed_out varchar(255) DEFAULT NULL
+, receipt_trans_date varchar(255) DEFAULT NULL
+, receipt_trans_time varchar(255) DEFAULT NULL
+, created_date datetime NOT NULL
+, updated_date datetime DEFAULT NULL
+, PRIMARY KEY(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+CREATE UNIQUE INDEX moneris_batch_closes_store_id_ecr_number_close_date ON moneris_batch_closes(store_id, ecr_number, close_date);
+
+DROP TABLE IF EXISTS moneris_batch_close_totals;
+CREATE TABLE moneris_batch_close_totals (
+  record_id int(11) unsigned NOT NULL AUTO_INCREMENT
+, store_id varchar(255) NOT NULL
+, ecr_number varchar(255) NOT NULL
+, close_date char(10) NOT NULL
+, card_type varchar(255) NOT NULL
+, purchase_count varchar(255) DEFAULT NULL
+, purchase_amount varchar(255) DEFAULT NULL
+, refund_count varchar(255) DEFAULT NULL
+, refund_amount varchar(255) DEFAULT NULL
+, correction_count varchar(255) DEFAULT NULL
+, correction_amount varchar(255) DEFAULT NULL
+, created_date datetime NOT NULL
+, PRIMARY KEY(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+CREATE INDEX moneris_batch_close_totals_store_id_ecr_number_close_date ON moneris_batch_close_totals(store_id, ecr_number, close_date);
+
+DROP TABLE IF EXISTS moneris_audit;
+CREATE TABLE moneris_audit (
+  record_id int(11) unsigned NOT NULL AUTO_INCREMENT
+, store_id varchar(255) NOT NULL
+, operation varchar(255) NOT NULL
+, duration_micros bigint NOT NULL
+, request text DEFAULT NULL
+, response text DEFAULT NULL
+, created_date datetime NOT NULL
+, PRIMARY KEY(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+CREATE INDEX moneris_audit_created_date ON moneris_audit(created_date);
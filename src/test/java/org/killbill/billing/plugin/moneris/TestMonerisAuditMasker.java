@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMonerisAuditMasker {
+
+    @Test(groups = "fast")
+    public void testMask() throws Exception {
+        final char[] xml = ("<purchase><order_id>4242424242424242</order_id><pan>4242424242424242</pan><expdate>2512</expdate>" +
+                            "<cvd_info><cvd_indicator>1</cvd_indicator><cvd_value>123</cvd_value></cvd_info></purchase>").toCharArray();
+        MonerisAuditMasker.mask(xml, xml.length);
+        Assert.assertEquals(new String(xml), "<purchase><order_id>4242424242424242</order_id><pan>************4242</pan><expdate>****</expdate>" +
+                                             "<cvd_info><cvd_indicator>1</cvd_indicator><cvd_value>***</cvd_value></cvd_info></purchase>");
+    }
+}
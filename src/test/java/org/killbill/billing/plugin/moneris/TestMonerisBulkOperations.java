@@ -0,0 +1,304 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.Payment;
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.payment.api.PaymentTransaction;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionStatus;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.CallOrigin;
+import org.killbill.billing.util.callcontext.UserType;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMonerisBulkOperations {
+
+    private static final LogService NO_LOG = new LogService() {
+        @Override
+        public void log(final int level, final String message) {
+        }
+
+        @Override
+        public void log(final int level, final String message, final Throwable exception) {
+        }
+
+        @Override
+        public void log(final ServiceReference sr, final int level, final String message) {
+        }
+
+        @Override
+        public void log(final ServiceReference sr, final int level, final String message, final Throwable exception) {
+        }
+    };
+
+    @Test(groups = "fast")
+    public void testPrefetch() throws Exception {
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID otherKbAccountId = UUID.randomUUID();
+        final List<MonerisBulkOperation> operations = Arrays.asList(createOperation(kbAccountId, TransactionType.CAPTURE, null),
+                                                                    createOperation(kbAccountId, TransactionType.REFUND, null),
+                                                                    createOperation(otherKbAccountId, TransactionType.VOID, null));
+
+        final FakeBulkOperations bulkOperations = new FakeBulkOperations(2);
+        try {
+            final RecordingListener listener = new RecordingListener();
+            bulkOperations.execute(operations, createContext(), listener);
+
+            // Each account is looked up once, and all histories are fetched upfront
+            Assert.assertEquals(bulkOperations.nbAccountLookups.get(kbAccountId).get(), 1);
+            Assert.assertEquals(bulkOperations.nbAccountLookups.get(otherKbAccountId).get(), 1);
+            Assert.assertEquals(bulkOperations.prefetchedPaymentIds.size(), 1);
+            Assert.assertEquals(bulkOperations.prefetchedPaymentIds.get(0),
+                                new HashSet<UUID>(Arrays.asList(operations.get(0).getKbPaymentId(), operations.get(1).getKbPaymentId(), operations.get(2).getKbPaymentId())));
+            Assert.assertEquals(listener.results.size(), 3);
+            Assert.assertEquals(listener.failures.size(), 0);
+        } finally {
+            bulkOperations.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testWindow() throws Exception {
+        final List<MonerisBulkOperation> operations = new LinkedList<MonerisBulkOperation>();
+        for (int i = 0; i < 20; i++) {
+            operations.add(createOperation(UUID.randomUUID(), TransactionType.CAPTURE, null));
+        }
+
+        final FakeBulkOperations bulkOperations = new FakeBulkOperations(3);
+        bulkOperations.applyMillis = 20;
+        try {
+            final RecordingListener listener = new RecordingListener();
+            bulkOperations.execute(operations, createContext(), listener);
+
+            Assert.assertEquals(listener.results.size(), 20);
+            Assert.assertEquals(bulkOperations.nbApplied.get(), 20);
+            // Pipelined, but never more than window items in flight
+            Assert.assertTrue(bulkOperations.maxInFlight.get() > 1);
+            Assert.assertTrue(bulkOperations.maxInFlight.get() <= 3);
+        } finally {
+            bulkOperations.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testFailureThenRetry() throws Exception {
+        final MonerisBulkOperation operation = createOperation(UUID.randomUUID(), TransactionType.REFUND, "refund-1");
+        final UUID unknownKbAccountId = UUID.randomUUID();
+        final MonerisBulkOperation unknownAccountOperation = createOperation(unknownKbAccountId, TransactionType.REFUND, null);
+
+        final FakeBulkOperations bulkOperations = new FakeBulkOperations(2);
+        bulkOperations.unknownKbAccountIds.add(unknownKbAccountId);
+        bulkOperations.failures.add(operation);
+        try {
+            final RecordingListener listener = new RecordingListener();
+            bulkOperations.execute(Arrays.asList(operation, unknownAccountOperation), createContext(), listener);
+            Assert.assertEquals(listener.results.size(), 0);
+            Assert.assertEquals(listener.failures.size(), 2);
+            Assert.assertTrue(listener.failures.get(operation) instanceof PaymentApiException);
+            Assert.assertTrue(listener.failures.get(unknownAccountOperation) instanceof AccountApiException);
+            // The item of the unknown account never reaches the payment API
+            Assert.assertEquals(bulkOperations.nbApplied.get(), 1);
+
+            // Kill Bill rejected the first attempt: the retry goes through again
+            final RecordingListener retryListener = new RecordingListener();
+            bulkOperations.execute(Collections.singletonList(operation), createContext(), retryListener);
+            Assert.assertEquals(retryListener.failures.size(), 0);
+            Assert.assertEquals(retryListener.results.get(operation).getTransactionType(), TransactionType.REFUND);
+            Assert.assertEquals(retryListener.results.get(operation).getExternalKey(), "refund-1");
+            Assert.assertEquals(bulkOperations.nbApplied.get(), 2);
+        } finally {
+            bulkOperations.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testFindTransaction() throws Exception {
+        // Auto-captured payment: the capture follows an authorization which was a Purchase at Moneris
+        final PaymentTransaction authorization = createTransaction(TransactionType.AUTHORIZE, "auth", TransactionStatus.SUCCESS);
+        final PaymentTransaction firstCapture = createTransaction(TransactionType.CAPTURE, "capture-1", TransactionStatus.SUCCESS);
+        final PaymentTransaction secondCapture = createTransaction(TransactionType.CAPTURE, "capture-2", TransactionStatus.PAYMENT_FAILURE);
+        final Payment payment = createPayment(UUID.randomUUID(), Arrays.asList(authorization, firstCapture, secondCapture));
+
+        Assert.assertSame(MonerisBulkOperations.findTransaction(payment, createOperation(UUID.randomUUID(), TransactionType.CAPTURE, "capture-1")), firstCapture);
+        // Without external key, the one just created
+        Assert.assertSame(MonerisBulkOperations.findTransaction(payment, createOperation(UUID.randomUUID(), TransactionType.CAPTURE, null)), secondCapture);
+        Assert.assertNull(MonerisBulkOperations.findTransaction(payment, createOperation(UUID.randomUUID(), TransactionType.VOID, null)));
+    }
+
+    @Test(groups = "fast")
+    public void testUnsupportedTransactionType() throws Exception {
+        try {
+            createOperation(UUID.randomUUID(), TransactionType.PURCHASE, null);
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage().contains("PURCHASE"));
+        }
+    }
+
+    private static MonerisBulkOperation createOperation(final UUID kbAccountId, final TransactionType transactionType, final String transactionExternalKey) {
+        return new MonerisBulkOperation(kbAccountId, UUID.randomUUID(), transactionType, BigDecimal.TEN, Currency.CAD, transactionExternalKey, Collections.<PluginProperty>emptyList());
+    }
+
+    private static CallContext createContext() {
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        return new MonerisContext(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID().toString(), CallOrigin.INTERNAL, UserType.TEST, null, null, now, now);
+    }
+
+    private static Payment createPayment(final UUID kbPaymentId, final List<PaymentTransaction> transactions) {
+        return (Payment) Proxy.newProxyInstance(Payment.class.getClassLoader(), new Class[]{Payment.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if ("getId".equals(method.getName())) {
+                    return kbPaymentId;
+                } else if ("getTransactions".equals(method.getName())) {
+                    return transactions;
+                } else {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            }
+        });
+    }
+
+    private static PaymentTransaction createTransaction(final TransactionType transactionType, final String externalKey, final TransactionStatus status) {
+        final UUID kbTransactionId = UUID.randomUUID();
+        return (PaymentTransaction) Proxy.newProxyInstance(PaymentTransaction.class.getClassLoader(), new Class[]{PaymentTransaction.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if ("getId".equals(method.getName())) {
+                    return kbTransactionId;
+                } else if ("getTransactionType".equals(method.getName())) {
+                    return transactionType;
+                } else if ("getExternalKey".equals(method.getName())) {
+                    return externalKey;
+                } else if ("getTransactionStatus".equals(method.getName())) {
+                    return status;
+                } else if ("toString".equals(method.getName())) {
+                    return transactionType + " " + externalKey;
+                } else {
+                    return null;
+                }
+            }
+        });
+    }
+
+    // Stands in for Kill Bill: records the calls made through it
+    private static final class FakeBulkOperations extends MonerisBulkOperations {
+
+        private final Map<UUID, AtomicInteger> nbAccountLookups = new ConcurrentHashMap<UUID, AtomicInteger>();
+        private final Set<UUID> unknownKbAccountIds = new HashSet<UUID>();
+        private final List<Set<UUID>> prefetchedPaymentIds = new ArrayList<Set<UUID>>();
+        // Rejected on their first attempt
+        private final Set<MonerisBulkOperation> failures = Collections.newSetFromMap(new ConcurrentHashMap<MonerisBulkOperation, Boolean>());
+        private final AtomicInteger nbApplied = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+        private volatile long applyMillis = 0;
+
+        private FakeBulkOperations(final int window) {
+            super(null, null, new MonerisMetrics(), NO_LOG, window);
+        }
+
+        @Override
+        Account getAccount(final UUID kbAccountId, final CallContext context) throws AccountApiException {
+            if (!nbAccountLookups.containsKey(kbAccountId)) {
+                nbAccountLookups.put(kbAccountId, new AtomicInteger());
+            }
+            nbAccountLookups.get(kbAccountId).incrementAndGet();
+            if (unknownKbAccountIds.contains(kbAccountId)) {
+                throw new AccountApiException();
+            }
+            return (Account) Proxy.newProxyInstance(Account.class.getClassLoader(), new Class[]{Account.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                    return "getId".equals(method.getName()) ? kbAccountId : null;
+                }
+            });
+        }
+
+        @Override
+        void prefetchPaymentInfo(final Set<UUID> kbPaymentIds, final CallContext context) {
+            prefetchedPaymentIds.add(new HashSet<UUID>(kbPaymentIds));
+        }
+
+        @Override
+        Payment apply(final MonerisBulkOperation operation, final Account account, final CallContext context) throws PaymentApiException {
+            Assert.assertEquals(account.getId(), operation.getKbAccountId());
+            nbApplied.incrementAndGet();
+            final int nbInFlight = inFlight.incrementAndGet();
+            try {
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), nbInFlight));
+                }
+                if (applyMillis > 0) {
+                    Thread.sleep(applyMillis);
+                }
+                if (failures.remove(operation)) {
+                    throw new PaymentApiException();
+                }
+                return createPayment(operation.getKbPaymentId(), Arrays.asList(createTransaction(TransactionType.AUTHORIZE, null, TransactionStatus.SUCCESS),
+                                                                               createTransaction(operation.getTransactionType(), operation.getTransactionExternalKey(), TransactionStatus.SUCCESS)));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private static final class RecordingListener implements MonerisBulkOperationListener {
+
+        private final Map<MonerisBulkOperation, PaymentTransaction> results = new ConcurrentHashMap<MonerisBulkOperation, PaymentTransaction>();
+        private final Map<MonerisBulkOperation, Exception> failures = new ConcurrentHashMap<MonerisBulkOperation, Exception>();
+
+        @Override
+        public void onResult(final MonerisBulkOperation operation, final PaymentTransaction transaction) {
+            results.put(operation, transaction);
+        }
+
+        @Override
+        public void onFailure(final MonerisBulkOperation operation, final Exception exception) {
+            failures.put(operation, exception);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.Hashtable;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.cm.ConfigurationException;
+import org.osgi.service.log.LogService;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMonerisConfigurationHandler {
+
+    private static final String PREFIX = MonerisConfigurationHandler.PID + ".";
+
+    private static final LogService NO_LOG = new LogService() {
+        @Override
+        public void log(final int level, final String message) {
+        }
+
+        @Override
+        public void log(final int level, final String message, final Throwable exception) {
+        }
+
+        @Override
+        public void log(final ServiceReference sr, final int level, final String message) {
+        }
+
+        @Override
+        public void log(final ServiceReference sr, final int level, final String message, final Throwable exception) {
+        }
+    };
+
+    @Test(groups = "fast")
+    public void testUpdates() throws Exception {
+        final Properties defaultProperties = new Properties();
+        defaultProperties.setProperty(PREFIX + "stores", "a,b");
+        defaultProperties.setProperty(PREFIX + "host", "esqa.moneris.com");
+        defaultProperties.setProperty(PREFIX + "store.a.storeId", "store1");
+        defaultProperties.setProperty(PREFIX + "store.a.apiToken", "yesguy");
+        defaultProperties.setProperty(PREFIX + "store.a.maxConcurrentRequests", "2");
+        defaultProperties.setProperty(PREFIX + "store.b.storeId", "store2");
+        defaultProperties.setProperty(PREFIX + "store.b.apiToken", "yesguy");
+        defaultProperties.setProperty(PREFIX + "store.b.maxConcurrentRequests", "2");
+
+        final MonerisMetrics monerisMetrics = new MonerisMetrics();
+        final ExecutorService hostProbeExecutor = Executors.newSingleThreadExecutor();
+        try {
+            final MonerisConfigurationHandler configurationHandler = new MonerisConfigurationHandler(defaultProperties, monerisMetrics, new MonerisFlightRecorder(16), null, hostProbeExecutor, NO_LOG);
+            final MonerisGatewayRouter monerisGatewayRouter = configurationHandler.getGatewayRouter();
+            final MonerisGateway a = monerisGatewayRouter.route("a", null, null);
+            final MonerisGateway b = monerisGatewayRouter.route("b", null, null);
+            Assert.assertSame(monerisGatewayRouter.getDefaultGateway(), a);
+            Assert.assertTrue(monerisMetrics.getGauges().containsKey("moneris_gateway_a_available_permits"));
+            Assert.assertTrue(monerisMetrics.getGauges().containsKey("moneris_gateway_b_available_permits"));
+
+            // Rejected as a whole
+            final Hashtable<String, Object> invalid = new Hashtable<String, Object>();
+            invalid.put(PREFIX + "stores", "a,c");
+            invalid.put(PREFIX + "store.c.storeId", "store3");
+            invalid.put(PREFIX + "store.c.apiToken", "yesguy");
+            invalid.put(PREFIX + "defaultStore", "d");
+            try {
+                configurationHandler.updated(invalid);
+                Assert.fail();
+            } catch (final ConfigurationException e) {
+                Assert.assertSame(monerisGatewayRouter.route("a", null, null), a);
+                Assert.assertSame(monerisGatewayRouter.route("b", null, null), b);
+                Assert.assertFalse(monerisMetrics.getGauges().containsKey("moneris_gateway_c_available_permits"));
+            }
+
+            // b is removed, c added and a carried over as is
+            final UUID kbTenantId = UUID.randomUUID();
+            final Hashtable<String, Object> update = new Hashtable<String, Object>();
+            update.put(PREFIX + "stores", "a,c");
+            update.put(PREFIX + "store.c.storeId", "store3");
+            update.put(PREFIX + "store.c.apiToken", "yesguy");
+            update.put(PREFIX + "routing.tenants", kbTenantId + ":c");
+            configurationHandler.updated(update);
+            Assert.assertSame(monerisGatewayRouter.route("a", null, null), a);
+            final MonerisGateway c = monerisGatewayRouter.route(null, kbTenantId, Currency.CAD);
+            Assert.assertEquals(c.getName(), "c");
+            Assert.assertEquals(c.getStoreId(), "store3");
+            try {
+                monerisGatewayRouter.route("b", null, null);
+                Assert.fail();
+            } catch (final MonerisValidationException e) {
+                Assert.assertTrue(e.getMessage().contains("Unknown Moneris store b"));
+            }
+            // Still there for the follow-on transactions of its transactions
+            Assert.assertSame(monerisGatewayRouter.routeToRecordedStore("b", null, null), b);
+            Assert.assertFalse(monerisMetrics.getGauges().containsKey("moneris_gateway_b_available_permits"));
+            // No bulkhead for c
+            Assert.assertFalse(monerisMetrics.getGauges().containsKey("moneris_gateway_c_available_permits"));
+
+            // Rotated token: a is rebuilt
+            update.put(PREFIX + "store.a.apiToken", "newguy");
+            configurationHandler.updated(update);
+            final MonerisGateway newA = monerisGatewayRouter.route("a", null, null);
+            Assert.assertNotSame(newA, a);
+            Assert.assertSame(monerisGatewayRouter.route("c", null, null), c);
+            Assert.assertEquals(monerisMetrics.getGauges().get("moneris_gateway_a_available_permits").getValue(), 2.0);
+
+            // Back to the system properties
+            configurationHandler.updated(null);
+            Assert.assertNotSame(monerisGatewayRouter.route("a", null, null), newA);
+            Assert.assertEquals(monerisGatewayRouter.route("b", null, null).getStoreId(), "store2");
+            Assert.assertFalse(monerisMetrics.getGauges().containsKey("moneris_gateway_c_available_permits"));
+        } finally {
+            hostProbeExecutor.shutdownNow();
+        }
+    }
+}
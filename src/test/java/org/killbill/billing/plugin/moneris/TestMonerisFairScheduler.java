@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMonerisFairScheduler {
+
+    @Test(groups = "fast")
+    public void testInteractiveFirstThenFairShare() throws Exception {
+        final UUID tenantA = UUID.randomUUID();
+        final UUID tenantB = UUID.randomUUID();
+        final Map<UUID, Integer> weights = new HashMap<UUID, Integer>();
+        weights.put(tenantB, 2);
+        final MonerisFairScheduler scheduler = new MonerisFairScheduler(1, weights, 10, TimeUnit.SECONDS);
+        final List<String> grants = Collections.synchronizedList(new LinkedList<String>());
+
+        // Hold the only slot while requests queue up
+        scheduler.acquire(tenantA, false);
+        final List<Thread> threads = new LinkedList<Thread>();
+        threads.add(enqueue(scheduler, tenantA, false, "A1", grants));
+        threads.add(enqueue(scheduler, tenantA, false, "A2", grants));
+        threads.add(enqueue(scheduler, tenantA, false, "A3", grants));
+        threads.add(enqueue(scheduler, tenantB, false, "B1", grants));
+        threads.add(enqueue(scheduler, tenantB, false, "B2", grants));
+        threads.add(enqueue(scheduler, tenantA, true, "I1", grants));
+        Assert.assertEquals(scheduler.getNbWaiting(false), 5);
+        Assert.assertEquals(scheduler.getNbWaiting(true), 1);
+
+        scheduler.release();
+        for (final Thread thread : threads) {
+            thread.join(10000);
+        }
+
+        // Interactive first, then B (weight 2) gets two slots for each of A's, even though A queued first
+        Assert.assertEquals(grants, Arrays.asList("I1", "B1", "A1", "B2", "A2", "A3"));
+        Assert.assertEquals(scheduler.getNbInUse(), 0);
+    }
+
+    @Test(groups = "fast", expectedExceptions = MonerisThrottledException.class)
+    public void testNoSlotAvailable() throws Exception {
+        final MonerisFairScheduler scheduler = new MonerisFairScheduler(1, new HashMap<UUID, Integer>(), 10, TimeUnit.MILLISECONDS);
+        scheduler.acquire(null, true);
+        scheduler.acquire(null, true);
+    }
+
+    private Thread enqueue(final MonerisFairScheduler scheduler, final UUID kbTenantId, final boolean interactive, final String name, final List<String> grants) throws InterruptedException {
+        final int nbWaiting = scheduler.getNbWaiting(interactive);
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.acquire(kbTenantId, interactive);
+                grants.add(name);
+                scheduler.release();
+            }
+        });
+        thread.start();
+        // Wait for the request to be queued, so that the order is deterministic
+        while (scheduler.getNbWaiting(interactive) == nbWaiting) {
+            Thread.sleep(1);
+        }
+        return thread;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import JavaAPI.Receipt;
+import JavaAPI.Transaction;
+
+public class TestMonerisGatewayRouter {
+
+    private final MonerisMetrics monerisMetrics = new MonerisMetrics();
+    private final MonerisFlightRecorder monerisFlightRecorder = new MonerisFlightRecorder(16);
+
+    @Test(groups = "fast")
+    public void testRoutePrecedence() throws Exception {
+        final MonerisGateway a = createGateway("a");
+        final MonerisGateway b = createGateway("b");
+        final MonerisGateway c = createGateway("c");
+        final Map<String, MonerisGateway> gatewaysByName = new HashMap<String, MonerisGateway>();
+        gatewaysByName.put("a", a);
+        gatewaysByName.put("b", b);
+        gatewaysByName.put("c", c);
+        final UUID kbTenantId = UUID.randomUUID();
+        final Map<UUID, String> tenantRoutes = new HashMap<UUID, String>();
+        tenantRoutes.put(kbTenantId, "b");
+        final Map<Currency, String> currencyRoutes = new HashMap<Currency, String>();
+        currencyRoutes.put(Currency.USD, "c");
+        final MonerisGatewayRouter monerisGatewayRouter = new MonerisGatewayRouter(a, gatewaysByName, tenantRoutes, currencyRoutes);
+
+        // Store property, then tenant, then currency, then the default store
+        Assert.assertSame(monerisGatewayRouter.route("a", kbTenantId, Currency.USD), a);
+        Assert.assertSame(monerisGatewayRouter.route(null, kbTenantId, Currency.USD), b);
+        Assert.assertSame(monerisGatewayRouter.route(null, UUID.randomUUID(), Currency.USD), c);
+        Assert.assertSame(monerisGatewayRouter.route(null, UUID.randomUUID(), Currency.CAD), a);
+        Assert.assertSame(monerisGatewayRouter.route(null, null, null), a);
+        Assert.assertSame(monerisGatewayRouter.getDefaultGateway(), a);
+        Assert.assertEquals(monerisGatewayRouter.getGateways().size(), 3);
+    }
+
+    @Test(groups = "fast")
+    public void testUnknownStore() throws Exception {
+        final MonerisGateway a = createGateway("a");
+        final Map<String, MonerisGateway> gatewaysByName = new HashMap<String, MonerisGateway>();
+        gatewaysByName.put("a", a);
+        final MonerisGatewayRouter monerisGatewayRouter = new MonerisGatewayRouter(a, gatewaysByName, new HashMap<UUID, String>(), new HashMap<Currency, String>());
+        try {
+            monerisGatewayRouter.route("b", null, null);
+            Assert.fail();
+        } catch (final MonerisValidationException e) {
+            Assert.assertEquals(e.getCode(), MonerisGatewayRouter.UNKNOWN_STORE);
+            Assert.assertEquals(e.getMessage(), "Unknown Moneris store b");
+        }
+        try {
+            monerisGatewayRouter.routeToRecordedStore("b", null, null);
+            Assert.fail();
+        } catch (final MonerisValidationException e) {
+            Assert.assertEquals(e.getMessage(), "Unknown Moneris store b");
+        }
+
+        // A route to an unknown store is rejected, leaving the current routes in place
+        final Map<Currency, String> currencyRoutes = new HashMap<Currency, String>();
+        currencyRoutes.put(Currency.USD, "b");
+        try {
+            monerisGatewayRouter.reconfigure(a, gatewaysByName, new HashMap<UUID, String>(), currencyRoutes);
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            Assert.assertSame(monerisGatewayRouter.route(null, null, Currency.USD), a);
+        }
+
+        // Single store setup: no named stores
+        final MonerisGateway single = createGateway(null);
+        final MonerisGatewayRouter singleStoreRouter = new MonerisGatewayRouter(single);
+        Assert.assertSame(singleStoreRouter.route(null, UUID.randomUUID(), Currency.USD), single);
+        Assert.assertEquals(singleStoreRouter.getGateways().size(), 0);
+        try {
+            singleStoreRouter.route("a", null, null);
+            Assert.fail();
+        } catch (final MonerisValidationException e) {
+            Assert.assertEquals(e.getMessage(), "Unknown Moneris store a");
+        }
+        Assert.assertSame(singleStoreRouter.routeToRecordedStore(null, null, Currency.USD), single);
+    }
+
+    @Test(groups = "fast")
+    public void testRemovedStore() throws Exception {
+        final MonerisGateway a = createGateway("a");
+        final MonerisGateway b = createGateway("b");
+        final Map<String, MonerisGateway> gatewaysByName = new HashMap<String, MonerisGateway>();
+        gatewaysByName.put("a", a);
+        gatewaysByName.put("b", b);
+        final MonerisGatewayRouter monerisGatewayRouter = new MonerisGatewayRouter(a, gatewaysByName, new HashMap<UUID, String>(), new HashMap<Currency, String>());
+        Assert.assertSame(monerisGatewayRouter.routeToRecordedStore("b", null, null), b);
+
+        // b is removed: no new requests, but follow-on transactions still reach it
+        gatewaysByName.remove("b");
+        monerisGatewayRouter.reconfigure(a, gatewaysByName, new HashMap<UUID, String>(), new HashMap<Currency, String>());
+        try {
+            monerisGatewayRouter.route("b", null, null);
+            Assert.fail();
+        } catch (final MonerisValidationException e) {
+            Assert.assertEquals(e.getMessage(), "Unknown Moneris store b");
+        }
+        Assert.assertSame(monerisGatewayRouter.routeToRecordedStore("b", null, null), b);
+        Assert.assertSame(monerisGatewayRouter.routeToRecordedStore("a", null, null), a);
+        Assert.assertEquals(monerisGatewayRouter.getGateways().size(), 1);
+
+        // Across several updates
+        final MonerisGateway c = createGateway("c");
+        gatewaysByName.put("c", c);
+        monerisGatewayRouter.reconfigure(a, gatewaysByName, new HashMap<UUID, String>(), new HashMap<Currency, String>());
+        Assert.assertSame(monerisGatewayRouter.routeToRecordedStore("b", null, null), b);
+
+        // b is back, with new settings
+        final MonerisGateway newB = createGateway("b");
+        gatewaysByName.put("b", newB);
+        monerisGatewayRouter.reconfigure(a, gatewaysByName, new HashMap<UUID, String>(), new HashMap<Currency, String>());
+        Assert.assertSame(monerisGatewayRouter.route("b", null, null), newB);
+        Assert.assertSame(monerisGatewayRouter.routeToRecordedStore("b", null, null), newB);
+    }
+
+    private MonerisGateway createGateway(final String name) {
+        return new MonerisGateway(name, "store-" + name, new MonerisGateway.Transport() {
+            @Override
+            public Receipt post(final String storeId, final Transaction transaction, final boolean statusCheck) {
+                throw new UnsupportedOperationException();
+            }
+        }, 0, null, 0, monerisMetrics, monerisFlightRecorder, null);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMonerisHostSelector {
+
+    // Probes run inline
+    private static final Executor SAME_THREAD = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test(groups = "fast")
+    public void testPrefersFastestHost() throws Exception {
+        final MonerisHostSelector selector = new MonerisHostSelector(Arrays.asList("a", "b"), new StubProbe(true), SAME_THREAD, 0.5, 1, TimeUnit.HOURS);
+        // Ties go to the first host
+        Assert.assertEquals(selector.select(null), "a");
+
+        for (int i = 0; i < 20; i++) {
+            selector.record("a", TimeUnit.MILLISECONDS.toNanos(800), true);
+            selector.record("b", TimeUnit.MILLISECONDS.toNanos(200), true);
+        }
+        Assert.assertEquals(selector.select(null), "b");
+        Assert.assertEquals(selector.select("b"), "a");
+
+        // Errors make a host look slower than it is
+        for (int i = 0; i < 5; i++) {
+            selector.record("b", TimeUnit.MILLISECONDS.toNanos(200), false);
+        }
+        Assert.assertEquals(selector.select(null), "a");
+    }
+
+    @Test(groups = "fast")
+    public void testEjectionAndReadmission() throws Exception {
+        final StubProbe probe = new StubProbe(false);
+        final MonerisHostSelector selector = new MonerisHostSelector(Arrays.asList("a", "b"), probe, SAME_THREAD, 0.5, 0, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 10; i++) {
+            selector.record("a", TimeUnit.MILLISECONDS.toNanos(100), false);
+        }
+        Assert.assertTrue(selector.isEjected("a"));
+
+        // The ejection period is over, but the probe fails
+        Assert.assertEquals(selector.select(null), "b");
+        Assert.assertTrue(selector.isEjected("a"));
+
+        probe.healthy.set(true);
+        Assert.assertEquals(selector.select(null), "b");
+        Assert.assertFalse(selector.isEjected("a"));
+        Assert.assertEquals(selector.select(null), "a");
+    }
+
+    @Test(groups = "fast")
+    public void testAllHostsEjected() throws Exception {
+        final MonerisHostSelector selector = new MonerisHostSelector(Arrays.asList("a"), new StubProbe(false), SAME_THREAD, 0.5, 1, TimeUnit.HOURS);
+        for (int i = 0; i < 10; i++) {
+            selector.record("a", TimeUnit.MILLISECONDS.toNanos(100), false);
+        }
+        Assert.assertTrue(selector.isEjected("a"));
+        Assert.assertEquals(selector.select(null), "a");
+    }
+
+    private static final class StubProbe implements MonerisHostSelector.Probe {
+
+        private final AtomicBoolean healthy;
+
+        private StubProbe(final boolean healthy) {
+            this.healthy = new AtomicBoolean(healthy);
+        }
+
+        @Override
+        public boolean isHealthy(final String host) {
+            return healthy.get();
+        }
+    }
+}
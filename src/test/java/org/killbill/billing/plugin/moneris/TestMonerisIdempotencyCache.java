@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.CallOrigin;
+import org.killbill.billing.util.callcontext.UserType;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestMonerisIdempotencyCache {
+
+    private JdbcConnectionPool ds = null;
+    private MonerisDao monerisDao = null;
+
+    @BeforeMethod(groups = "slow")
+    public void setUp() throws Exception {
+        this.ds = JdbcConnectionPool.create("jdbc:h2:mem:moneris", "username", "password");
+        this.monerisDao = new MonerisDao(ds);
+
+        final DBI dbi = new DBI(this.ds);
+        Handle h = null;
+        try {
+            h = dbi.open();
+            final InputStream inputStream = TestMonerisIdempotencyCache.class.getResourceAsStream("/org/killbill/billing/plugin/moneris/dao/ddl.sql");
+            final String ddl = new Scanner(inputStream, "UTF-8").useDelimiter("\\A").next();
+            h.execute(ddl);
+        } finally {
+            if (h != null) {
+                h.close();
+            }
+        }
+    }
+
+    @AfterMethod(groups = "slow")
+    public void tearDown() throws Exception {
+        if (ds != null) {
+            ds.dispose();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testConcurrentDuplicates() throws Exception {
+        final MonerisIdempotencyCache cache = new MonerisIdempotencyCache(100, monerisDao, null);
+        final UUID kbTenantId = UUID.randomUUID();
+        final UUID kbTransactionId = UUID.randomUUID();
+        final PaymentTransactionInfoPlugin transaction = createTransactionInfoPlugin(UUID.randomUUID(), kbTransactionId);
+
+        final AtomicInteger nbGatewayCalls = new AtomicInteger();
+        final CountDownLatch gatewayCallStarted = new CountDownLatch(1);
+        final CountDownLatch gatewayCallCanComplete = new CountDownLatch(1);
+        final Callable<PaymentTransactionInfoPlugin> gatewayCall = new Callable<PaymentTransactionInfoPlugin>() {
+            @Override
+            public PaymentTransactionInfoPlugin call() throws Exception {
+                nbGatewayCalls.incrementAndGet();
+                gatewayCallStarted.countDown();
+                gatewayCallCanComplete.await();
+                return transaction;
+            }
+        };
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<PaymentTransactionInfoPlugin> first = executor.submit(new Callable<PaymentTransactionInfoPlugin>() {
+                @Override
+                public PaymentTransactionInfoPlugin call() throws Exception {
+                    return cache.execute(kbTransactionId, kbTenantId, gatewayCall);
+                }
+            });
+            Assert.assertTrue(gatewayCallStarted.await(5, TimeUnit.SECONDS));
+
+            // Retry while the first call is in-flight
+            final Future<PaymentTransactionInfoPlugin> second = executor.submit(new Callable<PaymentTransactionInfoPlugin>() {
+                @Override
+                public PaymentTransactionInfoPlugin call() throws Exception {
+                    return cache.execute(kbTransactionId, kbTenantId, gatewayCall);
+                }
+            });
+
+            gatewayCallCanComplete.countDown();
+            Assert.assertSame(first.get(5, TimeUnit.SECONDS), transaction);
+            Assert.assertSame(second.get(5, TimeUnit.SECONDS), transaction);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Retry once completed
+        Assert.assertSame(cache.execute(kbTransactionId, kbTenantId, gatewayCall), transaction);
+        Assert.assertEquals(nbGatewayCalls.get(), 1);
+    }
+
+    @Test(groups = "slow")
+    public void testAwaitInFlight() throws Exception {
+        final MonerisIdempotencyCache cache = new MonerisIdempotencyCache(100, monerisDao, null);
+        final UUID kbTenantId = UUID.randomUUID();
+        final UUID kbTransactionId = UUID.randomUUID();
+        final PaymentTransactionInfoPlugin transaction = createTransactionInfoPlugin(UUID.randomUUID(), kbTransactionId);
+        Assert.assertTrue(cache.awaitInFlight(0, TimeUnit.SECONDS));
+
+        final CountDownLatch gatewayCallStarted = new CountDownLatch(1);
+        final CountDownLatch gatewayCallCanComplete = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<PaymentTransactionInfoPlugin> call = executor.submit(new Callable<PaymentTransactionInfoPlugin>() {
+                @Override
+                public PaymentTransactionInfoPlugin call() throws Exception {
+                    return cache.execute(kbTransactionId, kbTenantId, new Callable<PaymentTransactionInfoPlugin>() {
+                        @Override
+                        public PaymentTransactionInfoPlugin call() throws Exception {
+                            gatewayCallStarted.countDown();
+                            gatewayCallCanComplete.await();
+                            return transaction;
+                        }
+                    });
+                }
+            });
+            Assert.assertTrue(gatewayCallStarted.await(5, TimeUnit.SECONDS));
+
+            // Still under way
+            Assert.assertFalse(cache.awaitInFlight(10, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(cache.getNbInFlight(), 1);
+
+            gatewayCallCanComplete.countDown();
+            Assert.assertTrue(cache.awaitInFlight(5, TimeUnit.SECONDS));
+            Assert.assertSame(call.get(5, TimeUnit.SECONDS), transaction);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testCompletedDuplicate() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        final CallContext context = new MonerisContext(kbTenantId, UUID.randomUUID(), UUID.randomUUID().toString(), CallOrigin.TEST, UserType.TEST, null, null, new DateTime(DateTimeZone.UTC), new DateTime(DateTimeZone.UTC));
+        final UUID kbPaymentId = UUID.randomUUID();
+        final UUID kbTransactionId = UUID.randomUUID();
+        final MonerisPaymentTransactionInfoPlugin transaction = createTransactionInfoPlugin(kbPaymentId, kbTransactionId);
+        monerisDao.createTransaction(UUID.randomUUID(), kbPaymentId, kbTransactionId, UUID.randomUUID(), BigDecimal.TEN, Currency.CAD, TransactionType.PURCHASE, transaction, context);
+
+        final AtomicInteger nbGatewayCalls = new AtomicInteger();
+        final Callable<PaymentTransactionInfoPlugin> gatewayCall = new Callable<PaymentTransactionInfoPlugin>() {
+            @Override
+            public PaymentTransactionInfoPlugin call() throws Exception {
+                nbGatewayCalls.incrementAndGet();
+                return createTransactionInfoPlugin(kbPaymentId, kbTransactionId);
+            }
+        };
+
+        // Fresh cache (e.g. after a restart): the transaction is found in the database
+        final MonerisIdempotencyCache cache = new MonerisIdempotencyCache(100, monerisDao, null);
+        Assert.assertEquals(cache.execute(kbTransactionId, kbTenantId, gatewayCall), transaction);
+        Assert.assertEquals(nbGatewayCalls.get(), 0);
+
+        // Verify multi-tenancy
+        cache.execute(kbTransactionId, UUID.randomUUID(), gatewayCall);
+        Assert.assertEquals(nbGatewayCalls.get(), 1);
+    }
+
+    @Test(groups = "slow")
+    public void testFailedRecordThenRetry() throws Exception {
+        final MonerisIdempotencyCache cache = new MonerisIdempotencyCache(100, monerisDao, null);
+        final UUID kbTenantId = UUID.randomUUID();
+        final UUID kbTransactionId = UUID.randomUUID();
+        final PaymentTransactionInfoPlugin transaction = createTransactionInfoPlugin(UUID.randomUUID(), kbTransactionId);
+
+        final AtomicInteger nbGatewayCalls = new AtomicInteger();
+        final Callable<PaymentTransactionInfoPlugin> gatewayCall = new Callable<PaymentTransactionInfoPlugin>() {
+            @Override
+            public PaymentTransactionInfoPlugin call() throws Exception {
+                // The gateway answers, but the first result can't be recorded
+                if (nbGatewayCalls.incrementAndGet() == 1) {
+                    throw new IllegalStateException("Unable to record");
+                }
+                return transaction;
+            }
+        };
+
+        try {
+            cache.execute(kbTransactionId, kbTenantId, gatewayCall);
+            Assert.fail();
+        } catch (final IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "Unable to record");
+        }
+        Assert.assertEquals(cache.getSize(), 0);
+
+        // Nothing was recorded: the retry goes to the gateway again, instead of being served a result which was never stored
+        Assert.assertSame(cache.execute(kbTransactionId, kbTenantId, gatewayCall), transaction);
+        Assert.assertEquals(nbGatewayCalls.get(), 2);
+        Assert.assertEquals(cache.getSize(), 1);
+    }
+
+    private MonerisPaymentTransactionInfoPlugin createTransactionInfoPlugin(final UUID kbPaymentId, final UUID kbTransactionId) {
+        return new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, TransactionType.PURCHASE, Currency.CAD,
+                                                       UUID.randomUUID().toString(), UUID.randomUUID().toString(), UUID.randomUUID().toString(),
+                                                       UUID.randomUUID().toString(), UUID.randomUUID().toString(), UUID.randomUUID().toString(),
+                                                       UUID.randomUUID().toString(), UUID.randomUUID().toString(), UUID.randomUUID().toString(),
+                                                       UUID.randomUUID().toString(), UUID.randomUUID().toString(), BigDecimal.TEN.toString(),
+                                                       UUID.randomUUID().toString(), UUID.randomUUID().toString(), UUID.randomUUID().toString(),
+                                                       "2014-03-10", "12:42:01", UUID.randomUUID().toString(),
+                                                       UUID.randomUUID().toString(), UUID.randomUUID().toString(), UUID.randomUUID().toString(),
+                                                       UUID.randomUUID().toString());
+    }
+}
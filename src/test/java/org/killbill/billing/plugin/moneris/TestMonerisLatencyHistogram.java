@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMonerisLatencyHistogram {
+
+    @Test(groups = "fast")
+    public void testPercentiles() throws Exception {
+        final MonerisLatencyHistogram histogram = new MonerisLatencyHistogram();
+        Assert.assertEquals(histogram.getValueAtPercentileMicros(99), 0);
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+
+        Assert.assertEquals(histogram.getCount(), 1000);
+        Assert.assertEquals(histogram.getMaxMicros(), 1000000);
+        Assert.assertEquals(histogram.getSumMicros(), 500500000);
+        assertWithinPrecision(histogram.getValueAtPercentileMicros(50), 500000);
+        assertWithinPrecision(histogram.getValueAtPercentileMicros(99), 990000);
+        Assert.assertEquals(histogram.getValueAtPercentileMicros(100), 1000000);
+
+        Assert.assertEquals(histogram.getCountAtOrBelowMicros(0), 0);
+        Assert.assertEquals(histogram.getCountAtOrBelowMicros(Long.MAX_VALUE), 1000);
+        Assert.assertTrue(Math.abs(histogram.getCountAtOrBelowMicros(250000) - 250) <= 250 * 0.04);
+    }
+
+    @Test(groups = "fast")
+    public void testSmallAndLargeValues() throws Exception {
+        final MonerisLatencyHistogram histogram = new MonerisLatencyHistogram();
+        histogram.record(0);
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(31));
+        histogram.record(TimeUnit.DAYS.toNanos(365));
+
+        // Exact below 32 microseconds
+        Assert.assertEquals(histogram.getValueAtPercentileMicros(33), 0);
+        Assert.assertEquals(histogram.getValueAtPercentileMicros(66), 31);
+        // Out of range values are capped
+        Assert.assertEquals(histogram.getCount(), 3);
+        Assert.assertTrue(histogram.getMaxMicros() > TimeUnit.HOURS.toMicros(19));
+    }
+
+    private void assertWithinPrecision(final long actual, final long expected) {
+        Assert.assertTrue(Math.abs(actual - expected) <= expected * 0.04, "Expected ~" + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Queue;
+import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.killbill.billing.plugin.moneris.dao.MonerisVaultedCard;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.CallOrigin;
+import org.killbill.billing.util.callcontext.UserType;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import JavaAPI.Receipt;
+import JavaAPI.Transaction;
+
+public class TestMonerisOfflineQueue {
+
+    private static final LogService NO_LOG = new LogService() {
+        @Override
+        public void log(final int level, final String message) {
+        }
+
+        @Override
+        public void log(final int level, final String message, final Throwable exception) {
+        }
+
+        @Override
+        public void log(final ServiceReference sr, final int level, final String message) {
+        }
+
+        @Override
+        public void log(final ServiceReference sr, final int level, final String message, final Throwable exception) {
+        }
+    };
+
+    private static final String APPROVED = "<ResponseCode>027</ResponseCode><Message>APPROVED</Message><TransDate>2014-03-10</TransDate><TransTime>12:42:01</TransTime>";
+    private static final String TIMED_OUT = "<TimedOut>true</TimedOut>";
+    private static final String NOT_FOUND = "<StatusCode>112</StatusCode><StatusMessage>NOT FOUND</StatusMessage>";
+
+    private JdbcConnectionPool ds = null;
+    private MonerisDao monerisDao = null;
+
+    @BeforeMethod(groups = "slow")
+    public void setUp() throws Exception {
+        this.ds = JdbcConnectionPool.create("jdbc:h2:mem:moneris", "username", "password");
+        this.monerisDao = new MonerisDao(ds);
+
+        final DBI dbi = new DBI(this.ds);
+        Handle h = null;
+        try {
+            h = dbi.open();
+            final InputStream inputStream = TestMonerisOfflineQueue.class.getResourceAsStream("/org/killbill/billing/plugin/moneris/dao/ddl.sql");
+            final String ddl = new Scanner(inputStream, "UTF-8").useDelimiter("\\A").next();
+            h.execute(ddl);
+        } finally {
+            if (h != null) {
+                h.close();
+            }
+        }
+    }
+
+    @AfterMethod(groups = "slow")
+    public void tearDown() throws Exception {
+        if (ds != null) {
+            ds.dispose();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testSendingTimeout() throws Exception {
+        // Status check on two hosts and the request itself, each after waiting for a slot
+        Assert.assertEquals(MonerisOfflineQueue.getMaxSendingMillis(1000), 2 * 1000 + 3 * MonerisGateway.CLIENT_TIMEOUT_SECONDS * 1000);
+        try {
+            new MonerisOfflineQueue(null, null, null, null, null, null, NO_LOG, BigDecimal.TEN, 1, 10, 3 * MonerisGateway.CLIENT_TIMEOUT_SECONDS, 1000);
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Invalid offline.sendingTimeoutSeconds"));
+        }
+        new MonerisOfflineQueue(null, null, null, null, null, null, NO_LOG, BigDecimal.TEN, 1, 10, 300, 1000);
+    }
+
+    @Test(groups = "slow")
+    public void testDrain() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        final CallContext context = new MonerisContext(kbTenantId, UUID.randomUUID(), UUID.randomUUID().toString(), CallOrigin.INTERNAL, UserType.TEST, null, null, now, now);
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentMethodId = UUID.randomUUID();
+        monerisDao.createPaymentMethod(kbAccountId, kbPaymentMethodId, null, new MonerisVaultedCard("data-key", null), context);
+
+        // In queue order: one goes through, Moneris doesn't answer for the next one, and another node is sending the last one
+        final UUID kbTransactionId = queue(kbAccountId, kbPaymentMethodId, context);
+        final UUID kbTimedOutTransactionId = queue(kbAccountId, kbPaymentMethodId, context);
+        final UUID kbClaimedTransactionId = queue(kbAccountId, kbPaymentMethodId, context);
+        Assert.assertNotNull(monerisDao.claimQueuedTransaction(kbClaimedTransactionId, now.minusMinutes(5), now));
+
+        final Queue<String> responses = new ConcurrentLinkedQueue<String>();
+        final List<Boolean> posts = new CopyOnWriteArrayList<Boolean>();
+        final MonerisGateway monerisGateway = new MonerisGateway(null, "store", new MonerisGateway.Transport() {
+            @Override
+            public Receipt post(final String storeId, final Transaction transaction, final boolean statusCheck) {
+                posts.add(statusCheck);
+                return new Receipt("<?xml version=\"1.0\"?><response><receipt>" + responses.remove() + "</receipt></response>");
+            }
+        }, 0, null, 0, new MonerisMetrics(), new MonerisFlightRecorder(16), null);
+
+        // One worker: sent in queue order
+        final MonerisOfflineQueue monerisOfflineQueue = new MonerisOfflineQueue(new MonerisGatewayRouter(monerisGateway), null, monerisDao, new MonerisVaultCache(100, monerisDao),
+                                                                                new MonerisIdempotencyCache(100, monerisDao, null), new MonerisMetrics(), NO_LOG,
+                                                                                new BigDecimal("50"), 1, 10, 300, 0);
+        monerisOfflineQueue.start(3600);
+        try {
+            responses.add(APPROVED);
+            responses.add(TIMED_OUT);
+            Assert.assertEquals(monerisOfflineQueue.drain(), 1);
+            Assert.assertEquals(posts.size(), 2);
+            Assert.assertFalse(posts.get(0));
+            Assert.assertFalse(posts.get(1));
+            Assert.assertEquals(monerisDao.getTransaction(kbTransactionId, kbTenantId).getStatus(), PaymentPluginStatus.PROCESSED);
+            Assert.assertEquals(monerisDao.getTransaction(kbTimedOutTransactionId, kbTenantId).getStatus(), PaymentPluginStatus.PENDING);
+            Assert.assertEquals(monerisDao.getTransaction(kbClaimedTransactionId, kbTenantId).getStatus(), PaymentPluginStatus.PENDING);
+
+            // It may have gone through: status checked first, then sent as Moneris never got it
+            responses.add(NOT_FOUND);
+            responses.add(APPROVED);
+            Assert.assertEquals(monerisOfflineQueue.drain(), 1);
+            Assert.assertEquals(posts.size(), 4);
+            Assert.assertTrue(posts.get(2));
+            Assert.assertFalse(posts.get(3));
+            Assert.assertEquals(monerisDao.getTransaction(kbTimedOutTransactionId, kbTenantId).getStatus(), PaymentPluginStatus.PROCESSED);
+
+            // Nothing left but the one being sent by the other node
+            Assert.assertEquals(monerisOfflineQueue.drain(), 0);
+            Assert.assertEquals(posts.size(), 4);
+            Assert.assertEquals(monerisDao.getTransaction(kbClaimedTransactionId, kbTenantId).getStatus(), PaymentPluginStatus.PENDING);
+        } finally {
+            monerisOfflineQueue.stop();
+        }
+    }
+
+    private UUID queue(final UUID kbAccountId, final UUID kbPaymentMethodId, final CallContext context) {
+        final UUID kbTransactionId = UUID.randomUUID();
+        monerisDao.createQueuedTransaction(kbAccountId, UUID.randomUUID(), kbTransactionId, kbPaymentMethodId, BigDecimal.TEN, Currency.CAD, null, TransactionType.PURCHASE,
+                                           "2", null, "Queued", context);
+        return kbTransactionId;
+    }
+}
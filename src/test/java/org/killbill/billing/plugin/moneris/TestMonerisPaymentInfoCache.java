@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMonerisPaymentInfoCache {
+
+    @Test(groups = "fast")
+    public void testPrefetch() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        final UUID settledPaymentId = UUID.randomUUID();
+        final UUID pendingPaymentId = UUID.randomUUID();
+        final Map<UUID, List<PaymentTransactionInfoPlugin>> transactionsByPaymentId = new HashMap<UUID, List<PaymentTransactionInfoPlugin>>();
+        transactionsByPaymentId.put(settledPaymentId, history(settledPaymentId, PaymentPluginStatus.PROCESSED));
+        transactionsByPaymentId.put(pendingPaymentId, history(pendingPaymentId, PaymentPluginStatus.PENDING));
+
+        final MonerisPaymentInfoCache cache = new MonerisPaymentInfoCache(10, 1, TimeUnit.MINUTES);
+        cache.putAll(transactionsByPaymentId, kbTenantId);
+        // PENDING transactions are updated in the background
+        Assert.assertEquals(cache.getSize(), 1);
+        Assert.assertNull(cache.take(pendingPaymentId, kbTenantId));
+
+        // Other tenants don't see it, and it serves a single call
+        Assert.assertNull(cache.take(settledPaymentId, UUID.randomUUID()));
+        cache.putAll(transactionsByPaymentId, kbTenantId);
+        Assert.assertEquals(cache.take(settledPaymentId, kbTenantId), transactionsByPaymentId.get(settledPaymentId));
+        Assert.assertNull(cache.take(settledPaymentId, kbTenantId));
+
+        cache.putAll(transactionsByPaymentId, kbTenantId);
+        cache.invalidate(settledPaymentId);
+        Assert.assertNull(cache.take(settledPaymentId, kbTenantId));
+
+        final MonerisPaymentInfoCache expiredCache = new MonerisPaymentInfoCache(10, 0, TimeUnit.SECONDS);
+        expiredCache.putAll(transactionsByPaymentId, kbTenantId);
+        Assert.assertNull(expiredCache.take(settledPaymentId, kbTenantId));
+    }
+
+    private List<PaymentTransactionInfoPlugin> history(final UUID kbPaymentId, final PaymentPluginStatus status) {
+        final List<PaymentTransactionInfoPlugin> transactions = new LinkedList<PaymentTransactionInfoPlugin>();
+        transactions.add(new MonerisUnsentTransactionInfoPlugin(kbPaymentId, UUID.randomUUID(), TransactionType.PURCHASE, null, null, status, null, "test"));
+        return transactions;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMonerisPaymentPluginApi {
+
+    @Test(groups = "fast")
+    public void testIsAutoCaptured() throws Exception {
+        Assert.assertTrue(MonerisPaymentPluginApi.isAutoCaptured(createTransaction(TransactionType.AUTHORIZE, "00", "10.00")));
+        Assert.assertTrue(MonerisPaymentPluginApi.isAutoCaptured(createTransaction(TransactionType.CAPTURE, "00", "10.00")));
+        // Pre-Authorization and Completion
+        Assert.assertFalse(MonerisPaymentPluginApi.isAutoCaptured(createTransaction(TransactionType.AUTHORIZE, "01", "10.00")));
+        Assert.assertFalse(MonerisPaymentPluginApi.isAutoCaptured(createTransaction(TransactionType.CAPTURE, "02", "10.00")));
+        // A real purchase
+        Assert.assertFalse(MonerisPaymentPluginApi.isAutoCaptured(createTransaction(TransactionType.PURCHASE, "00", "10.00")));
+        Assert.assertFalse(MonerisPaymentPluginApi.isAutoCaptured(null));
+    }
+
+    @Test(groups = "fast")
+    public void testBuildAutoCapture() throws Exception {
+        final MonerisPaymentTransactionInfoPlugin authorization = createTransaction(TransactionType.AUTHORIZE, "00", "10.00");
+        final UUID kbCaptureId = UUID.randomUUID();
+
+        final MonerisPaymentTransactionInfoPlugin capture = MonerisPaymentPluginApi.buildAutoCapture(authorization, kbCaptureId, new BigDecimal("10"));
+        Assert.assertEquals(capture.getKbPaymentId(), authorization.getKbPaymentId());
+        Assert.assertEquals(capture.getKbTransactionPaymentId(), kbCaptureId);
+        Assert.assertEquals(capture.getTransactionType(), TransactionType.CAPTURE);
+        Assert.assertEquals(capture.getReceiptId(), authorization.getReceiptId());
+        Assert.assertEquals(capture.getTxnNumber(), authorization.getTxnNumber());
+        Assert.assertEquals(capture.getStore(), authorization.getStore());
+        Assert.assertTrue(MonerisPaymentPluginApi.isAutoCaptured(capture));
+        Assert.assertEquals(MonerisPaymentPluginApi.buildAutoCapture(authorization, kbCaptureId, null).getKbTransactionPaymentId(), kbCaptureId);
+
+        // Partial capture: the difference is refunded
+        Assert.assertEquals(MonerisPaymentPluginApi.getAutoCaptureRefundAmount(authorization, new BigDecimal("10.00")).signum(), 0);
+        Assert.assertEquals(MonerisPaymentPluginApi.getAutoCaptureRefundAmount(authorization, null).signum(), 0);
+        Assert.assertEquals(MonerisPaymentPluginApi.getAutoCaptureRefundAmount(authorization, new BigDecimal("7.50")).compareTo(new BigDecimal("2.50")), 0);
+        Assert.assertEquals(MonerisPaymentPluginApi.buildAutoCapture(authorization, kbCaptureId, new BigDecimal("7.50")).getReceiptId(), authorization.getReceiptId());
+        Assert.assertEquals(MonerisPaymentPluginApi.getAutoCaptureRefundId(kbCaptureId), MonerisPaymentPluginApi.getAutoCaptureRefundId(kbCaptureId));
+        Assert.assertFalse(MonerisPaymentPluginApi.getAutoCaptureRefundId(kbCaptureId).equals(kbCaptureId));
+
+        // More than what was charged
+        try {
+            MonerisPaymentPluginApi.buildAutoCapture(authorization, kbCaptureId, new BigDecimal("10.01"));
+            Assert.fail();
+        } catch (final MonerisValidationException e) {
+            Assert.assertEquals(e.getCode(), "invalid_amount");
+        }
+        try {
+            MonerisPaymentPluginApi.buildAutoCapture(authorization, kbCaptureId, BigDecimal.ZERO);
+            Assert.fail();
+        } catch (final MonerisValidationException e) {
+            Assert.assertEquals(e.getCode(), "invalid_amount");
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testFindOrigOrderId() throws Exception {
+        // Sent: the order id is derived from the Kill Bill transaction id
+        final MonerisPaymentTransactionInfoPlugin preAuth = createTransaction(TransactionType.AUTHORIZE, "01", "10.00");
+        Assert.assertEquals(MonerisPaymentPluginApi.findOrigOrderId(preAuth), MonerisPaymentPluginApi.monerisSafeUUID(preAuth.getKbTransactionPaymentId()));
+
+        // The capture of an auto-captured authorization wasn't sent: the order is the one of the purchase
+        final MonerisPaymentTransactionInfoPlugin authorization = createTransaction(TransactionType.AUTHORIZE, "00", "10.00");
+        final MonerisPaymentTransactionInfoPlugin capture = MonerisPaymentPluginApi.buildAutoCapture(authorization, UUID.randomUUID(), null);
+        Assert.assertEquals(MonerisPaymentPluginApi.findOrigOrderId(capture), authorization.getReceiptId());
+        Assert.assertEquals(MonerisPaymentPluginApi.findOrigOrderId(authorization), authorization.getReceiptId());
+
+        Assert.assertNull(MonerisPaymentPluginApi.findOrigOrderId(null));
+    }
+
+    private MonerisPaymentTransactionInfoPlugin createTransaction(final TransactionType transactionType, final String transType, final String transAmount) {
+        final UUID kbTransactionId = UUID.randomUUID();
+        return new MonerisPaymentTransactionInfoPlugin(UUID.randomUUID(), kbTransactionId, transactionType, Currency.CAD, "store1",
+                                                       null, null, null, null, null, null, null, null, "false", "660-0_7", "V", transAmount, "APPROVED",
+                                                       "true", transType, "2014-03-10", "12:42:01", "123456", "01", "027", "660", MonerisPaymentPluginApi.monerisSafeUUID(kbTransactionId));
+    }
+}
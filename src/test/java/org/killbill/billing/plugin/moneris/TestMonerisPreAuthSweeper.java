@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.killbill.billing.plugin.moneris.dao.MonerisStaleAuthorization;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.CallOrigin;
+import org.killbill.billing.util.callcontext.UserType;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestMonerisPreAuthSweeper {
+
+    private static final LogService NO_LOG = new LogService() {
+        @Override
+        public void log(final int level, final String message) {
+        }
+
+        @Override
+        public void log(final int level, final String message, final Throwable exception) {
+        }
+
+        @Override
+        public void log(final ServiceReference sr, final int level, final String message) {
+        }
+
+        @Override
+        public void log(final ServiceReference sr, final int level, final String message, final Throwable exception) {
+        }
+    };
+
+    private JdbcConnectionPool ds = null;
+    private MonerisDao monerisDao = null;
+
+    @BeforeMethod(groups = "slow")
+    public void setUp() throws Exception {
+        this.ds = JdbcConnectionPool.create("jdbc:h2:mem:moneris", "username", "password");
+        this.monerisDao = new MonerisDao(ds);
+
+        final DBI dbi = new DBI(this.ds);
+        Handle h = null;
+        try {
+            h = dbi.open();
+            final InputStream inputStream = TestMonerisPreAuthSweeper.class.getResourceAsStream("/org/killbill/billing/plugin/moneris/dao/ddl.sql");
+            final String ddl = new Scanner(inputStream, "UTF-8").useDelimiter("\\A").next();
+            h.execute(ddl);
+        } finally {
+            if (h != null) {
+                h.close();
+            }
+        }
+    }
+
+    @AfterMethod(groups = "slow")
+    public void tearDown() throws Exception {
+        if (ds != null) {
+            ds.dispose();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testSweep() throws Exception {
+        final UUID kbPaymentId = UUID.randomUUID();
+        createPreAuth(kbPaymentId, "V", new DateTime(DateTimeZone.UTC).minusDays(10));
+        // Within the window
+        createPreAuth(UUID.randomUUID(), "V", new DateTime(DateTimeZone.UTC).minusDays(5));
+
+        // Found, but left alone
+        final AtomicInteger nbDryRunAttempts = new AtomicInteger();
+        final MonerisPreAuthSweeper dryRunSweeper = createSweeper(true, nbDryRunAttempts, null);
+        dryRunSweeper.start(3600);
+        try {
+            Assert.assertEquals(dryRunSweeper.sweep(), 1);
+            Assert.assertEquals(nbDryRunAttempts.get(), 0);
+        } finally {
+            dryRunSweeper.stop();
+        }
+
+        // The void is declined: no retry until the backoff expires
+        final AtomicInteger nbAttempts = new AtomicInteger();
+        final MonerisPreAuthSweeper sweeper = createSweeper(false, nbAttempts, new IllegalStateException("Declined"));
+        sweeper.start(3600);
+        try {
+            Assert.assertEquals(sweeper.sweep(), 0);
+            Assert.assertEquals(nbAttempts.get(), 1);
+            Assert.assertEquals(sweeper.sweep(), 0);
+            Assert.assertEquals(nbAttempts.get(), 1);
+        } finally {
+            sweeper.stop();
+        }
+    }
+
+    private MonerisPreAuthSweeper createSweeper(final boolean dryRun, final AtomicInteger nbAttempts, final RuntimeException failure) {
+        return new MonerisPreAuthSweeper(null, monerisDao, new MonerisMetrics(), NO_LOG, MonerisPreAuthSweeper.Action.VOID, Collections.singletonMap("V", 7), 7,
+                                         1, 100, 10, 3, 3600, dryRun, "7") {
+            @Override
+            void apply(final MonerisStaleAuthorization staleAuthorization, final DateTime now) throws Exception {
+                nbAttempts.incrementAndGet();
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        };
+    }
+
+    private void createPreAuth(final UUID kbPaymentId, final String cardType, final DateTime createdDate) {
+        final CallContext context = new MonerisContext(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID().toString(), CallOrigin.TEST, UserType.TEST, null, null, createdDate, createdDate);
+        final UUID kbTransactionId = UUID.randomUUID();
+        // Approved Pre-Authorization (trans type 01)
+        final MonerisPaymentTransactionInfoPlugin preAuth = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, TransactionType.AUTHORIZE, Currency.CAD,
+                                                                                                    null, null, null, null, null, null, null, null, "false", "660", cardType, "10.00", "APPROVED",
+                                                                                                    "true", "01", "2014-03-10", "12:42:01", "123456", "01", "027", "660", UUID.randomUUID().toString());
+        monerisDao.createTransaction(UUID.randomUUID(), kbPaymentId, kbTransactionId, UUID.randomUUID(), BigDecimal.TEN, Currency.CAD, TransactionType.AUTHORIZE, preAuth, context);
+    }
+}
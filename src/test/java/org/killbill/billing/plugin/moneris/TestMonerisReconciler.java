@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.plugin.moneris.dao.MonerisDao;
+import org.killbill.billing.plugin.moneris.dao.MonerisUnresolvedTransaction;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.CallOrigin;
+import org.killbill.billing.util.callcontext.UserType;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestMonerisReconciler {
+
+    private static final LogService NO_LOG = new LogService() {
+        @Override
+        public void log(final int level, final String message) {
+        }
+
+        @Override
+        public void log(final int level, final String message, final Throwable exception) {
+        }
+
+        @Override
+        public void log(final ServiceReference sr, final int level, final String message) {
+        }
+
+        @Override
+        public void log(final ServiceReference sr, final int level, final String message, final Throwable exception) {
+        }
+    };
+
+    private JdbcConnectionPool ds = null;
+    private MonerisDao monerisDao = null;
+
+    @BeforeMethod(groups = "slow")
+    public void setUp() throws Exception {
+        this.ds = JdbcConnectionPool.create("jdbc:h2:mem:moneris", "username", "password");
+        this.monerisDao = new MonerisDao(ds);
+
+        final DBI dbi = new DBI(this.ds);
+        Handle h = null;
+        try {
+            h = dbi.open();
+            final InputStream inputStream = TestMonerisReconciler.class.getResourceAsStream("/org/killbill/billing/plugin/moneris/dao/ddl.sql");
+            final String ddl = new Scanner(inputStream, "UTF-8").useDelimiter("\\A").next();
+            h.execute(ddl);
+        } finally {
+            if (h != null) {
+                h.close();
+            }
+        }
+    }
+
+    @AfterMethod(groups = "slow")
+    public void tearDown() throws Exception {
+        if (ds != null) {
+            ds.dispose();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testReconcile() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        // Moneris can't tell about the oldest capture, the newer one went through
+        final UUID kbUnknownCaptureId = createUndefinedCapture(kbTenantId, now.minusMinutes(20));
+        final UUID kbCaptureId = createUndefinedCapture(kbTenantId, now.minusMinutes(10));
+
+        final List<UUID> checkedTransactionIds = new CopyOnWriteArrayList<UUID>();
+        final MonerisReconciler reconciler = new MonerisReconciler(null, monerisDao, new MonerisIdempotencyCache(100, monerisDao, null), new MonerisMetrics(), NO_LOG,
+                                                                   1, 100, 1, 60, 2, 3600, "7") {
+            @Override
+            MonerisPaymentTransactionInfoPlugin checkStatus(final MonerisUnresolvedTransaction unresolvedTransaction) {
+                checkedTransactionIds.add(unresolvedTransaction.getKbTransactionId());
+                if (kbUnknownCaptureId.equals(unresolvedTransaction.getKbTransactionId())) {
+                    return null;
+                }
+                return createTransactionInfoPlugin(unresolvedTransaction.getKbPaymentId(), unresolvedTransaction.getKbTransactionId(), "027");
+            }
+        };
+        reconciler.start(3600);
+        try {
+            // Batches of one: the oldest first
+            Assert.assertEquals(reconciler.reconcile(), 0);
+            Assert.assertEquals(checkedTransactionIds.size(), 1);
+            Assert.assertEquals(checkedTransactionIds.get(0), kbUnknownCaptureId);
+
+            // It is backing off: the newer one isn't stuck behind it
+            Assert.assertEquals(reconciler.reconcile(), 1);
+            Assert.assertEquals(checkedTransactionIds.size(), 2);
+            Assert.assertEquals(checkedTransactionIds.get(1), kbCaptureId);
+            Assert.assertEquals(monerisDao.getTransaction(kbCaptureId, kbTenantId).getStatus(), PaymentPluginStatus.PROCESSED);
+            Assert.assertEquals(monerisDao.getTransaction(kbUnknownCaptureId, kbTenantId).getStatus(), PaymentPluginStatus.UNDEFINED);
+
+            // Nothing left to do until the backoff expires
+            Assert.assertEquals(reconciler.reconcile(), 0);
+            Assert.assertEquals(checkedTransactionIds.size(), 2);
+        } finally {
+            reconciler.stop();
+        }
+
+        // Last attempt, then it is given up on
+        Assert.assertEquals(monerisDao.getUnresolvedTransactions(now, now.plusHours(2), 2, 10).size(), 1);
+        Assert.assertEquals(monerisDao.recordReconciliationAttempt(kbUnknownCaptureId, kbTenantId, 3600, now.plusHours(2)), 2);
+        Assert.assertEquals(monerisDao.getUnresolvedTransactions(now, now.plusDays(1), 2, 10).size(), 0);
+    }
+
+    private UUID createUndefinedCapture(final UUID kbTenantId, final DateTime createdDate) {
+        final CallContext context = new MonerisContext(kbTenantId, UUID.randomUUID(), UUID.randomUUID().toString(), CallOrigin.TEST, UserType.TEST, null, null, createdDate, createdDate);
+        final UUID kbPaymentId = UUID.randomUUID();
+        final UUID kbTransactionId = UUID.randomUUID();
+        // Timed out: no response code
+        monerisDao.createTransaction(UUID.randomUUID(), kbPaymentId, kbTransactionId, UUID.randomUUID(), BigDecimal.TEN, Currency.CAD, TransactionType.CAPTURE,
+                                     createTransactionInfoPlugin(kbPaymentId, kbTransactionId, null), context);
+        return kbTransactionId;
+    }
+
+    private static MonerisPaymentTransactionInfoPlugin createTransactionInfoPlugin(final UUID kbPaymentId, final UUID kbTransactionId, final String responseCode) {
+        return new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, TransactionType.CAPTURE, Currency.CAD,
+                                                       null, null, null, null, null, null, null, null, "false", "660", "V", "10.00", "APPROVED",
+                                                       "true", "02", "2014-03-10", "12:42:01", "123456", "01", responseCode, "660", UUID.randomUUID().toString());
+    }
+}
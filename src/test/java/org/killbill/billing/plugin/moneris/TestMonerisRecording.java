@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.killbill.billing.plugin.moneris.dao.MonerisAuditRecord;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMonerisRecording {
+
+    @Test(groups = "fast")
+    public void testRoundTrip() throws Exception {
+        final File file = File.createTempFile("moneris-recording", ".bin.gz");
+        Assert.assertTrue(file.delete());
+        file.deleteOnExit();
+
+        final MonerisRecordingSink sink = new MonerisRecordingSink(file);
+        sink.write(Arrays.asList(new MonerisAuditRecord(1000L, "store1", "PURCHASE", 250000L, "<purchase><pan>************4242</pan></purchase>", "<receipt><ResponseCode>027</ResponseCode></receipt>"),
+                                 new MonerisAuditRecord(2000L, "store1", "VOID", 30000000L, "<purchasecorrection></purchasecorrection>", null)));
+        sink.close();
+
+        final MonerisRecordingReader reader = new MonerisRecordingReader(file);
+        try {
+            final MonerisAuditRecord first = reader.read();
+            Assert.assertEquals(first.getTimestampMillis(), 1000L);
+            Assert.assertEquals(first.getStoreId(), "store1");
+            Assert.assertEquals(first.getOperation(), "PURCHASE");
+            Assert.assertEquals(first.getDurationMicros(), 250000L);
+            Assert.assertEquals(first.getRequest(), "<purchase><pan>************4242</pan></purchase>");
+            Assert.assertEquals(first.getResponse(), "<receipt><ResponseCode>027</ResponseCode></receipt>");
+
+            final MonerisAuditRecord second = reader.read();
+            Assert.assertEquals(second.getOperation(), "VOID");
+            Assert.assertNull(second.getResponse());
+
+            Assert.assertNull(reader.read());
+        } finally {
+            reader.close();
+        }
+    }
+}
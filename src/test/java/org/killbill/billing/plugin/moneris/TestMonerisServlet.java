@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMonerisServlet {
+
+    @Test(groups = "fast")
+    public void testJson() throws Exception {
+        final Map<String, Object> response = new HashMap<String, Object>();
+        final String json = get(createServlet(), "/stats", response);
+
+        Assert.assertEquals(response.get("setStatus"), HttpServletResponse.SC_OK);
+        Assert.assertEquals(response.get("setContentType"), "application/json");
+        Assert.assertTrue(json.startsWith("{\"uptimeSeconds\":"), json);
+        Assert.assertTrue(json.contains("\"PURCHASE\":{\"gatewayRequestsPerSecond\":"), json);
+        Assert.assertTrue(json.contains("\"latencies\":{\"GATEWAY\":{\"count\":1,\"p50Micros\":"), json);
+        Assert.assertTrue(json.contains("\"inFlight\":{\"LOOKUP\":0,\"GATEWAY\":0,\"PERSIST\":0,\"TOTAL\":1}"), json);
+        Assert.assertTrue(json.contains("\"timeouts\":0}"), json);
+        Assert.assertTrue(json.contains("\"gauges\":{\"moneris_test_queue_size\":42.0}"), json);
+        // Escaped
+        Assert.assertTrue(json.contains("\"RES_\\\"ADD\\\\CC\":{"), json);
+        Assert.assertTrue(json.endsWith("}}"), json);
+    }
+
+    @Test(groups = "fast")
+    public void testPrometheus() throws Exception {
+        final Map<String, Object> response = new HashMap<String, Object>();
+        final String text = get(createServlet(), "/metrics", response);
+
+        Assert.assertEquals(response.get("setStatus"), HttpServletResponse.SC_OK);
+        Assert.assertEquals(response.get("setContentType"), "text/plain; version=0.0.4");
+        Assert.assertTrue(text.startsWith("# TYPE moneris_latency_seconds histogram\n"), text);
+        // 30ms: in the 0.05 bucket, but not in the 0.025 one
+        Assert.assertTrue(text.contains("moneris_latency_seconds_bucket{operation=\"PURCHASE\",phase=\"GATEWAY\",le=\"0.025\"} 0\n"), text);
+        Assert.assertTrue(text.contains("moneris_latency_seconds_bucket{operation=\"PURCHASE\",phase=\"GATEWAY\",le=\"0.05\"} 1\n"), text);
+        Assert.assertTrue(text.contains("moneris_latency_seconds_bucket{operation=\"PURCHASE\",phase=\"GATEWAY\",le=\"+Inf\"} 1\n"), text);
+        Assert.assertTrue(text.contains("moneris_latency_seconds_count{operation=\"PURCHASE\",phase=\"GATEWAY\"} 1\n"), text);
+        Assert.assertTrue(text.contains("moneris_latency_seconds_count{operation=\"PURCHASE\",phase=\"TOTAL\"} 0\n"), text);
+        Assert.assertTrue(text.contains("moneris_in_flight{operation=\"PURCHASE\",phase=\"TOTAL\"} 1\n"), text);
+        Assert.assertTrue(text.contains("moneris_latency_seconds_count{operation=\"RES_\\\"ADD\\\\CC\",phase=\"GATEWAY\"} 1\n"), text);
+        Assert.assertTrue(text.contains("# TYPE moneris_test_queue_size gauge\nmoneris_test_queue_size 42.0\n"), text);
+    }
+
+    @Test(groups = "fast")
+    public void testUnknownPath() throws Exception {
+        final Map<String, Object> response = new HashMap<String, Object>();
+        get(createServlet(), "/unknown", response);
+        Assert.assertEquals(response.get("sendError"), HttpServletResponse.SC_NOT_FOUND);
+    }
+
+    private MonerisServlet createServlet() {
+        final MonerisMetrics monerisMetrics = new MonerisMetrics();
+        monerisMetrics.recordLatency("PURCHASE", MonerisMetrics.Phase.GATEWAY, TimeUnit.MILLISECONDS.toNanos(30));
+        monerisMetrics.incrementInFlight("PURCHASE", MonerisMetrics.Phase.TOTAL);
+        monerisMetrics.recordLatency("RES_\"ADD\\CC", MonerisMetrics.Phase.GATEWAY, TimeUnit.MILLISECONDS.toNanos(5));
+        monerisMetrics.registerGauge("moneris_test_queue_size", new MonerisMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return 42;
+            }
+        });
+        return new MonerisServlet(monerisMetrics, new MonerisFlightRecorder(16), null, null, null, null, null);
+    }
+
+    // Records the calls made on the response, by method name
+    private String get(final MonerisServlet servlet, final String pathInfo, final Map<String, Object> response) throws Exception {
+        final HttpServletRequest req = (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(), new Class[]{HttpServletRequest.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                return "getPathInfo".equals(method.getName()) ? pathInfo : null;
+            }
+        });
+        final StringWriter body = new StringWriter();
+        final PrintWriter writer = new PrintWriter(body);
+        final HttpServletResponse resp = (HttpServletResponse) Proxy.newProxyInstance(HttpServletResponse.class.getClassLoader(), new Class[]{HttpServletResponse.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if ("getWriter".equals(method.getName())) {
+                    return writer;
+                }
+                if (args != null && args.length > 0) {
+                    response.put(method.getName(), args[0]);
+                }
+                return null;
+            }
+        });
+
+        servlet.doGet(req, resp);
+        writer.flush();
+        return body.toString();
+    }
+}
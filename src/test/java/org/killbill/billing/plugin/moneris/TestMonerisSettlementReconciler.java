@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMonerisSettlementReconciler {
+
+    private static final int NB_ROWS = 5000;
+
+    @Test(groups = "fast")
+    public void testReconcile() throws Exception {
+        final File report = File.createTempFile("moneris-settlement", ".csv");
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // Large enough to be split into several chunks
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(report), "UTF-8");
+            try {
+                writer.write("Order ID,Card Type,Reference Num,Txn Number,Amount\r\n");
+                for (int i = 0; i < NB_ROWS; i++) {
+                    writer.write((i == 0 ? "\"order, \"\"0\"\"\"" : "order-" + i) + ",V,6600" + i + ",10-" + i + "_7," + i + ".00\r\n");
+                }
+                writer.write("Total,,,," + NB_ROWS + "\r\n");
+            } finally {
+                writer.close();
+            }
+
+            final List<MonerisSettlementRow> rows = MonerisSettlementReconciler.parse(report, executor, 4);
+            Assert.assertEquals(rows.size(), NB_ROWS);
+            Assert.assertEquals(rows.get(0).getReceiptId(), "order, \"0\"");
+            for (int i = 1; i < NB_ROWS; i++) {
+                Assert.assertEquals(rows.get(i).getReceiptId(), "order-" + i);
+                Assert.assertEquals(rows.get(i).getReferenceNum(), "6600" + i);
+                Assert.assertEquals(rows.get(i).getTxnNumber(), "10-" + i + "_7");
+                Assert.assertEquals(rows.get(i).getAmount().compareTo(new BigDecimal(i)), 0);
+            }
+
+            final MonerisSettlementReconciler.Join join = new MonerisSettlementReconciler.Join(rows);
+            join.probe(new MonerisSettlementRow("order-1", "66001", "10-1_7", new BigDecimal("1"), UUID.randomUUID()));
+            join.probe(new MonerisSettlementRow("order-2", "66002", "10-2_7", new BigDecimal("2.50"), UUID.randomUUID()));
+            join.probe(new MonerisSettlementRow("order-x", "66009", "10-x_7", new BigDecimal("9.00"), UUID.randomUUID()));
+            final MonerisSettlementReconciliation reconciliation = join.finish();
+            Assert.assertEquals(reconciliation.getMatched().size(), 1);
+            Assert.assertEquals(reconciliation.getMatched().get(0).getReceiptId(), "order-1");
+            Assert.assertEquals(reconciliation.getAmountMismatches().size(), 1);
+            Assert.assertEquals(reconciliation.getAmountMismatches().get(0)[0].getAmount(), new BigDecimal("2.00"));
+            Assert.assertEquals(reconciliation.getMissingFromReport().size(), 1);
+            Assert.assertEquals(reconciliation.getMissingFromReport().get(0).getReceiptId(), "order-x");
+            Assert.assertEquals(reconciliation.getMissingFromLedger().size(), NB_ROWS - 2);
+        } finally {
+            executor.shutdownNow();
+            report.delete();
+        }
+    }
+}
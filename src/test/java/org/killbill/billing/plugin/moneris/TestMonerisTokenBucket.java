@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMonerisTokenBucket {
+
+    @Test(groups = "fast")
+    public void testBurstThenRate() throws Exception {
+        // One token every 10 seconds, so that the test doesn't depend on timing
+        final MonerisTokenBucket bucket = new MonerisTokenBucket(0.1, 3);
+        Assert.assertEquals(bucket.getNbTokens(), 3.0, 0.01);
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(bucket.reserve(0), 0);
+        }
+        Assert.assertEquals(bucket.getNbTokens(), 0.0, 0.01);
+
+        // Too long a wait: rejected, without taking a token
+        Assert.assertEquals(bucket.reserve(TimeUnit.SECONDS.toNanos(1)), -1);
+        Assert.assertEquals(bucket.reserve(TimeUnit.SECONDS.toNanos(1)), -1);
+
+        // Reservations queue up, one interval apart
+        final long firstWaitNanos = bucket.reserve(TimeUnit.SECONDS.toNanos(30));
+        final long secondWaitNanos = bucket.reserve(TimeUnit.SECONDS.toNanos(30));
+        Assert.assertTrue(firstWaitNanos > TimeUnit.SECONDS.toNanos(9) && firstWaitNanos <= TimeUnit.SECONDS.toNanos(10), "Unexpected wait " + firstWaitNanos);
+        Assert.assertTrue(Math.abs(secondWaitNanos - firstWaitNanos - TimeUnit.SECONDS.toNanos(10)) < TimeUnit.SECONDS.toNanos(1), "Unexpected wait " + secondWaitNanos);
+    }
+
+    @Test(groups = "fast", expectedExceptions = MonerisThrottledException.class)
+    public void testAcquireFailsFast() throws Exception {
+        final MonerisTokenBucket bucket = new MonerisTokenBucket(0.1, 1);
+        bucket.acquire(0, "test");
+        bucket.acquire(TimeUnit.MILLISECONDS.toNanos(100), "test");
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMonerisTransactionExporter {
+
+    @Test(groups = "fast")
+    public void testAppendCsvValue() throws Exception {
+        final StringBuilder line = new StringBuilder();
+        MonerisTransactionExporter.appendCsvValue(line, "APPROVED");
+        line.append(',');
+        MonerisTransactionExporter.appendCsvValue(line, null);
+        line.append(',');
+        MonerisTransactionExporter.appendCsvValue(line, "Joe's \"Store\", Montreal");
+        line.append(',');
+        MonerisTransactionExporter.appendCsvValue(line, "line1\r\nline2");
+        Assert.assertEquals(line.toString(), "APPROVED,,\"Joe's \"\"Store\"\", Montreal\",\"line1\r\nline2\"");
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.moneris.MonerisBinIndex.Brand;
+import org.killbill.billing.plugin.moneris.MonerisBinIndex.CardType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMonerisValidator {
+
+    @Test(groups = "fast")
+    public void testCardChecks() throws Exception {
+        Assert.assertTrue(MonerisValidator.isValidPan("4242424242424242"));
+        Assert.assertFalse(MonerisValidator.isValidPan("4242424242424241"));
+        Assert.assertFalse(MonerisValidator.isValidPan("4242 4242 4242 4242"));
+        Assert.assertFalse(MonerisValidator.isValidPan("42424242"));
+
+        final DateTime now = new DateTime(2014, 6, 15, 0, 0, DateTimeZone.UTC);
+        MonerisValidator.validateExpDate("1406", now);
+        MonerisValidator.validateExpDate("2001", now);
+        assertRejected("expired_card", "1405", now);
+        assertRejected("invalid_exp_date", "1413", now);
+        assertRejected("invalid_exp_date", "0614", now);
+
+        final MonerisValidator validator = new MonerisValidator();
+        validator.validateFollowOn(new BigDecimal("0.001"), properties("crypt", "7"));
+        validator.validateFollowOn(new BigDecimal("9999999.99"), properties("crypt", "7"));
+        try {
+            validator.validateFollowOn(new BigDecimal("10000000"), properties("crypt", "7"));
+            Assert.fail("Amount above the maximum");
+        } catch (final MonerisValidationException e) {
+            Assert.assertEquals(e.getCode(), "invalid_amount");
+        }
+        try {
+            validator.validateVoid(properties());
+            Assert.fail("Missing crypt");
+        } catch (final MonerisValidationException e) {
+            Assert.assertEquals(e.getCode(), "invalid_crypt");
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testBinIndex() throws Exception {
+        final List<MonerisBinIndex.Range> ranges = new LinkedList<MonerisBinIndex.Range>();
+        ranges.add(new MonerisBinIndex.Range(40000000, 49999999, Brand.VISA, CardType.CREDIT));
+        // Nested: the narrowest range wins
+        ranges.add(new MonerisBinIndex.Range(45060000, 45069999, Brand.VISA, CardType.DEBIT));
+        ranges.add(new MonerisBinIndex.Range(51000000, 55999999, Brand.MASTERCARD, CardType.CREDIT));
+        final List<MonerisBinIndex.Range> flattened = MonerisBinIndex.flatten(ranges);
+        Assert.assertEquals(flattened.size(), 4);
+
+        final File file = File.createTempFile("moneris-bins", ".idx");
+        file.deleteOnExit();
+        MonerisBinIndex.write(flattened, file);
+        final MonerisBinIndex binIndex = new MonerisBinIndex(file);
+
+        Assert.assertEquals(binIndex.lookup("4242424242424242").getCardType(), CardType.CREDIT);
+        Assert.assertEquals(binIndex.lookup("4506445006931933").getCardType(), CardType.DEBIT);
+        Assert.assertEquals(binIndex.lookup("4999999999999999").getCardType(), CardType.CREDIT);
+        Assert.assertEquals(binIndex.lookup("5555555555554444").getBrand(), Brand.MASTERCARD);
+        Assert.assertNull(binIndex.lookup("371449635398431"));
+        Assert.assertNull(binIndex.lookup("4242"));
+
+        // Same ranges, from a CSV file
+        final File csvFile = File.createTempFile("moneris-bins", ".csv");
+        csvFile.deleteOnExit();
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(csvFile), "UTF-8");
+        try {
+            writer.write("# lowPrefix,highPrefix,brand,cardType\n4,4,VISA,CREDIT\n4506, 4506, VISA, DEBIT\n\n51,55,MASTERCARD,CREDIT\n");
+        } finally {
+            writer.close();
+        }
+        final File builtFile = File.createTempFile("moneris-bins", ".idx");
+        builtFile.deleteOnExit();
+        Assert.assertEquals(MonerisBinIndex.build(csvFile, builtFile), 4);
+        final MonerisBinIndex builtBinIndex = new MonerisBinIndex(builtFile);
+        Assert.assertEquals(builtBinIndex.lookup("4506445006931933").getCardType(), CardType.DEBIT);
+        Assert.assertEquals(builtBinIndex.lookup("5555555555554444").getBrand(), Brand.MASTERCARD);
+        Assert.assertNull(builtBinIndex.lookup("371449635398431"));
+
+        final MonerisValidator validator = new MonerisValidator(binIndex, EnumSet.allOf(Brand.class), EnumSet.of(CardType.CREDIT));
+        final String expDate = new DateTime(DateTimeZone.UTC).plusYears(2).toString("yyMM");
+        validator.validateCard(BigDecimal.TEN, properties("pan", "4242424242424242", "expDate", expDate, "crypt", "7"));
+        // Unknown BIN: left to Moneris
+        validator.validateCard(BigDecimal.TEN, properties("pan", "371449635398431", "expDate", expDate, "crypt", "7"));
+        try {
+            validator.validateCard(BigDecimal.TEN, properties("pan", "4506445006931933", "expDate", expDate, "crypt", "7"));
+            Assert.fail("Debit cards are not accepted");
+        } catch (final MonerisValidationException e) {
+            Assert.assertEquals(e.getCode(), "card_not_accepted");
+        }
+    }
+
+    private void assertRejected(final String code, final String expDate, final DateTime now) {
+        try {
+            MonerisValidator.validateExpDate(expDate, now);
+            Assert.fail("Expiry date " + expDate + " should be rejected");
+        } catch (final MonerisValidationException e) {
+            Assert.assertEquals(e.getCode(), code);
+        }
+    }
+
+    private MonerisProperties properties(final String... keysAndValues) {
+        final List<PluginProperty> properties = new LinkedList<PluginProperty>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            properties.add(new PluginProperty(keysAndValues[i], keysAndValues[i + 1], false));
+        }
+        return new MonerisProperties(properties);
+    }
+}
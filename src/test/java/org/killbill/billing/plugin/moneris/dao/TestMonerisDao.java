@@ -18,6 +18,10 @@ package org.killbill.billing.plugin.moneris.dao;
 
 import java.io.InputStream;
 import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Scanner;
@@ -31,6 +35,7 @@ import org.killbill.billing.payment.api.PaymentMethodPlugin;
 import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.payment.api.TransactionType;
 import org.killbill.billing.payment.plugin.api.PaymentMethodInfoPlugin;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
 import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
 import org.killbill.billing.plugin.moneris.MonerisContext;
 import org.killbill.billing.plugin.moneris.MonerisPaymentMethodPlugin;
@@ -96,7 +101,7 @@ public class TestMonerisDao {
         Assert.assertEquals(transactions1.size(), 1);
         Assert.assertEquals(transactions1.get(0), auth);
 
-        final MonerisPaymentTransactionInfoPlugin capture = createTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, TransactionType.CAPTURE, context);
+        final MonerisPaymentTransactionInfoPlugin capture = createTransaction(kbAccountId, kbPaymentId, UUID.randomUUID(), kbPaymentMethodId, amount, currency, TransactionType.CAPTURE, context);
 
         // List again the transactions for that payment
         final List<PaymentTransactionInfoPlugin> transactions2 = monerisDao.getTransactions(kbPaymentId, kbTenantId);
@@ -104,10 +109,242 @@ public class TestMonerisDao {
         Assert.assertEquals(transactions2.get(0), auth);
         Assert.assertEquals(transactions2.get(1), capture);
 
+        // Lookup by transaction id
+        Assert.assertEquals(monerisDao.getTransaction(kbTransactionId, kbTenantId), auth);
+        Assert.assertNull(monerisDao.getTransaction(kbTransactionId, UUID.randomUUID()));
+        Assert.assertNull(monerisDao.getTransaction(UUID.randomUUID(), kbTenantId));
+
         // TODO
         // monerisDao.searchTransactions();
     }
 
+    @Test(groups = "slow")
+    public void testUnresolvedTransactions() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        final CallContext context = new MonerisContext(kbTenantId, UUID.randomUUID(), UUID.randomUUID().toString(), CallOrigin.TEST, UserType.TEST, null, null, now.minusMinutes(10), now.minusMinutes(10));
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentId = UUID.randomUUID();
+        final UUID kbPaymentMethodId = UUID.randomUUID();
+        // No valid response code: both are UNDEFINED
+        createTransaction(kbAccountId, kbPaymentId, UUID.randomUUID(), kbPaymentMethodId, BigDecimal.TEN, Currency.CAD, TransactionType.AUTHORIZE, context);
+        final UUID kbCaptureId = UUID.randomUUID();
+        createTransaction(kbAccountId, kbPaymentId, kbCaptureId, kbPaymentMethodId, BigDecimal.TEN, Currency.CAD, TransactionType.CAPTURE, context);
+
+        // Only the capture can be status checked
+        final List<MonerisUnresolvedTransaction> unresolvedTransactions = monerisDao.getUnresolvedTransactions(now, now, 2, 1000);
+        Assert.assertEquals(unresolvedTransactions.size(), 1);
+        Assert.assertEquals(unresolvedTransactions.get(0).getKbTransactionId(), kbCaptureId);
+        Assert.assertEquals(unresolvedTransactions.get(0).getTransactionType(), TransactionType.CAPTURE);
+        // Too recent
+        Assert.assertEquals(monerisDao.getUnresolvedTransactions(now.minusMinutes(20), now, 2, 1000).size(), 0);
+
+        // Backing off after an attempt (60s, then 120s), and given up on after the last one
+        Assert.assertEquals(monerisDao.recordReconciliationAttempt(kbCaptureId, kbTenantId, 60, now), 1);
+        Assert.assertEquals(monerisDao.getUnresolvedTransactions(now, now, 2, 1000).size(), 0);
+        Assert.assertEquals(monerisDao.getUnresolvedTransactions(now, now.plusSeconds(61), 2, 1000).size(), 1);
+        Assert.assertEquals(monerisDao.recordReconciliationAttempt(kbCaptureId, kbTenantId, 60, now.plusSeconds(61)), 2);
+        Assert.assertEquals(monerisDao.getUnresolvedTransactions(now, now.plusSeconds(182), 3, 1000).size(), 1);
+        Assert.assertEquals(monerisDao.getUnresolvedTransactions(now, now.plusDays(1), 2, 1000).size(), 0);
+    }
+
+    @Test(groups = "slow")
+    public void testProcessedTransactionsSlice() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        final CallContext context = new MonerisContext(kbTenantId, UUID.randomUUID(), UUID.randomUUID().toString(), CallOrigin.TEST, UserType.TEST, null, null, now, now);
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentMethodId = UUID.randomUUID();
+
+        final UUID kbPurchaseId = createProcessedTransaction(kbAccountId, UUID.randomUUID(), kbPaymentMethodId, TransactionType.PURCHASE, "00", context).getKbTransactionPaymentId();
+        // Pre-Authorizations don't settle
+        createProcessedTransaction(kbAccountId, UUID.randomUUID(), kbPaymentMethodId, TransactionType.AUTHORIZE, "01", context);
+        // Auto-captured authorization: the capture is a copy of its receipt
+        final MonerisPaymentTransactionInfoPlugin autoCaptured = createProcessedTransaction(kbAccountId, UUID.randomUUID(), kbPaymentMethodId, TransactionType.AUTHORIZE, "00", context);
+        final MonerisPaymentTransactionInfoPlugin autoCapture = autoCaptured.copyFor(UUID.randomUUID(), TransactionType.CAPTURE);
+        monerisDao.createTransaction(kbAccountId, autoCapture.getKbPaymentId(), autoCapture.getKbTransactionPaymentId(), kbPaymentMethodId, BigDecimal.TEN, Currency.CAD, TransactionType.CAPTURE, autoCapture, context);
+
+        final List<String> kbTransactionIds = new LinkedList<String>();
+        final int nbRows = monerisDao.getProcessedTransactionsSlice(kbTenantId, now.minusMinutes(1), now.plusMinutes(1), null, 0, 1000, new MonerisRowHandler() {
+            @Override
+            public boolean onRow(final ResultSet r) throws SQLException {
+                kbTransactionIds.add(r.getString("kb_transaction_id"));
+                return true;
+            }
+        });
+        Assert.assertEquals(nbRows, 2);
+        Assert.assertEquals(new HashSet<String>(kbTransactionIds), new HashSet<String>(Arrays.asList(kbPurchaseId.toString(), autoCaptured.getKbTransactionPaymentId().toString())));
+    }
+
+    @Test(groups = "slow")
+    public void testBatchCloseLease() throws Exception {
+        final String storeId = UUID.randomUUID().toString();
+        final String ecrNumber = UUID.randomUUID().toString();
+        final String closeDate = "2014-03-10";
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+
+        Assert.assertTrue(monerisDao.acquireBatchCloseLease(storeId, ecrNumber, closeDate, "node1", now, now.plusMinutes(5)));
+        // Lease is held by node1
+        Assert.assertFalse(monerisDao.acquireBatchCloseLease(storeId, ecrNumber, closeDate, "node2", now.plusMinutes(1), now.plusMinutes(6)));
+        // Other terminals are independent
+        Assert.assertTrue(monerisDao.acquireBatchCloseLease(storeId, UUID.randomUUID().toString(), closeDate, "node2", now, now.plusMinutes(5)));
+
+        // node1 failed to close the batch: node2 can take over once the lease expires
+        Assert.assertTrue(monerisDao.completeBatchClose(storeId, ecrNumber, closeDate, "node1", MonerisBatchCloseStatus.FAILED, null, null, "true", null, null, new LinkedList<MonerisBatchCloseTotal>(), now));
+        Assert.assertFalse(monerisDao.acquireBatchCloseLease(storeId, ecrNumber, closeDate, "node2", now.plusMinutes(4), now.plusMinutes(9)));
+        Assert.assertTrue(monerisDao.acquireBatchCloseLease(storeId, ecrNumber, closeDate, "node2", now.plusMinutes(6), now.plusMinutes(11)));
+        Assert.assertFalse(monerisDao.completeBatchClose(storeId, ecrNumber, closeDate, "node1", MonerisBatchCloseStatus.CLOSED, "001", "CLOSED", "false", null, null, new LinkedList<MonerisBatchCloseTotal>(), now));
+
+        final List<MonerisBatchCloseTotal> totals = new LinkedList<MonerisBatchCloseTotal>();
+        totals.add(new MonerisBatchCloseTotal("V", "2", "+4000", "1", "+1000", "0", "+0"));
+        Assert.assertTrue(monerisDao.completeBatchClose(storeId, ecrNumber, closeDate, "node2", MonerisBatchCloseStatus.CLOSED, "001", "CLOSED", "false", null, null, totals, now));
+
+        // A closed batch is never closed again
+        Assert.assertFalse(monerisDao.acquireBatchCloseLease(storeId, ecrNumber, closeDate, "node1", now.plusDays(1), now.plusDays(1).plusMinutes(5)));
+    }
+
+    @Test(groups = "slow")
+    public void testQueuedTransactions() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        final CallContext context = new MonerisContext(kbTenantId, UUID.randomUUID(), UUID.randomUUID().toString(), CallOrigin.INTERNAL, UserType.TEST, null, null, now, now);
+        final UUID kbPaymentId = UUID.randomUUID();
+        final UUID kbTransactionId = UUID.randomUUID();
+        monerisDao.createQueuedTransaction(UUID.randomUUID(), kbPaymentId, kbTransactionId, UUID.randomUUID(), BigDecimal.TEN, Currency.CAD, null, TransactionType.PURCHASE, "2", null, "Queued", context);
+
+        Assert.assertEquals(monerisDao.getTransaction(kbTransactionId, kbTenantId).getStatus(), PaymentPluginStatus.PENDING);
+        final List<MonerisQueuedTransaction> queuedTransactions = monerisDao.getQueuedTransactions(now.minusMinutes(5), 0, 10);
+        Assert.assertEquals(queuedTransactions.size(), 1);
+        Assert.assertEquals(queuedTransactions.get(0).getKbTransactionId(), kbTransactionId);
+        Assert.assertEquals(queuedTransactions.get(0).getNbAttempts(), 0);
+        // Paged past
+        Assert.assertEquals(monerisDao.getQueuedTransactions(now.minusMinutes(5), queuedTransactions.get(0).getRecordId(), 10).size(), 0);
+
+        // Claimed once, until it goes stale
+        final String staleClaimToken = monerisDao.claimQueuedTransaction(kbTransactionId, now.minusMinutes(5), now);
+        Assert.assertNotNull(staleClaimToken);
+        Assert.assertNull(monerisDao.claimQueuedTransaction(kbTransactionId, now.minusMinutes(5), now));
+        Assert.assertEquals(monerisDao.getQueuedTransactions(now.minusMinutes(5), 0, 10).size(), 0);
+        Assert.assertEquals(monerisDao.getQueuedTransactions(now.plusSeconds(1), 0, 10).get(0).getNbAttempts(), 1);
+
+        // Claimed again once stale: the first sender can't put it back in the queue nor complete it anymore
+        final String claimToken = monerisDao.claimQueuedTransaction(kbTransactionId, now.plusSeconds(1), now.plusSeconds(1));
+        Assert.assertNotNull(claimToken);
+        Assert.assertFalse(monerisDao.releaseQueuedTransaction(kbTransactionId, staleClaimToken, now.plusSeconds(2)));
+        Assert.assertEquals(monerisDao.getQueuedTransactions(now, 0, 10).size(), 0);
+        final MonerisPaymentTransactionInfoPlugin receipt = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, TransactionType.PURCHASE, Currency.CAD,
+                                                                                                    null, null, null, null, null, null, null, null, "false", "660", "V", "10.00", "APPROVED",
+                                                                                                    "true", "00", "2014-03-10", "12:42:01", "123456", "01", "027", "660", UUID.randomUUID().toString());
+        Assert.assertFalse(monerisDao.completeQueuedTransaction(receipt, staleClaimToken, "test", now.plusSeconds(2)));
+        Assert.assertEquals(monerisDao.getTransaction(kbTransactionId, kbTenantId).getStatus(), PaymentPluginStatus.PENDING);
+
+        // Released by its current sender, then claimed and completed
+        Assert.assertTrue(monerisDao.releaseQueuedTransaction(kbTransactionId, claimToken, now.plusSeconds(2)));
+        Assert.assertEquals(monerisDao.getQueuedTransactions(now, 0, 10).get(0).getNbAttempts(), 2);
+        final String lastClaimToken = monerisDao.claimQueuedTransaction(kbTransactionId, now, now.plusSeconds(3));
+        Assert.assertNotNull(lastClaimToken);
+        Assert.assertTrue(monerisDao.completeQueuedTransaction(receipt, lastClaimToken, "test", now.plusSeconds(3)));
+        Assert.assertEquals(monerisDao.getTransaction(kbTransactionId, kbTenantId).getStatus(), PaymentPluginStatus.PROCESSED);
+        Assert.assertEquals(monerisDao.getQueuedTransactions(now.plusSeconds(1), 0, 10).size(), 0);
+    }
+
+    @Test(groups = "slow")
+    public void testDailyTotals() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        final DateTime now = new DateTime(2014, 3, 10, 12, 42, DateTimeZone.UTC);
+        final CallContext context = new MonerisContext(kbTenantId, UUID.randomUUID(), UUID.randomUUID().toString(), CallOrigin.INTERNAL, UserType.TEST, null, null, now, now);
+        final UUID kbPaymentId = UUID.randomUUID();
+        final UUID kbTransactionId = UUID.randomUUID();
+        monerisDao.createQueuedTransaction(UUID.randomUUID(), kbPaymentId, kbTransactionId, UUID.randomUUID(), BigDecimal.TEN, Currency.CAD, null, TransactionType.PURCHASE, "2", null, "Queued", context);
+
+        // Moved from PENDING to PROCESSED once sent: the two changes cancel out for PENDING
+        final MonerisPaymentTransactionInfoPlugin receipt = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, TransactionType.PURCHASE, Currency.CAD,
+                                                                                                    null, null, null, null, null, null, null, null, "false", "660", "V", "10.00", "APPROVED",
+                                                                                                    "true", "00", "2014-03-10", "12:42:01", "123456", "01", "027", "660", UUID.randomUUID().toString());
+        Assert.assertTrue(monerisDao.completeQueuedTransaction(receipt, monerisDao.claimQueuedTransaction(kbTransactionId, now, now), "test", now));
+        final List<MonerisDailyTotal> deltas = monerisDao.getPendingDailyTotals().drain();
+        Assert.assertEquals(deltas.size(), 1);
+
+        // Applied once, even if retried
+        monerisDao.upsertDailyTotals("node-1", 1, deltas, now);
+        monerisDao.upsertDailyTotals("node-1", 1, deltas, now);
+        monerisDao.upsertDailyTotals("node-2", 1, deltas, now);
+
+        final List<MonerisDailyTotal> dailyTotals = monerisDao.getDailyTotals(kbTenantId, "2014-03-10", "2014-03-11");
+        Assert.assertEquals(dailyTotals.size(), 1);
+        Assert.assertEquals(dailyTotals.get(0).getCardType(), "V");
+        Assert.assertEquals(dailyTotals.get(0).getTransactionType(), TransactionType.PURCHASE.toString());
+        Assert.assertEquals(dailyTotals.get(0).getStatus(), PaymentPluginStatus.PROCESSED.toString());
+        Assert.assertEquals(dailyTotals.get(0).getNbTransactions(), 2);
+        Assert.assertEquals(dailyTotals.get(0).getAmount().compareTo(new BigDecimal("20")), 0);
+        Assert.assertEquals(monerisDao.getDailyTotals(kbTenantId, "2014-03-11", "2014-03-12").size(), 0);
+        // Where node-1 resumes after a restart
+        Assert.assertEquals(monerisDao.getLastDailyTotalsFlushSequence("node-1"), 1);
+        Assert.assertEquals(monerisDao.getLastDailyTotalsFlushSequence("node-3"), 0);
+
+        // Rebuilt from the transaction: the purchase is only counted once
+        Assert.assertEquals(monerisDao.rebuildDailyTotals(kbTenantId, "2014-03-10", "2014-03-11", 100, now), 1);
+        final List<MonerisDailyTotal> rebuiltTotals = monerisDao.getDailyTotals(kbTenantId, "2014-03-10", "2014-03-11");
+        Assert.assertEquals(rebuiltTotals.size(), 1);
+        Assert.assertEquals(rebuiltTotals.get(0).getStatus(), PaymentPluginStatus.PROCESSED.toString());
+        Assert.assertEquals(rebuiltTotals.get(0).getNbTransactions(), 1);
+        Assert.assertEquals(rebuiltTotals.get(0).getAmount().compareTo(BigDecimal.TEN), 0);
+    }
+
+    @Test(groups = "slow")
+    public void testStaleAuthorizations() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        final CallContext context = new MonerisContext(kbTenantId, UUID.randomUUID(), UUID.randomUUID().toString(), CallOrigin.TEST, UserType.TEST, null, null, now.minusDays(10), now.minusDays(10));
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentId = UUID.randomUUID();
+        final UUID kbTransactionId = UUID.randomUUID();
+        final UUID kbPaymentMethodId = UUID.randomUUID();
+        // Approved Visa Pre-Authorization (trans type 01)
+        final MonerisPaymentTransactionInfoPlugin preAuth = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, TransactionType.AUTHORIZE, Currency.CAD,
+                                                                                                    null, null, null, null, null, null, null, null, "false", "660", "V", "10.00", "APPROVED",
+                                                                                                    "true", "01", "2014-03-10", "12:42:01", "123456", "01", "027", "660", UUID.randomUUID().toString());
+        monerisDao.createTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, BigDecimal.TEN, Currency.CAD, TransactionType.AUTHORIZE, preAuth, context);
+
+        Assert.assertEquals(countStaleAuthorizations(kbPaymentId, "V", now.minusDays(7), now), 1);
+        // Within the window, or another card type
+        Assert.assertEquals(countStaleAuthorizations(kbPaymentId, "V", now.minusDays(14), now), 0);
+        Assert.assertEquals(countStaleAuthorizations(kbPaymentId, "M", now.minusDays(7), now), 0);
+        Assert.assertEquals(countStaleAuthorizations(kbPaymentId, null, now.minusDays(7), now), 0);
+
+        // Left alone for a minute after a first sweep attempt, then two
+        Assert.assertEquals(monerisDao.recordPreAuthSweepAttempt(kbTransactionId, kbTenantId, 60, now), 1);
+        Assert.assertEquals(countStaleAuthorizations(kbPaymentId, "V", now.minusDays(7), now.plusSeconds(30)), 0);
+        Assert.assertEquals(countStaleAuthorizations(kbPaymentId, "V", now.minusDays(7), now.plusMinutes(2)), 1);
+        Assert.assertEquals(monerisDao.recordPreAuthSweepAttempt(kbTransactionId, kbTenantId, 60, now.plusMinutes(2)), 2);
+        Assert.assertEquals(countStaleAuthorizations(kbPaymentId, "V", now.minusDays(7), now.plusMinutes(3)), 0);
+        Assert.assertEquals(countStaleAuthorizations(kbPaymentId, "V", now.minusDays(7), now.plusMinutes(5)), 1);
+        // Given up on after the last attempt
+        Assert.assertEquals(monerisDao.recordPreAuthSweepAttempt(kbTransactionId, kbTenantId, 60, now.plusMinutes(5)), 3);
+        Assert.assertEquals(countStaleAuthorizations(kbPaymentId, "V", now.minusDays(7), now.plusDays(1)), 0);
+
+        // Captured
+        final UUID kbPaymentId2 = UUID.randomUUID();
+        final UUID kbTransactionId2 = UUID.randomUUID();
+        final MonerisPaymentTransactionInfoPlugin preAuth2 = new MonerisPaymentTransactionInfoPlugin(kbPaymentId2, kbTransactionId2, TransactionType.AUTHORIZE, Currency.CAD,
+                                                                                                     null, null, null, null, null, null, null, null, "false", "660", "V", "10.00", "APPROVED",
+                                                                                                     "true", "01", "2014-03-10", "12:42:01", "123456", "01", "027", "660", UUID.randomUUID().toString());
+        monerisDao.createTransaction(kbAccountId, kbPaymentId2, kbTransactionId2, kbPaymentMethodId, BigDecimal.TEN, Currency.CAD, TransactionType.AUTHORIZE, preAuth2, context);
+        Assert.assertEquals(countStaleAuthorizations(kbPaymentId2, "V", now.minusDays(7), now), 1);
+        createTransaction(kbAccountId, kbPaymentId2, UUID.randomUUID(), kbPaymentMethodId, BigDecimal.TEN, Currency.CAD, TransactionType.CAPTURE, context);
+        Assert.assertEquals(countStaleAuthorizations(kbPaymentId2, "V", now.minusDays(7), now), 0);
+    }
+
+    private int countStaleAuthorizations(final UUID kbPaymentId, final String cardType, final DateTime createdBefore, final DateTime now) {
+        int nbStaleAuthorizations = 0;
+        for (final MonerisStaleAuthorization staleAuthorization : monerisDao.getStaleAuthorizations(cardType, Arrays.asList("V", "M"), createdBefore, now, 3, 1000)) {
+            if (kbPaymentId.equals(staleAuthorization.getKbPaymentId())) {
+                nbStaleAuthorizations++;
+            }
+        }
+        return nbStaleAuthorizations;
+    }
+
     @Test(groups = "slow")
     public void testPaymentMethods() throws Exception {
         final UUID kbTenantId = UUID.randomUUID();
@@ -145,6 +382,16 @@ public class TestMonerisDao {
         Assert.assertEquals(paymentMethodInfoPlugins3.size(), 1);
         checkEquals(kbAccountId, paymentMethodInfoPlugins3.get(0), paymentMethodPlugin2);
 
+        // Add a card from the Moneris Vault
+        final UUID kbPaymentMethodId3 = UUID.randomUUID();
+        monerisDao.createPaymentMethod(kbAccountId, kbPaymentMethodId3, "dataKey3", new MonerisVaultedCard("dataKey3", "store1"), context);
+
+        Assert.assertNull(monerisDao.getVaultedCard(kbPaymentMethodId2, kbTenantId));
+        Assert.assertNull(monerisDao.getVaultedCard(kbPaymentMethodId3, UUID.randomUUID()));
+        final MonerisVaultedCard vaultedCard = monerisDao.getVaultedCard(kbPaymentMethodId3, kbTenantId);
+        Assert.assertEquals(vaultedCard.getDataKey(), "dataKey3");
+        Assert.assertEquals(vaultedCard.getStore(), "store1");
+
         // TODO
         // monerisDao.searchPaymentMethods()
     }
@@ -157,7 +404,7 @@ public class TestMonerisDao {
     }
 
     private MonerisPaymentTransactionInfoPlugin createTransaction(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final TransactionType transactionType, final CallContext context) {
-        final MonerisPaymentTransactionInfoPlugin transactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, currency,
+        final MonerisPaymentTransactionInfoPlugin transactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, transactionType, currency,
                                                                                                                   UUID.randomUUID().toString(), UUID.randomUUID().toString(), UUID.randomUUID().toString(),
                                                                                                                   UUID.randomUUID().toString(), UUID.randomUUID().toString(), UUID.randomUUID().toString(),
                                                                                                                   UUID.randomUUID().toString(), UUID.randomUUID().toString(), UUID.randomUUID().toString(),
@@ -172,6 +419,17 @@ public class TestMonerisDao {
         return transactionInfoPlugin;
     }
 
+    private MonerisPaymentTransactionInfoPlugin createProcessedTransaction(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbPaymentMethodId, final TransactionType transactionType,
+                                                                           final String transType, final CallContext context) {
+        final UUID kbTransactionId = UUID.randomUUID();
+        final MonerisPaymentTransactionInfoPlugin transactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, transactionType, Currency.CAD,
+                                                                                                                  null, null, null, null, null, null, null, null, "false", "660", "V", "10.00", "APPROVED",
+                                                                                                                  "true", transType, "2014-03-10", "12:42:01", "123456", "01", "027", "660", UUID.randomUUID().toString());
+        monerisDao.createTransaction(kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, BigDecimal.TEN, Currency.CAD, transactionType, transactionInfoPlugin, context);
+
+        return transactionInfoPlugin;
+    }
+
     private MonerisPaymentMethodPlugin createPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final CallContext context) {
         final MonerisPaymentMethodPlugin paymentMethodPlugin = new MonerisPaymentMethodPlugin(kbPaymentMethodId, UUID.randomUUID().toString(), new LinkedList<PluginProperty>());
 
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.util.Scanner;
+import java.util.UUID;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.plugin.moneris.MonerisContext;
+import org.killbill.billing.plugin.moneris.MonerisPaymentTransactionInfoPlugin;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.CallOrigin;
+import org.killbill.billing.util.callcontext.UserType;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * A crash is simulated by abandoning a journal instance (without closing it) and re-opening the file,
+ * which is what happens when the process is killed between two steps.
+ */
+public class TestMonerisJournal {
+
+    private static final int CAPACITY = 1024 * 1024;
+
+    private JdbcConnectionPool ds = null;
+    private MonerisDao monerisDao = null;
+    private File journalFile = null;
+    private UUID kbTenantId = null;
+    private CallContext context = null;
+
+    @BeforeMethod(groups = "slow")
+    public void setUp() throws Exception {
+        this.ds = JdbcConnectionPool.create("jdbc:h2:mem:moneris", "username", "password");
+        this.monerisDao = new MonerisDao(ds);
+
+        final DBI dbi = new DBI(this.ds);
+        Handle h = null;
+        try {
+            h = dbi.open();
+            final InputStream inputStream = TestMonerisJournal.class.getResourceAsStream("/org/killbill/billing/plugin/moneris/dao/ddl.sql");
+            final String ddl = new Scanner(inputStream, "UTF-8").useDelimiter("\\A").next();
+            h.execute(ddl);
+        } finally {
+            if (h != null) {
+                h.close();
+            }
+        }
+
+        this.journalFile = File.createTempFile("moneris-journal", ".bin");
+        // Start from a fresh journal
+        Assert.assertTrue(journalFile.delete());
+
+        this.kbTenantId = UUID.randomUUID();
+        this.context = new MonerisContext(kbTenantId, UUID.randomUUID(), UUID.randomUUID().toString(), CallOrigin.TEST, UserType.TEST, null, null, new DateTime(0, DateTimeZone.UTC), new DateTime(0, DateTimeZone.UTC));
+    }
+
+    @AfterMethod(groups = "slow")
+    public void tearDown() throws Exception {
+        if (ds != null) {
+            ds.dispose();
+        }
+        if (journalFile != null) {
+            journalFile.delete();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testCrashBeforeApply() throws Exception {
+        final UUID kbPaymentId = UUID.randomUUID();
+        final MonerisJournal journal = new MonerisJournal(journalFile, CAPACITY);
+        final MonerisJournalEntry auth = createEntry(kbPaymentId, TransactionType.AUTHORIZE);
+        final MonerisJournalEntry capture = createEntry(kbPaymentId, TransactionType.CAPTURE);
+        Assert.assertTrue(journal.append(auth));
+        Assert.assertTrue(journal.append(capture));
+        Assert.assertEquals(journal.getPendingTransactions(kbPaymentId, kbTenantId).size(), 2);
+        Assert.assertEquals(monerisDao.getTransactions(kbPaymentId, kbTenantId).size(), 0);
+
+        // Crash before the applier ran
+        final MonerisJournal recoveredJournal = new MonerisJournal(journalFile, CAPACITY);
+        Assert.assertEquals(recoveredJournal.getNbPendingEntries(), 2);
+        Assert.assertEquals(recoveredJournal.getPendingTransactions(kbPaymentId, kbTenantId).get(0), auth.getMonerisPaymentTransactionInfoPlugin());
+        Assert.assertEquals(recoveredJournal.getPendingTransactions(kbPaymentId, kbTenantId).get(1), capture.getMonerisPaymentTransactionInfoPlugin());
+
+        Assert.assertEquals(new MonerisJournalApplier(recoveredJournal, monerisDao, null, 10).drain(), 2);
+        Assert.assertEquals(recoveredJournal.getNbPendingEntries(), 0);
+        Assert.assertEquals(monerisDao.getTransactions(kbPaymentId, kbTenantId).size(), 2);
+        Assert.assertEquals(monerisDao.getTransactions(kbPaymentId, kbTenantId).get(0), auth.getMonerisPaymentTransactionInfoPlugin());
+        Assert.assertEquals(monerisDao.getTransactions(kbPaymentId, kbTenantId).get(1), capture.getMonerisPaymentTransactionInfoPlugin());
+
+        // Crash after the checkpoint: nothing to replay
+        Assert.assertEquals(new MonerisJournal(journalFile, CAPACITY).getNbPendingEntries(), 0);
+    }
+
+    @Test(groups = "slow")
+    public void testCrashBeforeCheckpoint() throws Exception {
+        final UUID kbPaymentId = UUID.randomUUID();
+        final MonerisJournal journal = new MonerisJournal(journalFile, CAPACITY);
+        Assert.assertTrue(journal.append(createEntry(kbPaymentId, TransactionType.PURCHASE)));
+
+        // Crash after the database commit, but before the journal checkpoint
+        monerisDao.createTransactions(journal.peek(10));
+        Assert.assertEquals(monerisDao.getTransactions(kbPaymentId, kbTenantId).size(), 1);
+
+        final MonerisJournal recoveredJournal = new MonerisJournal(journalFile, CAPACITY);
+        Assert.assertEquals(recoveredJournal.getNbPendingEntries(), 1);
+        Assert.assertEquals(new MonerisJournalApplier(recoveredJournal, monerisDao, null, 10).drain(), 1);
+
+        // The replay didn't create a duplicate
+        Assert.assertEquals(monerisDao.getTransactions(kbPaymentId, kbTenantId).size(), 1);
+    }
+
+    @Test(groups = "slow")
+    public void testCrashDuringAppend() throws Exception {
+        final UUID kbPaymentId = UUID.randomUUID();
+        final MonerisJournal journal = new MonerisJournal(journalFile, CAPACITY);
+        final MonerisJournalEntry auth = createEntry(kbPaymentId, TransactionType.AUTHORIZE);
+        Assert.assertTrue(journal.append(auth));
+
+        // Torn write: a length was written for the next record, but not its payload
+        final int tornRecordOffset = MonerisJournal.HEADER_SIZE + MonerisJournal.RECORD_HEADER_SIZE + auth.serialize().length;
+        final RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        try {
+            raf.seek(tornRecordOffset);
+            raf.writeInt(512);
+            raf.writeLong(1);
+            raf.writeLong(42);
+        } finally {
+            raf.close();
+        }
+
+        final MonerisJournal recoveredJournal = new MonerisJournal(journalFile, CAPACITY);
+        Assert.assertEquals(recoveredJournal.getNbPendingEntries(), 1);
+
+        // The torn record is overwritten by the next append
+        Assert.assertTrue(recoveredJournal.append(createEntry(kbPaymentId, TransactionType.CAPTURE)));
+        Assert.assertEquals(new MonerisJournal(journalFile, CAPACITY).getNbPendingEntries(), 2);
+    }
+
+    @Test(groups = "slow")
+    public void testJournalFull() throws Exception {
+        final MonerisJournalEntry entry = createEntry(UUID.randomUUID(), TransactionType.PURCHASE);
+        final MonerisJournal journal = new MonerisJournal(journalFile, MonerisJournal.HEADER_SIZE + MonerisJournal.RECORD_HEADER_SIZE + entry.serialize().length);
+        Assert.assertTrue(journal.append(entry));
+        Assert.assertFalse(journal.append(entry));
+
+        // Once applied, the journal is rewound
+        Assert.assertEquals(new MonerisJournalApplier(journal, monerisDao, null, 10).drain(), 1);
+        Assert.assertTrue(journal.append(createEntry(UUID.randomUUID(), TransactionType.PURCHASE)));
+    }
+
+    private MonerisJournalEntry createEntry(final UUID kbPaymentId, final TransactionType transactionType) {
+        final UUID kbTransactionId = UUID.randomUUID();
+        final BigDecimal amount = BigDecimal.TEN;
+        final Currency currency = Currency.CAD;
+        final MonerisPaymentTransactionInfoPlugin transactionInfoPlugin = new MonerisPaymentTransactionInfoPlugin(kbPaymentId, kbTransactionId, transactionType, currency,
+                                                                                                                  "false", null, null,
+                                                                                                                  null, "1M", "U",
+                                                                                                                  "true", null, "false",
+                                                                                                                  "10-0_13", "V", amount.toString(),
+                                                                                                                  "APPROVED           *                    =", "true", "01",
+                                                                                                                  "2014-03-10", "12:42:01", "123456",
+                                                                                                                  "01", "027", "660123450010690030",
+                                                                                                                  kbTransactionId.toString().replace("-", ""));
+        return new MonerisJournalEntry(UUID.randomUUID(), kbPaymentId, kbTransactionId, UUID.randomUUID(), amount, currency, transactionType, transactionInfoPlugin, context);
+    }
+}
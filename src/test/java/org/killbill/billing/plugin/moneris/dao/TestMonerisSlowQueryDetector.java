@@ -0,0 +1,35 @@
+/*
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License" + you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.moneris.dao;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMonerisSlowQueryDetector {
+
+    @Test(groups = "fast")
+    public void testSqlShape() throws Exception {
+        final String rawSql = "select * " +
+                              "from moneris_transactions " +
+                              "where kb_payment_id in (:id0, :id1, :id2) and kb_tenant_id = :kbTenantId\n" +
+                              "order by created_date asc";
+        Assert.assertEquals(MonerisSlowQueryDetector.toSqlShape(rawSql),
+                            "select * from moneris_transactions where kb_payment_id in (:id*) and kb_tenant_id = :kbTenantId order by created_date asc");
+        Assert.assertEquals(MonerisSlowQueryDetector.countParameters(rawSql), 4);
+        Assert.assertEquals(MonerisSlowQueryDetector.countParameters("update moneris_payment_methods set is_deleted = true, updated_by = ? where kb_payment_method_id = ?"), 2);
+    }
+}